@@ -35,30 +35,6 @@ public class DataParser {
         }
     }
 
-    public static long parseStringToLong(String str){
-        long seed = DataSetting.DATA_SEED;
-        long result = 0;
-        byte[] bytes = str.getBytes();
-        for(byte oneByte : bytes){
-            result = result * seed + oneByte;
-        }
-        return result;
-    }
-
-    public static long parseDataToLong(Object data, String dataType) throws WarningException{
-        switch (dataType){
-            case DataSetting.DATA_INT32:
-                return (long)(int)data;
-            case DataSetting.DATA_INT64:
-                return (long)data;
-            case DataSetting.DATA_STRING:
-                return parseStringToLong((String)data);
-            default:
-                Log.logWarningMessage(WarningMessage.DATA_TYPE_IS_INVALID);
-                return 0;
-        }
-    }
-
     public static String parseDataToString(Object data, String dataType) throws WarningException{
         switch (dataType){
             case DataSetting.DATA_INT32:
@@ -128,6 +104,9 @@ public class DataParser {
             } catch (NumberFormatException e) {
                 return false;
             }
+        } else if (typeInstance instanceof String) {
+            // 任何字符串都可以作为字符串字段的值
+            return true;
         } else if (typeInstance instanceof Boolean) {
             // 通常认为任何字符串都可以转换为Boolean，因为非"true"的字符串都被解释为false
             return true;
@@ -144,9 +123,9 @@ public class DataParser {
         }
         switch (dataType){
             case DataSetting.DATA_INT32:
-                return Integer.valueOf(dataType);
+                return 0;
             case DataSetting.DATA_INT64:
-                return Long.valueOf(dataType);
+                return 0L;
             case DataSetting.DATA_STRING:
                 return dataType;
             default:
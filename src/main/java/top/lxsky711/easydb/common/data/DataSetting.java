@@ -9,8 +9,6 @@ public class DataSetting {
 
     public static final int DATA_START_POS_DEFAULT = 0;
 
-    public static final long DATA_SEED = 711L;
-
     public static final int DATA_CACHE_DEFAULT_SIZE = 10000;
 
     public static final int LONG_BYTE_SIZE = Long.SIZE / Byte.SIZE;
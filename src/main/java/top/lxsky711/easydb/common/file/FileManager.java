@@ -12,6 +12,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,8 +30,8 @@ public class FileManager {
      */
     public static void readByteDataIntoFileChannel(FileChannel fc, long pos, ByteBuffer readBuffer) throws ErrorException {
         try {
-            fc.position(pos);
-            fc.read(readBuffer);
+            // 使用带位置的读写，不改动通道的共享位置，多个线程同时读写同一个通道时不会互相错位
+            fc.read(readBuffer, pos);
         }
         catch (IOException e){
             Log.logErrorMessage(e.getMessage()
@@ -45,9 +46,9 @@ public class FileManager {
      */
     public static void writeByteDataIntoFileChannel(FileChannel fc, long pos, ByteBuffer writeBuffer) throws WarningException, ErrorException {
         try {
-            fc.position(pos);
-            int writeCapacity = fc.write(writeBuffer);
-            if(writeCapacity < writeBuffer.capacity()){
+            int needCapacity = writeBuffer.remaining();
+            int writeCapacity = fc.write(writeBuffer, pos);
+            if(writeCapacity < needCapacity){
                 Log.logWarningMessage(WarningMessage.FILE_CHANNEL_WRITE_NOT_ENOUGH);
             }
         }
@@ -58,6 +59,22 @@ public class FileManager {
         }
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 只读映射文件的一段到内存封装
+     */
+    public static MappedByteBuffer mapFileChannelReadOnly(FileChannel fc, long pos, long size) throws ErrorException {
+        try {
+            return fc.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        }
+        catch (IOException e){
+            Log.logErrorMessage(e.getMessage()
+                    + LogSetting.LOG_MASSAGE_CONNECTOR
+                    + ErrorMessage.FILE_CHANNEL_USE_ERROR);
+            return null;
+        }
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 强制FileChannel数据刷新到磁盘封装，参数是选择是否刷新元数据
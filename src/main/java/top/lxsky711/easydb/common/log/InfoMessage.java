@@ -14,6 +14,9 @@ public class InfoMessage {
     public static final String PAGE_TRUNCATE =
             "Pages are truncated!";
 
+    public static final String LOG_BAD_TAIL_TRUNCATED =
+            "The log's bad tail is truncated, bytes: %s";
+
     public static final String TRANSACTIONS_REDO_START =
             "--------- Redo transactions start. -----------" + "\n" +
             "----------------------------------------------";
@@ -30,6 +33,9 @@ public class InfoMessage {
             "********* Undo transactions over. ************" + "\n" +
             "**********************************************";
 
+    public static final String RECOVER_SUMMARY =
+            "Recover summary: redo logs %s, undo logs %s, undo transactions %s, pages %s, workers %s, elapsed %s ms";
+
     public static final String RECOVER_OVER =
             "**************** Recover over. ****************" + "\n" +
             "***********************************************";
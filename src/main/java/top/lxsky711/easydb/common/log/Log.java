@@ -34,12 +34,20 @@ public class Log {
         throw new WarningException(warning);
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 只记录警告不抛出异常，后台任务失败后还要继续运行时使用
+     */
+    public static void logWarningWithoutThrow(String warning){
+        logger.warn(warning);
+    }
+
     public static void logInfo(String message){
         logger.info(message);
     }
 
     public static String concatMessage(String mainMessage, String...additionalMessages){
-        return String.format(mainMessage, (Object) additionalMessages);
+        return String.format(mainMessage, (Object[]) additionalMessages);
     }
 
     public static Exception buildException(String message){
@@ -37,6 +37,18 @@ public class WarningMessage {
     public static final String PAGE_FREE_SPACE_NOT_ENOUGH
             = "The page's free space is not enough for this data!";
 
+    public static final String COMMIT_DURABILITY_INVALID
+            = "The commit durability mode is invalid, it should be sync, group or async!";
+
+    public static final String INDEX_FILL_FACTOR_INVALID
+            = "The index fill factor is invalid, it should be in (0, 1]!";
+
+    public static final String INDEX_ENTRIES_NOT_SORTED
+            = "The index entries for bulk load or batch insert are not sorted by key!";
+
+    public static final String INDEX_KEY_TOO_LONG
+            = "The index key is too long to be stored in the B+ tree node!";
+
     public static final String LOG_FILE_MAYBE_ERROR
             = "The log-file record maybe has some error for its data";
 
@@ -85,6 +97,9 @@ public class WarningMessage {
     public static final String VERSION_CONTROL_DEAD_LOCK_OCCUR
             = "The version control dead lock occurs!";
 
+    public static final String VERSION_LOCK_WAIT_TIMEOUT
+            = "Waiting for the record lock timed out!";
+
     public static final String NO_INDEX
             = "There is none index!";
 
@@ -109,6 +124,9 @@ public class WarningMessage {
     public static final String FIELD_TYPE_IS_NOT_INVALID
             = "The field type is invalid or not support!";
 
+    public static final String FIELD_NOT_FOUND
+            = "The field is not found!";
+
     public static final String DUPLICATE_CREATE_TABLE
             = "The table is already exist!";
 
@@ -126,4 +144,13 @@ public class WarningMessage {
 
     public static final String MEMORY_INVALID
             = "The memory size is invalid!";
+
+    public static final String TOAST_VALUE_BROKEN
+            = "The out-of-line stored value is broken!";
+
+    public static final String PAGE_BACKGROUND_FLUSH_FAILED
+            = "Background page flush failed: %s";
+
+    public static final String VACUUM_BACKGROUND_FAILED
+            = "Background vacuum failed: %s";
 }
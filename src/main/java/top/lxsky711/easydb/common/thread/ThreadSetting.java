@@ -7,7 +7,10 @@ package top.lxsky711.easydb.common.thread;
 
 public class ThreadSetting {
 
-    public static final long CACHE_GET_SLEEP_TIME = 10;
+    /**
+     * 缓存引用计数分段锁个数，须为 2 的幂
+     */
+    public static final int CACHE_LOCK_STRIPES = 64;
 
     public static final int THREAD_POOL_CORE_SIZE = 10;
 
@@ -7,14 +7,24 @@ import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.common.thread.ThreadSetting;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: 711lxsky
- * @Description: 引用技术缓存框架，抽象类
+ * @Description: 引用计数缓存框架，抽象类
+ * 引用计数的修改按 key 分段加锁，不同 key 之间互不阻塞
+ * 从数据源加载和写回都在锁外进行，同一 key 的并发请求者在对应的 future 上等待
+ * 如果指定了置换策略，引用数归零的资源会继续驻留，缓存满时由置换策略选出牺牲者写回并驱逐
  */
 
 public abstract class AbstractCache<T> {
@@ -22,17 +32,17 @@ public abstract class AbstractCache<T> {
     /**
      * 缓存数据
      */
-    private final HashMap<Long, T> cacheData;
+    private final ConcurrentHashMap<Long, T> cacheData;
 
     /**
      * 缓存中资源引用个数标记
      */
-    private final HashMap<Long, Integer> referenceRecord;
+    private final ConcurrentHashMap<Long, Integer> referenceRecord;
 
     /**
-     * 从数据源/持久区中获取资源的记录情况
+     * 正在从数据源/持久区中获取(或正在写回)的资源，等待者阻塞在对应的 future 上
      */
-    private final HashMap<Long, Boolean> acquisitionSituation;
+    private final ConcurrentHashMap<Long, CompletableFuture<T>> acquisitionSituation;
 
     /**
      * 缓存最大资源数
@@ -40,25 +50,47 @@ public abstract class AbstractCache<T> {
     private final int maxResourceNum;
 
     /**
-     * 现有缓存资源数量
+     * 现有缓存资源数量(包含正在加载中的占位)
      */
-    private int cacheCounter;
+    private final AtomicInteger cacheCounter;
 
     /**
-     * 内部资源申请锁
+     * 分段锁，保护同一 key 上 cacheData / referenceRecord / acquisitionSituation 三者的一致性
      */
-    private final Lock lock;
+    private final Lock[] stripeLocks;
+
+    /**
+     * 置换策略，为 null 时引用数归零即释放写回
+     */
+    private final ReplacementPolicy replacementPolicy;
+
+    /**
+     * 缓存满且资源全部被引用时，等待资源释放
+     */
+    private final Lock slotLock;
+
+    private final Condition slotReleased;
 
     public AbstractCache(int maxResourceNum) throws ErrorException {
+        this(maxResourceNum, null);
+    }
+
+    public AbstractCache(int maxResourceNum, ReplacementPolicy replacementPolicy) throws ErrorException {
         if(maxResourceNum < 0){
             Log.logErrorMessage(ErrorMessage.CACHE_RESOURCE_NUMBER_ERROR);
         }
         this.maxResourceNum = maxResourceNum;
-        this.cacheData = new HashMap<>();
-        this.referenceRecord = new HashMap<>();
-        this.acquisitionSituation = new HashMap<>();
-        this.lock = new ReentrantLock();
-        this.cacheCounter = 0;
+        this.cacheData = new ConcurrentHashMap<>();
+        this.referenceRecord = new ConcurrentHashMap<>();
+        this.acquisitionSituation = new ConcurrentHashMap<>();
+        this.cacheCounter = new AtomicInteger(0);
+        this.stripeLocks = new Lock[ThreadSetting.CACHE_LOCK_STRIPES];
+        for(int i = 0; i < this.stripeLocks.length; i ++){
+            this.stripeLocks[i] = new ReentrantLock();
+        }
+        this.replacementPolicy = replacementPolicy;
+        this.slotLock = new ReentrantLock();
+        this.slotReleased = this.slotLock.newCondition();
     }
 
     /**
@@ -67,77 +99,253 @@ public abstract class AbstractCache<T> {
      * 所以这个方法本身也就是在获取缓存数据
      */
     protected T getResource(long key) throws WarningException, ErrorException {
+        CompletableFuture<T> loadFuture;
+        long fullWaitDeadline = 0;
         while(true){
-            this.lock.lock();
-            // 如果请求的资源一直在被其他线程获取，就反复等待尝试
-            if(this.acquisitionSituation.containsKey(key)){
-                this.lock.unlock();
-                try {
-                    Thread.sleep(ThreadSetting.CACHE_GET_SLEEP_TIME);
-                } catch (InterruptedException e) {
-                    Log.logWarningMessage(e.getMessage());
-                    continue;
+            Lock stripeLock = this.getStripeLock(key);
+            CompletableFuture<T> waitFuture;
+            stripeLock.lock();
+            try {
+                // 如果资源在缓存中，直接返回
+                T object = this.cacheData.get(key);
+                if(object != null){
+                    // 拿到资源，给引用数+1
+                    int referenceNum = this.referenceRecord.merge(key, 1, Integer::sum);
+                    if(this.replacementPolicy != null){
+                        if(referenceNum == 1){
+                            this.replacementPolicy.setEvictable(key, false);
+                        }
+                        this.replacementPolicy.recordAccess(key);
+                    }
+                    return object;
+                }
+                waitFuture = this.acquisitionSituation.get(key);
+                if(waitFuture == null){
+                    // 尝试占用一个缓存位置
+                    if(this.tryReserveSlot()){
+                        // 缓存没满，在资源获取中注册一下，准备从数据源获取资源
+                        loadFuture = new CompletableFuture<>();
+                        this.acquisitionSituation.put(key, loadFuture);
+                        break;
+                    }
+                    if(this.replacementPolicy == null){
+                        // 缓存已经满了
+                        Log.logWarningMessage(WarningMessage.CACHE_FULL);
+                    }
                 }
+            }
+            finally {
+                stripeLock.unlock();
+            }
+            if(waitFuture != null){
+                // 资源正在被其他线程获取或写回，等待其完成后重新尝试
+                this.awaitFuture(waitFuture);
                 continue;
             }
-            // 如果资源在缓存中，直接返回
-            if(this.cacheData.containsKey(key)){
-                T object = this.cacheData.get(key);
-                // 拿到资源，给引用数+1
-                this.referenceRecord.put(key, this.referenceRecord.get(key) + 1);
-                this.lock.unlock();
-                return object;
-            }
-            // 尝试获取该资源并放入缓存
-            if(this.maxResourceNum > 0 && this.cacheCounter == this.maxResourceNum){
-                // 缓存已经满了
-                this.lock.unlock();
-                Log.logWarningMessage(WarningMessage.CACHE_FULL);
-                return null;
-            }
-            // 缓存没满，在资源获取中注册一下，准备从数据源获取资源
-            this.acquisitionSituation.put(key, true);
-            this.lock.unlock();
-            break;
-        }
-        this.lock.lock();
+            // 缓存已满，驱逐一个无引用的资源，或者等待资源被释放
+            if(fullWaitDeadline == 0){
+                fullWaitDeadline = System.currentTimeMillis() + CacheSetting.CACHE_FULL_MAX_WAIT_MILLIS;
+            }
+            this.makeRoom(fullWaitDeadline);
+        }
+        return this.loadResource(key, loadFuture);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在锁外从数据源加载资源，加载完成后登记到缓存并唤醒等待者
+     */
+    private T loadResource(long key, CompletableFuture<T> loadFuture) throws WarningException, ErrorException {
         T object;
         try {
             object = this.getCacheFromDataSourceByKey(key);
-            this.cacheData.put(key, object);
-            this.cacheCounter ++;
-            this.referenceRecord.put(key, 1);
+        }
+        catch (WarningException | ErrorException | RuntimeException e){
+            this.abandonLoad(key, loadFuture);
+            throw e;
+        }
+        Lock stripeLock = this.getStripeLock(key);
+        stripeLock.lock();
+        try {
+            if(object != null){
+                this.cacheData.put(key, object);
+                this.referenceRecord.put(key, 1);
+                if(this.replacementPolicy != null){
+                    this.replacementPolicy.recordAccess(key);
+                }
+            }
+            else {
+                // 数据源中不存在的资源不进入缓存
+                this.cacheCounter.decrementAndGet();
+            }
             this.acquisitionSituation.remove(key);
         }
         finally {
-            this.lock.unlock();
+            stripeLock.unlock();
         }
+        if(object == null){
+            this.signalSlotReleased();
+        }
+        loadFuture.complete(object);
         return object;
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 加载失败时撤销占位，等待者会重新发起加载
+     */
+    private void abandonLoad(long key, CompletableFuture<T> loadFuture){
+        Lock stripeLock = this.getStripeLock(key);
+        stripeLock.lock();
+        try {
+            this.acquisitionSituation.remove(key);
+            this.cacheCounter.decrementAndGet();
+        }
+        finally {
+            stripeLock.unlock();
+        }
+        this.signalSlotReleased();
+        loadFuture.complete(null);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 资源是否在缓存中，或者正在被加载、写回
+     */
+    protected boolean isResourceInUse(long key){
+        return this.cacheData.containsKey(key) || this.acquisitionSituation.containsKey(key);
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 释放一个资源引用
      */
     protected void releaseOneReference(long key) throws WarningException, ErrorException {
-        this.lock.lock();
+        Lock stripeLock = this.getStripeLock(key);
+        T obj;
+        CompletableFuture<T> releaseFuture;
+        stripeLock.lock();
         try {
+            Integer referenceNum = this.referenceRecord.get(key);
+            if(referenceNum == null){
+                return;
+            }
             // 把引用数 - 1
-            int referenceNum = this.referenceRecord.get(key) - 1;
-            // 如果接下来资源没有被引用，就释放写回
-            if(referenceNum == 0){
-                T obj = cacheData.get(key);
-                this.releaseCacheForObject(obj);
-                this.referenceRecord.remove(key);
-                this.cacheData.remove(key);
-                this.cacheCounter --;
+            if(referenceNum > 1){
+                this.referenceRecord.put(key, referenceNum - 1);
+                return;
+            }
+            if(referenceNum <= 0){
+                return;
+            }
+            if(this.replacementPolicy != null){
+                // 保留模式下资源继续驻留，交给置换策略管理
+                this.referenceRecord.put(key, 0);
+                this.replacementPolicy.setEvictable(key, true);
+                obj = null;
+                releaseFuture = null;
             }
             else {
-                this.referenceRecord.put(key, referenceNum);
+                // 接下来资源没有被引用，先从缓存中摘除，并登记为进行中，避免写回期间被重新加载到旧数据
+                obj = this.cacheData.remove(key);
+                this.referenceRecord.remove(key);
+                releaseFuture = new CompletableFuture<>();
+                this.acquisitionSituation.put(key, releaseFuture);
             }
         }
         finally {
-            this.lock.unlock();
+            stripeLock.unlock();
+        }
+        if(releaseFuture == null){
+            this.signalSlotReleased();
+            return;
+        }
+        this.writeBackOutsideLock(key, obj, releaseFuture);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 驱逐一个无引用的资源，没有可驱逐的资源时等待其他线程释放
+     * 等待超过上限仍无法腾出位置时放弃
+     */
+    private void makeRoom(long fullWaitDeadline) throws WarningException, ErrorException {
+        Long victim;
+        while((victim = this.replacementPolicy.selectVictim()) != null){
+            if(this.evictResource(victim)){
+                return;
+            }
+        }
+        if(System.currentTimeMillis() > fullWaitDeadline){
+            Log.logWarningMessage(WarningMessage.CACHE_FULL);
+        }
+        this.slotLock.lock();
+        try {
+            this.slotReleased.await(CacheSetting.CACHE_FULL_WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.logWarningMessage(e.getMessage());
+        } finally {
+            this.slotLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 驱逐置换策略选出的资源，如果它在此期间又被引用了，则放弃并返回 false
+     */
+    private boolean evictResource(long key) throws WarningException, ErrorException {
+        Lock stripeLock = this.getStripeLock(key);
+        T obj;
+        CompletableFuture<T> evictFuture;
+        stripeLock.lock();
+        try {
+            Integer referenceNum = this.referenceRecord.get(key);
+            if(referenceNum == null || referenceNum != 0){
+                return false;
+            }
+            obj = this.cacheData.remove(key);
+            this.referenceRecord.remove(key);
+            this.replacementPolicy.remove(key);
+            evictFuture = new CompletableFuture<>();
+            this.acquisitionSituation.put(key, evictFuture);
+        }
+        finally {
+            stripeLock.unlock();
+        }
+        this.writeBackOutsideLock(key, obj, evictFuture);
+        return true;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在锁外写回已经摘出缓存的资源，完成后归还缓存位置并唤醒等待者
+     */
+    private void writeBackOutsideLock(long key, T obj, CompletableFuture<T> future) throws WarningException, ErrorException {
+        Lock stripeLock = this.getStripeLock(key);
+        try {
+            this.releaseCacheForObject(obj);
+        }
+        finally {
+            stripeLock.lock();
+            try {
+                this.acquisitionSituation.remove(key);
+                this.cacheCounter.decrementAndGet();
+            }
+            finally {
+                stripeLock.unlock();
+            }
+            this.signalSlotReleased();
+            future.complete(null);
+        }
+    }
+
+    private void signalSlotReleased(){
+        this.slotLock.lock();
+        try {
+            this.slotReleased.signalAll();
+        }
+        finally {
+            this.slotLock.unlock();
         }
     }
 
@@ -146,21 +354,70 @@ public abstract class AbstractCache<T> {
      * @Description: 安全关闭缓存，并将资源数据写回
      */
     protected void close() throws ErrorException, WarningException {
-        this.lock.lock();
-        try{
-            Set<Long> keys = this.cacheData.keySet();
-            for(long key: keys){
-                T obj = this.cacheData.get(key);
-                this.releaseCacheForObject(obj);
-                this.cacheData.remove(key);
+        List<Map.Entry<Long, T>> entries = new ArrayList<>(this.cacheData.entrySet());
+        for(Map.Entry<Long, T> entry : entries){
+            long key = entry.getKey();
+            Lock stripeLock = this.getStripeLock(key);
+            T obj;
+            stripeLock.lock();
+            try {
+                obj = this.cacheData.remove(key);
                 this.referenceRecord.remove(key);
+                if(this.replacementPolicy != null){
+                    this.replacementPolicy.remove(key);
+                }
+            }
+            finally {
+                stripeLock.unlock();
+            }
+            if(obj != null){
+                this.releaseCacheForObject(obj);
+                this.cacheCounter.decrementAndGet();
             }
         }
-        finally {
-            this.lock.unlock();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 尝试占用一个缓存位置，maxResourceNum 为 0 表示不限制
+     */
+    private boolean tryReserveSlot(){
+        if(this.maxResourceNum == 0){
+            this.cacheCounter.incrementAndGet();
+            return true;
+        }
+        while(true){
+            int current = this.cacheCounter.get();
+            if(current >= this.maxResourceNum){
+                return false;
+            }
+            if(this.cacheCounter.compareAndSet(current, current + 1)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 阻塞等待某个进行中的加载/写回完成
+     */
+    private void awaitFuture(CompletableFuture<T> future) throws WarningException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.logWarningMessage(e.getMessage());
+        } catch (ExecutionException ignored) {
+            // 加载方失败时由等待者重新尝试
         }
     }
 
+    private Lock getStripeLock(long key){
+        int hash = Long.hashCode(key);
+        hash ^= (hash >>> 16);
+        return this.stripeLocks[hash & (this.stripeLocks.length - 1)];
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 当资源不在缓存中时，从数据源加载获取
@@ -0,0 +1,25 @@
+package top.lxsky711.easydb.core.common;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 缓存框架的一些配置
+ */
+
+public class CacheSetting {
+
+    // CLOCK 置换策略
+    public static final String REPLACEMENT_POLICY_CLOCK = "CLOCK";
+
+    // LRU-K 置换策略
+    public static final String REPLACEMENT_POLICY_LRU_K = "LRU-K";
+
+    // LRU-K 中默认的 K 值
+    public static final int LRU_K_DEFAULT_K = 2;
+
+    // 缓存满且所有资源都被引用时，每次等待资源释放的时间(毫秒)
+    public static final long CACHE_FULL_WAIT_SLICE_MILLIS = 10;
+
+    // 缓存满且所有资源都被引用时，最长等待时间(毫秒)，超过后放弃
+    public static final long CACHE_FULL_MAX_WAIT_MILLIS = 5000;
+
+}
@@ -0,0 +1,173 @@
+package top.lxsky711.easydb.core.common;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: 711lxsky
+ * @Description: CLOCK 置换策略
+ * 所有驻留资源排成一个环，每个资源带一个访问位，指针转动时访问位为 1 的资源获得第二次机会
+ * 环是按资源索引的双向链表，移除任意资源都是常数时间
+ */
+
+public class ClockPolicy implements ReplacementPolicy {
+
+    /**
+     * 环上的节点
+     */
+    private static class ClockNode {
+
+        private final long key;
+
+        private boolean referenced;
+
+        private boolean evictable;
+
+        private ClockNode prev;
+
+        private ClockNode next;
+
+        private ClockNode(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 驻留资源到环上节点的索引
+     */
+    private final HashMap<Long, ClockNode> clockNodes;
+
+    /**
+     * 时钟指针，指向下一个要检查的节点，环为空时为 null
+     */
+    private ClockNode hand;
+
+    /**
+     * 当前可以被驱逐的资源数
+     */
+    private int evictableCount;
+
+    private final Lock lock;
+
+    public ClockPolicy() {
+        this.clockNodes = new HashMap<>();
+        this.hand = null;
+        this.evictableCount = 0;
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public void recordAccess(long key) {
+        this.lock.lock();
+        try {
+            this.track(key).referenced = true;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictable(long key, boolean evictable) {
+        this.lock.lock();
+        try {
+            ClockNode node = evictable ? this.track(key) : this.clockNodes.get(key);
+            if(node != null && node.evictable != evictable){
+                node.evictable = evictable;
+                this.evictableCount += evictable ? 1 : -1;
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Long selectVictim() {
+        this.lock.lock();
+        try {
+            if(this.evictableCount == 0){
+                return null;
+            }
+            // 最多转两圈: 第一圈清除访问位，第二圈必然能找到
+            int maxSteps = this.clockNodes.size() * 2;
+            for(int i = 0; i < maxSteps; i ++){
+                ClockNode node = this.hand;
+                this.hand = node.next;
+                if(! node.evictable){
+                    continue;
+                }
+                if(node.referenced){
+                    node.referenced = false;
+                    continue;
+                }
+                this.untrack(node);
+                return node.key;
+            }
+            return null;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(long key) {
+        this.lock.lock();
+        try {
+            ClockNode node = this.clockNodes.get(key);
+            if(node != null){
+                this.untrack(node);
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 新资源放到指针之前，也就是指针转一圈之后才会检查到它
+     */
+    private ClockNode track(long key){
+        ClockNode node = this.clockNodes.get(key);
+        if(node != null){
+            return node;
+        }
+        node = new ClockNode(key);
+        this.clockNodes.put(key, node);
+        if(this.hand == null){
+            node.prev = node;
+            node.next = node;
+            this.hand = node;
+        }
+        else {
+            node.prev = this.hand.prev;
+            node.next = this.hand;
+            this.hand.prev.next = node;
+            this.hand.prev = node;
+        }
+        return node;
+    }
+
+    private void untrack(ClockNode node){
+        this.clockNodes.remove(node.key);
+        if(node.evictable){
+            this.evictableCount --;
+        }
+        if(node.next == node){
+            this.hand = null;
+        }
+        else {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            if(this.hand == node){
+                this.hand = node.next;
+            }
+        }
+        node.prev = null;
+        node.next = null;
+    }
+
+}
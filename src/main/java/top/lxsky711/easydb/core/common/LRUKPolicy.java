@@ -0,0 +1,124 @@
+package top.lxsky711.easydb.core.common;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: 711lxsky
+ * @Description: LRU-K 置换策略
+ * 驱逐倒数第 K 次访问距今最久的资源，访问不足 K 次的资源视为距离无穷大，优先驱逐，
+ * 它们之间再按最近一次访问时间做 LRU
+ */
+
+public class LRUKPolicy implements ReplacementPolicy {
+
+    private final int k;
+
+    /**
+     * 逻辑时钟
+     */
+    private long currentTimestamp;
+
+    /**
+     * 每个资源最近 K 次访问时间，下标 0 为最近一次
+     */
+    private final HashMap<Long, long[]> accessHistory;
+
+    /**
+     * 可驱逐资源，按驱逐优先级排序
+     */
+    private final TreeSet<Long> evictableOrder;
+
+    private final Lock lock;
+
+    public LRUKPolicy(int k) {
+        this.k = Math.max(1, k);
+        this.currentTimestamp = 0;
+        this.accessHistory = new HashMap<>();
+        this.evictableOrder = new TreeSet<>(this::compareEvictPriority);
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public void recordAccess(long key) {
+        this.lock.lock();
+        try {
+            // 排序依据会变化，先移出再放回
+            boolean evictable = this.evictableOrder.remove(key);
+            long[] history = this.accessHistory.computeIfAbsent(key, ignored -> new long[this.k]);
+            System.arraycopy(history, 0, history, 1, this.k - 1);
+            history[0] = ++ this.currentTimestamp;
+            if(evictable){
+                this.evictableOrder.add(key);
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictable(long key, boolean evictable) {
+        this.lock.lock();
+        try {
+            if(evictable){
+                this.accessHistory.computeIfAbsent(key, ignored -> new long[this.k]);
+                this.evictableOrder.add(key);
+            }
+            else {
+                this.evictableOrder.remove(key);
+            }
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Long selectVictim() {
+        this.lock.lock();
+        try {
+            Long victim = this.evictableOrder.pollFirst();
+            if(victim != null){
+                this.accessHistory.remove(victim);
+            }
+            return victim;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(long key) {
+        this.lock.lock();
+        try {
+            this.evictableOrder.remove(key);
+            this.accessHistory.remove(key);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 倒数第 K 次访问越早越优先驱逐(未满 K 次时为 0)，相同时再比较最近一次访问
+     */
+    private int compareEvictPriority(Long a, Long b){
+        long[] historyA = this.accessHistory.get(a);
+        long[] historyB = this.accessHistory.get(b);
+        int result = Long.compare(historyA[this.k - 1], historyB[this.k - 1]);
+        if(result != 0){
+            return result;
+        }
+        result = Long.compare(historyA[0], historyB[0]);
+        if(result != 0){
+            return result;
+        }
+        return Long.compare(a, b);
+    }
+
+}
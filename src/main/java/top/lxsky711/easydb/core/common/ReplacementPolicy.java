@@ -0,0 +1,43 @@
+package top.lxsky711.easydb.core.common;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 缓存置换策略接口
+ * 缓存在保留无引用资源的模式下，由置换策略决定缓存满时驱逐哪一个无引用资源
+ * 实现类需要自行保证线程安全
+ */
+
+public interface ReplacementPolicy {
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 记录一次对资源的访问(命中或者加载)
+     */
+    void recordAccess(long key);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置资源是否可以被驱逐，引用数归零时可驱逐，重新被引用时不可驱逐
+     */
+    void setEvictable(long key, boolean evictable);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 选出一个可驱逐的资源，并将其从策略中移除，没有可驱逐资源时返回 null
+     */
+    Long selectVictim();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 资源离开缓存时，从策略中移除
+     */
+    void remove(long key);
+
+    static ReplacementPolicy buildPolicy(String policyName){
+        if(CacheSetting.REPLACEMENT_POLICY_LRU_K.equalsIgnoreCase(policyName)){
+            return new LRUKPolicy(CacheSetting.LRU_K_DEFAULT_K);
+        }
+        return new ClockPolicy();
+    }
+
+}
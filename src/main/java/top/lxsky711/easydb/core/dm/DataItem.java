@@ -7,6 +7,8 @@ import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.core.common.SubArray;
 import top.lxsky711.easydb.core.dm.logger.Logger;
 import top.lxsky711.easydb.core.dm.page.Page;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.dm.page.PageX;
 
 import java.util.Arrays;
 
@@ -116,16 +118,28 @@ public interface DataItem {
 
     /**
      * @Author: 711lxsky
-     * @Description: 构建DataItem
+     * @Description: 获取页面中某个偏移量处整个DataRecord的大小
      */
-    static DataItem buildDataItem(Page page, short offset, DataManager dm){
-        byte[] rawData = page.getPageData();
+    static int getDataRecordLength(byte[] rawData, int offset){
         // 注意这里是获取DataARecord中的DataSize
         byte[] dataItemDataSizeBytes = Arrays.copyOfRange(rawData, offset + DataItemSetting.DATA_SIZE_OFFSET, offset + DataItemSetting.DATA_DATA_OFFSET);
-        short dataItemDataSize = ByteParser.parseBytesToShort(dataItemDataSizeBytes);
+        return DataItemSetting.DATA_DATA_OFFSET + ByteParser.parseBytesToShort(dataItemDataSizeBytes);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 构建DataItem，按槽位找到数据当前在页面中的偏移量，槽位空闲时返回 null
+     * 需要持有页面锁，避免页面整理同时移动数据
+     */
+    static DataItem buildDataItem(Page page, short slot, DataManager dm){
+        short offset = PageX.getSlotOffset(page, slot);
+        if(offset == PageSetting.PAGE_X_SLOT_FREE){
+            return null;
+        }
+        byte[] rawData = page.getPageData();
         // 得到整个DataRecord的大小
-        short dataRecordLength = (short)(DataItemSetting.DATA_DATA_OFFSET + dataItemDataSize);
-        long uid = Logger.parsePageNumberAndOffsetToUid(page.getPageNumber(), offset);
+        short dataRecordLength = (short) getDataRecordLength(rawData, offset);
+        long uid = Logger.parsePageNumberAndSlotToUid(page.getPageNumber(), slot);
         // 转换成SubArray的形式进行构建DataItem
         SubArray dataRecord = new SubArray(rawData, offset, offset + dataRecordLength);
         return new DataItemImpl(dataRecord, new byte[dataRecordLength], page, uid, dm);
@@ -133,9 +147,9 @@ public interface DataItem {
 
     /**
      * @Author: 711lxsky
-     * @Description: 设置DataRecord为无效
+     * @Description: 把页面中某个偏移量处的DataRecord设置为无效
      */
-    static void setDataRecordInvalid(byte[] dataRecord){
-        dataRecord[DataItemSetting.DATA_VALID_OFFSET] = DataItemSetting.DATA_INVALID;
+    static void setDataRecordInvalid(byte[] rawData, int offset){
+        rawData[offset + DataItemSetting.DATA_VALID_OFFSET] = DataItemSetting.DATA_INVALID;
     }
 }
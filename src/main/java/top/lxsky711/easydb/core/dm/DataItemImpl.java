@@ -1,11 +1,9 @@
 package top.lxsky711.easydb.core.dm;
 
-import com.google.common.primitives.Bytes;
 import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.core.common.SubArray;
 import top.lxsky711.easydb.core.dm.logger.Logger;
-import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
 import top.lxsky711.easydb.core.dm.page.Page;
 
 import java.util.Arrays;
@@ -64,33 +62,71 @@ public class DataItemImpl implements DataItem{
         return this.rawDataRecord.rawData[this.rawDataRecord.start + DataItemSetting.DATA_VALID_OFFSET] == DataItemSetting.DATA_VALID;
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 修改期间不持有页面锁(B+树节点的修改会同时锁住多个节点，还会插入新节点)，
+     * 所以在页面上登记修改前的数据，写回页面时用它代替还没有写日志的修改
+     */
     @Override
     public void beforeModify() {
         // 先获取写锁
         this.writeLock.lock();
-        this.page.setDirtyStatus(true);
-        // 备份原始数据
-        System.arraycopy(this.rawDataRecord.rawData, this.rawDataRecord.start,
-                this.oldDataRecord, DataItemSetting.DATA_START_POS, this.oldDataRecord.length);
+        this.page.lock();
+        try {
+            // 备份原始数据
+            System.arraycopy(this.rawDataRecord.rawData, this.rawDataRecord.start,
+                    this.oldDataRecord, DataItemSetting.DATA_START_POS, this.oldDataRecord.length);
+            this.page.addModifyingData(this.rawDataRecord.start, this.oldDataRecord);
+        }
+        finally {
+            this.page.unlock();
+        }
     }
 
     @Override
     public void unBeforeModify() {
-        // 恢复原始数据
-        System.arraycopy(this.oldDataRecord, DataItemSetting.DATA_START_POS,
-                this.rawDataRecord.rawData, this.rawDataRecord.start, this.oldDataRecord.length);
-        this.writeLock.unlock();
+        this.page.lock();
+        try {
+            // 恢复原始数据
+            System.arraycopy(this.oldDataRecord, DataItemSetting.DATA_START_POS,
+                    this.rawDataRecord.rawData, this.rawDataRecord.start, this.oldDataRecord.length);
+            this.page.removeModifyingData(this.rawDataRecord.start);
+            this.page.setDirtyStatus(true);
+        }
+        finally {
+            this.page.unlock();
+            this.writeLock.unlock();
+        }
     }
 
     @Override
     public void afterModify(long xid) throws WarningException, ErrorException {
-        int pageNumber = Logger.getPageNumberFromUid(this.uid);
-        short offset = Logger.getOffsetFromUid(this.uid);
-        // 包裹update类型的日志
-        byte[] newDataRecord = Arrays.copyOfRange(this.rawDataRecord.rawData, this.rawDataRecord.start, this.rawDataRecord.end);
-        byte[] logData = Bytes.concat(this.oldDataRecord, newDataRecord);
-        byte[] newUpdateLog = Logger.buildLogBytes(LoggerSetting.LOG_TYPE_UPDATE, xid, pageNumber, offset,logData);
-        this.dm.writeLog(newUpdateLog);
+        long lsn;
+        try {
+            int pageNumber = Logger.getPageNumberFromUid(this.uid);
+            short slot = Logger.getSlotFromUid(this.uid);
+            // 包裹update类型的日志，数据被引用期间不会被页面整理移动，这里的偏移量就是数据当前的位置
+            byte[] newDataRecord = Arrays.copyOfRange(this.rawDataRecord.rawData, this.rawDataRecord.start, this.rawDataRecord.end);
+            byte[] newUpdateLog = Logger.buildUpdateLogBytes(xid, pageNumber, slot, (short) this.rawDataRecord.start, this.oldDataRecord, newDataRecord);
+            // 持有页面锁追加日志、记下页面的日志位置，再取消登记，写回时要么拿到修改前的数据，要么先等这条日志落盘
+            // 先标记脏页再追加日志，检查点之前的日志对应的修改一定在检查点的脏页集合里
+            this.page.lock();
+            try {
+                this.page.setDirtyStatus(true);
+                lsn = this.dm.appendLog(newUpdateLog);
+                this.page.updateLsn(lsn);
+                this.page.removeModifyingData(this.rawDataRecord.start);
+            }
+            finally {
+                this.page.unlock();
+            }
+        }
+        finally {
+            // 与 beforeModify 配对，释放写锁
+            this.writeLock.unlock();
+        }
+        // 释放锁之后再等日志落盘
+        this.dm.flushLogUpTo(lsn);
     }
 
     @Override
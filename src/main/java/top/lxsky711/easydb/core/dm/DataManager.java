@@ -6,6 +6,9 @@ import top.lxsky711.easydb.core.dm.logger.Logger;
 import top.lxsky711.easydb.core.dm.pageCache.PageCache;
 import top.lxsky711.easydb.core.tm.TransactionManager;
 
+import java.util.List;
+import java.util.Set;
+
 /**
  * @Author: 711lxsky
  * @Description: 数据管理器，直接对外提供方法，同时也实现成DataItem对象的缓存
@@ -32,9 +35,48 @@ public interface DataManager {
 
     /**
      * @Author: 711lxsky
-     * @Description: 调用Logger的writeLog方法，将日志写入到日志文件中
+     * @Description: 批量插入数据，连续的、一个页面放得下的数据放进同一个页面并只写一条插入日志，按顺序返回uid
+     */
+    long[] insertDataBatch(long xid, List<byte[]> dataList) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 插入数据，优先放到 nearbyUid 所在的页面中，那个页面放不下时同 insertData
      */
-    void writeLog(byte[] log) throws WarningException, ErrorException;
+    long insertDataNearby(long xid, byte[] data, long nearbyUid) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把数据标记为无效，以事务 xid 写日志，数据已经无效时返回 false
+     * 事务没有提交就崩溃时，恢复会把数据改回有效；调用方需要保证已经没有任何地方会再引用这个 uid
+     */
+    boolean invalidateData(long xid, long uid) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 回收已经标记为无效、并且不再被任何事务持有的数据所占的空间，返回本次回收的字节数
+     * 回收时整理数据所在的页面，其余数据在页内移动，uid 不变；还被引用的无效数据留待之后再尝试
+     */
+    int reclaimData(List<Long> uids) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 扫描所有数据页，回收其中所有已经标记为无效的数据，返回本次回收的字节数
+     * 等待回收的数据只记在内存中，重启后就丢失了；启动时由上层在确认这些无效数据都已经没有引用之后调用
+     */
+    int reclaimInvalidData() throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 追加一条修改页面的日志，返回日志位置，调用方需要持有页面锁，并把位置记到页面上
+     */
+    long appendLog(byte[] log) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 等待位置为 lsn 的日志以及它之前的所有日志落盘
+     */
+    void flushLogUpTo(long lsn) throws WarningException, ErrorException;
 
     /**
      * @Author: 711lxsky
@@ -42,6 +84,13 @@ public interface DataManager {
      */
     void releaseOneDataItem(long uid) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 做一次检查点: 写检查点日志，把此前的脏页落盘，再在日志头记录检查点位置
+     * 恢复时只需要从检查点开始重做
+     */
+    void checkpoint() throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 关闭相应的资源
@@ -57,6 +106,9 @@ public interface DataManager {
         Logger logger = Logger.create(dataFileFullName);
         DataManagerImpl dm = new DataManagerImpl(pageCache, logger);
         dm.initPageOne();
+        dm.startCheckpointer();
+        dm.setTransactionManager(tm);
+        tm.setStatusLogger(dm);
         return dm;
     }
 
@@ -70,11 +122,15 @@ public interface DataManager {
         DataManagerImpl dm = new DataManagerImpl(pageCache, logger);
         // 校验第一页， 未通过则进行数据恢复
         if(! dm.loadAndCheckPageOne()){
-            Recover.recover(tm, logger, pageCache);
+            Set<Integer> touchedPages = Recover.recover(tm, logger, pageCache);
+            dm.refreshFreeSpace(touchedPages);
         }
-        dm.initPageIndex();
         dm.setPageOneVCOpen();
         dm.flushPageOne();
+        dm.startCheckpointer();
+        // 恢复完成之后事务状态才改为随日志落盘
+        dm.setTransactionManager(tm);
+        tm.setStatusLogger(dm);
         return dm;
     }
 
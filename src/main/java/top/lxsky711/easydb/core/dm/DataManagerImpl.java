@@ -1,11 +1,13 @@
 package top.lxsky711.easydb.core.dm;
 
+import com.google.common.primitives.Bytes;
 import top.lxsky711.easydb.common.data.DataSetting;
 import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.common.AbstractCache;
+import top.lxsky711.easydb.core.common.SubArray;
 import top.lxsky711.easydb.core.dm.logger.Logger;
 import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
 import top.lxsky711.easydb.core.dm.page.Page;
@@ -13,31 +15,170 @@ import top.lxsky711.easydb.core.dm.page.PageOne;
 import top.lxsky711.easydb.core.dm.page.PageSetting;
 import top.lxsky711.easydb.core.dm.page.PageX;
 import top.lxsky711.easydb.core.dm.pageCache.PageCache;
+import top.lxsky711.easydb.core.dm.pageIndex.FreeSpaceMap;
 import top.lxsky711.easydb.core.dm.pageIndex.PageIndex;
 import top.lxsky711.easydb.core.dm.pageIndex.PageInfo;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+import top.lxsky711.easydb.core.tm.TransactionStatusLogger;
 
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @Author: 711lxsky
  * @Description:
  */
 
-public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
+public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager, TransactionStatusLogger {
 
     private final PageCache pageCache;
 
     private final Logger logger;
 
+    private final FreeSpaceMap freeSpaceMap;
+
     private final PageIndex pageIndex;
 
+    /**
+     * 新建普通页时持有，保证空闲空间表页建在固定的位置上
+     */
+    private final Lock pageAllocateLock;
+
+    /**
+     * 每个线程当前的插入页面，线程优先在自己的页面上预留空间，放不下时再向页面索引要新页面
+     */
+    private final ThreadLocal<Integer> insertPageNumber;
+
     private Page pageOne;
 
+    /**
+     * 检查点锁，“先写日志再改页面”的插入路径持有读锁，检查点写检查点日志并收集脏页时持有写锁
+     */
+    private final ReadWriteLock checkpointLock;
+
+    /**
+     * 定期做检查点的后台线程
+     */
+    private ScheduledExecutorService checkpointer;
+
+    /**
+     * ASYNC 提交模式下最近追加的事务状态日志位置，-1 表示没有
+     */
+    private final AtomicLong asyncStatusLogPosition;
+
+    /**
+     * ASYNC 提交模式下状态日志落盘后，由它把事务状态写进XID文件
+     */
+    private volatile TransactionManager tm;
+
+    /**
+     * 等待回收空间的无效数据，页号 -> 页内偏移量
+     */
+    private final Map<Integer, Set<Short>> reclaimableRecords;
+
+    private final Lock reclaimLock;
+
     public DataManagerImpl(PageCache pageCache, Logger logger) throws ErrorException {
         super(DataSetting.DATA_CACHE_DEFAULT_SIZE);
         this.pageCache = pageCache;
         this.logger = logger;
-        this.pageIndex = new PageIndex();
+        this.freeSpaceMap = new FreeSpaceMap(pageCache);
+        this.pageIndex = new PageIndex(this.freeSpaceMap);
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.asyncStatusLogPosition = new AtomicLong(-1);
+        this.reclaimableRecords = new HashMap<>();
+        this.reclaimLock = new ReentrantLock();
+        this.pageAllocateLock = new ReentrantLock();
+        this.insertPageNumber = new ThreadLocal<>();
+        // 页面写回之前先让修改它的日志落盘
+        pageCache.setLogFlusher(logger::flushUpTo);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 启动定期检查点
+     */
+    public void startCheckpointer(){
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread checkpointThread = new Thread(runnable, LoggerSetting.CHECKPOINT_THREAD_NAME);
+            checkpointThread.setDaemon(true);
+            return checkpointThread;
+        });
+        this.checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                this.checkpoint();
+            } catch (WarningException | ErrorException ignored) {
+                // 异常已经记录，下一次检查点再尝试
+            }
+        }, LoggerSetting.CHECKPOINT_INTERVAL_MILLIS, LoggerSetting.CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                this.flushAsyncStatusLogs();
+            } catch (WarningException | ErrorException ignored) {
+                // 异常已经记录，下一次再尝试
+            }
+        }, LoggerSetting.LOG_ASYNC_COMMIT_FLUSH_INTERVAL_MILLIS, LoggerSetting.LOG_ASYNC_COMMIT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置事务管理器，ASYNC 模式下的状态日志落盘后通知它写XID文件
+     */
+    public void setTransactionManager(TransactionManager tm) {
+        this.tm = tm;
+    }
+
+    @Override
+    public long logTransactionStatus(long xid, byte status, boolean waitFlush) throws WarningException, ErrorException {
+        byte logType = status == TMSetting.TRANSACTION_COMMITTED ? LoggerSetting.LOG_TYPE_COMMIT : LoggerSetting.LOG_TYPE_ABORT;
+        byte[] statusLog = Logger.buildTransactionStatusLogBytes(logType, xid);
+        // 状态日志不涉及页面，不需要检查点锁
+        if(waitFlush){
+            return this.logger.writeLog(statusLog);
+        }
+        long statusLogPosition = this.logger.appendLog(statusLog);
+        this.asyncStatusLogPosition.accumulateAndGet(statusLogPosition, Math::max);
+        return statusLogPosition;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把 ASYNC 模式下追加的事务状态日志刷盘，之后事务管理器才把这些状态写进XID文件
+     * 每次都通知事务管理器：状态日志追加和登记到事务管理器之间有先后，上次刷盘时没登记上的这次补上
+     */
+    private void flushAsyncStatusLogs() throws WarningException, ErrorException {
+        long statusLogPosition = this.asyncStatusLogPosition.get();
+        TransactionManager curTm = this.tm;
+        if(statusLogPosition < 0 || Objects.isNull(curTm)){
+            return;
+        }
+        this.logger.flushUpTo(statusLogPosition);
+        curTm.persistLoggedStatus(statusLogPosition);
+    }
+
+    @Override
+    public void checkpoint() throws WarningException, ErrorException {
+        long checkpointPosition;
+        List<Integer> dirtyPageNumbers;
+        this.checkpointLock.writeLock().lock();
+        try {
+            // 检查点日志之前的日志对应的页面修改，此时一定已经登记在脏页集合中(或已被驱逐写入)
+            checkpointPosition = this.logger.writeLog(Logger.buildCheckpointLogBytes(this.pageCache.getPagesNumber()));
+            dirtyPageNumbers = this.pageCache.getDirtyPageNumbers();
+        }
+        finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+        this.pageCache.flushPages(dirtyPageNumbers);
+        this.logger.setCheckpoint(checkpointPosition);
     }
 
     /**
@@ -79,23 +220,43 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * @Author: 711lxsky
-     * @Description: 初始化页面索引
+     * @Description: 崩溃恢复后，用重做、撤销涉及的页面的实际空闲空间刷新空闲空间表
+     * 空闲空间表本身不写日志，这些页面的空闲空间可能和表中记录的不一致；被截掉的页面的记录清空
      */
-    public void initPageIndex() throws WarningException, ErrorException {
-        int pagesNum= this.pageCache.getPagesNumber();
-        for(int i = PageSetting.PAGE_X_DEFAULT_START_NUMBER; i <= pagesNum; i ++){
-            Page page = this.pageCache.getPageByPageNumber(i);
-            this.pageIndex.addFreeSpaceForPage(page.getPageNumber(), PageX.getFreeSpaceForPage(page));
-            page.releaseOneReference();
+    public void refreshFreeSpace(Collection<Integer> pageNumbers) throws WarningException, ErrorException {
+        this.freeSpaceMap.clearFreeSpaceAfter(this.pageCache.getPagesNumber());
+        for(int pageNumber : pageNumbers){
+            if(pageNumber <= PageSetting.PAGE_ONE_DEFAULT_NUMBER || FreeSpaceMap.isFreeSpaceMapPage(pageNumber)){
+                continue;
+            }
+            Page page = this.pageCache.getPageByPageNumber(pageNumber);
+            try {
+                this.freeSpaceMap.updateFreeSpace(pageNumber, PageX.getFreeSpaceForPage(page));
+            }
+            finally {
+                page.releaseOneReference();
+            }
         }
     }
 
     @Override
     protected DataItem getCacheFromDataSourceByKey(long uid) throws WarningException, ErrorException {
         int pageNumber = Logger.getPageNumberFromUid(uid);
-        short offset = Logger.getOffsetFromUid(uid);
+        short slot = Logger.getSlotFromUid(uid);
         Page page = this.pageCache.getPageByPageNumber(pageNumber);
-        return DataItem.buildDataItem(page, offset, this);
+        DataItem dataItem;
+        // 持有页面锁按槽位定位数据，页面整理不会在这期间移动数据
+        page.lock();
+        try {
+            dataItem = DataItem.buildDataItem(page, slot, this);
+        }
+        finally {
+            page.unlock();
+        }
+        if(Objects.isNull(dataItem)){
+            page.releaseOneReference();
+        }
+        return dataItem;
     }
 
     @Override
@@ -106,6 +267,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public DataItem readDataItem(long uid) throws WarningException, ErrorException {
         DataItem dataItem = super.getResource(uid);
+        if(Objects.isNull(dataItem)){
+            return null;
+        }
         if(! dataItem.isValid()){
             dataItem.releaseOneReference();
             return null;
@@ -115,57 +279,353 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insertData(long xid, byte[] data) throws WarningException, ErrorException {
+        return this.insertDataBatch(xid, Collections.singletonList(data))[0];
+    }
+
+    @Override
+    public long[] insertDataBatch(long xid, List<byte[]> dataList) throws WarningException, ErrorException {
         // 先包裹成DataRecord格式
-        byte[] newDataRecord = DataItem.buildDataRecord(data);
-        int newDataRecordSize = newDataRecord.length;
-        // 拿到大小
-        if( newDataRecordSize > PageSetting.PAGE_X_MAX_FREE_SPACE){
-            Log.logWarningMessage(WarningMessage.DATA_TOO_LARGE);
-            return DataItemSetting.ERROR_INSERT_RESULT;
-        }
-        PageInfo properPageInfo = null;
-        // 间歇向页面索引申请页面资源，因为可能存在某些空间被其他事务占用或者是空间不够
+        List<byte[]> newDataRecords = new ArrayList<>(dataList.size());
+        for(byte[] data : dataList){
+            byte[] newDataRecord = DataItem.buildDataRecord(data);
+            // 拿到大小，每条数据还要占用一个槽位
+            if(newDataRecord.length + PageSetting.PAGE_X_SLOT_LENGTH > PageSetting.PAGE_X_MAX_FREE_SPACE){
+                Log.logWarningMessage(WarningMessage.DATA_TOO_LARGE);
+                return null;
+            }
+            newDataRecords.add(newDataRecord);
+        }
+        long[] uids = new long[newDataRecords.size()];
+        int batchStart = 0;
+        while(batchStart < newDataRecords.size()){
+            // 连续的、一个页面放得下的数据作为一批
+            int batchEnd = batchStart;
+            int batchSize = 0;
+            while(batchEnd < newDataRecords.size()
+                    && batchSize + newDataRecords.get(batchEnd).length + PageSetting.PAGE_X_SLOT_LENGTH <= PageSetting.PAGE_X_MAX_FREE_SPACE){
+                batchSize += newDataRecords.get(batchEnd).length + PageSetting.PAGE_X_SLOT_LENGTH;
+                batchEnd ++;
+            }
+            this.insertDataRecords(xid, newDataRecords.subList(batchStart, batchEnd), batchSize, uids, batchStart);
+            batchStart = batchEnd;
+        }
+        return uids;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把一批 DataRecord 插入到同一个页面，uid 从 uidsOffset 开始依次写入 uids
+     * newDataRecordsSize 包含这批数据占用的槽位
+     */
+    private void insertDataRecords(long xid, List<byte[]> newDataRecords, int newDataRecordsSize, long[] uids, int uidsOffset) throws WarningException, ErrorException {
+        // 间歇向页面索引申请页面资源，因为页面索引中的空闲空间可能是过时的提示
         for(int i = 0; i < DataItemSetting.INSET_MAX_RETRY_TIME; i++){
-            properPageInfo = this.pageIndex.selectOnePage(newDataRecordSize);
-            if(Objects.nonNull(properPageInfo)){
-                break;
+            PageInfo properPageInfo = this.selectInsertPage(newDataRecordsSize);
+            if(Objects.isNull(properPageInfo)){
+                continue;
             }
-            else {
-                // 因为当前没有找到合适的页面，所以猜测其他事务请求比较激烈或者空间不够，加入新空间
-                int newPageNumber = this.pageCache.buildNewPageWithData(PageX.init());
-                this.pageIndex.addFreeSpaceForPage(newPageNumber, PageSetting.PAGE_X_MAX_FREE_SPACE);
+            if(this.insertDataRecordsIntoPage(xid, newDataRecords, properPageInfo, uids, uidsOffset)){
+                this.insertPageNumber.set(properPageInfo.pageNumber);
+                return;
             }
         }
         // 还是没有拿到合适页面
-        if(Objects.isNull(properPageInfo)){
-            Log.logWarningMessage(WarningMessage.CONCURRENCY_HIGH);
-            return DataItemSetting.ERROR_INSERT_RESULT;
+        Log.logWarningMessage(WarningMessage.CONCURRENCY_HIGH);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 选择插入页面并预留空间，先尝试当前线程的插入页面，只需要对这个页面做一次 CAS，不扫描页面索引
+     * 放不下时再从页面索引中选择，还没有时新建页面
+     */
+    private PageInfo selectInsertPage(int needSpaceSize) throws WarningException, ErrorException {
+        Integer pageNumber = this.insertPageNumber.get();
+        if(Objects.nonNull(pageNumber)){
+            PageInfo pageInfo = this.pageIndex.selectThePage(pageNumber, needSpaceSize);
+            if(Objects.nonNull(pageInfo)){
+                return pageInfo;
+            }
+        }
+        PageInfo pageInfo = this.pageIndex.selectOnePage(needSpaceSize);
+        if(Objects.nonNull(pageInfo)){
+            return pageInfo;
+        }
+        // 当前没有页面放得下，加入新空间
+        return this.selectOrBuildPage(needSpaceSize);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 持有建页锁再选一次页面，其他插入可能刚刚建好了新页面；仍然没有时新建一个普通页并在上面预留空间
+     * 新页号落在空闲空间表页的位置上时，先建出空闲空间表页
+     * 同时等待建页的插入会共用新建的页面，不会各自建出只用了一小部分的页面
+     */
+    private PageInfo selectOrBuildPage(int needSpaceSize) throws WarningException, ErrorException {
+        this.pageAllocateLock.lock();
+        try {
+            PageInfo pageInfo = this.pageIndex.selectOnePage(needSpaceSize);
+            if(Objects.nonNull(pageInfo)){
+                return pageInfo;
+            }
+            if(FreeSpaceMap.isFreeSpaceMapPage(this.pageCache.getPagesNumber() + 1)){
+                this.pageCache.buildNewPageWithData(FreeSpaceMap.init());
+            }
+            int newPageNumber = this.pageCache.buildNewPageWithData(PageX.init());
+            Page newPage = this.pageCache.getPageByPageNumber(newPageNumber);
+            newPage.lock();
+            try {
+                this.pageIndex.addFreeSpaceForPage(newPageNumber, PageSetting.PAGE_X_MAX_FREE_SPACE);
+                this.freeSpaceMap.updateFreeSpace(newPageNumber, PageSetting.PAGE_X_MAX_FREE_SPACE);
+            }
+            finally {
+                newPage.unlock();
+                newPage.releaseOneReference();
+            }
+            return this.pageIndex.selectThePage(newPageNumber, needSpaceSize);
         }
+        finally {
+            this.pageAllocateLock.unlock();
+        }
+    }
+
+    @Override
+    public long insertDataNearby(long xid, byte[] data, long nearbyUid) throws WarningException, ErrorException {
+        byte[] newDataRecord = DataItem.buildDataRecord(data);
+        PageInfo nearbyPageInfo = this.pageIndex.selectThePage(Logger.getPageNumberFromUid(nearbyUid), newDataRecord.length + PageSetting.PAGE_X_SLOT_LENGTH);
+        if(Objects.nonNull(nearbyPageInfo)){
+            long[] uids = new long[1];
+            if(this.insertDataRecordsIntoPage(xid, Collections.singletonList(newDataRecord), nearbyPageInfo, uids, 0)){
+                return uids[0];
+            }
+        }
+        // 所在页面空间不够，或者正在被其他插入占用
+        return this.insertData(xid, data);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把一批 DataRecord 插入到已经预留了空间的页面，这批数据在页面中连续存放，只写一条插入日志
+     * 同一页面上的插入持有页面锁依次追加日志、写数据
+     * 页面索引中的空闲空间可能来自崩溃前没有及时落盘的空闲空间表，页面实际放不下时清空它在索引中的空间，
+     * 返回 false，由调用方换一个页面；没有插入成功时把预留的空间还给页面索引
+     * 空闲空间表在持有页面锁、检查点锁时写入，同一页面的写入有序，检查点之前的插入对应的修改一定会随检查点落盘
+     */
+    private boolean insertDataRecordsIntoPage(long xid, List<byte[]> newDataRecords, PageInfo reservedPageInfo, long[] uids, int uidsOffset) throws WarningException, ErrorException {
         Page curPage = null;
+        boolean reservationUsed = false;
+        this.checkpointLock.readLock().lock();
         try {
             // 从页面缓存中拿到页面
-            curPage = this.pageCache.getPageByPageNumber(properPageInfo.pageNumber);
-            // 先把日志写了
-            byte[] log = Logger.buildLogBytes(LoggerSetting.LOG_TYPE_INSERT, xid, curPage.getPageNumber(), PageX.getFreeSpaceOffsetFromPage(curPage), newDataRecord);
-            this.logger.writeLog(log);
-            // 再插入数据到页面中，拿到数据偏移量
-            short dataOffsetInPage = PageX.insertDataIntoPage(curPage, newDataRecord);
-            // 资源释放
-            curPage.releaseOneReference();
-            return Logger.parsePageNumberAndOffsetToUid(properPageInfo.pageNumber, dataOffsetInPage);
+            curPage = this.pageCache.getPageByPageNumber(reservedPageInfo.pageNumber);
+            byte[] newData = Bytes.concat(newDataRecords.toArray(new byte[0][]));
+            long lsn;
+            curPage.lock();
+            try {
+                if(PageX.getFreeSpaceForPage(curPage) < newData.length + newDataRecords.size() * PageSetting.PAGE_X_SLOT_LENGTH){
+                    this.pageIndex.clearFreeSpaceForPage(reservedPageInfo.pageNumber);
+                    reservationUsed = true;
+                    return false;
+                }
+                // 选好槽位，算出每条数据的偏移量
+                short[] slots = PageX.selectSlots(curPage, newDataRecords.size());
+                short[] offsets = new short[newDataRecords.size()];
+                short dataOffsetInPage = PageX.getFreeSpaceOffsetFromPage(curPage);
+                for(int i = 0; i < newDataRecords.size(); i ++){
+                    offsets[i] = dataOffsetInPage;
+                    dataOffsetInPage += newDataRecords.get(i).length;
+                }
+                // 先把日志追加了，同一页面上的日志顺序和写入顺序一致
+                byte[] log = Logger.buildInsertLogBytes(xid, curPage.getPageNumber(), offsets[0], slots, offsets, newData);
+                lsn = this.logger.appendLog(log);
+                // 记下页面的日志位置，页面写回之前会先让这条日志落盘
+                curPage.updateLsn(lsn);
+                // 再插入数据到页面中
+                PageX.insertDataIntoPage(curPage, newData, slots, offsets);
+                reservationUsed = true;
+                for(int i = 0; i < newDataRecords.size(); i ++){
+                    uids[uidsOffset + i] = Logger.parsePageNumberAndSlotToUid(reservedPageInfo.pageNumber, slots[i]);
+                }
+                this.freeSpaceMap.updateFreeSpace(reservedPageInfo.pageNumber, PageX.getFreeSpaceForPage(curPage));
+            }
+            finally {
+                curPage.unlock();
+            }
+            // 释放页面锁之后再等日志落盘，同一页面上的插入可以一起组提交
+            // 页面上记下了日志位置，页面缓存写回这个页面之前会先让日志落盘到这个位置
+            this.logger.flushUpTo(lsn);
+            return true;
         }finally {
-            if(Objects.nonNull(curPage)){
-                this.pageIndex.addFreeSpaceForPage(properPageInfo.pageNumber, PageX.getFreeSpaceForPage(curPage));
+            try {
+                if(Objects.nonNull(curPage)){
+                    // 资源释放
+                    curPage.releaseOneReference();
+                }
+                if(! reservationUsed){
+                    this.pageIndex.addFreeSpaceForPage(reservedPageInfo.pageNumber, reservedPageInfo.freeSpace);
+                }
+            }
+            finally {
+                this.checkpointLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean invalidateData(long xid, long uid) throws WarningException, ErrorException {
+        DataItem dataItem = this.readDataItem(uid);
+        if(Objects.isNull(dataItem)){
+            return false;
+        }
+        try {
+            dataItem.beforeModify();
+            SubArray dataRecord = dataItem.getRawDataRecord();
+            dataRecord.rawData[dataRecord.start + DataItemSetting.DATA_VALID_OFFSET] = DataItemSetting.DATA_INVALID;
+            dataItem.afterModify(xid);
+            return true;
+        }
+        finally {
+            dataItem.releaseOneReference();
+        }
+    }
+
+    @Override
+    public int reclaimData(List<Long> uids) throws WarningException, ErrorException {
+        this.reclaimLock.lock();
+        try {
+            for(long uid : uids){
+                this.reclaimableRecords.computeIfAbsent(Logger.getPageNumberFromUid(uid), k -> new HashSet<>())
+                        .add(Logger.getSlotFromUid(uid));
+            }
+            int reclaimedSize = 0;
+            Iterator<Map.Entry<Integer, Set<Short>>> iterator = this.reclaimableRecords.entrySet().iterator();
+            while(iterator.hasNext()){
+                Map.Entry<Integer, Set<Short>> pageRecords = iterator.next();
+                reclaimedSize += this.compactPage(pageRecords.getKey(), pageRecords.getValue());
+                if(pageRecords.getValue().isEmpty()){
+                    iterator.remove();
+                }
+            }
+            return reclaimedSize;
+        }
+        finally {
+            this.reclaimLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 逐页找出所有槽位还在、数据标记为无效的记录，交给 reclaimData 回收
+     * 第一页和空闲空间表页不存放数据，跳过
+     */
+    @Override
+    public int reclaimInvalidData() throws WarningException, ErrorException {
+        List<Long> invalidUids = new ArrayList<>();
+        int pagesNumber = this.pageCache.getPagesNumber();
+        for(int pageNumber = PageSetting.PAGE_ONE_DEFAULT_NUMBER + 1; pageNumber <= pagesNumber; pageNumber ++){
+            if(FreeSpaceMap.isFreeSpaceMapPage(pageNumber)){
+                continue;
+            }
+            Page page = this.pageCache.getPageByPageNumber(pageNumber);
+            try {
+                byte[] pageData = page.getPageData();
+                page.lock();
+                try {
+                    short slotNumber = PageX.getSlotNumber(page);
+                    for(short slot = 0; slot < slotNumber; slot ++){
+                        short offset = PageX.getSlotOffset(page, slot);
+                        if(offset != PageSetting.PAGE_X_SLOT_FREE && pageData[offset + DataItemSetting.DATA_VALID_OFFSET] == DataItemSetting.DATA_INVALID){
+                            invalidUids.add(Logger.parsePageNumberAndSlotToUid(pageNumber, slot));
+                        }
+                    }
+                }
+                finally {
+                    page.unlock();
+                }
             }
-            else {
-                this.pageIndex.addFreeSpaceForPage(properPageInfo.pageNumber, PageSetting.PAGE_DEFAULT_MIN_SIZE);
+            finally {
+                page.releaseOneReference();
+            }
+        }
+        return invalidUids.isEmpty() ? 0 : this.reclaimData(invalidUids);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 整理页面，释放 slots 中无效数据的槽位，把其余数据向前移动，合并出连续的空闲空间
+     * 正在被引用(在缓存中或正在加载、写回)的数据原地不动，无效数据还被引用时暂不释放；
+     * 加载数据时持有页面锁按槽位定位，所以整理期间持有页面锁，检查时没有被引用的数据不会在整理完成之前被加载
+     * 整理以超级事务写页面整理日志，日志中是整理后发生变化的页面片段，重做时照常恢复；同插入，释放页面锁之后再等日志落盘，
+     * 页面上记下了日志位置，这期间页面缓存写回页面之前会先让日志落盘
+     * 没能回收的槽位留在 slots 中
+     */
+    private int compactPage(int pageNumber, Set<Short> slots) throws WarningException, ErrorException {
+        Page page = null;
+        this.checkpointLock.readLock().lock();
+        try {
+            page = this.pageCache.getPageByPageNumber(pageNumber);
+            byte[] pageData = page.getPageData();
+            long lsn;
+            int reclaimedSize;
+            page.lock();
+            try {
+                Set<Short> freeSlots = new HashSet<>();
+                Iterator<Short> iterator = slots.iterator();
+                while(iterator.hasNext()){
+                    short slot = iterator.next();
+                    short offset = PageX.getSlotOffset(page, slot);
+                    if(offset == PageSetting.PAGE_X_SLOT_FREE || pageData[offset + DataItemSetting.DATA_VALID_OFFSET] != DataItemSetting.DATA_INVALID){
+                        iterator.remove();
+                    }
+                    else if(! super.isResourceInUse(Logger.parsePageNumberAndSlotToUid(pageNumber, slot))){
+                        freeSlots.add(slot);
+                    }
+                }
+                if(freeSlots.isEmpty()){
+                    return 0;
+                }
+                Set<Short> pinnedSlots = new HashSet<>();
+                short slotNumber = PageX.getSlotNumber(page);
+                for(short slot = 0; slot < slotNumber; slot ++){
+                    if(super.isResourceInUse(Logger.parsePageNumberAndSlotToUid(pageNumber, slot))){
+                        pinnedSlots.add(slot);
+                    }
+                }
+                int oldFreeSpace = PageX.getFreeSpaceForPage(page);
+                byte[] compactionData = PageX.buildCompaction(page, freeSlots, pinnedSlots, offset -> DataItem.getDataRecordLength(pageData, offset));
+                lsn = this.logger.appendLog(Logger.buildCompactionLogBytes(pageNumber, compactionData));
+                page.updateLsn(lsn);
+                PageX.applyCompaction(page, compactionData);
+                slots.removeAll(freeSlots);
+                reclaimedSize = PageX.getFreeSpaceForPage(page) - oldFreeSpace;
+                this.pageIndex.addFreeSpaceForPage(pageNumber, reclaimedSize);
+                this.freeSpaceMap.updateFreeSpace(pageNumber, PageX.getFreeSpaceForPage(page));
+            }
+            finally {
+                page.unlock();
+            }
+            this.logger.flushUpTo(lsn);
+            return reclaimedSize;
+        }
+        finally {
+            try {
+                if(Objects.nonNull(page)){
+                    page.releaseOneReference();
+                }
+            }
+            finally {
+                this.checkpointLock.readLock().unlock();
             }
         }
     }
 
     @Override
-    public void writeLog(byte[] log) throws WarningException, ErrorException {
-        this.logger.writeLog(log);
+    public long appendLog(byte[] log) throws WarningException, ErrorException {
+        return this.logger.appendLog(log);
+    }
+
+    @Override
+    public void flushLogUpTo(long lsn) throws WarningException, ErrorException {
+        this.logger.flushUpTo(lsn);
     }
 
     @Override
@@ -175,7 +635,17 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public void close() throws ErrorException, WarningException {
+        if(Objects.nonNull(this.checkpointer)){
+            // 不能中断正在进行的检查点，中断会导致文件通道被关闭
+            this.checkpointer.shutdown();
+            try {
+                this.checkpointer.awaitTermination(LoggerSetting.CHECKPOINT_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         super.close();
+        this.flushAsyncStatusLogs();
         this.logger.close();
         // 注意PageOne关闭时设置VC
         PageOne.setVCWithPageClose(this.pageOne);
@@ -7,17 +7,23 @@ import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.core.dm.logger.Logger;
 import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
 import top.lxsky711.easydb.core.dm.page.Page;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
 import top.lxsky711.easydb.core.dm.page.PageX;
 import top.lxsky711.easydb.core.dm.pageCache.PageCache;
 import top.lxsky711.easydb.core.tm.TransactionManager;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static top.lxsky711.easydb.core.dm.logger.LoggerSetting.REDO;
 
 /**
  * @Author: 711lxsky
  * @Description: 执行恢复类
+ * 重做时按页号把日志分给多个工作线程，同一页面的日志由同一个线程按顺序重做，不同页面并行；
+ * 撤销时每个未完成事务一个任务并行执行
  */
 
 public class Recover {
@@ -25,134 +31,341 @@ public class Recover {
     /**
      * @Author: 711lxsky
      * @Description: 恢复数据
+     * 先做一次分析扫描，得到最大页号以及每个未完成事务的日志位置，重做和撤销都由这些内存中的信息驱动
+     * 分析时遇到事务状态日志会把状态补写到 XID 文件中，此时事务管理器还没有设置状态日志组件，按 SYNC 落盘
+     * 返回重做、撤销涉及的页号
      */
-    public static void recover(TransactionManager tm, Logger logger, PageCache pageCache) throws WarningException, ErrorException {
+    public static Set<Integer> recover(TransactionManager tm, Logger logger, PageCache pageCache) throws WarningException, ErrorException {
         Log.logInfo(InfoMessage.RECOVER_START);
-        logger.rewind();
-        byte[] log;
-        int maxPageNumber = 0;
-        while(Objects.nonNull(log = logger.readNextLogData())){
-             int curLogPageNumber = Logger.getLogPageNumber(log);
-             maxPageNumber = Math.max(maxPageNumber, curLogPageNumber);
-        }
-        if(maxPageNumber == 0){
-            maxPageNumber = 1;
-        }
+        long recoverStartTime = System.nanoTime();
+        RecoverAnalysis analysis = analyzeLogs(tm, logger);
         // 先截断页面文件
-        pageCache.truncatePageWithMPageNum(maxPageNumber);
+        pageCache.truncatePageWithMPageNum(analysis.maxPageNumber);
         Log.logInfo(InfoMessage.PAGE_TRUNCATE);
-        // 重做所有已经完成的日志
-        Log.logInfo(InfoMessage.TRANSACTIONS_REDO_START);
-        redoTransactions(tm, logger, pageCache);
-        Log.logInfo(InfoMessage.TRANSACTIONS_REDO_OVER);
-        // 撤销所有未完成的事务
-        Log.logInfo(InfoMessage.TRANSACTIONS_UNDO_START);
-        undoTransactions(tm, logger, pageCache);
-        Log.logInfo(InfoMessage.TRANSACTIONS_UNDO_OVER);
+        ExecutorService recoverWorkers = Executors.newFixedThreadPool(LoggerSetting.RECOVER_WORKER_THREADS, runnable -> {
+            Thread workerThread = new Thread(runnable, LoggerSetting.RECOVER_THREAD_NAME);
+            workerThread.setDaemon(true);
+            return workerThread;
+        });
+        try {
+            // 重做所有已经完成的日志
+            Log.logInfo(InfoMessage.TRANSACTIONS_REDO_START);
+            redoTransactions(analysis, logger, pageCache, recoverWorkers);
+            Log.logInfo(InfoMessage.TRANSACTIONS_REDO_OVER);
+            // 撤销所有未完成的事务
+            Log.logInfo(InfoMessage.TRANSACTIONS_UNDO_START);
+            undoTransactions(analysis, tm, logger, pageCache, recoverWorkers);
+            Log.logInfo(InfoMessage.TRANSACTIONS_UNDO_OVER);
+        }
+        finally {
+            recoverWorkers.shutdown();
+        }
         Log.logInfo(InfoMessage.RECOVER_OVER);
+        Log.logInfo(Log.concatMessage(InfoMessage.RECOVER_SUMMARY,
+                String.valueOf(analysis.redoLogs.get()),
+                String.valueOf(analysis.undoLogs.get()),
+                String.valueOf(analysis.activeXidLogPositions.size()),
+                String.valueOf(analysis.touchedPages.size()),
+                String.valueOf(LoggerSetting.RECOVER_WORKER_THREADS),
+                String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoverStartTime))));
+        return analysis.touchedPages;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 重做所有已经完成的日志
+     * @Description: 分析扫描的结果，以及重做、撤销过程中的统计
      */
-    private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pc) throws WarningException, ErrorException {
+    private static class RecoverAnalysis {
+
+        int maxPageNumber;
+
+        // 未完成事务 -> 它的日志位置，按写入顺序
+        final Map<Long, List<Long>> activeXidLogPositions = new HashMap<>();
+
+        // 已经结束的事务，避免重复查询事务状态
+        final Set<Long> finishedXids = new HashSet<>();
+
+        final AtomicInteger redoLogs = new AtomicInteger();
+
+        final AtomicInteger undoLogs = new AtomicInteger();
+
+        final Set<Integer> touchedPages = ConcurrentHashMap.newKeySet();
+    }
+    /**
+     * @Author: 711lxsky
+     * @Description: 从头扫描一遍日志，只读视图不复制数据
+     * 未完成事务可能开始于检查点之前，所以这里仍然从头扫描；检查点之前的页面修改都已落盘，
+     * 检查点日志中记录了当时的总页数，所以取所有日志页号的最大值即可
+     */
+    private static RecoverAnalysis analyzeLogs(TransactionManager tm, Logger logger) throws WarningException, ErrorException {
+        RecoverAnalysis analysis = new RecoverAnalysis();
         logger.rewind();
-        byte[] log;
-        while(Objects.nonNull(log = logger.readNextLogData())){
+        long logPosition = logger.getLogPosition();
+        ByteBuffer log;
+        while(Objects.nonNull(log = logger.readNextLogView())){
             byte logType = Logger.getLogType(log);
-            long logXid = Logger.getLogXID(log);
-            // 单条日志处理
-            if(! tm.isActive(logXid)){
-                switch (logType){
-                    case LoggerSetting.LOG_TYPE_INSERT:
-                        doInsetLog(pc, log, REDO);
-                        break;
-                    case LoggerSetting.LOG_TYPE_UPDATE:
-                        doUpdateLog(pc, log, REDO);
-                        break;
+            if(logType == LoggerSetting.LOG_TYPE_COMMIT || logType == LoggerSetting.LOG_TYPE_ABORT){
+                // 事务状态随日志落盘，XID 文件中可能还没有，以日志为准补上
+                long logXid = Logger.getLogXID(log);
+                analysis.activeXidLogPositions.remove(logXid);
+                analysis.finishedXids.add(logXid);
+                if(tm.isActive(logXid)){
+                    if(logType == LoggerSetting.LOG_TYPE_COMMIT){
+                        tm.commit(logXid);
+                    }
+                    else {
+                        tm.abort(logXid);
+                    }
+                }
+            }
+            else {
+                analysis.maxPageNumber = Math.max(analysis.maxPageNumber, Logger.getLogPageNumber(log));
+            }
+            if(logType == LoggerSetting.LOG_TYPE_INSERT || logType == LoggerSetting.LOG_TYPE_UPDATE){
+                long logXid = Logger.getLogXID(log);
+                List<Long> logPositions = analysis.activeXidLogPositions.get(logXid);
+                if(Objects.nonNull(logPositions)){
+                    logPositions.add(logPosition);
+                }
+                else if(!analysis.finishedXids.contains(logXid)){
+                    if(tm.isActive(logXid)){
+                        logPositions = new ArrayList<>();
+                        logPositions.add(logPosition);
+                        analysis.activeXidLogPositions.put(logXid, logPositions);
+                    }
+                    else {
+                        analysis.finishedXids.add(logXid);
+                    }
                 }
             }
+            logPosition = logger.getLogPosition();
+        }
+        if(analysis.maxPageNumber == 0){
+            analysis.maxPageNumber = 1;
         }
+        return analysis;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 撤销所有未完成的事务
+     * @Description: 重做所有已经完成的日志
+     * 当前线程顺序扫描，按页号把要重做的日志分发给工作线程
      */
-    private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pc) throws WarningException, ErrorException {
-        Map<Long, List<byte[]>> waitUndoLogs = new HashMap<>();
-        logger.rewind();
-        byte[] log;
-        // 先将日志过滤一边， 找到所有需要撤销的日志
-        while(Objects.nonNull(log = logger.readNextLogData())){
-            long logXid = Logger.getLogXID(log);
-            if(tm.isActive(logXid)){
-                if(!waitUndoLogs.containsKey(logXid)){
-                    waitUndoLogs.put(logXid, new ArrayList<>());
+    private static void redoTransactions(RecoverAnalysis analysis, Logger logger, PageCache pc, ExecutorService recoverWorkers) throws WarningException, ErrorException {
+        int workerNumber = LoggerSetting.RECOVER_WORKER_THREADS;
+        List<RedoWorker> redoWorkers = new ArrayList<>(workerNumber);
+        List<Future<Void>> redoTasks = new ArrayList<>(workerNumber);
+        for(int i = 0; i < workerNumber; i ++){
+            RedoWorker redoWorker = new RedoWorker(pc, analysis);
+            redoWorkers.add(redoWorker);
+            redoTasks.add(recoverWorkers.submit(redoWorker));
+        }
+        try {
+            // 只需要从检查点开始重做
+            logger.rewindToCheckpoint();
+            ByteBuffer log;
+            while(Objects.nonNull(log = logger.readNextLogView())){
+                byte logType = Logger.getLogType(log);
+                if(logType != LoggerSetting.LOG_TYPE_INSERT && logType != LoggerSetting.LOG_TYPE_UPDATE && logType != LoggerSetting.LOG_TYPE_COMPACT){
+                    continue;
+                }
+                // 未完成事务的日志不重做，只在这时才复制日志
+                if(! analysis.activeXidLogPositions.containsKey(Logger.getLogXID(log))){
+                    int pageNumber = Logger.getLogPageNumber(log);
+                    redoWorkers.get(pageNumber % workerNumber).dispatch(Logger.getLogBytes(log));
                 }
-                waitUndoLogs.get(logXid).add(log);
             }
         }
-        for(Map.Entry<Long, List<byte[]>> undoLog : waitUndoLogs.entrySet()){
-            // 单个xid对应的日志倒序进行undo
-            List<byte[]> logs = undoLog.getValue();
-            for(int i = logs.size() - 1; i >= 0; i --){
-                byte logType = Logger.getLogType(logs.get(i));
-                switch (logType){
-                    case LoggerSetting.LOG_TYPE_INSERT:
-                        doInsetLog(pc, logs.get(i), LoggerSetting.UNDO);
-                        break;
-                    case LoggerSetting.LOG_TYPE_UPDATE:
-                        doUpdateLog(pc, logs.get(i), LoggerSetting.UNDO);
-                        break;
+        finally {
+            for(RedoWorker redoWorker : redoWorkers){
+                redoWorker.dispatch(RedoWorker.REDO_END);
+            }
+        }
+        for(Future<Void> redoTask : redoTasks){
+            awaitRecoverTask(redoTask);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 重做工作线程，按收到的顺序重做同一分区内的日志，连续落在同一页面的日志只取一次页面
+     */
+    private static class RedoWorker implements Callable<Void> {
+
+        // 结束标记
+        static final byte[] REDO_END = new byte[0];
+
+        private final BlockingQueue<byte[]> redoLogs = new ArrayBlockingQueue<>(LoggerSetting.RECOVER_REDO_QUEUE_CAPACITY);
+
+        private final PageCache pc;
+
+        private final RecoverAnalysis analysis;
+
+        RedoWorker(PageCache pc, RecoverAnalysis analysis){
+            this.pc = pc;
+            this.analysis = analysis;
+        }
+
+        void dispatch(byte[] log) throws WarningException {
+            try {
+                this.redoLogs.put(log);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.logWarningMessage(e.getMessage());
+            }
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Page page = null;
+            Exception failure = null;
+            try {
+                byte[] log;
+                while((log = this.redoLogs.take()) != REDO_END){
+                    // 出错后仍然把队列取完，不让分发日志的线程卡住
+                    if(Objects.nonNull(failure)){
+                        continue;
+                    }
+                    try {
+                        int pageNumber = Logger.getLogPageNumber(log);
+                        if(Objects.isNull(page) || page.getPageNumber() != pageNumber){
+                            if(Objects.nonNull(page)){
+                                page.releaseOneReference();
+                                page = null;
+                            }
+                            page = this.pc.getPageByPageNumber(pageNumber);
+                            this.analysis.touchedPages.add(pageNumber);
+                        }
+                        applyLog(page, log, REDO);
+                        this.analysis.redoLogs.incrementAndGet();
+                    } catch (WarningException | ErrorException e) {
+                        failure = e;
+                    }
                 }
             }
-            tm.abort(undoLog.getKey());
+            finally {
+                if(Objects.nonNull(page)){
+                    page.releaseOneReference();
+                }
+            }
+            if(Objects.nonNull(failure)){
+                throw failure;
+            }
+            return null;
         }
+    }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 撤销所有未完成的事务，每个事务一个任务，按分析时记下的位置直接读取日志
+     * 不同事务可能修改同一页面的不同位置，所以这里修改页面时要加页面锁
+     */
+    private static void undoTransactions(RecoverAnalysis analysis, TransactionManager tm, Logger logger, PageCache pc, ExecutorService recoverWorkers) throws WarningException, ErrorException {
+        List<Future<Void>> undoTasks = new ArrayList<>(analysis.activeXidLogPositions.size());
+        for(Map.Entry<Long, List<Long>> undoLog : analysis.activeXidLogPositions.entrySet()){
+            undoTasks.add(recoverWorkers.submit(() -> {
+                // 单个xid对应的日志倒序进行undo
+                List<Long> logPositions = undoLog.getValue();
+                for(int i = logPositions.size() - 1; i >= 0; i --){
+                    byte[] log = Logger.getLogBytes(logger.readLogViewAt(logPositions.get(i)));
+                    int pageNumber = Logger.getLogPageNumber(log);
+                    Page page = pc.getPageByPageNumber(pageNumber);
+                    page.lock();
+                    try {
+                        applyLog(page, log, LoggerSetting.UNDO);
+                    }
+                    finally {
+                        page.unlock();
+                        page.releaseOneReference();
+                    }
+                    analysis.touchedPages.add(pageNumber);
+                    analysis.undoLogs.incrementAndGet();
+                }
+                tm.abort(undoLog.getKey());
+                return null;
+            }));
+        }
+        for(Future<Void> undoTask : undoTasks){
+            awaitRecoverTask(undoTask);
+        }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 进行插入日志的恢复
+     * @Description: 等待恢复任务结束，把任务中的异常原样抛出
      */
-    private static void doInsetLog(PageCache pc, byte[] log, int redoOrUndo) throws ErrorException, WarningException {
-        LoggerSetting.InsertLog insertLog = Logger.parseLogBytesToInsertLog(log);
-        Page page = pc.getPageByPageNumber(insertLog.pageNumber);
+    private static void awaitRecoverTask(Future<Void> recoverTask) throws WarningException, ErrorException {
         try {
-            if(redoOrUndo == LoggerSetting.UNDO){
-                DataItem.setDataRecordInvalid(insertLog.data);
+            recoverTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.logWarningMessage(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof WarningException){
+                throw (WarningException) cause;
+            }
+            if(cause instanceof ErrorException){
+                throw (ErrorException) cause;
             }
-            PageX.recoverInsert(page, insertLog.data, insertLog.offset);
+            Log.logErrorMessage(cause.getMessage());
         }
-        finally {
-            page.releaseOneReference();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把一条日志重做或撤销到页面上
+     */
+    private static void applyLog(Page page, byte[] log, int redoOrUndo) throws ErrorException {
+        switch (Logger.getLogType(log)){
+            case LoggerSetting.LOG_TYPE_INSERT:
+                doInsetLog(page, log, redoOrUndo);
+                break;
+            case LoggerSetting.LOG_TYPE_UPDATE:
+                doUpdateLog(page, log, redoOrUndo);
+                break;
+            case LoggerSetting.LOG_TYPE_COMPACT:
+                // 页面整理只由超级事务写入，只会重做
+                PageX.applyCompaction(page, Logger.getLogData(log));
+                break;
         }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 进行更新日志的恢复
+     * @Description: 进行插入日志的恢复
      */
-    private static void doUpdateLog(PageCache pc, byte[] log, int redoOrUndo) throws WarningException, ErrorException {
-        LoggerSetting.UpdateLog updateLog = Logger.parseLogBytesToUpdateLog(log);
-        Page page = pc.getPageByPageNumber(updateLog.pageNumber);
-        byte[] useData;
+    private static void doInsetLog(Page page, byte[] log, int redoOrUndo) throws ErrorException {
+        LoggerSetting.InsertLog insertLog = Logger.parseLogBytesToInsertLog(log);
         if(redoOrUndo == REDO){
-            useData = updateLog.newData;
+            PageX.recoverInsert(page, insertLog.data, insertLog.offset, insertLog.slots, insertLog.offsets);
+            return;
         }
-        else {
-            useData = updateLog.oldData;
+        // 数据可能已经被页面整理移动过，按槽位找到数据当前的位置
+        for(short slot : insertLog.slots){
+            short offset = PageX.getSlotOffset(page, slot);
+            if(offset != PageSetting.PAGE_X_SLOT_FREE){
+                DataItem.setDataRecordInvalid(page.getPageData(), offset);
+            }
         }
-        try {
-            PageX.recoverUpdate(page, useData, updateLog.offset);
+        page.setDirtyStatus(true);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 进行更新日志的恢复
+     */
+    private static void doUpdateLog(Page page, byte[] log, int redoOrUndo) throws ErrorException {
+        LoggerSetting.UpdateLog updateLog = Logger.parseLogBytesToUpdateLog(log);
+        if(redoOrUndo == REDO){
+            PageX.recoverUpdate(page, updateLog.newData, updateLog.offset);
+            return;
         }
-        finally {
-            page.releaseOneReference();
+        // 同插入日志的撤销，按槽位找到数据当前的位置
+        short offset = PageX.getSlotOffset(page, updateLog.slot);
+        if(offset != PageSetting.PAGE_X_SLOT_FREE){
+            PageX.recoverUpdate(page, updateLog.oldData, offset);
         }
     }
 
-
-
 }
@@ -7,9 +7,11 @@ import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.file.FileManager;
 import top.lxsky711.easydb.common.log.ErrorMessage;
 import top.lxsky711.easydb.common.log.Log;
+import top.lxsky711.easydb.core.tm.TMSetting;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -19,16 +21,18 @@ import java.util.Objects;
  * 以供数据库崩溃之后，恢复数据使用
  * <p>
  * 日志文件记录格式：
- * [LogsChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * LogsChecksum 为后续所有日志计算的Checksum，4字节int类型
+ * [CheckpointPosition] [Log1] [Log2] ... [LogN] [BadTail]
+ * CheckpointPosition 为最近一次检查点日志在文件中的位置，8字节long类型，恢复时从这里开始重做
  * Log1...LogN是常规日志数据
  * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，这个 BadTail 不一定存在
+ * 打开日志时逐条校验，遇到第一条校验不通过的日志就认为后面都是 BadTail 并截断
  * </p>
  * <p>
  * 单条日志记录格式：
- * [Size][Checksum][Data]
+ * [Size][Checksum][LSN][Data]
  * Size标记Data字段的字节数, 4字节int类型
- * Checksum是该条数据的校验和， 4字节int类型
+ * Checksum是 Data、Size、LSN 的 CRC32C 校验和， 4字节int类型
+ * LSN是该条日志在文件中的位置，8字节long类型，和实际位置对不上说明是残留的旧数据
  * Data是实际的数据
  * </P>
  */
@@ -37,9 +41,24 @@ public interface Logger {
 
     /**
      * @Author: 711lxsky
-     * @Description: 写入日志
+     * @Description: 写入日志，返回日志的位置(LSN)，返回时日志已经落盘
+     * 等价于 appendLog 之后 flushUpTo
      */
-    void writeLog(byte[] data) throws WarningException, ErrorException;
+    long writeLog(byte[] data) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把日志追加到内存缓冲区，返回日志的位置(LSN)，此时日志还不一定落盘
+     * 修改页面的日志需要持有页面锁追加，并把位置记到页面上，页面缓存写回页面之前会先刷日志到这个位置
+     */
+    long appendLog(byte[] data) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 保证位置为 lsn 的日志以及它之前的所有日志都已经落盘
+     * 并发调用者中只有一个 leader 负责写出并刷盘，其余调用者等待同一批刷盘完成
+     */
+    void flushUpTo(long lsn) throws WarningException, ErrorException;
 
     /**
      * @Author: 711lxsky
@@ -47,12 +66,42 @@ public interface Logger {
      */
     void rewind();
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 定位指针到最近一次检查点日志，没有检查点时等同于 rewind
+     */
+    void rewindToCheckpoint();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 检查点之前的脏页都已落盘后，在日志头记录检查点日志的位置
+     */
+    void setCheckpoint(long checkpointPosition) throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 读取下一条日志信息
      */
     byte [] readNextLogData() throws ErrorException, WarningException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 读取下一条日志数据部分的只读视图，不复制数据，视图在日志关闭前有效
+     */
+    ByteBuffer readNextLogView() throws ErrorException, WarningException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 读取位置为 lsn 的日志数据部分的只读视图
+     */
+    ByteBuffer readLogViewAt(long lsn) throws ErrorException, WarningException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 当前读取位置，即下一条要读取的日志的 LSN
+     */
+    long getLogPosition();
+
     /**
      * @Author: 711lxsky
      * @Description: 截断日志文件到指定长度
@@ -63,7 +112,7 @@ public interface Logger {
      * @Author: 711lxsky
      * @Description: 关闭日志
      */
-    void close() throws ErrorException;
+    void close() throws ErrorException, WarningException;
 
     static LoggerImpl create(String logFileFullName) throws WarningException, ErrorException {
         File newFile = FileManager.createFile(logFileFullName + LoggerSetting.LOGGER_FILE_SUFFIX);
@@ -84,7 +133,7 @@ public interface Logger {
                     logger.initOpen();
                     return logger;
                 }
-                LoggerImpl logger = new LoggerImpl(logFile, 0);
+                LoggerImpl logger = new LoggerImpl(logFile);
                 logger.initCreate();
                 return logger;
             }
@@ -98,19 +147,54 @@ public interface Logger {
     // 这里的参数 log 实际上一条日志数据的纯数据部分，下面的也是
     static byte getLogType(byte[] log) throws ErrorException {
         byte logType =  log[LoggerSetting.LOG_TYPE_OFFSET];
-        if(logType != LoggerSetting.LOG_TYPE_INSERT && logType != LoggerSetting.LOG_TYPE_UPDATE){
+        if(logType < LoggerSetting.LOG_TYPE_INSERT || logType > LoggerSetting.LOG_TYPE_COMPACT){
+            Log.logErrorMessage(ErrorMessage.LOG_TYPE_ERROR);
+        }
+        return logType;
+    }
+
+    static byte getLogType(ByteBuffer logView) throws ErrorException {
+        byte logType = logView.get(LoggerSetting.LOG_TYPE_OFFSET);
+        if(logType < LoggerSetting.LOG_TYPE_INSERT || logType > LoggerSetting.LOG_TYPE_COMPACT){
             Log.logErrorMessage(ErrorMessage.LOG_TYPE_ERROR);
         }
         return logType;
     }
 
+    static long getLogXID(ByteBuffer logView) throws ErrorException {
+        long logXid = logView.getLong(LoggerSetting.LOG_XID_OFFSET);
+        if(logXid < 0){
+            Log.logErrorMessage(ErrorMessage.BAD_XID);
+        }
+        return logXid;
+    }
+
+    static int getLogPageNumber(ByteBuffer logView) throws ErrorException {
+        int logPageNumber = logView.getInt(LoggerSetting.LOG_PAGE_NUMBER_OFFSET);
+        if(logPageNumber <= 0){
+            Log.logErrorMessage(ErrorMessage.BAD_PAGE_NUMBER);
+        }
+        return logPageNumber;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把日志视图复制成字节数组，真正要应用日志时才复制
+     */
+    static byte[] getLogBytes(ByteBuffer logView){
+        byte[] log = new byte[logView.remaining()];
+        logView.duplicate().get(log);
+        return log;
+    }
+
     static byte[] getLogXIDBytes(byte[] log){
         return Arrays.copyOfRange(log, LoggerSetting.LOG_XID_OFFSET, LoggerSetting.LOG_PAGE_NUMBER_OFFSET);
     }
 
     static long getLogXID(byte[] log) throws ErrorException {
         long logXid =  ByteParser.parseBytesToLong(getLogXIDBytes(log));
-        if(logXid <= 0){
+        // 超级事务(xid 为 0)也会写日志，比如索引和表元数据
+        if(logXid < 0){
             Log.logErrorMessage(ErrorMessage.BAD_XID);
         }
         return logXid;
@@ -152,12 +236,51 @@ public interface Logger {
         return Bytes.concat(typeBytes, xidBytes, pageNumberBytes, offsetBytes, data);
     }
 
+    static byte[] buildCheckpointLogBytes(int pagesNumber){
+        return buildLogBytes(LoggerSetting.LOG_TYPE_CHECKPOINT, TMSetting.SUPER_TRANSACTION_XID, pagesNumber, (short) 0, new byte[0]);
+    }
+
+    static byte[] buildTransactionStatusLogBytes(byte logType, long xid){
+        return buildLogBytes(logType, xid, 0, (short) 0, new byte[0]);
+    }
+
+    static byte[] buildInsertLogBytes(long xid, int pageNumber, short offset, short[] slots, short[] offsets, byte[] data){
+        byte[][] slotBytes = new byte[slots.length * 2 + 2][];
+        slotBytes[0] = ByteParser.shortToBytes((short) slots.length);
+        for(int i = 0; i < slots.length; i ++){
+            slotBytes[2 * i + 1] = ByteParser.shortToBytes(slots[i]);
+            slotBytes[2 * i + 2] = ByteParser.shortToBytes(offsets[i]);
+        }
+        slotBytes[slotBytes.length - 1] = data;
+        return buildLogBytes(LoggerSetting.LOG_TYPE_INSERT, xid, pageNumber, offset, Bytes.concat(slotBytes));
+    }
+
+    static byte[] buildUpdateLogBytes(long xid, int pageNumber, short slot, short offset, byte[] oldData, byte[] newData){
+        return buildLogBytes(LoggerSetting.LOG_TYPE_UPDATE, xid, pageNumber, slot,
+                Bytes.concat(ByteParser.shortToBytes(offset), oldData, newData));
+    }
+
+    static byte[] buildCompactionLogBytes(int pageNumber, byte[] compactionData){
+        return buildLogBytes(LoggerSetting.LOG_TYPE_COMPACT, TMSetting.SUPER_TRANSACTION_XID, pageNumber, (short) 0, compactionData);
+    }
+
     static LoggerSetting.InsertLog parseLogBytesToInsertLog(byte[] log) throws ErrorException {
         LoggerSetting.InsertLog insertLog = new LoggerSetting.InsertLog();
         insertLog.type = LoggerSetting.LOG_TYPE_INSERT;
         insertLog.pageNumber = getLogPageNumber(log);
         insertLog.offset = getLogOffset(log);
-        insertLog.data = getLogData(log);
+        int position = LoggerSetting.LOG_DATA_OFFSET;
+        short recordNumber = ByteParser.parseBytesToShort(Arrays.copyOfRange(log, position, position + LoggerSetting.INSERT_LOG_RECORD_NUMBER_LENGTH));
+        position += LoggerSetting.INSERT_LOG_RECORD_NUMBER_LENGTH;
+        insertLog.slots = new short[recordNumber];
+        insertLog.offsets = new short[recordNumber];
+        for(int i = 0; i < recordNumber; i ++){
+            insertLog.slots[i] = ByteParser.parseBytesToShort(Arrays.copyOfRange(log, position, position + LoggerSetting.INSERT_LOG_SLOT_LENGTH));
+            position += LoggerSetting.INSERT_LOG_SLOT_LENGTH;
+            insertLog.offsets[i] = ByteParser.parseBytesToShort(Arrays.copyOfRange(log, position, position + LoggerSetting.INSERT_LOG_RECORD_OFFSET_LENGTH));
+            position += LoggerSetting.INSERT_LOG_RECORD_OFFSET_LENGTH;
+        }
+        insertLog.data = Arrays.copyOfRange(log, position, log.length);
         return insertLog;
     }
 
@@ -166,23 +289,28 @@ public interface Logger {
         updateLog.type = LoggerSetting.LOG_TYPE_UPDATE;
         updateLog.xid = getLogXID(log);
         updateLog.pageNumber = getLogPageNumber(log);
-        updateLog.offset = getLogOffset(log);
+        updateLog.slot = getLogOffset(log);
         byte[] logData = getLogData(log);
-        int dataLength = logData.length;
-        updateLog.oldData = Arrays.copyOfRange(logData, 0, dataLength / 2);
-        updateLog.newData = Arrays.copyOfRange(logData, dataLength / 2, dataLength);
+        updateLog.offset = ByteParser.parseBytesToShort(Arrays.copyOfRange(logData, 0, LoggerSetting.UPDATE_LOG_RECORD_OFFSET_LENGTH));
+        int dataLength = logData.length - LoggerSetting.UPDATE_LOG_RECORD_OFFSET_LENGTH;
+        updateLog.oldData = Arrays.copyOfRange(logData, LoggerSetting.UPDATE_LOG_RECORD_OFFSET_LENGTH, LoggerSetting.UPDATE_LOG_RECORD_OFFSET_LENGTH + dataLength / 2);
+        updateLog.newData = Arrays.copyOfRange(logData, LoggerSetting.UPDATE_LOG_RECORD_OFFSET_LENGTH + dataLength / 2, logData.length);
         return updateLog;
     }
 
-    static long parsePageNumberAndOffsetToUid(int pageNumber, short offset){
-        return (((long)pageNumber) << Integer.SIZE) | (long)offset ;
+    /**
+     * @Author: 711lxsky
+     * @Description: uid 由页号和槽位组成，数据在页内移动时 uid 不变
+     */
+    static long parsePageNumberAndSlotToUid(int pageNumber, short slot){
+        return (((long)pageNumber) << Integer.SIZE) | (long)slot ;
     }
 
     static int getPageNumberFromUid(long uid){
         return (int)(uid >> Integer.SIZE);
     }
 
-    static short getOffsetFromUid(long uid){
+    static short getSlotFromUid(long uid){
         return (short)(uid & ((1L << Short.SIZE) - 1));
     }
 
@@ -1,25 +1,29 @@
 package top.lxsky711.easydb.core.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import top.lxsky711.easydb.common.data.ByteParser;
 import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.file.FileManager;
 import top.lxsky711.easydb.common.log.ErrorMessage;
+import top.lxsky711.easydb.common.log.InfoMessage;
 import top.lxsky711.easydb.common.log.Log;
-import top.lxsky711.easydb.common.log.WarningMessage;
 
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: 711lxsky
  * @Description: 日志实现类
+ * 写日志采用组提交: 日志先追加到共享的内存缓冲区，需要落盘时由一个 leader 把整批写出并只刷盘一次，
+ * 同一批中等待的线程一起被唤醒
  */
 
 public class LoggerImpl implements Logger{
@@ -35,10 +39,50 @@ public class LoggerImpl implements Logger{
     private final FileChannel logFileChannel;
 
     /**
-     * 资源锁
+     * 资源锁，同时保护追加缓冲区和刷盘状态
      */
     private final Lock lock;
 
+    /**
+     * 等待刷盘完成，或者 leader 等待缓冲区攒满
+     */
+    private final Condition flushCondition;
+
+    /**
+     * 追加缓冲区，保存还没有写入文件的日志
+     */
+    private byte[] appendBuffer;
+
+    /**
+     * 追加缓冲区中有效数据长度
+     */
+    private int appendBufferSize;
+
+    /**
+     * leader 写出时与追加缓冲区交换的备用缓冲区
+     */
+    private byte[] spareBuffer;
+
+    /**
+     * 追加缓冲区中第一条日志在文件中的位置
+     */
+    private long appendBufferStartPosition;
+
+    /**
+     * 下一条日志的位置，即文件(含缓冲区)的逻辑末尾
+     */
+    private long logFileEndPosition;
+
+    /**
+     * 已经落盘的日志末尾位置，位置小于它的日志都已落盘
+     */
+    private long flushedPosition;
+
+    /**
+     * 是否有 leader 正在刷盘
+     */
+    private boolean flushing;
+
     /**
      * 日志文件位置指针
      */
@@ -50,21 +94,28 @@ public class LoggerImpl implements Logger{
     private long logFileOriginLength;
 
     /**
-     * 日志文件总校验和
+     * 读取日志时映射到内存的文件窗口，只读
      */
-    private int logsChecksum;
+    private ByteBuffer readWindow;
 
-    LoggerImpl(RandomAccessFile raf){
-        this.logFile = raf;
-        this.logFileChannel = raf.getChannel();
-        this.lock = new ReentrantLock();
-    }
+    /**
+     * 映射窗口中第一个字节在文件中的位置
+     */
+    private long readWindowStartPosition;
+
+    /**
+     * 最近一次检查点日志的位置
+     */
+    private long checkpointPosition;
 
-    LoggerImpl(RandomAccessFile raf, int logsChecksum){
+    LoggerImpl(RandomAccessFile raf){
         this.logFile = raf;
         this.logFileChannel = raf.getChannel();
         this.lock = new ReentrantLock();
-        this.logsChecksum = logsChecksum;
+        this.flushCondition = this.lock.newCondition();
+        this.appendBuffer = new byte[LoggerSetting.LOG_APPEND_BUFFER_INIT_SIZE];
+        this.spareBuffer = new byte[LoggerSetting.LOG_APPEND_BUFFER_INIT_SIZE];
+        this.readWindow = ByteBuffer.allocate(0);
     }
 
     /**
@@ -72,9 +123,11 @@ public class LoggerImpl implements Logger{
      * @Description: 创建日志时初始化
      */
     protected void initCreate() throws WarningException, ErrorException {
-        ByteBuffer logsCheckSumBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_HEADER_LENGTH);
-        FileManager.writeByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_HEADER_OFFSET, logsCheckSumBuffer);
+        ByteBuffer logHeaderBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_HEADER_LENGTH);
+        FileManager.writeByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_HEADER_OFFSET, logHeaderBuffer);
         FileManager.forceRefreshFileChannel(this.logFileChannel, false);
+        this.checkpointPosition = LoggerSetting.LOGGER_NO_CHECKPOINT;
+        this.resetAppendPosition(LoggerSetting.LOGGER_LOG_OFFSET);
     }
 
     /**
@@ -87,28 +140,75 @@ public class LoggerImpl implements Logger{
         if(fileSize < LoggerSetting.LOGGER_HEADER_LENGTH){
             Log.logErrorMessage(ErrorMessage.BAD_LOG_FILE);
         }
-        ByteBuffer logsCheckSumBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_HEADER_LENGTH);
-        FileManager.readByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_HEADER_OFFSET, logsCheckSumBuffer);
-        // 读取日志校验和
-        int logsCheckSum = ByteParser.parseBytesToInt(logsCheckSumBuffer.array());
+        ByteBuffer logHeaderBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_HEADER_LENGTH);
+        FileManager.readByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_HEADER_OFFSET, logHeaderBuffer);
+        // 读取检查点位置
+        this.checkpointPosition = logHeaderBuffer.getLong(LoggerSetting.LOGGER_CHECKPOINT_OFFSET);
         this.logFileOriginLength = fileSize;
-        this.logsChecksum = logsCheckSum;
         // 检查日志并删除脏的尾部
         this.checkLogAndRemoveTail();
+        // 检查点日志落在被删除的尾部中，说明检查点没有完成，视为没有检查点
+        long logFileSize = FileManager.getFileChannelSize(this.logFileChannel);
+        if(this.checkpointPosition >= logFileSize){
+            this.checkpointPosition = LoggerSetting.LOGGER_NO_CHECKPOINT;
+        }
+        this.resetAppendPosition(logFileSize);
     }
 
     @Override
-    public void writeLog(byte[] data) throws WarningException, ErrorException {
-        byte[] log = this.wrapDataBytesToLog(data);
-        ByteBuffer logBuffer = ByteBuffer.wrap(log);
+    public long writeLog(byte[] data) throws WarningException, ErrorException {
+        long lsn = this.appendLog(data);
+        this.flushUpTo(lsn);
+        return lsn;
+    }
+
+    @Override
+    public long appendLog(byte[] data) {
+        // 数据部分的校验在锁外算好，锁内只需要再补上 Size 和 LSN
+        CRC32C checksum = new CRC32C();
+        checksum.update(data);
+        int logLength = LoggerSetting.LOGGER_LOG_DATA_OFFSET + data.length;
         this.lock.lock();
         try {
-            FileManager.writeByteDataIntoFileChannel(this.logFileChannel, FileManager.getFileChannelSize(this.logFileChannel), logBuffer);
+            long lsn = this.logFileEndPosition;
+            this.ensureAppendBufferCapacity(this.appendBufferSize + logLength);
+            ByteBuffer log = ByteBuffer.wrap(this.appendBuffer, this.appendBufferSize, logLength).slice();
+            log.putInt(LoggerSetting.LOGGER_LOG_SIZE_OFFSET, data.length);
+            log.putLong(LoggerSetting.LOGGER_LOG_LSN_OFFSET, lsn);
+            this.updateHeaderChecksum(checksum, log);
+            log.putInt(LoggerSetting.LOGGER_LOG_CHECKSUM_OFFSET, (int) checksum.getValue());
+            System.arraycopy(data, 0, this.appendBuffer, this.appendBufferSize + LoggerSetting.LOGGER_LOG_DATA_OFFSET, data.length);
+            this.appendBufferSize += logLength;
+            this.logFileEndPosition += logLength;
+            if(this.appendBufferSize >= LoggerSetting.LOG_GROUP_COMMIT_MAX_BATCH_BYTES){
+                // 攒够一批了，叫醒正在等待的 leader
+                this.flushCondition.signalAll();
+            }
+            return lsn;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void flushUpTo(long lsn) throws WarningException, ErrorException {
+        this.lock.lock();
+        try {
+            while(this.flushedPosition <= lsn){
+                if(this.flushing){
+                    // 已经有 leader 在刷盘，等它这一批结束后再看
+                    this.flushCondition.awaitUninterruptibly();
+                    continue;
+                }
+                this.flushing = true;
+                this.waitForGroupCommitBatch();
+                this.flushAppendBuffer();
+            }
         }
         finally {
             this.lock.unlock();
         }
-        this.updateLogsChecksum(log);
     }
 
     @Override
@@ -116,22 +216,73 @@ public class LoggerImpl implements Logger{
         this.logFileLocationPointer = LoggerSetting.LOGGER_LOG_OFFSET;
     }
 
+    @Override
+    public void rewindToCheckpoint() {
+        if(this.checkpointPosition == LoggerSetting.LOGGER_NO_CHECKPOINT){
+            this.rewind();
+            return;
+        }
+        this.logFileLocationPointer = this.checkpointPosition;
+    }
+
+    @Override
+    public void setCheckpoint(long checkpointPosition) throws WarningException, ErrorException {
+        ByteBuffer checkpointBuffer = ByteBuffer.wrap(ByteParser.longToBytes(checkpointPosition));
+        this.lock.lock();
+        try {
+            FileManager.writeByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_CHECKPOINT_OFFSET, checkpointBuffer);
+            FileManager.forceRefreshFileChannel(this.logFileChannel, false);
+            this.checkpointPosition = checkpointPosition;
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
     @Override
     public byte[] readNextLogData() throws ErrorException, WarningException {
+        ByteBuffer nextLogView = this.readNextLogView();
+        return Objects.isNull(nextLogView) ? null : Logger.getLogBytes(nextLogView);
+    }
+
+    @Override
+    public ByteBuffer readNextLogView() throws ErrorException, WarningException {
         this.lock.lock();
         try {
             // 读取下一条完整日志
-            byte[] nextLog = this.internalReadNextLog();
-            if(Objects.nonNull(nextLog)){
-                return this.getLogDataFromLog(nextLog);
+            int nextLogLength = this.internalReadLog(this.logFileLocationPointer);
+            if(nextLogLength < 0){
+                return null;
             }
-            return null;
+            ByteBuffer nextLogView = this.buildLogDataView(this.logFileLocationPointer, nextLogLength);
+            this.logFileLocationPointer += nextLogLength;
+            return nextLogView;
         }
         finally {
             this.lock.unlock();
         }
     }
 
+    @Override
+    public ByteBuffer readLogViewAt(long lsn) throws ErrorException, WarningException {
+        this.lock.lock();
+        try {
+            int logLength = this.internalReadLog(lsn);
+            if(logLength < 0){
+                Log.logErrorMessage(ErrorMessage.BAD_LOG_FILE);
+            }
+            return this.buildLogDataView(lsn, logLength);
+        }
+        finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public long getLogPosition() {
+        return this.logFileLocationPointer;
+    }
+
     @Override
     public void truncate(long length) throws WarningException {
         this.lock.lock();
@@ -140,111 +291,185 @@ public class LoggerImpl implements Logger{
     }
 
     @Override
-    public void close() throws ErrorException {
+    public void close() throws ErrorException, WarningException {
+        long lastLsn;
+        this.lock.lock();
+        try {
+            lastLsn = this.logFileEndPosition - 1;
+        }
+        finally {
+            this.lock.unlock();
+        }
+        // 缓冲区中剩余的日志先落盘
+        this.flushUpTo(lastLsn);
         FileManager.closeFileAndChannel(this.logFileChannel, this.logFile);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 更新日志校验和
+     * @Description: leader 在组提交窗口内等待其他线程追加日志，缓冲区攒满或超时后返回
+     * 调用时持有 lock，等待期间会释放
      */
-    private void updateLogsChecksum(byte[] log) throws WarningException, ErrorException {
-        this.logsChecksum = this.calculateChecksum(this.logsChecksum, log);
-        byte[] logsChecksumBytes = ByteParser.intToBytes(this.logsChecksum);
-        ByteBuffer logsChecksumBuffer = ByteBuffer.wrap(logsChecksumBytes);
-        FileManager.writeByteDataIntoFileChannel(this.logFileChannel, LoggerSetting.LOGGER_HEADER_OFFSET, logsChecksumBuffer);
-        FileManager.forceRefreshFileChannel(this.logFileChannel, false);
+    private void waitForGroupCommitBatch() {
+        long remainingNanos = TimeUnit.MICROSECONDS.toNanos(LoggerSetting.LOG_GROUP_COMMIT_FLUSH_INTERVAL_MICROS);
+        while(remainingNanos > 0 && this.appendBufferSize < LoggerSetting.LOG_GROUP_COMMIT_MAX_BATCH_BYTES){
+            try {
+                remainingNanos = this.flushCondition.awaitNanos(remainingNanos);
+            } catch (InterruptedException e) {
+                // 不放弃这一次刷盘，只保留中断标记
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: leader 交换出追加缓冲区，在锁外写出整批日志并只刷盘一次，然后唤醒所有等待者
+     * 调用时持有 lock 并已经置 flushing
+     */
+    private void flushAppendBuffer() throws WarningException, ErrorException {
+        byte[] batch = this.appendBuffer;
+        int batchSize = this.appendBufferSize;
+        long batchStartPosition = this.appendBufferStartPosition;
+        this.appendBuffer = this.spareBuffer;
+        this.appendBufferSize = 0;
+        this.appendBufferStartPosition = this.logFileEndPosition;
+        this.lock.unlock();
+        try {
+            if(batchSize > 0){
+                FileManager.writeByteDataIntoFileChannel(this.logFileChannel, batchStartPosition, ByteBuffer.wrap(batch, 0, batchSize));
+                FileManager.forceRefreshFileChannel(this.logFileChannel, false);
+            }
+        }
+        finally {
+            this.lock.lock();
+            this.spareBuffer = batch;
+            this.flushedPosition = batchStartPosition + batchSize;
+            this.flushing = false;
+            this.flushCondition.signalAll();
+        }
+    }
+
+    private void ensureAppendBufferCapacity(int capacity){
+        if(capacity > this.appendBuffer.length){
+            this.appendBuffer = Arrays.copyOf(this.appendBuffer, Math.max(capacity, this.appendBuffer.length * 2));
+        }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 检查日志并删除脏的尾部
+     * @Description: 打开或创建之后，文件中已有的日志都视为已经落盘
+     */
+    private void resetAppendPosition(long logFileSize){
+        this.appendBufferSize = 0;
+        this.appendBufferStartPosition = logFileSize;
+        this.logFileEndPosition = logFileSize;
+        this.flushedPosition = logFileSize;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 逐条校验日志，从第一条校验不通过的日志开始删除脏的尾部
      */
     private void checkLogAndRemoveTail() throws WarningException, ErrorException {
         this.rewind();
-        int logsChecksum = 0;
-        byte[] log;
-        while(Objects.nonNull(log = this.internalReadNextLog())){
-            logsChecksum  = this.calculateChecksum(logsChecksum, log);
+        int logLength;
+        while((logLength = this.internalReadLog(this.logFileLocationPointer)) >= 0){
+            this.logFileLocationPointer += logLength;
         }
-        // 这里检查有误我只是警告了一下
-        if(logsChecksum != this.logsChecksum){
-            Log.logWarningMessage(WarningMessage.LOG_CHECKSUM_ERROR);
+        if(this.logFileLocationPointer < this.logFileOriginLength){
+            Log.logInfo(Log.concatMessage(InfoMessage.LOG_BAD_TAIL_TRUNCATED,
+                    String.valueOf(this.logFileOriginLength - this.logFileLocationPointer)));
         }
+        // 截断之前丢掉覆盖了尾部的映射窗口，之后也不会再访问截断位置之后的数据
+        this.readWindow = ByteBuffer.allocate(0);
+        this.readWindowStartPosition = 0;
         this.truncate(this.logFileLocationPointer);
         FileManager.seekRandomAccessFile(this.logFile, this.logFileLocationPointer);
+        this.logFileOriginLength = this.logFileLocationPointer;
         rewind();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 根据种子计算校验和
+     * @Description: 校验 position 处的日志，保证整条日志都在映射窗口中，返回完整日志长度
+     * 到达末尾或者日志不完整、校验和不对、LSN 对不上时返回 -1，不移动日志文件位置指针
      */
-    private int calculateChecksum(int logChecksum, byte[] log){
-        for(byte littleData : log){
-            logChecksum = logChecksum * LoggerSetting.LOGGER_SEED + littleData;
+    private int internalReadLog(long position) throws ErrorException, WarningException {
+        // 先看有没有下一条日志的头部
+        if(!this.mapReadWindow(position, LoggerSetting.LOGGER_LOG_DATA_OFFSET)){
+            return -1;
+        }
+        int nextLogSize = this.readWindow.getInt((int) (position - this.readWindowStartPosition) + LoggerSetting.LOGGER_LOG_SIZE_OFFSET);
+        // 再在当前文件指针位置加上下一条完整日志长度，看有没有数据
+        if(nextLogSize < 0 || nextLogSize > this.logFileOriginLength - position - LoggerSetting.LOGGER_LOG_DATA_OFFSET){
+            return -1;
+        }
+        int nextLogLength = LoggerSetting.LOGGER_LOG_DATA_OFFSET + nextLogSize;
+        if(!this.mapReadWindow(position, nextLogLength)){
+            return -1;
         }
-        return logChecksum;
+        ByteBuffer log = this.sliceReadWindow(position, nextLogLength);
+        if(log.getLong(LoggerSetting.LOGGER_LOG_LSN_OFFSET) != position){
+            return -1;
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(log.duplicate().position(LoggerSetting.LOGGER_LOG_DATA_OFFSET));
+        this.updateHeaderChecksum(checksum, log);
+        // 计算值和读取值比较
+        if((int) checksum.getValue() != log.getInt(LoggerSetting.LOGGER_LOG_CHECKSUM_OFFSET)){
+            return -1;
+        }
+        return nextLogLength;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 内部读取下一条完整日志的封装
+     * @Description: 保证文件中 [position, position + length) 的数据都在映射窗口中，文件长度不够时返回 false
+     * 窗口按 LOG_READ_MAP_WINDOW_SIZE 从 position 开始重新映射，日志再大也至少映射整条
      */
-    private byte[] internalReadNextLog() throws ErrorException, WarningException {
-        // 先看有没有下一条日志的大小记录
-        if(this.logFileLocationPointer + LoggerSetting.LOGGER_LOG_DATA_OFFSET >= this.logFileOriginLength){
-            return null;
+    private boolean mapReadWindow(long position, int length) throws ErrorException {
+        if(position + length > this.logFileOriginLength){
+            return false;
         }
-        ByteBuffer nextLogSizeBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_LOG_SIZE_LENGTH);
-        FileManager.readByteDataIntoFileChannel(this.logFileChannel, this.logFileLocationPointer, nextLogSizeBuffer);
-        int nextLogSize = ByteParser.parseBytesToInt(nextLogSizeBuffer.array());
-        // 再在当前文件指针位置加上下一条完整日志长度，看有没有数据
-        if(this.logFileLocationPointer + LoggerSetting.LOGGER_LOG_DATA_OFFSET + nextLogSize > this.logFileOriginLength){
-            Log.logWarningMessage(WarningMessage.LOG_FILE_MAYBE_ERROR);
-            return null;
-        }
-        ByteBuffer nextLogBuffer = ByteBuffer.allocate(LoggerSetting.LOGGER_LOG_DATA_OFFSET + nextLogSize);
-        FileManager.readByteDataIntoFileChannel(this.logFileChannel, this.logFileLocationPointer, nextLogBuffer);
-        // 拿到下一条完整日志
-        byte[] nextLog = nextLogBuffer.array();
-        byte[] nextLogChecksumBytes = this.getLogCheckSumBytesFromLog(nextLog);
-        byte[] nextLogData = this.getLogDataFromLog(nextLog);
-        int nextLogChecksumCalculated = calculateChecksum(0, nextLogData);
-        int nextLogChecksumRead = ByteParser.parseBytesToInt(nextLogChecksumBytes);
-        // 计算值和读取值比较
-        if(nextLogChecksumCalculated != nextLogChecksumRead){
-            Log.logWarningMessage(WarningMessage.LOG_CHECKSUM_ERROR);
-            return null;
+        if(position >= this.readWindowStartPosition
+                && position + length <= this.readWindowStartPosition + this.readWindow.limit()){
+            return true;
         }
-        this.logFileLocationPointer += nextLog.length;
-        return nextLog;
+        long windowSize = Math.max(length, Math.min(LoggerSetting.LOG_READ_MAP_WINDOW_SIZE, this.logFileOriginLength - position));
+        this.readWindow = FileManager.mapFileChannelReadOnly(this.logFileChannel, position, windowSize);
+        this.readWindowStartPosition = position;
+        return true;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 将日志数据封装成完整数据返回
+     * @Description: 从映射窗口中切出一段，不复制数据
      */
-    private byte[] wrapDataBytesToLog(byte[] logData){
-        byte[] size = ByteParser.intToBytes(logData.length);
-        byte[] checksum = ByteParser.intToBytes(this.calculateChecksum(0, logData));
-        return Bytes.concat(size, checksum, logData);
+    private ByteBuffer sliceReadWindow(long position, int length){
+        int start = (int) (position - this.readWindowStartPosition);
+        ByteBuffer slice = this.readWindow.duplicate();
+        slice.limit(start + length).position(start);
+        return slice.slice();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 从日志中获取校验和字节形式的封装
+     * @Description: 已经校验过的日志的数据部分只读视图
      */
-    private byte[] getLogCheckSumBytesFromLog(byte[] log){
-        return Arrays.copyOfRange(log, LoggerSetting.LOGGER_LOG_CHECKSUM_OFFSET, LoggerSetting.LOGGER_LOG_DATA_OFFSET);
+    private ByteBuffer buildLogDataView(long position, int logLength){
+        return this.sliceReadWindow(position + LoggerSetting.LOGGER_LOG_DATA_OFFSET, logLength - LoggerSetting.LOGGER_LOG_DATA_OFFSET)
+                .asReadOnlyBuffer();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 从日志中获取数据字节形式的封装
+     * @Description: 校验和在数据之后再覆盖 Size 和 LSN，写和读两边顺序一致
      */
-    private byte[] getLogDataFromLog(byte[] log){
-        return Arrays.copyOfRange(log, LoggerSetting.LOGGER_LOG_DATA_OFFSET, log.length);
+    private void updateHeaderChecksum(CRC32C checksum, ByteBuffer log){
+        checksum.update(log.duplicate().position(LoggerSetting.LOGGER_LOG_SIZE_OFFSET).limit(LoggerSetting.LOGGER_LOG_SIZE_LENGTH));
+        checksum.update(log.duplicate().position(LoggerSetting.LOGGER_LOG_LSN_OFFSET).limit(LoggerSetting.LOGGER_LOG_DATA_OFFSET));
     }
 
 }
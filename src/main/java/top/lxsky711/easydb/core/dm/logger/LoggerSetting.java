@@ -9,15 +9,36 @@ import top.lxsky711.easydb.common.data.DataSetting;
 
 public class LoggerSetting {
 
-    // 用于计算日志校验和的种子
-    public static final int LOGGER_SEED = 711;
-
     public static final int LOGGER_HEADER_OFFSET = 0;
 
-    public static final int LOGGER_HEADER_LENGTH = 4;
+    // 日志头中记录最近一次检查点日志的位置，0 表示还没有检查点
+    public static final int LOGGER_CHECKPOINT_OFFSET = LOGGER_HEADER_OFFSET;
+
+    public static final int LOGGER_CHECKPOINT_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    public static final int LOGGER_HEADER_LENGTH = LOGGER_CHECKPOINT_LENGTH;
 
     public static final int LOGGER_LOG_OFFSET = LOGGER_HEADER_OFFSET + LOGGER_HEADER_LENGTH;
 
+    public static final long LOGGER_NO_CHECKPOINT = 0;
+
+    // 组提交: 缓冲区中积累到这么多字节时，刷盘的 leader 不再等待，立即写出
+    public static final int LOG_GROUP_COMMIT_MAX_BATCH_BYTES = 256 * 1024;
+
+    // 组提交: 刷盘的 leader 最多等待这么久(微秒)，让并发写日志的线程把记录攒进同一批，0 表示不等待
+    public static final long LOG_GROUP_COMMIT_FLUSH_INTERVAL_MICROS = 200;
+
+    // 日志追加缓冲区初始大小
+    public static final int LOG_APPEND_BUFFER_INIT_SIZE = 64 * 1024;
+
+    // 检查点间隔(毫秒)
+    public static final long CHECKPOINT_INTERVAL_MILLIS = 30 * 1000;
+
+    public static final String CHECKPOINT_THREAD_NAME = "easydb-checkpointer";
+
+    // 关闭时等待检查点线程结束的时间(秒)
+    public static final long CHECKPOINT_SHUTDOWN_WAIT_SECONDS = 30;
+
     public static final int LOGGER_LOG_SIZE_OFFSET = 0;
 
     public static final int LOGGER_LOG_SIZE_LENGTH = 4;
@@ -25,7 +46,16 @@ public class LoggerSetting {
     public static final int LOGGER_LOG_CHECKSUM_OFFSET = LOGGER_LOG_SIZE_OFFSET + LOGGER_LOG_SIZE_LENGTH;
 
     public static final int LOGGER_LOG_CHECKSUM_LENGTH = 4;
-    public static final int LOGGER_LOG_DATA_OFFSET = LOGGER_LOG_CHECKSUM_OFFSET + LOGGER_LOG_CHECKSUM_LENGTH;
+
+    // 每条日志都记录自己的 LSN(即日志在文件中的位置)，用来识别残留的旧数据
+    public static final int LOGGER_LOG_LSN_OFFSET = LOGGER_LOG_CHECKSUM_OFFSET + LOGGER_LOG_CHECKSUM_LENGTH;
+
+    public static final int LOGGER_LOG_LSN_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    public static final int LOGGER_LOG_DATA_OFFSET = LOGGER_LOG_LSN_OFFSET + LOGGER_LOG_LSN_LENGTH;
+
+    // 读取日志时每次映射到内存的文件窗口大小，日志文件再大也只按窗口滑动映射
+    public static final long LOG_READ_MAP_WINDOW_SIZE = 64L * 1024 * 1024;
 
     public static final String LOGGER_FILE_SUFFIX = ".log";
 
@@ -33,8 +63,30 @@ public class LoggerSetting {
 
     public static final byte LOG_TYPE_UPDATE = 2;
 
+    // 检查点日志，页号字段记录写检查点时的总页数
+    public static final byte LOG_TYPE_CHECKPOINT = 3;
+
+    // 事务状态日志，GROUP、ASYNC 提交模式下事务状态随日志落盘，页号字段为 0
+    public static final byte LOG_TYPE_COMMIT = 4;
+
+    public static final byte LOG_TYPE_ABORT = 5;
+
+    // 页面整理日志，以超级事务写入，只重做不撤销，数据部分是整理后发生变化的页面片段
+    public static final byte LOG_TYPE_COMPACT = 6;
+
+    // ASYNC 提交模式下，后台把事务状态日志刷盘的间隔(毫秒)
+    public static final long LOG_ASYNC_COMMIT_FLUSH_INTERVAL_MILLIS = 20;
+
     public static final int REDO = 3;
 
+    // 恢复时重做、撤销的工作线程数
+    public static final int RECOVER_WORKER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // 每个重做工作线程待处理日志队列的容量，扫描日志的线程在队列满时等待
+    public static final int RECOVER_REDO_QUEUE_CAPACITY = 4096;
+
+    public static final String RECOVER_THREAD_NAME = "easydb-recover-worker";
+
     public static final int UNDO = 4;
 
     // 插入日志
@@ -48,6 +100,11 @@ public class LoggerSetting {
 
         public short offset;
 
+        // 这批数据登记的槽位，以及每条数据在页面中的偏移量
+        public short[] slots;
+
+        public short[] offsets;
+
         public byte[] data;
     }
 
@@ -60,6 +117,10 @@ public class LoggerSetting {
 
         public int pageNumber;
 
+        // 数据的槽位，撤销时按槽位找到数据当前的偏移量
+        public short slot;
+
+        // 写日志时数据在页面中的偏移量，重做时使用
         public short offset;
 
         public byte[] oldData;
@@ -85,6 +146,16 @@ public class LoggerSetting {
 
     public static final int LOG_DATA_OFFSET = LOG_OFFSET_OFFSET + LOG_OFFSET_LENGTH;
 
+    // 插入日志的数据部分：[数据条数 2][槽位 2, 偏移量 2]...[数据]，偏移量字段记录数据的起始偏移量
+    public static final int INSERT_LOG_RECORD_NUMBER_LENGTH = DataSetting.SHORT_BYTE_SIZE;
+
+    public static final int INSERT_LOG_SLOT_LENGTH = DataSetting.SHORT_BYTE_SIZE;
+
+    public static final int INSERT_LOG_RECORD_OFFSET_LENGTH = DataSetting.SHORT_BYTE_SIZE;
+
+    // 更新日志的偏移量字段记录槽位，数据部分：[数据偏移量 2][旧数据][新数据]
+    public static final int UPDATE_LOG_RECORD_OFFSET_LENGTH = DataSetting.SHORT_BYTE_SIZE;
+
     /* 因为两种日志的结构差别不大，所以 偏移量就设为共用
 
     public static final int INSET_LOG_TYPE_OFFSET = 0;
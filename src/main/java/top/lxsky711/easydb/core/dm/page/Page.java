@@ -23,6 +23,12 @@ public interface Page {
      */
     void unlock();
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 尝试加锁，页面锁被占用时立即返回 false
+     */
+    boolean tryLock();
+
     /**
      * @Author: 711lxsky
      * @Description: 释放页面缓存
@@ -52,4 +58,36 @@ public interface Page {
      * @Description: 获取页面数据的字节形式的原始数据
      */
     byte[] getPageData();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 页面最近一次修改的日志位置，页面写回之前这条日志必须已经落盘
+     */
+    long getLsn();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 追加了修改页面的日志之后记下日志位置，只会向后推进，调用方持有页面锁
+     */
+    void updateLsn(long lsn);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 登记一条正在修改、还没有写日志的数据，offset 是数据在页面中的位置，oldData 是修改前的数据
+     * 调用方持有页面锁
+     */
+    void addModifyingData(int offset, byte[] oldData);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 数据修改完成(已经追加日志)或撤销后取消登记，调用方持有页面锁
+     */
+    void removeModifyingData(int offset);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 拷贝页面数据用于写回，正在修改的数据换回修改前的内容，拷贝中只有已经写了日志的修改
+     * 调用方持有页面锁
+     */
+    byte[] copyLoggedData();
 }
@@ -4,6 +4,8 @@ import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.core.dm.pageCache.PageCache;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -27,8 +29,9 @@ public class PageImpl implements Page{
     /**
      *  脏状态标记
      * 脏的话意味着缓存中的数据和内存/持久层中的数据不一致，缓存驱逐时务必写回
+     * 标记为脏时会同时登记到页面缓存的脏页集合中，由后台刷盘线程写回
      */
-    private boolean dirtyStatus;
+    private volatile boolean dirtyStatus;
 
     /**
      * 页面缓存
@@ -40,11 +43,24 @@ public class PageImpl implements Page{
      */
     private final Lock lock;
 
+    /**
+     * 页面最近一次修改的日志位置，写回页面之前先让日志落盘到这里
+     */
+    private volatile long lsn;
+
+    /**
+     * 正在修改、还没有写日志的数据，页内偏移量 -> 修改前的数据，由页面锁保护
+     * DataItem 的修改在页面锁之外进行，写回时用修改前的数据代替，避免把没有日志的修改写进文件
+     */
+    private final Map<Integer, byte[]> modifyingData;
+
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pageCache = pc;
         this.lock = new ReentrantLock();
+        this.lsn = PageSetting.PAGE_LSN_NONE;
+        this.modifyingData = new HashMap<>();
     }
 
     @Override
@@ -57,6 +73,11 @@ public class PageImpl implements Page{
         this.lock.unlock();
     }
 
+    @Override
+    public boolean tryLock() {
+        return this.lock.tryLock();
+    }
+
     @Override
     public void releaseOneReference() throws WarningException, ErrorException {
         this.pageCache.releaseOneReference(this);
@@ -65,6 +86,9 @@ public class PageImpl implements Page{
     @Override
     public void setDirtyStatus(Boolean status) {
         this.dirtyStatus = status;
+        if(status && this.pageCache != null){
+            this.pageCache.markPageDirty(this);
+        }
     }
 
     @Override
@@ -81,4 +105,35 @@ public class PageImpl implements Page{
     public byte[] getPageData() {
         return this.data;
     }
+
+    @Override
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    @Override
+    public void updateLsn(long lsn) {
+        if(lsn > this.lsn){
+            this.lsn = lsn;
+        }
+    }
+
+    @Override
+    public void addModifyingData(int offset, byte[] oldData) {
+        this.modifyingData.put(offset, oldData);
+    }
+
+    @Override
+    public void removeModifyingData(int offset) {
+        this.modifyingData.remove(offset);
+    }
+
+    @Override
+    public byte[] copyLoggedData() {
+        byte[] loggedData = this.data.clone();
+        for(Map.Entry<Integer, byte[]> modifying : this.modifyingData.entrySet()){
+            System.arraycopy(modifying.getValue(), 0, loggedData, modifying.getKey(), modifying.getValue().length);
+        }
+        return loggedData;
+    }
 }
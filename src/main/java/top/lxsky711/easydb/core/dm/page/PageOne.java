@@ -32,8 +32,8 @@ public class PageOne {
      * @Description: 打开页面时设置校验码
      */
     public static void setVCWithPageOpen(Page page){
-        page.setDirtyStatus(true);
         setVCWithPageDataOpen(page.getPageData());
+        page.setDirtyStatus(true);
     }
 
 
@@ -53,8 +53,8 @@ public class PageOne {
      * @Description: 关闭页面时设置校验码
      */
     public static void setVCWithPageClose(Page page){
-        page.setDirtyStatus(true);
         setVCWithPageDataClose(page.getPageData());
+        page.setDirtyStatus(true);
     }
 
     /**
@@ -1,5 +1,7 @@
 package top.lxsky711.easydb.core.dm.page;
 
+import top.lxsky711.easydb.core.common.CacheSetting;
+
 /**
  * @Author: 711lxsky
  * @Description: 针对Page的一些配置
@@ -22,21 +24,63 @@ public class PageSetting {
     // 页面缓存最小数量
     public static final int PAGE_CACHE_MIN_SIZE = 8;
 
+    // 后台刷盘线程的刷盘间隔(毫秒)
+    public static final long PAGE_FLUSH_INTERVAL_MILLIS = 200;
+
+    // 后台刷盘线程名
+    public static final String PAGE_FLUSHER_THREAD_NAME = "easydb-page-flusher";
+
+    // 关闭时等待刷盘线程结束的时间(秒)
+    public static final long PAGE_FLUSHER_SHUTDOWN_WAIT_SECONDS = 10;
+
+    // 单批刷盘最多持有文件锁写入的页面数
+    public static final int PAGE_FLUSH_BATCH_MAX_PAGES = 256;
+
+    // 页面缓存默认置换策略
+    public static final String PAGE_CACHE_REPLACEMENT_POLICY = CacheSetting.REPLACEMENT_POLICY_CLOCK;
+
     // 第一页的有效检查偏移量
     public static final int PAGE_ONE_VALID_CHECK_OFFSET = 100;
 
     // 第一页的有效检查长度
     public static final int PAGE_ONE_VALID_CHECK_LENGTH = 8;
 
-    // 普通页的头部偏移量， 这个头部用以记录当前页的空闲位置偏移
+    // 普通页的头部偏移量， 头部的第一项记录当前页的空闲位置偏移
     public static final short PAGE_X_HEADER_OFFSET = 0;
 
+    // 空闲位置偏移的长度
+    public static final short PAGE_X_FREE_SPACE_OFFSET_LENGTH = 2;
+
+    // 槽位数量的偏移量，槽位目录从页尾向前增长
+    public static final short PAGE_X_SLOT_NUMBER_OFFSET = PAGE_X_HEADER_OFFSET + PAGE_X_FREE_SPACE_OFFSET_LENGTH;
+
+    public static final short PAGE_X_SLOT_NUMBER_LENGTH = 2;
+
+    // 空闲槽位数量的偏移量，只是提示，为 0 时插入不扫描槽位目录
+    public static final short PAGE_X_FREE_SLOT_NUMBER_OFFSET = PAGE_X_SLOT_NUMBER_OFFSET + PAGE_X_SLOT_NUMBER_LENGTH;
+
+    public static final short PAGE_X_FREE_SLOT_NUMBER_LENGTH = 2;
+
     // 普通页的头部长度
-    public static final short PAGE_X_HEADER_LENGTH = 2;
+    public static final short PAGE_X_HEADER_LENGTH = PAGE_X_FREE_SLOT_NUMBER_OFFSET + PAGE_X_FREE_SLOT_NUMBER_LENGTH;
+
+    // 每个槽位记录一条数据在页面中的偏移量
+    public static final short PAGE_X_SLOT_LENGTH = 2;
 
-    // 普通页的最大空闲空间
+    // 空闲槽位记录的偏移量，数据不会从页头开始
+    public static final short PAGE_X_SLOT_FREE = 0;
+
+    // 普通页的最大空闲空间，插入一条数据除了数据本身还要占用一个槽位
     public static final int PAGE_X_MAX_FREE_SPACE = PAGE_SIZE - PAGE_X_HEADER_LENGTH;
 
+    // 页面整理日志由多个片段组成，每个片段：[片段偏移量 2][片段长度 2][片段数据]
+    public static final int PAGE_X_SEGMENT_OFFSET_LENGTH = 2;
+
+    public static final int PAGE_X_SEGMENT_LENGTH_LENGTH = 2;
+
+    // 页面还没有写过日志的修改(刚从文件读出、新建或者只在恢复中修改过)，写回之前不需要刷日志
+    public static final long PAGE_LSN_NONE = -1L;
+
     // 页面文件后缀
     public static final String PAGE_FILE_SUFFIX = ".pg";
 
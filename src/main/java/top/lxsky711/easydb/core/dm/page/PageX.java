@@ -1,17 +1,25 @@
 package top.lxsky711.easydb.core.dm.page;
 
+import com.google.common.primitives.Bytes;
 import top.lxsky711.easydb.common.data.ByteParser;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
 
 /**
  * @Author: 711lxsky
- * @Description: 普通页面
- * 结构： [页头][存储数据]
- * 页头是个2字节的无符号整形，记录了当前页的空闲空间的偏移量
+ * @Description: 普通页面，槽位页结构
+ * 结构： [页头][存储数据 -> ... 空闲空间 ... <- 槽位目录]
+ * 页头：[空闲空间偏移量 2][槽位数量 2][空闲槽位数量 2]，都是2字节的无符号整形
+ * 数据从页头之后向后追加，槽位目录从页尾向前增长，第 i 个槽位记录第 i 条数据在页面中的偏移量，0 表示槽位空闲
+ * 上层通过 (页号, 槽位) 定位数据，页面整理时数据在页内移动，只需要修改槽位，数据的定位不变
  */
 
 public class PageX {
@@ -28,38 +36,206 @@ public class PageX {
 
     /**
      * @Author: 711lxsky
-     * @Description: 将数据插入到页面中，并返回数据的偏移量
+     * @Description: 为 number 条数据选择槽位，先复用空闲槽位，不够时在槽位目录末尾新增，这里只选择，不修改页面
      */
-    public static short insertDataIntoPage(Page page, byte[] data) throws WarningException {
-        if(data.length > getFreeSpaceForPage(page)){
+    public static short[] selectSlots(Page page, int number){
+        byte[] pageData = page.getPageData();
+        short slotNumber = getShortFromPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET);
+        short[] slots = new short[number];
+        int selected = 0;
+        if(getShortFromPageData(pageData, PageSetting.PAGE_X_FREE_SLOT_NUMBER_OFFSET) > 0){
+            for(short slot = 0; slot < slotNumber && selected < number; slot ++){
+                if(getSlotOffsetFromPageData(pageData, slot) == PageSetting.PAGE_X_SLOT_FREE){
+                    slots[selected ++] = slot;
+                }
+            }
+        }
+        while(selected < number){
+            slots[selected ++] = slotNumber ++;
+        }
+        return slots;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 将数据插入到页面的空闲空间偏移量处，数据中可以连续存放多条记录，
+     * 第 i 条记录的偏移量 offsets[i] 登记到槽位 slots[i] 上
+     */
+    public static void insertDataIntoPage(Page page, byte[] data, short[] slots, short[] offsets) throws WarningException {
+        byte[] pageData = page.getPageData();
+        short slotNumber = getShortFromPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET);
+        int newSlotNumber = slotNumber;
+        for(short slot : slots){
+            newSlotNumber = Math.max(newSlotNumber, slot + 1);
+        }
+        if(data.length + (newSlotNumber - slotNumber) * PageSetting.PAGE_X_SLOT_LENGTH > getFreeSpaceForPage(page)){
             Log.logWarningMessage(WarningMessage.PAGE_FREE_SPACE_NOT_ENOUGH);
         }
-        page.setDirtyStatus(true);
         short offset = getFreeSpaceOffsetFromPage(page);
         System.arraycopy(data, 0,
-                page.getPageData(), offset,
+                pageData, offset,
                 data.length);
-        setFreeSpaceOffsetIntoPage(page.getPageData(), (short)(offset + data.length));
-        return offset;
+        setSlotsIntoPage(pageData, slots, offsets);
+        setFreeSpaceOffsetIntoPage(pageData, (short)(offset + data.length));
+        // 修改完成之后再标记脏页，保证刷盘线程拿到的是修改后的数据或者会再次刷盘
+        page.setDirtyStatus(true);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 登记槽位，复用空闲槽位时减少空闲槽位数量，超出槽位数量时扩大槽位目录
+     */
+    private static void setSlotsIntoPage(byte[] pageData, short[] slots, short[] offsets){
+        short slotNumber = getShortFromPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET);
+        short freeSlotNumber = getShortFromPageData(pageData, PageSetting.PAGE_X_FREE_SLOT_NUMBER_OFFSET);
+        short newSlotNumber = slotNumber;
+        for(int i = 0; i < slots.length; i ++){
+            if(slots[i] < slotNumber && getSlotOffsetFromPageData(pageData, slots[i]) == PageSetting.PAGE_X_SLOT_FREE && freeSlotNumber > 0){
+                freeSlotNumber --;
+            }
+            setShortIntoPageData(pageData, getSlotPosition(slots[i]), offsets[i]);
+            newSlotNumber = (short) Math.max(newSlotNumber, slots[i] + 1);
+        }
+        setShortIntoPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET, newSlotNumber);
+        setShortIntoPageData(pageData, PageSetting.PAGE_X_FREE_SLOT_NUMBER_OFFSET, freeSlotNumber);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取槽位上数据在页面中的偏移量，槽位空闲或者不存在时返回 PAGE_X_SLOT_FREE
+     */
+    public static short getSlotOffset(Page page, short slot){
+        byte[] pageData = page.getPageData();
+        if(slot < 0 || slot >= getShortFromPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET)){
+            return PageSetting.PAGE_X_SLOT_FREE;
+        }
+        return getSlotOffsetFromPageData(pageData, slot);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取页面的槽位数量
+     */
+    public static short getSlotNumber(Page page){
+        return getShortFromPageData(page.getPageData(), PageSetting.PAGE_X_SLOT_NUMBER_OFFSET);
+    }
+
+    private static short getSlotOffsetFromPageData(byte[] pageData, short slot){
+        return getShortFromPageData(pageData, getSlotPosition(slot));
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 槽位在页面中的位置，槽位目录从页尾向前增长
+     */
+    private static int getSlotPosition(short slot){
+        return PageSetting.PAGE_SIZE - (slot + 1) * PageSetting.PAGE_X_SLOT_LENGTH;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 整理页面，释放 freeSlots 中的槽位，把其余数据依次向前移动，合并出连续的空闲空间
+     * pinnedSlots 中的数据正在被使用，原地不动，移动的数据只会填到它们之前的空隙里
+     * 数据的长度由 recordLength 按数据偏移量读出
+     * 整理在页面副本上进行，不修改页面，返回整理日志的数据：发生变化的页头、移动后的数据和槽位目录
+     * 由调用方写完日志之后再用 applyCompaction 应用到页面上
+     */
+    public static byte[] buildCompaction(Page page, Set<Short> freeSlots, Set<Short> pinnedSlots, IntUnaryOperator recordLength){
+        byte[] compactedData = page.getPageData().clone();
+        short slotNumber = getShortFromPageData(compactedData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET);
+        // 还在使用的槽位，[槽位, 偏移量]，按偏移量排序
+        List<short[]> usedSlots = new ArrayList<>();
+        for(short slot = 0; slot < slotNumber; slot ++){
+            short offset = getSlotOffsetFromPageData(compactedData, slot);
+            if(offset == PageSetting.PAGE_X_SLOT_FREE){
+                continue;
+            }
+            if(freeSlots.contains(slot)){
+                setShortIntoPageData(compactedData, getSlotPosition(slot), PageSetting.PAGE_X_SLOT_FREE);
+                continue;
+            }
+            usedSlots.add(new short[]{slot, offset});
+        }
+        usedSlots.sort(Comparator.comparingInt(usedSlot -> usedSlot[1]));
+        List<byte[]> segments = new ArrayList<>();
+        int writeOffset = PageSetting.PAGE_X_HEADER_LENGTH;
+        // 正在累积的连续移动区域
+        int movedStart = writeOffset;
+        for(short[] usedSlot : usedSlots){
+            int offset = usedSlot[1];
+            int length = recordLength.applyAsInt(offset);
+            if(offset == writeOffset || pinnedSlots.contains(usedSlot[0])){
+                addSegment(segments, compactedData, movedStart, writeOffset);
+                writeOffset = offset + length;
+                movedStart = writeOffset;
+                continue;
+            }
+            System.arraycopy(compactedData, offset, compactedData, writeOffset, length);
+            setShortIntoPageData(compactedData, getSlotPosition(usedSlot[0]), (short) writeOffset);
+            writeOffset += length;
+        }
+        addSegment(segments, compactedData, movedStart, writeOffset);
+        setFreeSpaceOffsetIntoPage(compactedData, (short) writeOffset);
+        // 去掉槽位目录末尾的空闲槽位
+        short newSlotNumber = slotNumber;
+        while(newSlotNumber > 0 && getSlotOffsetFromPageData(compactedData, (short)(newSlotNumber - 1)) == PageSetting.PAGE_X_SLOT_FREE){
+            newSlotNumber --;
+        }
+        setShortIntoPageData(compactedData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET, newSlotNumber);
+        setShortIntoPageData(compactedData, PageSetting.PAGE_X_FREE_SLOT_NUMBER_OFFSET, (short)(newSlotNumber - usedSlots.size()));
+        addSegment(segments, compactedData, PageSetting.PAGE_X_HEADER_OFFSET, PageSetting.PAGE_X_HEADER_LENGTH);
+        addSegment(segments, compactedData, getSlotPosition((short)(newSlotNumber - 1)), PageSetting.PAGE_SIZE);
+        return Bytes.concat(segments.toArray(new byte[0][]));
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把页面数据中 [start, end) 的部分包裹成整理日志的一个片段
+     */
+    private static void addSegment(List<byte[]> segments, byte[] pageData, int start, int end){
+        if(start >= end){
+            return;
+        }
+        segments.add(Bytes.concat(ByteParser.shortToBytes((short) start),
+                ByteParser.shortToBytes((short)(end - start)),
+                Arrays.copyOfRange(pageData, start, end)));
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 应用页面整理，依次写入整理日志中的各个片段，正常整理和重做都使用
+     */
+    public static void applyCompaction(Page page, byte[] compactionData){
+        byte[] pageData = page.getPageData();
+        int position = 0;
+        while(position < compactionData.length){
+            short segmentOffset = getShortFromPageData(compactionData, position);
+            position += PageSetting.PAGE_X_SEGMENT_OFFSET_LENGTH;
+            short segmentLength = getShortFromPageData(compactionData, position);
+            position += PageSetting.PAGE_X_SEGMENT_LENGTH_LENGTH;
+            System.arraycopy(compactionData, position, pageData, segmentOffset, segmentLength);
+            position += segmentLength;
+        }
+        page.setDirtyStatus(true);
+    }
+
+
     /**
      * @Author: 711lxsky
      * @Description: 设置页面的空闲空间偏移量
      */
     private static void setFreeSpaceOffsetIntoPage(byte[] pageData, short freeSpaceOffset){
-        byte[] fso = ByteParser.shortToBytes(freeSpaceOffset);
-        System.arraycopy(fso, 0,
-                pageData, PageSetting.PAGE_X_HEADER_OFFSET,
-                PageSetting.PAGE_X_HEADER_LENGTH);
+        setShortIntoPageData(pageData, PageSetting.PAGE_X_HEADER_OFFSET, freeSpaceOffset);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 获取页面的空闲空间大小
+     * @Description: 获取页面的空闲空间大小，页头、数据和槽位目录之外的部分
      */
     public static int getFreeSpaceForPage(Page page){
-        return PageSetting.PAGE_SIZE - (int)getFreeSpaceOffsetFromPage(page);
+        byte[] pageData = page.getPageData();
+        return PageSetting.PAGE_SIZE - (int)getFreeSpaceOffsetFromPageData(pageData)
+                - getShortFromPageData(pageData, PageSetting.PAGE_X_SLOT_NUMBER_OFFSET) * PageSetting.PAGE_X_SLOT_LENGTH;
     }
 
     /**
@@ -75,28 +251,37 @@ public class PageX {
      * @Description: 从页面数据中获取空闲空间偏移量
      */
     private static short getFreeSpaceOffsetFromPageData(byte[] pageData){
-        return ByteParser.parseBytesToShort(
-                Arrays.copyOfRange(pageData, PageSetting.PAGE_X_HEADER_OFFSET,
-                        PageSetting.PAGE_X_HEADER_OFFSET + PageSetting.PAGE_X_HEADER_LENGTH));
+        return getShortFromPageData(pageData, PageSetting.PAGE_X_HEADER_OFFSET);
+    }
+
+    private static short getShortFromPageData(byte[] pageData, int position){
+        return ByteParser.parseBytesToShort(Arrays.copyOfRange(pageData, position, position + Short.BYTES));
+    }
+
+    private static void setShortIntoPageData(byte[] pageData, int position, short value){
+        System.arraycopy(ByteParser.shortToBytes(value), 0, pageData, position, Short.BYTES);
     }
 
 
     /*
-     * 下面两个方法用于在数据库崩溃后重新打开时，恢复插入数据以及修改数据
+     * 下面的方法用于在数据库崩溃后重新打开时，恢复插入数据以及修改数据
+     * 重做都按日志中记录的偏移量原样写入，撤销时数据可能已经被整理移动过，由调用方按槽位找到数据当前的偏移量
      */
 
     /**
      * @Author: 711lxsky
      * @Description: 恢复页面中的插入数据操作
      */
-    public static void recoverInsert(Page page, byte[] insertData, short offset){
-        page.setDirtyStatus(true);
-        System.arraycopy(insertData, 0, page.getPageData(), offset, insertData.length);
+    public static void recoverInsert(Page page, byte[] insertData, short offset, short[] slots, short[] offsets){
+        byte[] pageData = page.getPageData();
+        System.arraycopy(insertData, 0, pageData, offset, insertData.length);
+        setSlotsIntoPage(pageData, slots, offsets);
         short oldFreeSpaceOffset = getFreeSpaceOffsetFromPage(page);
         // 这里可能因为数据库发生过崩溃，导致数据没有插入，所以需要更新空闲空间偏移量
         if(oldFreeSpaceOffset < offset + insertData.length){
-            setFreeSpaceOffsetIntoPage(page.getPageData(), (short)(offset + insertData.length));
+            setFreeSpaceOffsetIntoPage(pageData, (short)(offset + insertData.length));
         }
+        page.setDirtyStatus(true);
     }
 
     /**
@@ -104,8 +289,8 @@ public class PageX {
      * @Description: 恢复页面中的更新数据操作
      */
     public static void recoverUpdate(Page page, byte[] updateData, short offset){
-        page.setDirtyStatus(true);
         System.arraycopy(updateData, 0, page.getPageData(), offset, updateData.length);
+        page.setDirtyStatus(true);
     }
 
 }
@@ -10,6 +10,8 @@ import top.lxsky711.easydb.core.dm.page.PageSetting;
 
 import java.io.File;
 import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -29,7 +31,7 @@ public interface PageCache {
     /**
      * @Author: 711lxsky
      * @Description: 新建一个页面到数据库文件，并放入需要存放的数据，返回页号
-     * 这里并没有自动放到缓存里
+     * 这里并没有自动放到缓存里，新页面先登记为脏页，由后台刷盘线程写入文件
      */
     int buildNewPageWithData(byte[] initData) throws WarningException, ErrorException;
 
@@ -59,9 +61,33 @@ public interface PageCache {
 
     /**
      * @Author: 711lxsky
-     * @Description: 关闭页面缓存，这里是基于RandomAccessFile实现，需要关闭资源
+     * @Description: 登记一个脏页，调用方需要在页面数据修改完成之后再登记
      */
-    void close() throws ErrorException;
+    void markPageDirty(Page page);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置写回页面之前刷日志的钩子，没有设置时(例如只用页面缓存、不写日志)直接写回
+     */
+    void setLogFlusher(PageLogFlusher logFlusher);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 拿到当前所有脏页的页号，检查点用它确定需要落盘的页面
+     */
+    List<Integer> getDirtyPageNumbers();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 将给定页号中仍然是脏页的页面按页号顺序写回，最后统一刷盘一次
+     */
+    void flushPages(Collection<Integer> pageNumbers) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 关闭页面缓存，先写回驻留的脏页，这里是基于RandomAccessFile实现，需要关闭资源
+     */
+    void close() throws ErrorException, WarningException;
 
     static PageCacheImpl create(String pageFileFullName, long memory) throws WarningException, ErrorException {
         File newFile = FileManager.createFile(pageFileFullName + PageSetting.PAGE_FILE_SUFFIX);
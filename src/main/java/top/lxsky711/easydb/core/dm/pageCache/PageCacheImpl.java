@@ -6,6 +6,7 @@ import top.lxsky711.easydb.common.file.FileManager;
 import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.common.AbstractCache;
+import top.lxsky711.easydb.core.common.ReplacementPolicy;
 import top.lxsky711.easydb.core.dm.page.Page;
 import top.lxsky711.easydb.core.dm.page.PageImpl;
 import top.lxsky711.easydb.core.dm.page.PageSetting;
@@ -13,6 +14,14 @@ import top.lxsky711.easydb.core.dm.page.PageSetting;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -20,6 +29,10 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * @Author: 711lxsky
  * @Description:  因为页面数据的数据源就是文件系统，所以数据的读写基于文件即可,包裹成Page
+ * 页面缓存工作在保留模式下，无引用的页面继续驻留，缓存满时由置换策略挑选页面写回并驱逐
+ * 脏页由后台刷盘线程成批写回，每批按页号排序、连续页合并写入，整批只刷盘一次
+ * 任何写回(刷盘线程、驱逐、检查点)都持有页面锁拷贝页面，并在写入文件之前让日志落盘到页面的日志位置；
+ * 拷贝中正在修改的数据换回修改前的内容，文件中不会出现日志里没有的修改
  */
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
@@ -45,8 +58,28 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
      */
     private final Lock pageFileLock;
 
+    /**
+     * 脏页集合，按页号排序，刷盘时可以按顺序合并成连续写
+     * 页面修改完成后登记到这里，刷盘线程和驱逐都以它为准判断页面是否需要写回
+     */
+    private final ConcurrentSkipListMap<Integer, Page> dirtyPages;
+
+    /**
+     * 后台刷盘线程
+     */
+    private final ScheduledExecutorService pageFlusher;
+
+    /**
+     * 写回页面之前刷日志，为 null 时不刷
+     */
+    private volatile PageLogFlusher logFlusher;
+
     public PageCacheImpl(RandomAccessFile raf, int maxResourceNum) throws WarningException, ErrorException {
-        super(maxResourceNum);
+        this(raf, maxResourceNum, ReplacementPolicy.buildPolicy(PageSetting.PAGE_CACHE_REPLACEMENT_POLICY));
+    }
+
+    public PageCacheImpl(RandomAccessFile raf, int maxResourceNum, ReplacementPolicy replacementPolicy) throws WarningException, ErrorException {
+        super(maxResourceNum, replacementPolicy);
         if(maxResourceNum < PageSetting.PAGE_CACHE_MIN_SIZE){
             Log.logWarningMessage(WarningMessage.PAGE_CACHE_RESOURCE_TOO_LESS);
         }
@@ -55,6 +88,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         this.pageFileChannel = raf.getChannel();
         this.pageFileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int) (pageDataFileLength / PageSetting.PAGE_SIZE));
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.pageFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread flusherThread = new Thread(runnable, PageSetting.PAGE_FLUSHER_THREAD_NAME);
+            flusherThread.setDaemon(true);
+            return flusherThread;
+        });
+        this.pageFlusher.scheduleWithFixedDelay(this::backgroundFlush,
+                PageSetting.PAGE_FLUSH_INTERVAL_MILLIS, PageSetting.PAGE_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
 
@@ -64,12 +105,12 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     }
 
     @Override
-    public int buildNewPageWithData(byte[] initData) throws WarningException, ErrorException {
+    public int buildNewPageWithData(byte[] initData) {
         // 文件中新增页面数据，页数自增
         int newPageNumber = this.pageNumbers.incrementAndGet();
-        Page newPage = new PageImpl(newPageNumber, initData, null);
-        // 数据刷到文件中去
-        this.flushPage(newPage);
+        Page newPage = new PageImpl(newPageNumber, initData, this);
+        // 登记为脏页，在写入文件之前从缓存加载时会直接拿到这个页面
+        newPage.setDirtyStatus(true);
         return newPageNumber;
     }
 
@@ -87,25 +128,61 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public void truncatePageWithMPageNum(int maxPageNumber) throws WarningException {
         long truncatedPageFileSize = getPageDataOffset(maxPageNumber + 1);
         FileManager.setFileNewLength(this.pageDataFile, truncatedPageFileSize);
+        this.pageNumbers.set(maxPageNumber);
     }
 
     @Override
     public void flushPage(Page page) throws WarningException, ErrorException {
-        int pageNumber = page.getPageNumber();
-        long pageDataOffset = getPageDataOffset(pageNumber);
-        ByteBuffer data = ByteBuffer.wrap(page.getPageData());
-        pageFileLock.lock();
-        try {
-            FileManager.writeByteDataIntoFileChannel(this.pageFileChannel, pageDataOffset, data);
-            FileManager.forceRefreshFileChannel(this.pageFileChannel, false);
+        this.writePage(page, true);
+        FileManager.forceRefreshFileChannel(this.pageFileChannel, false);
+    }
+
+    @Override
+    public void markPageDirty(Page page) {
+        this.dirtyPages.put(page.getPageNumber(), page);
+    }
+
+    @Override
+    public void setLogFlusher(PageLogFlusher logFlusher) {
+        this.logFlusher = logFlusher;
+    }
+
+    @Override
+    public List<Integer> getDirtyPageNumbers() {
+        return new ArrayList<>(this.dirtyPages.keySet());
+    }
+
+    @Override
+    public void flushPages(Collection<Integer> pageNumbers) throws WarningException, ErrorException {
+        List<Integer> sortedPageNumbers = new ArrayList<>(new TreeSet<>(pageNumbers));
+        List<Integer> lockedPageNumbers = new ArrayList<>();
+        for(int from = 0; from < sortedPageNumbers.size(); from += PageSetting.PAGE_FLUSH_BATCH_MAX_PAGES){
+            int to = Math.min(from + PageSetting.PAGE_FLUSH_BATCH_MAX_PAGES, sortedPageNumbers.size());
+            lockedPageNumbers.addAll(this.writeDirtyPageBatch(sortedPageNumbers.subList(from, to)));
         }
-        finally {
-            pageFileLock.unlock();    
+        // 成批写回时被占用的页面，在文件锁之外等到页面锁再单独写回
+        for(int pageNumber : lockedPageNumbers){
+            Page page = this.dirtyPages.get(pageNumber);
+            if(page != null){
+                this.writePage(page, false);
+            }
         }
+        // 整批只刷盘一次，驱逐时写入但未刷盘的页面也一并落盘
+        FileManager.forceRefreshFileChannel(this.pageFileChannel, false);
     }
 
     @Override
-    public void close() throws ErrorException {
+    public void close() throws ErrorException, WarningException {
+        this.pageFlusher.shutdown();
+        try {
+            this.pageFlusher.awaitTermination(PageSetting.PAGE_FLUSHER_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 驻留的脏页先写回
+        super.close();
+        // 还没有进入过缓存的新页面
+        this.flushPages(this.getDirtyPageNumbers());
         FileManager.closeFileAndChannel(this.pageFileChannel, this.pageDataFile);
     }
 
@@ -116,6 +193,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         ByteBuffer pageData = ByteBuffer.allocate(PageSetting.PAGE_SIZE);
         pageFileLock.lock();
         try {
+            // 还没写入文件的脏页(比如新建的页面)，直接使用内存中的页面
+            Page pendingPage = this.dirtyPages.get(pageNumber);
+            if(pendingPage != null){
+                return pendingPage;
+            }
             FileManager.readByteDataIntoFileChannel(this.pageFileChannel, pageDataOffset, pageData);
         }
         finally {
@@ -126,11 +208,134 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     @Override
     protected void releaseCacheForObject(Page page) throws WarningException, ErrorException {
-        if(page.isDirty()){
-            flushPage(page);
-            page.setDirtyStatus(false);
+        // 驱逐时只写入不刷盘，由下一次批量刷盘或检查点统一落盘
+        this.writePage(page, false);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 后台刷盘任务，不能让异常终止定时任务，记录下来等下一次刷盘再尝试
+     */
+    private void backgroundFlush() {
+        try {
+            if(! this.dirtyPages.isEmpty()){
+                this.flushPages(this.getDirtyPageNumbers());
+            }
+        } catch (WarningException | ErrorException | RuntimeException e) {
+            Log.logWarningWithoutThrow(Log.concatMessage(WarningMessage.PAGE_BACKGROUND_FLUSH_FAILED, String.valueOf(e.getMessage())));
         }
     }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 日志落盘到 lsn，页面没有写过日志的修改或者没有设置钩子时什么都不做
+     */
+    private void flushLogUpTo(long lsn) throws WarningException, ErrorException {
+        PageLogFlusher flusher = this.logFlusher;
+        if(lsn != PageSetting.PAGE_LSN_NONE && flusher != null){
+            flusher.flushLogUpTo(lsn);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 写回一个页面，force 为 true 时不管是否在脏页集合中都写回
+     * 加锁顺序为页面锁、文件锁，和持有页面锁时从文件加载其他页面的顺序一致
+     * 先按页面当前的日志位置刷一次日志，持有锁时通常就不需要再等日志落盘
+     */
+    private void writePage(Page page, boolean force) throws WarningException, ErrorException {
+        this.flushLogUpTo(page.getLsn());
+        page.lock();
+        try {
+            pageFileLock.lock();
+            try {
+                if(! this.dirtyPages.remove(page.getPageNumber(), page) && ! force){
+                    return;
+                }
+                page.setDirtyStatus(false);
+                byte[] pageData = page.copyLoggedData();
+                this.flushLogUpTo(page.getLsn());
+                this.writePageData(page.getPageNumber(), pageData);
+            }
+            finally {
+                pageFileLock.unlock();
+            }
+        }
+        finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在文件锁内将一批已排序页号中仍为脏页的页面写回，连续页号合并成一次写入
+     * 持有页面锁拷贝数据，拷贝时移出脏页集合，拷贝之后的修改会重新登记，不会丢失；所有拷贝的日志落盘之后才开始写入
+     * 文件锁内不能等待页面锁，页面锁被占用的页面不写，返回它们的页号由调用方单独写回
+     */
+    private List<Integer> writeDirtyPageBatch(List<Integer> sortedPageNumbers) throws WarningException, ErrorException {
+        long batchLsn = PageSetting.PAGE_LSN_NONE;
+        for(int pageNumber : sortedPageNumbers){
+            Page page = this.dirtyPages.get(pageNumber);
+            if(page != null){
+                batchLsn = Math.max(batchLsn, page.getLsn());
+            }
+        }
+        this.flushLogUpTo(batchLsn);
+        List<Integer> lockedPageNumbers = new ArrayList<>();
+        pageFileLock.lock();
+        try {
+            List<Integer> copiedPageNumbers = new ArrayList<>();
+            List<byte[]> copiedPageData = new ArrayList<>();
+            long copiedLsn = PageSetting.PAGE_LSN_NONE;
+            for(int pageNumber : sortedPageNumbers){
+                Page page = this.dirtyPages.get(pageNumber);
+                if(page == null){
+                    continue;
+                }
+                if(! page.tryLock()){
+                    lockedPageNumbers.add(pageNumber);
+                    continue;
+                }
+                try {
+                    if(! this.dirtyPages.remove(pageNumber, page)){
+                        continue;
+                    }
+                    page.setDirtyStatus(false);
+                    copiedPageNumbers.add(pageNumber);
+                    copiedPageData.add(page.copyLoggedData());
+                    copiedLsn = Math.max(copiedLsn, page.getLsn());
+                }
+                finally {
+                    page.unlock();
+                }
+            }
+            this.flushLogUpTo(copiedLsn);
+            int runStart = 0;
+            for(int i = 1; i <= copiedPageNumbers.size(); i ++){
+                if(i == copiedPageNumbers.size() || copiedPageNumbers.get(i) != copiedPageNumbers.get(i - 1) + 1){
+                    this.writePageRun(copiedPageNumbers.get(runStart), copiedPageData.subList(runStart, i));
+                    runStart = i;
+                }
+            }
+        }
+        finally {
+            pageFileLock.unlock();
+        }
+        return lockedPageNumbers;
+    }
+
+    private void writePageRun(int startPageNumber, List<byte[]> run) throws WarningException, ErrorException {
+        ByteBuffer runBuffer = ByteBuffer.allocate(run.size() * PageSetting.PAGE_SIZE);
+        for(byte[] pageData : run){
+            runBuffer.put(pageData);
+        }
+        runBuffer.flip();
+        FileManager.writeByteDataIntoFileChannel(this.pageFileChannel, getPageDataOffset(startPageNumber), runBuffer);
+    }
+
+    private void writePageData(int pageNumber, byte[] pageData) throws WarningException, ErrorException {
+        FileManager.writeByteDataIntoFileChannel(this.pageFileChannel, getPageDataOffset(pageNumber), ByteBuffer.wrap(pageData));
+    }
     
     /**
      * @Author: 711lxsky
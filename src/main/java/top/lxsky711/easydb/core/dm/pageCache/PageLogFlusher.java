@@ -0,0 +1,19 @@
+package top.lxsky711.easydb.core.dm.pageCache;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 页面写回之前让日志落盘，由数据管理器交给页面缓存
+ * 先写日志: 页面写进文件之前，修改它的日志一定已经落盘，崩溃后文件中的每一处修改都能在日志中找到
+ */
+
+public interface PageLogFlusher {
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 保证位置为 lsn 的日志以及它之前的所有日志都已经落盘
+     */
+    void flushLogUpTo(long lsn) throws WarningException, ErrorException;
+}
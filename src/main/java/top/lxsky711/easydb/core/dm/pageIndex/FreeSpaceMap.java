@@ -0,0 +1,135 @@
+package top.lxsky711.easydb.core.dm.pageIndex;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.page.Page;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.dm.pageCache.PageCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 空闲空间表，持久化每个普通页的空闲空间，启动时不需要读取所有页面
+ * <p>
+ * 空闲空间表页按固定间隔放在页面文件中：第 2 页是第一个空闲空间表页，管理其后的 FREE_SPACE_MAP_PAGE_SLOTS 个普通页，
+ * 再下一页又是空闲空间表页，依次类推，这样由页号就能直接算出对应的空闲空间表页和其中的位置
+ * 每个普通页占一个字节，记录空闲空间除以 FREE_SPACE_MAP_UNIT 向下取整，读出的空闲空间不会比实际的大
+ * </p>
+ * 空闲空间表不写日志，只作为提示：崩溃恢复后用重做、撤销涉及的页面刷新，插入时也会按页面实际的空闲空间再检查一遍
+ * 同一组的页面由页面索引一次加载，组号就是空闲空间表页的序号
+ */
+
+public class FreeSpaceMap {
+
+    private final PageCache pageCache;
+
+    public FreeSpaceMap(PageCache pageCache) {
+        this.pageCache = pageCache;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 初始化空闲空间表页，所有页面的空闲空间都记为 0
+     */
+    public static byte[] init(){
+        return new byte[PageSetting.PAGE_SIZE];
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断页号对应的是不是空闲空间表页
+     */
+    public static boolean isFreeSpaceMapPage(int pageNumber){
+        return pageNumber >= PageIndexSetting.FREE_SPACE_MAP_START_NUMBER
+                && (pageNumber - PageIndexSetting.FREE_SPACE_MAP_START_NUMBER) % (PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS + 1) == 0;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取普通页所在的组号
+     */
+    public static int getGroup(int pageNumber){
+        return (pageNumber - PageIndexSetting.FREE_SPACE_MAP_START_NUMBER) / (PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS + 1);
+    }
+
+    private static int getFreeSpaceMapPageNumber(int group){
+        return PageIndexSetting.FREE_SPACE_MAP_START_NUMBER + group * (PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS + 1);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 当前页面文件中已有的组数
+     */
+    public int getGroupNumber(){
+        int pagesNumber = this.pageCache.getPagesNumber();
+        if(pagesNumber < PageIndexSetting.FREE_SPACE_MAP_START_NUMBER){
+            return 0;
+        }
+        return getGroup(pagesNumber) + 1;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 读取一组中所有已经存在的普通页的空闲空间
+     */
+    public List<PageInfo> loadGroup(int group) throws WarningException, ErrorException {
+        int pagesNumber = this.pageCache.getPagesNumber();
+        int mapPageNumber = getFreeSpaceMapPageNumber(group);
+        List<PageInfo> pageInfos = new ArrayList<>();
+        Page mapPage = this.pageCache.getPageByPageNumber(mapPageNumber);
+        try {
+            byte[] mapData = mapPage.getPageData();
+            for(int slot = 0; slot < PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS; slot ++){
+                int pageNumber = mapPageNumber + 1 + slot;
+                if(pageNumber > pagesNumber){
+                    break;
+                }
+                pageInfos.add(new PageInfo(pageNumber, (mapData[slot] & 0xFF) * PageIndexSetting.FREE_SPACE_MAP_UNIT));
+            }
+        }
+        finally {
+            mapPage.releaseOneReference();
+        }
+        return pageInfos;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 更新普通页的空闲空间
+     */
+    public void updateFreeSpace(int pageNumber, int freeSpace) throws WarningException, ErrorException {
+        int mapPageNumber = getFreeSpaceMapPageNumber(getGroup(pageNumber));
+        int level = Math.min(freeSpace / PageIndexSetting.FREE_SPACE_MAP_UNIT, PageIndexSetting.FREE_SPACE_MAP_LEVELS - 1);
+        Page mapPage = this.pageCache.getPageByPageNumber(mapPageNumber);
+        try {
+            mapPage.getPageData()[pageNumber - mapPageNumber - 1] = (byte) level;
+            mapPage.setDirtyStatus(true);
+        }
+        finally {
+            mapPage.releaseOneReference();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 清空最后一组中页号大于 pagesNumber 的记录
+     * 崩溃恢复会截断页面文件，被截掉的页面在空闲空间表中可能还留有记录，新建页面时要保证它的记录是 0
+     */
+    public void clearFreeSpaceAfter(int pagesNumber) throws WarningException, ErrorException {
+        if(pagesNumber < PageIndexSetting.FREE_SPACE_MAP_START_NUMBER){
+            return;
+        }
+        int mapPageNumber = getFreeSpaceMapPageNumber(getGroup(pagesNumber));
+        Page mapPage = this.pageCache.getPageByPageNumber(mapPageNumber);
+        try {
+            Arrays.fill(mapPage.getPageData(), pagesNumber - mapPageNumber, PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS, (byte) 0);
+            mapPage.setDirtyStatus(true);
+        }
+        finally {
+            mapPage.releaseOneReference();
+        }
+    }
+}
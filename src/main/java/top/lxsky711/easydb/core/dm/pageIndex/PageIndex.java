@@ -1,6 +1,16 @@
 package top.lxsky711.easydb.core.dm.pageIndex;
 
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,73 +24,220 @@ import java.util.concurrent.locks.ReentrantLock;
  * 所以页面索引就以空闲区间的数量为基准，管理页面，每次写一个页面时，就会按照需要的空间大小去找合适的页面
  * </p>
  * <p>
- * 在启动时，就会遍历所有的页面信息，获取页面的空闲空间，安排到这 40 个区间中
  * insert 在请求一个页时，会首先将所需的空间向上取整，映射到某一个区间，随后取出这个区间的任何一页，都可以满足需求
  * 实现的逻辑是在能满足空间要求的情况下，优先去找空闲空间更小的页面
  * </P>
+ * <p>
+ * 选中页面时不把页面移出索引，而是在页面上预留所需的空间(CAS 扣减可用空间)，其余空间仍然可以被其他插入预留，
+ * 多个插入可以同时使用同一个页面；页面真正的写入由调用方持有页面锁完成
+ * 每个区间是一个无锁队列，页面可用空间跨区间时把页面登记到新区间，旧区间中的节点不立即删除，扫描到时再丢弃
+ * </p>
+ * <p>
+ * 页面的空闲空间同时记录在空闲空间表中，启动时不再遍历所有页面，而是按组懒加载：
+ * 已加载的页面都放不下时才加载下一组；按页号预留、归还空间之前，先加载页面所在的组
+ * 空闲空间表由调用方在持有页面锁时写入，这里只负责读取
+ * </p>
  */
 
 public class PageIndex {
 
-    // 资源锁
-    private final Lock lock;
+    // 每个区间的页面队列
+    private final Queue<PageIndexSetting.PageSpaceNode> [] intervalQueues;
+
+    // 当前在索引中的页面，按页号查找
+    private final Map<Integer, PageIndexSetting.PageSpace> pageSpaceMap;
+
+    // 空闲空间表，为 null 时不持久化，所有页面都由调用方登记
+    private final FreeSpaceMap freeSpaceMap;
+
+    // 已经从空闲空间表加载的组，由 loadLock 保护
+    private final BitSet loadedGroups;
+
+    // 加载空闲空间表时持有
+    private final Lock loadLock;
 
-    // 页面信息列表
-    private final List<PageInfo> [] pageInfoLists;
+    public PageIndex() {
+        this(null);
+    }
 
     /**
      * @Author: 711lxsky
      * @Description: 初始化时调用，注意这里申请的是INTERVAL_NUMBER + 1个区间，因为后续是向上取整
      */
-    public PageIndex() {
-        this.lock = new ReentrantLock();
-        this.pageInfoLists = new List[PageIndexSetting.PAGE_INTERVAL_NUMBER + 1];
+    public PageIndex(FreeSpaceMap freeSpaceMap) {
+        this.freeSpaceMap = freeSpaceMap;
+        this.loadedGroups = new BitSet();
+        this.loadLock = new ReentrantLock();
+        this.intervalQueues = new Queue[PageIndexSetting.PAGE_INTERVAL_NUMBER + 1];
         for(int i = 0; i <= PageIndexSetting.PAGE_INTERVAL_NUMBER; i++){
-            pageInfoLists[i] = new java.util.ArrayList<>();
+            intervalQueues[i] = new ConcurrentLinkedQueue<>();
         }
+        this.pageSpaceMap = new ConcurrentHashMap<>();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 添加一个页面的空闲空间信息
+     * @Description: 给页面增加可用空间，用于登记新页面、归还没有用掉的预留空间和回收页面空间
      */
-    public void addFreeSpaceForPage(int pageNumber, int freeSpace){
-        this.lock.lock();
+    public void addFreeSpaceForPage(int pageNumber, int freeSpace) throws WarningException, ErrorException {
+        this.loadGroupOfPage(pageNumber);
+        PageIndexSetting.PageSpace pageSpace = this.pageSpaceMap.computeIfAbsent(pageNumber, k -> new PageIndexSetting.PageSpace(k, 0));
+        pageSpace.availableSpace.addAndGet(freeSpace);
+        this.relist(pageSpace);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 页面实际的空闲空间比索引中记录的少(空闲空间表中的提示过时)，清空页面的可用空间
+     * 已经预留了空间的插入仍会在页面锁下检查实际空间，页面之后回收到空间时重新变得可用
+     */
+    public void clearFreeSpaceForPage(int pageNumber){
+        PageIndexSetting.PageSpace pageSpace = this.pageSpaceMap.get(pageNumber);
+        if(Objects.nonNull(pageSpace)){
+            pageSpace.availableSpace.set(0);
+            this.relist(pageSpace);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按页面当前的可用空间把页面登记到对应的区间，已经在该区间时什么都不做
+     * 第 0 个区间不会被选择，只更新登记信息，不放入队列
+     */
+    private void relist(PageIndexSetting.PageSpace pageSpace){
+        while(true){
+            long listing = pageSpace.listing.get();
+            int interval = Math.min(pageSpace.availableSpace.get() / PageIndexSetting.PAGE_INTERVAL_SIZE, PageIndexSetting.PAGE_INTERVAL_NUMBER);
+            if((int) listing == interval){
+                return;
+            }
+            long newListing = (((listing >>> 32) + 1) << 32) | interval;
+            if(pageSpace.listing.compareAndSet(listing, newListing)){
+                if(interval > 0){
+                    this.intervalQueues[interval].add(new PageIndexSetting.PageSpaceNode(pageSpace, newListing));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在页面上预留空间，可用空间不够时返回 false
+     */
+    private boolean reserve(PageIndexSetting.PageSpace pageSpace, int needSpaceSize){
+        while(true){
+            int availableSpace = pageSpace.availableSpace.get();
+            if(availableSpace < needSpaceSize){
+                return false;
+            }
+            if(pageSpace.availableSpace.compareAndSet(availableSpace, availableSpace - needSpaceSize)){
+                this.relist(pageSpace);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 从空闲空间表加载一组页面，跳过已经在索引中的页面
+     */
+    private void loadGroup(int group) throws WarningException, ErrorException {
+        if(this.loadedGroups.get(group)){
+            return;
+        }
+        List<PageInfo> pageInfos = this.freeSpaceMap.loadGroup(group);
+        this.loadedGroups.set(group);
+        for(PageInfo pageInfo : pageInfos){
+            PageIndexSetting.PageSpace pageSpace = new PageIndexSetting.PageSpace(pageInfo.pageNumber, pageInfo.freeSpace);
+            if(Objects.isNull(this.pageSpaceMap.putIfAbsent(pageInfo.pageNumber, pageSpace))){
+                this.relist(pageSpace);
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 加载下一个还没有加载的组，所有组都已加载时返回 false
+     */
+    private boolean loadNextGroup() throws WarningException, ErrorException {
+        if(Objects.isNull(this.freeSpaceMap)){
+            return false;
+        }
+        this.loadLock.lock();
         try {
-            int index = freeSpace / PageIndexSetting.PAGE_INTERVAL_SIZE;
-            this.pageInfoLists[index].add(new PageInfo(pageNumber, freeSpace));
+            int group = this.loadedGroups.nextClearBit(0);
+            if(group >= this.freeSpaceMap.getGroupNumber()){
+                return false;
+            }
+            this.loadGroup(group);
+            return true;
         }
         finally {
-            this.lock.unlock();
+            this.loadLock.unlock();
         }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 拿到满足插入要求的页面信息
-     * 注意这里是remove()方法，意味着页面信息拿到之后会被暂时移除，后续重新加入
+     * @Description: 页面已经在索引中时，它所在的组一定加载过，不需要加锁
      */
-    public PageInfo selectOnePage(int needSpaceSize){
-        this.lock.lock();
+    private void loadGroupOfPage(int pageNumber) throws WarningException, ErrorException {
+        if(Objects.isNull(this.freeSpaceMap) || this.pageSpaceMap.containsKey(pageNumber)){
+            return;
+        }
+        this.loadLock.lock();
         try {
-            int index = needSpaceSize / PageIndexSetting.PAGE_INTERVAL_SIZE;
-            if(index < PageIndexSetting.PAGE_INTERVAL_NUMBER){
-                // 向上取整
-                index ++;
-            }
-            while(index <= PageIndexSetting.PAGE_INTERVAL_NUMBER){
-                if(this.pageInfoLists[index].isEmpty()){
-                    index ++;
-                    continue;
+            this.loadGroup(FreeSpaceMap.getGroup(pageNumber));
+        }
+        finally {
+            this.loadLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在满足插入要求的页面上预留空间，返回的页面信息中 freeSpace 是预留的空间大小
+     * 页面不会移出索引，剩余的空间可以继续被其他插入预留
+     * 已加载的页面都不满足时，依次加载还没有加载的组
+     */
+    public PageInfo selectOnePage(int needSpaceSize) throws WarningException, ErrorException {
+        int startIndex = needSpaceSize / PageIndexSetting.PAGE_INTERVAL_SIZE;
+        if(startIndex < PageIndexSetting.PAGE_INTERVAL_NUMBER){
+            // 向上取整
+            startIndex ++;
+        }
+        do {
+            for(int index = startIndex; index <= PageIndexSetting.PAGE_INTERVAL_NUMBER; index ++){
+                Iterator<PageIndexSetting.PageSpaceNode> iterator = this.intervalQueues[index].iterator();
+                while(iterator.hasNext()){
+                    PageIndexSetting.PageSpaceNode node = iterator.next();
+                    if(node.listing != node.pageSpace.listing.get()){
+                        // 页面已经换到其他区间
+                        iterator.remove();
+                        continue;
+                    }
+                    if(this.reserve(node.pageSpace, needSpaceSize)){
+                        return new PageInfo(node.pageSpace.pageNumber, needSpaceSize);
+                    }
                 }
-                return this.pageInfoLists[index].remove(0);
             }
-            return null;
+        } while(this.loadNextGroup());
+        return null;
+    }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 在指定页面上预留空间，可用空间不够时返回 null
+     * 同 selectOnePage，返回的页面信息中 freeSpace 是预留的空间大小
+     */
+    public PageInfo selectThePage(int pageNumber, int needSpaceSize) throws WarningException, ErrorException {
+        this.loadGroupOfPage(pageNumber);
+        PageIndexSetting.PageSpace pageSpace = this.pageSpaceMap.get(pageNumber);
+        if(Objects.isNull(pageSpace) || ! this.reserve(pageSpace, needSpaceSize)){
+            return null;
         }
-        finally {
-            this.lock.unlock();
-        }
+        return new PageInfo(pageNumber, needSpaceSize);
     }
 
 }
@@ -2,6 +2,9 @@ package top.lxsky711.easydb.core.dm.pageIndex;
 
 import top.lxsky711.easydb.core.dm.page.PageSetting;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * @Author: 711lxsky
  * @Description: 页面索引设置
@@ -14,4 +17,54 @@ public class PageIndexSetting {
 
     // 一个间隔的大小
     public static final int PAGE_INTERVAL_SIZE = PageSetting.PAGE_SIZE / PAGE_INTERVAL_NUMBER;
+
+    // 页面还没有登记到任何区间
+    public static final int PAGE_INTERVAL_NONE = -1;
+
+    // 表示没有页面
+    public static final int PAGE_NUMBER_NONE = 0;
+
+    // 第一个空闲空间表页的页号，紧跟在第一页之后
+    public static final int FREE_SPACE_MAP_START_NUMBER = PageSetting.PAGE_X_DEFAULT_START_NUMBER;
+
+    // 一个空闲空间表页管理的普通页数量，每个普通页占一个字节
+    public static final int FREE_SPACE_MAP_PAGE_SLOTS = PageSetting.PAGE_SIZE;
+
+    // 一个字节能表示的空闲空间等级数
+    public static final int FREE_SPACE_MAP_LEVELS = 1 << 8;
+
+    // 空闲空间表中一个等级代表的空闲空间大小
+    public static final int FREE_SPACE_MAP_UNIT = PageSetting.PAGE_SIZE / FREE_SPACE_MAP_LEVELS;
+
+    /**
+     * 页面索引中的一个页面，availableSpace 是空闲空间减去已经被预留、还没有插入完成的空间
+     * listing 高 32 位是登记序号，低 32 位是页面当前登记的区间，每次换区间序号加一
+     */
+    public static class PageSpace {
+        public final int pageNumber;
+
+        public final AtomicInteger availableSpace;
+
+        public final AtomicLong listing;
+
+        public PageSpace(int pageNumber, int availableSpace) {
+            this.pageNumber = pageNumber;
+            this.availableSpace = new AtomicInteger(availableSpace);
+            this.listing = new AtomicLong(PAGE_INTERVAL_NONE & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * 区间队列中的节点，listing 与页面当前的 listing 相同时有效，否则是页面换区间之前留下的，懒删除
+     */
+    public static class PageSpaceNode {
+        public final PageSpace pageSpace;
+
+        public final long listing;
+
+        public PageSpaceNode(PageSpace pageSpace, long listing) {
+            this.pageSpace = pageSpace;
+            this.listing = listing;
+        }
+    }
 }
@@ -5,13 +5,17 @@ import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.log.ErrorMessage;
 import top.lxsky711.easydb.common.log.Log;
+import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.common.SubArray;
 import top.lxsky711.easydb.core.dm.DataItem;
 import top.lxsky711.easydb.core.dm.DataManager;
 import top.lxsky711.easydb.core.tm.TMSetting;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.locks.Lock;
@@ -21,8 +25,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * @Author: 711lxsky
  * @Description: B+树实现类
  * 索引的数据直接被插入数据库文件中，不需要经过版本管理
+ * 并发控制采用 B-link 树的做法：节点分裂只会把右半部分搬到新的右兄弟节点，并通过兄弟指针串起来
+ * 下降时每层只在读节点的瞬间持有该节点的读锁，读完即释放，不做锁耦合；如果读到的节点已被并发分裂，目标落在右侧，则沿兄弟指针右移即可
+ * 写操作只对真正要修改的那一个节点加写锁，分裂向上传播时再按下降路径逐层加锁，任意时刻最多持有一个节点的写锁
+ * 根节点增长在 selfLock 下进行，并重新校验根节点是否已被其他线程替换
  *
- * // TODO 全表扫描、节点查找二分
+ * // TODO 全表扫描
  */
 
 public class BPlusTree {
@@ -38,10 +46,15 @@ public class BPlusTree {
     private DataItem rootUidDataItem;
 
     /**
-     * @Description: 自身资源锁
+     * @Description: 自身资源锁，保护根节点的替换
      */
     private Lock selfLock;
 
+    /**
+     * @Description: 当前根节点 uid 的内存副本，只在 selfLock 下更新，读取不需要加锁
+     */
+    private volatile long rootUid;
+
     public DataManager getDm() {
         return dm;
     }
@@ -61,6 +74,132 @@ public class BPlusTree {
         return dm.insertData(TMSetting.SUPER_TRANSACTION_XID, ByteParser.longToBytes(rootUid));
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 自底向上批量构建B+树，sortedEntries 需要按 key 升序给出
+     * 叶子节点按填充因子依次写满，同时记录每个叶子节点的uid和上界，然后逐层向上构建非叶子节点，直到只剩一个根节点
+     * 填充因子按节点占用的字节数计算，每个节点至少放入 BULK_LOAD_NODE_ENTRIES_MIN 个 uid-key 对
+     * 返回值和 createBPlusTree 一致，是存放 rootUid 的 DataItem 的 uid
+     */
+    public static long bulkLoadBPlusTree(DataManager dm, Iterator<IMSetting.IndexEntry> sortedEntries, double fillFactor) throws WarningException, ErrorException {
+        if(Double.isNaN(fillFactor) || fillFactor <= 0 || fillFactor > 1){
+            Log.logWarningMessage(WarningMessage.INDEX_FILL_FACTOR_INVALID);
+        }
+        int nodeFillSize = (int) (IMSetting.NODE_SIZE * fillFactor);
+        if(! sortedEntries.hasNext()){
+            return createBPlusTree(dm);
+        }
+        // 叶子层，节点写满一个就落盘一个
+        BPlusTree tree = new BPlusTree();
+        tree.dm = dm;
+        List<Long> leafUids = new ArrayList<>();
+        List<byte[]> leafKeys = new ArrayList<>();
+        List<Long> leafXmins = new ArrayList<>();
+        int leafSize = IMSetting.NODE_HEAD_SIZE;
+        List<Long> levelNodeUids = new ArrayList<>();
+        List<byte[]> levelNodeKeys = new ArrayList<>();
+        byte[] lastKey = IndexKey.KEY_MIN;
+        while(sortedEntries.hasNext()){
+            IMSetting.IndexEntry entry = sortedEntries.next();
+            checkKeyLength(entry.key);
+            if(IndexKey.compare(entry.key, lastKey) < 0){
+                Log.logWarningMessage(WarningMessage.INDEX_ENTRIES_NOT_SORTED);
+            }
+            lastKey = entry.key;
+            int entrySize = BPlusTreeNode.getEntrySize(true, entry.key);
+            if(judgeBulkLoadNodeFull(leafUids.size(), leafSize + entrySize, nodeFillSize)){
+                flushBulkLoadLeaf(tree, leafUids, leafKeys, leafXmins, levelNodeUids, levelNodeKeys);
+                leafUids.clear();
+                leafKeys.clear();
+                leafXmins.clear();
+                leafSize = IMSetting.NODE_HEAD_SIZE;
+            }
+            leafUids.add(entry.uid);
+            leafKeys.add(entry.key);
+            leafXmins.add(entry.xmin);
+            leafSize += entrySize;
+        }
+        flushBulkLoadLeaf(tree, leafUids, leafKeys, leafXmins, levelNodeUids, levelNodeKeys);
+        // 非叶子层，下一层节点都已知，先按填充因子分好组，再从右往左构建，这样每个节点写入时就已经知道兄弟节点uid
+        long[] sonUids = levelNodeUids.stream().mapToLong(Long::longValue).toArray();
+        byte[][] sonKeys = levelNodeKeys.toArray(new byte[0][]);
+        while(sonUids.length > 1){
+            List<Integer> nodeEnds = new ArrayList<>();
+            int nodeCount = 0, nodeSize = IMSetting.NODE_HEAD_SIZE;
+            for(int i = 0; i < sonUids.length; i ++){
+                int entrySize = BPlusTreeNode.getEntrySize(false, sonKeys[i]);
+                if(judgeBulkLoadNodeFull(nodeCount, nodeSize + entrySize, nodeFillSize)){
+                    nodeEnds.add(i);
+                    nodeCount = 0;
+                    nodeSize = IMSetting.NODE_HEAD_SIZE;
+                }
+                nodeCount ++;
+                nodeSize += entrySize;
+            }
+            // 最后一个节点只有一个子节点时，从前一个节点借一个过来
+            if(nodeCount < IMSetting.BULK_LOAD_NODE_ENTRIES_MIN && ! nodeEnds.isEmpty()){
+                int lastIndex = nodeEnds.size() - 1;
+                nodeEnds.set(lastIndex, nodeEnds.get(lastIndex) - 1);
+            }
+            nodeEnds.add(sonUids.length);
+            int nodesCount = nodeEnds.size();
+            long[] nodeUids = new long[nodesCount];
+            byte[][] nodeKeys = new byte[nodesCount][];
+            long siblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+            for(int k = nodesCount - 1; k >= 0; k --){
+                int end = nodeEnds.get(k);
+                int from = k == 0 ? 0 : nodeEnds.get(k - 1);
+                byte[] nodeBytes = BPlusTreeNode.buildNodeBytes(false, sonUids, sonKeys, null, from, end - from, siblingUid);
+                nodeUids[k] = dm.insertData(TMSetting.SUPER_TRANSACTION_XID, nodeBytes);
+                // 非叶子节点的上界就是其最后一个子节点的上界
+                nodeKeys[k] = sonKeys[end - 1];
+                siblingUid = nodeUids[k];
+            }
+            sonUids = nodeUids;
+            sonKeys = nodeKeys;
+        }
+        return dm.insertData(TMSetting.SUPER_TRANSACTION_XID, ByteParser.longToBytes(sonUids[0]));
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 批量构建时判断节点再放入一项后是否超过填充大小，节点至少放入 BULK_LOAD_NODE_ENTRIES_MIN 项，且不能超过节点大小
+     */
+    private static boolean judgeBulkLoadNodeFull(int nodeEntriesCount, int nodeSizeAfterAdd, int nodeFillSize){
+        if(nodeEntriesCount < IMSetting.BULK_LOAD_NODE_ENTRIES_MIN){
+            return nodeSizeAfterAdd > IMSetting.NODE_SIZE;
+        }
+        return nodeSizeAfterAdd > nodeFillSize;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 批量构建时落盘一个叶子节点，并把前一个叶子节点的兄弟指针指向它
+     * 前一个叶子节点的上界就是当前叶子节点的最小 key，最后一个叶子节点的上界为无穷大
+     */
+    private static void flushBulkLoadLeaf(BPlusTree tree, List<Long> leafUids, List<byte[]> leafKeys, List<Long> leafXmins,
+                                          List<Long> levelNodeUids, List<byte[]> levelNodeKeys) throws WarningException, ErrorException {
+        long[] uids = leafUids.stream().mapToLong(Long::longValue).toArray();
+        byte[][] keys = leafKeys.toArray(new byte[0][]);
+        long[] xmins = leafXmins.stream().mapToLong(Long::longValue).toArray();
+        byte[] leafBytes = BPlusTreeNode.buildNodeBytes(true, uids, keys, xmins, 0, uids.length, IMSetting.NODE_SIBLING_UID_DEFAULT);
+        long leafNodeUid = tree.dm.insertData(TMSetting.SUPER_TRANSACTION_XID, leafBytes);
+        if(! levelNodeUids.isEmpty()){
+            int prevIndex = levelNodeUids.size() - 1;
+            BPlusTreeNode prevLeafNode = BPlusTreeNode.loadBPlusTreeNode(tree, levelNodeUids.get(prevIndex));
+            if(Objects.isNull(prevLeafNode)){
+                Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                return;
+            }
+            prevLeafNode.setSiblingUid(leafNodeUid);
+            prevLeafNode.releaseOneReference();
+            levelNodeKeys.set(prevIndex, keys[IMSetting.NODE_KEY_POS_DEFAULT]);
+        }
+        levelNodeUids.add(leafNodeUid);
+        // 最后一个叶子节点的上界为无穷大
+        levelNodeKeys.add(null);
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 加载B+树
@@ -75,38 +214,71 @@ public class BPlusTree {
         tree.dm = dm;
         tree.rootUidDataItem = rootUidDataItem;
         tree.selfLock = new ReentrantLock();
+        SubArray rootUidData = rootUidDataItem.getDataRecord();
+        rootUidDataItem.readLock();
+        try {
+            tree.rootUid = ByteParser.parseBytesToLong(Arrays.copyOfRange(rootUidData.rawData, rootUidData.start, rootUidData.start + IMSetting.NODE_UID_LENGTH));
+        }
+        finally {
+            rootUidDataItem.readUnlock();
+        }
         return tree;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 从 rootUidDataItem 中获取 rootUid
+     * @Description: 获取当前的 rootUid
      */
     private long getRootUid(){
-        this.selfLock.lock();
-        try {
-            SubArray rootUidData = this.rootUidDataItem.getDataRecord();
-            byte[] rootUidBytes = Arrays.copyOfRange(rootUidData.rawData, rootUidData.start, rootUidData.start + IMSetting.NODE_UID_LENGTH);
-            return ByteParser.parseBytesToLong(rootUidBytes);
-        }
-        finally {
-            this.selfLock.unlock();
-        }
+        return this.rootUid;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 更新 rootUid 到磁盘中
+     * @Description: 下降时到达的最高一层发生了分裂，需要为其找到父节点
+     * 如果根节点仍是下降时的那个，就新建根节点，返回 NODE_UID_DEFAULT 表示插入已完成
+     * 否则根节点已被其他线程替换，旧根一定是它那一层最左侧的节点，沿新根的最左侧路径向下即可找到父节点，路径压入 path
      */
-    private void updateRootUid(long leftSonUid, long rightSonUid, long rightKey) throws WarningException, ErrorException {
+    private long growRootOrFindParent(long oldRootUid, long rightSonUid, byte[] rightKey, Deque<Long> path) throws WarningException, ErrorException {
         this.selfLock.lock();
         try{
-            byte[] newRootDataBytes = BPlusTreeNode.buildRootNodeBytes(leftSonUid, rightSonUid, rightKey);
-            long newRootUid = this.dm.insertData(TMSetting.SUPER_TRANSACTION_XID, newRootDataBytes);
-            this.rootUidDataItem.beforeModify();
-            SubArray rootUidData = this.rootUidDataItem.getDataRecord();
-            System.arraycopy(ByteParser.longToBytes(newRootUid), 0, rootUidData.rawData, rootUidData.start, IMSetting.NODE_UID_LENGTH);
-            this.rootUidDataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+            long curRootUid = this.rootUid;
+            if(curRootUid == oldRootUid){
+                byte[] newRootDataBytes = BPlusTreeNode.buildRootNodeBytes(oldRootUid, rightSonUid, rightKey);
+                long newRootUid = this.dm.insertData(TMSetting.SUPER_TRANSACTION_XID, newRootDataBytes);
+                this.rootUidDataItem.beforeModify();
+                SubArray rootUidData = this.rootUidDataItem.getDataRecord();
+                System.arraycopy(ByteParser.longToBytes(newRootUid), 0, rootUidData.rawData, rootUidData.start, IMSetting.NODE_UID_LENGTH);
+                this.rootUidDataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+                this.rootUid = newRootUid;
+                return IMSetting.NODE_UID_DEFAULT;
+            }
+            // 新的上层节点是按从上到下的顺序找到的，先暂存再倒序压栈，保证栈顶是直接父节点
+            List<Long> upperNodeUids = new ArrayList<>();
+            long nodeUid = curRootUid;
+            while(true){
+                BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
+                if(Objects.isNull(node)){
+                    Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                    return IMSetting.NODE_UID_ERROR_DEFAULT;
+                }
+                boolean nodeIsLeaf = node.selfIsLeafNode();
+                long firstSonUid = node.getFirstSonUid();
+                node.releaseOneReference();
+                if(nodeIsLeaf){
+                    Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                    return IMSetting.NODE_UID_ERROR_DEFAULT;
+                }
+                upperNodeUids.add(nodeUid);
+                if(firstSonUid == oldRootUid){
+                    break;
+                }
+                nodeUid = firstSonUid;
+            }
+            for(long upperNodeUid : upperNodeUids){
+                path.push(upperNodeUid);
+            }
+            return path.pop();
         }
         finally {
             this.selfLock.unlock();
@@ -115,141 +287,268 @@ public class BPlusTree {
 
     /**
      * @Author: 711lxsky
-     * @Description: 搜索满足条件的下一层节点
+     * @Description: 从 nodeUid 开始下降，查找某个符合条件的叶子节点
+     * 每个节点只在读取时短暂持有读锁，如果 path 不为空，会把每一层向下走时所在的节点压入，供分裂向上传播使用
      */
-    private long searchNextNode(long nodeUid, long key) throws ErrorException, WarningException {
+    private long searchLeafNode(long nodeUid, byte[] key, Deque<Long> path) throws ErrorException, WarningException {
         while(true){
             BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
             if(Objects.isNull(node)){
                 Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
                 return IMSetting.NODE_UID_ERROR_DEFAULT;
             }
+            boolean nodeIsLeaf = node.selfIsLeafNode();
+            if(nodeIsLeaf){
+                // 是叶子节点就直接返回
+                node.releaseOneReference();
+                return nodeUid;
+            }
             IMSetting.SearchNextNodeResult searchResult = node.searchNext(key);
             node.releaseOneReference();
-            // 判断有没有找到
             if(searchResult.nodeUid != IMSetting.NODE_UID_DEFAULT){
-                // 找到，直接返回
-                return searchResult.nodeUid;
+                // 找到，记录当前节点，再到下一层去找
+                if(Objects.nonNull(path)){
+                    path.push(nodeUid);
+                }
+                nodeUid = searchResult.nodeUid;
+            }
+            else {
+                // 当前节点被并发分裂过，目标在右侧，同一层右移
+                nodeUid = searchResult.nodeSiblingUid;
             }
-            // 去往兄弟节点找
-            nodeUid = searchResult.nodeSiblingUid;
         }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 查找某个符合条件的叶子节点
+     * @Description: 打开一个 [leftKey, rightKey) 范围的索引游标，按 key 升序惰性拉取 uid，rightKey 为 null 表示无穷大
+     * 某个前缀下的所有 key 可以用 [prefix, IndexKey.prefixSuccessor(prefix)) 查找
+     */
+    public IndexCursor openCursor(byte[] leftKey, byte[] rightKey) throws ErrorException, WarningException {
+        long curRootUid = this.getRootUid();
+        // 先定位到叶子节点
+        long leafNodeUid = this.searchLeafNode(curRootUid, leftKey, null);
+        return new IndexCursor(this, leafNodeUid, leftKey, rightKey);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 范围搜索，把游标中的 uid 全部收集起来，结果集较大时应直接使用 openCursor
      */
-    private long searchLeafNode(long nodeUid, long key) throws ErrorException, WarningException {
-        BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
-        if(Objects.isNull(node)){
+    public List<Long> searchRangeNodes(byte[] leftKey, byte[] rightKey) throws ErrorException, WarningException {
+        IndexCursor cursor = this.openCursor(leftKey, rightKey);
+        List<Long> tarNodeUidList = new ArrayList<>();
+        while(cursor.hasNext()){
+            tarNodeUidList.add(cursor.next());
+        }
+        return tarNodeUidList;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 暴露给外部模块，插入节点，视为超级事务插入，对所有事务可见
+     */
+    public void insertNode(long insertNodeUid, byte[] key) throws ErrorException, WarningException {
+        this.insertNode(insertNodeUid, key, TMSetting.SUPER_TRANSACTION_XID);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 暴露给外部模块，插入节点，xmin 是插入这条数据的事务XID，记在叶子节点中供只读索引时判断可见性
+     * 先无锁耦合地下降到叶子节点并记录路径，再在叶子节点上加写锁插入；如果分裂，就沿路径把新节点逐层插入父节点
+     */
+    public void insertNode(long insertNodeUid, byte[] key, long xmin) throws ErrorException, WarningException {
+        checkKeyLength(key);
+        long curRootUid = this.getRootUid();
+        Deque<Long> path = new ArrayDeque<>();
+        long leafNodeUid = this.searchLeafNode(curRootUid, key, path);
+        IMSetting.InsertNodeResult result = this.insertAndSplitNode(leafNodeUid, insertNodeUid, key, xmin);
+        if(Objects.isNull(result)){
             Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
-            return IMSetting.NODE_UID_ERROR_DEFAULT;
+            return;
+        }
+        if(result.nodeNewSonUid != IMSetting.NODE_UID_DEFAULT){
+            this.insertIntoUpperLevels(curRootUid, path, result.nodeNewSonUid, result.nodeNewKey);
         }
-        boolean nodeIsLeaf = node.selfIsLeafNode();
-        if(nodeIsLeaf){
-            // 是叶子节点就直接返回
-            return nodeUid;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 暴露给外部模块，key 过长时一个节点放不下足够多的数据，分裂无法保证两边都不为空
+     */
+    public static void checkKeyLength(byte[] key) throws WarningException {
+        if(key.length > IMSetting.INDEX_KEY_LENGTH_MAX){
+            Log.logWarningMessage(WarningMessage.INDEX_KEY_TOO_LONG);
         }
-        else {
-            // 不是，再递归到下一层去找
-            long nextNodeUid = this.searchNextNode(nodeUid, key);
-            return searchLeafNode(nextNodeUid, key);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 暴露给外部模块，批量插入按 key 有序的数据
+     * 每个叶子节点只下降一次、只加一次写锁、只写一条日志，把落在其中的一段数据一起插入
+     */
+    public void insertSortedNodes(long[] insertNodeUids, byte[][] keys) throws ErrorException, WarningException {
+        long[] xmins = new long[keys.length];
+        Arrays.fill(xmins, TMSetting.SUPER_TRANSACTION_XID);
+        this.insertSortedNodes(insertNodeUids, keys, xmins);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 暴露给外部模块，批量插入按 key 有序的数据，xmins 是插入每条数据的事务XID
+     */
+    public void insertSortedNodes(long[] insertNodeUids, byte[][] keys, long[] xmins) throws ErrorException, WarningException {
+        if(insertNodeUids.length != keys.length || xmins.length != keys.length || ! judgeKeysSorted(keys)){
+            Log.logWarningMessage(WarningMessage.INDEX_ENTRIES_NOT_SORTED);
+        }
+        int inserted = 0;
+        while(inserted < keys.length){
+            long curRootUid = this.getRootUid();
+            Deque<Long> path = new ArrayDeque<>();
+            long nodeUid = this.searchLeafNode(curRootUid, keys[inserted], path);
+            IMSetting.InsertAndSplitNodeResult result;
+            while(true){
+                BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
+                if(Objects.isNull(node)){
+                    Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                    return;
+                }
+                result = node.insertSortedAndSplit(insertNodeUids, keys, xmins, inserted, keys.length);
+                node.releaseOneReference();
+                if(result.nodeInsertedCount > 0){
+                    break;
+                }
+                // 一条都不属于当前节点，向兄弟节点尝试
+                nodeUid = result.nodeSiblingUid;
+            }
+            inserted += result.nodeInsertedCount;
+            if(result.nodeNewSonUid != IMSetting.NODE_UID_DEFAULT){
+                this.insertIntoUpperLevels(curRootUid, path, result.nodeNewSonUid, result.nodeNewKey);
+            }
+        }
+    }
+
+    private static boolean judgeKeysSorted(byte[][] keys) throws WarningException {
+        for(int i = 0; i < keys.length; i ++){
+            checkKeyLength(keys[i]);
+            if(i > 0 && IndexKey.compare(keys[i], keys[i - 1]) < 0){
+                return false;
+            }
         }
+        return true;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 在叶子节点中进行范围搜索
+     * @Description: 暴露给外部模块，删除一条 uid-key 对，返回是否删除成功
+     * 叶子节点删除后过空，就沿下降路径逐层让父节点对其做合并或重新分配，直到某一层不再过空
+     * 根节点不会因为删除而降低高度
      */
-    public List<Long> searchRangeNodes(long leftKey, long rightKey) throws ErrorException, WarningException {
+    public boolean deleteNode(long deleteNodeUid, byte[] key) throws ErrorException, WarningException {
         long curRootUid = this.getRootUid();
-        // 先定位到叶子节点
-        long leafNodeUid = this.searchLeafNode(curRootUid, leftKey);
-        List<Long> tarNodeUidList = new ArrayList<>();
+        Deque<Long> path = new ArrayDeque<>();
+        long nodeUid = this.searchLeafNode(curRootUid, key, path);
+        IMSetting.DeleteNodeResult deleteResult;
         while(true){
-            BPlusTreeNode leafNode = BPlusTreeNode.loadBPlusTreeNode(this, leafNodeUid);
+            BPlusTreeNode leafNode = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
             if(Objects.isNull(leafNode)){
                 Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
-                tarNodeUidList.add(IMSetting.NODE_UID_ERROR_DEFAULT);
-                break;
+                return false;
             }
-            // 再从这个叶子节点开始范围搜索
-            IMSetting.LeafSearchRangeNodeResult result = leafNode.leafSearchRange(leftKey, rightKey);
+            deleteResult = leafNode.deleteEntry(deleteNodeUid, key);
             leafNode.releaseOneReference();
-            tarNodeUidList.addAll(result.nodeUidList);
-            if(result.nodeSiblingUid == IMSetting.NODE_SIBLING_UID_DEFAULT){
-                // 没有符合条件的了
+            if(deleteResult.nodeDeleted || deleteResult.nodeSiblingUid == IMSetting.NODE_SIBLING_UID_DEFAULT){
                 break;
             }
-            else {
-                // 兄弟节点中可能还有数据满足要求
-                leafNodeUid = result.nodeSiblingUid;
+            // 相同的 key 可能延续到兄弟节点，或者叶子节点被并发分裂过
+            nodeUid = deleteResult.nodeSiblingUid;
+        }
+        if(! deleteResult.nodeDeleted){
+            return false;
+        }
+        boolean underflow = deleteResult.nodeUnderflow;
+        while(underflow && ! path.isEmpty()){
+            long parentUid = path.pop();
+            while(true){
+                BPlusTreeNode parentNode = BPlusTreeNode.loadBPlusTreeNode(this, parentUid);
+                if(Objects.isNull(parentNode)){
+                    Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                    return true;
+                }
+                IMSetting.RebalanceNodeResult rebalanceResult = parentNode.rebalanceChild(key);
+                parentNode.releaseOneReference();
+                if(rebalanceResult.nodeSiblingUid == IMSetting.NODE_SIBLING_UID_DEFAULT){
+                    underflow = rebalanceResult.nodeUnderflow;
+                    break;
+                }
+                parentUid = rebalanceResult.nodeSiblingUid;
             }
         }
-        return tarNodeUidList;
+        return true;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 暴露给外部模块，插入节点
+     * @Description: 暴露给外部模块，在叶子节点中给一条 uid-key 对记下删除它的事务XID，返回是否找到
+     * 只是标记，数据仍留在树中，等没有事务能看到时再由 deleteNode 真正删除
      */
-    public void insertNode(long insertNodeUid, long key) throws ErrorException, WarningException {
+    public boolean markDeleted(long markNodeUid, byte[] key, long xmax) throws ErrorException, WarningException {
         long curRootUid = this.getRootUid();
-        IMSetting.InsertNodeResult result = internalInsertNode(curRootUid, insertNodeUid, key);
-        if(Objects.isNull(result)){
-            Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
-            return;
-        }
-        if(result.nodeNewSonUid != IMSetting.NODE_UID_DEFAULT){
-            // 当前节点也发生了分裂，需要更新根节点
-            this.updateRootUid(curRootUid, result.nodeNewSonUid, result.nodeNewKey);
+        long nodeUid = this.searchLeafNode(curRootUid, key, null);
+        while(true){
+            BPlusTreeNode leafNode = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
+            if(Objects.isNull(leafNode)){
+                Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                return false;
+            }
+            IMSetting.MarkNodeResult markResult = leafNode.markDeleted(markNodeUid, key, xmax);
+            leafNode.releaseOneReference();
+            if(markResult.nodeMarked || markResult.nodeSiblingUid == IMSetting.NODE_SIBLING_UID_DEFAULT){
+                return markResult.nodeMarked;
+            }
+            // 相同的 key 可能延续到兄弟节点，或者叶子节点被并发分裂过
+            nodeUid = markResult.nodeSiblingUid;
         }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 内部插入封装
+     * @Description: 下层节点发生分裂后，沿下降路径把分裂出的节点逐层插入父节点，直到不再分裂
      */
-    private IMSetting.InsertNodeResult internalInsertNode(long nodeUid, long insertNodeUid, long key) throws ErrorException, WarningException {
-        BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
-        if(Objects.isNull(node)){
-            Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
-            return null;
-        }
-        boolean nodeIsLeaf = node.selfIsLeafNode();
-        node.releaseOneReference();
-        IMSetting.InsertNodeResult result;
-        if(nodeIsLeaf){
-            // 是叶子节点，直接插入返回结果
-            result = this.insertAndSplitNode(nodeUid, insertNodeUid, key);
-        }
-        else {
-            // 非叶子节点，定位到下一层
-            long nextNodeUid = this.searchNextNode(nodeUid, key);
-            IMSetting.InsertNodeResult insertResult = this.internalInsertNode(nextNodeUid, insertNodeUid, key);
-            // 通过递归，数据已经插入到了叶子节点之中
-            if(Objects.isNull(insertResult)){
-                Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
-                return null;
-            }
-            if(insertResult.nodeNewSonUid != IMSetting.NODE_UID_DEFAULT){
-                // 发生了节点分裂， 处理分裂节点的插入
-                result = this.insertAndSplitNode(nodeUid, insertResult.nodeNewSonUid, insertResult.nodeNewKey);
+    private void insertIntoUpperLevels(long curRootUid, Deque<Long> path, long tarUid, byte[] tarKey) throws ErrorException, WarningException {
+        while(true){
+            long nodeUid;
+            if(! path.isEmpty()){
+                nodeUid = path.pop();
             }
             else {
-                result = new IMSetting.InsertNodeResult();
-                result.nodeNewSonUid = IMSetting.NODE_UID_DEFAULT;
+                // 分裂的是下降时的最高一层，需要新建根节点，或者找到并发增长出的新的上层
+                nodeUid = this.growRootOrFindParent(curRootUid, tarUid, tarKey, path);
+                if(nodeUid == IMSetting.NODE_UID_DEFAULT || nodeUid == IMSetting.NODE_UID_ERROR_DEFAULT){
+                    return;
+                }
+                curRootUid = this.getRootUid();
+            }
+            IMSetting.InsertNodeResult result = this.insertAndSplitNode(nodeUid, tarUid, tarKey, TMSetting.SUPER_TRANSACTION_XID);
+            if(Objects.isNull(result)){
+                Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+                return;
+            }
+            if(result.nodeNewSonUid == IMSetting.NODE_UID_DEFAULT){
+                // 没有分裂，插入结束
+                return;
             }
+            // 发生了分裂，分裂出的节点需要插入到上一层
+            tarUid = result.nodeNewSonUid;
+            tarKey = result.nodeNewKey;
         }
-        return result;
     }
 
     /**
      * @Author: 711lxsky
      * @Description: 插入并在必要时分裂节点
      */
-    private IMSetting.InsertNodeResult insertAndSplitNode(long nodeUid, long tarUid, long key) throws ErrorException, WarningException {
+    private IMSetting.InsertNodeResult insertAndSplitNode(long nodeUid, long tarUid, byte[] key, long xmin) throws ErrorException, WarningException {
         while(true){
             BPlusTreeNode node = BPlusTreeNode.loadBPlusTreeNode(this, nodeUid);
             if(Objects.isNull(node)){
@@ -257,7 +556,7 @@ public class BPlusTree {
                 return null;
             }
             // 当前节点插入数据
-            IMSetting.InsertAndSplitNodeResult iasnr = node.insertAndSplit(tarUid, key);
+            IMSetting.InsertAndSplitNodeResult iasnr = node.insertAndSplit(tarUid, key, xmin);
             node.releaseOneReference();
             if(iasnr.nodeSiblingUid != IMSetting.NODE_SIBLING_UID_DEFAULT){
                 // 没有插入成功，继续向兄弟节点尝试插入
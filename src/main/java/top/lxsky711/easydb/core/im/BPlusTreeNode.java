@@ -1,6 +1,5 @@
 package top.lxsky711.easydb.core.im;
 
-import top.lxsky711.easydb.common.data.ByteParser;
 import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.log.ErrorMessage;
@@ -9,9 +8,10 @@ import top.lxsky711.easydb.core.common.SubArray;
 import top.lxsky711.easydb.core.dm.DataItem;
 import top.lxsky711.easydb.core.tm.TMSetting;
 
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
 
 /**
@@ -21,12 +21,16 @@ import java.util.Objects;
  *                 LeafFlag byte类型，标识当前节点是否是叶子节点
  *                 KeyCount short类型，标识当前节点的关键字数量
  *                 SiblingUID long类型，标识当前节点的兄弟节点UID
- *       NodeBody: [SonNode0Uid][Key0][SonNode1Uid]...[SonNodeNUid][KeyN]
+ *       NodeSlots: [SonNode0Uid][Key0Offset][Key0Length]...[SonNodeNUid][KeyNOffset][KeyNLength]
  *                  SonNodeUid 子节点Uid(唯一标识)
- *                  Key 索引关键字
+ *                  KeyOffset、KeyLength short类型，key 在节点中的偏移量和长度
+ *       NodeKeys: [Key0][Key1]...[KeyN] 变长的 key 依次紧挨着放在槽位之后
+ *                  叶子节点中每个 key 后面还紧跟着 [XMIN][XMAX]，是插入、删除这条数据的事务XID，只读索引即可判断可见性
  *       注意： 在叶子节点中 uid 和 key 一一对应，存储的就是底层数据
- *             而在非叶子节点中， uid0 是没有配对值的， 因为默认其左侧是无限小， key0是和uid1配对的， 是uid1子节点中的最小数据，而keyN是MAX_VALUE无限大，以方便查找
- * 每个Node都存储在一条DataItem中
+ *             而在非叶子节点中， key 是其同一槽位 son 的上界，最后一个 key 是无穷大，KeyLength 记为 NODE_KEY_LENGTH_INFINITE，以方便查找
+ * 每个Node都存储在一条DataItem中，节点是否已满、是否过空都按占用的字节数判断
+ * 读操作直接在节点字节数组上按无符号字节比较 key、二分查找，不产生临时对象；
+ * 写操作先把节点解码成 NodeEntries，修改后整体编码写回，分裂、合并都在解码后的内容上进行
  */
 public class BPlusTreeNode {
 
@@ -50,6 +54,13 @@ public class BPlusTreeNode {
      */
     long nodeUid;
 
+    /**
+     * 在字节数组上按大端序读写 short、long，和 ByteParser 的编码一致
+     */
+    private static final VarHandle SHORT_HANDLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle LONG_HANDLE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     /**
      * @Author: 711lxsky
      * @Description: 借助B+树和节点uid加载节点
@@ -72,18 +83,12 @@ public class BPlusTreeNode {
      * @Author: 711lxsky
      * @Description: 新建一个根节点，字节数组形式
      */
-    public static byte[] buildRootNodeBytes(long leftSonUid, long rightSonUid, long rightKey){
-        SubArray nodeData = new SubArray(new byte[IMSetting.NODE_SIZE], 0, IMSetting.NODE_SIZE);
-        setNodeLeafFlag(nodeData, false);
-        setNodeKeysCount(nodeData, IMSetting.ROOT_NODE_KEYS_COUNT_DEFAULT);
-        setNodeSiblingUid(nodeData, IMSetting.NODE_SIBLING_UID_DEFAULT);
-        // 注意，leftSon虽然和rightKey同属一个kth,但是leftSon对应的key是无限小，rightSon才是和rightKey对应的，且是rightSon节点存储的数据最小值
-        setNodeKthSon(nodeData, leftSonUid, IMSetting.ROOT_NODE_LEFT_SON_DEFAULT_KTH);
-        setNodeKthKey(nodeData, rightKey, IMSetting.ROOT_NODE_LEFT_SON_DEFAULT_KTH);
-        setNodeKthSon(nodeData, rightSonUid, IMSetting.ROOT_NODE_RIGHT_SON_DEFAULT_KTH);
-        // 最右侧的Key是没有son与之对应的，为的就是实现一个边界
-        setNodeKthKey(nodeData, IMSetting.NODE_LAST_KEY_DEFAULT, IMSetting.ROOT_NODE_RIGHT_SON_DEFAULT_KTH);
-        return nodeData.rawData;
+    public static byte[] buildRootNodeBytes(long leftSonUid, long rightSonUid, byte[] rightKey){
+        IMSetting.NodeEntries entries = newNodeEntries(false, IMSetting.NODE_SIBLING_UID_DEFAULT, IMSetting.ROOT_NODE_KEYS_COUNT_DEFAULT);
+        // leftSon 的上界是 rightKey，rightSon 在最右侧，上界是无穷大
+        insertEntry(entries, IMSetting.ROOT_NODE_LEFT_SON_DEFAULT_KTH, leftSonUid, rightKey, TMSetting.SUPER_TRANSACTION_XID);
+        insertEntry(entries, IMSetting.ROOT_NODE_RIGHT_SON_DEFAULT_KTH, rightSonUid, null, TMSetting.SUPER_TRANSACTION_XID);
+        return encodeNodeBytes(entries);
     }
 
     /**
@@ -91,11 +96,44 @@ public class BPlusTreeNode {
      * @Description: 新建一个叶子节点，字节数组形式
      */
     public static byte[] buildLeafNodeBytes(){
-        SubArray nodeData = new SubArray(new byte[IMSetting.NODE_SIZE], 0, IMSetting.NODE_SIZE);
-        setNodeLeafFlag(nodeData, true);
-        setNodeKeysCount(nodeData, IMSetting.LEAF_NODE_KEYS_COUNT_DEFAULT);
-        setNodeSiblingUid(nodeData, IMSetting.NODE_SIBLING_UID_DEFAULT);
-        return nodeData.rawData;
+        return encodeNodeBytes(newNodeEntries(true, IMSetting.NODE_SIBLING_UID_DEFAULT, IMSetting.LEAF_NODE_KEYS_COUNT_DEFAULT));
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按给定内容直接构建一个节点，字节数组形式，批量构建时使用
+     * sonUids、keys 中从 from 开始的 count 个 uid-key 对依次放入节点，key 为 null 表示无穷大，xmins 为 null 时都记为超级事务插入
+     */
+    public static byte[] buildNodeBytes(boolean isLeaf, long[] sonUids, byte[][] keys, long[] xmins, int from, int count, long siblingUid){
+        IMSetting.NodeEntries entries = newNodeEntries(isLeaf, siblingUid, count);
+        for(int kth = 0; kth < count; kth ++){
+            long xmin = Objects.isNull(xmins) ? TMSetting.SUPER_TRANSACTION_XID : xmins[from + kth];
+            insertEntry(entries, kth, sonUids[from + kth], keys[from + kth], xmin);
+        }
+        return encodeNodeBytes(entries);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 一个 uid-key 对编码后占用的字节数，叶子节点还包括版本信息
+     */
+    public static int getEntrySize(boolean isLeaf, byte[] key){
+        int entrySize = IMSetting.NODE_SLOT_SIZE + (Objects.isNull(key) ? 0 : key.length);
+        return isLeaf ? entrySize + IMSetting.LEAF_ENTRY_VERSION_SIZE : entrySize;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置兄弟节点uid，批量构建时把前一个叶子节点串到新的叶子节点上
+     */
+    public void setSiblingUid(long siblingUid) throws WarningException, ErrorException {
+        this.dataItem.beforeModify();
+        try {
+            setNodeSiblingUid(this.nodeData, siblingUid);
+        }
+        finally {
+            this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+        }
     }
 
     /**
@@ -110,22 +148,19 @@ public class BPlusTreeNode {
      * @Author: 711lxsky
      * @Description: 在某个节点中遍历寻找满足Key条件的数据定位，也就是下一层节点
      */
-    public IMSetting.SearchNextNodeResult searchNext(long tarKey){
+    public IMSetting.SearchNextNodeResult searchNext(byte[] tarKey){
         this.dataItem.readLock();
         try{
             IMSetting.SearchNextNodeResult result = new IMSetting.SearchNextNodeResult();
             // 先拿到当前节点的key数量
             short nodeKeysCount = getNodeKeysCount(this.nodeData);
-            // 逐个遍历找到第一个大于tarKey的key
-            for(short index = 0; index < nodeKeysCount; index ++){
-                long nodeKthKey = getNodeKthKey(this.nodeData, index);
-                if(nodeKthKey > tarKey){
-                    // 如果是叶子节点，这里的uid就是某个磁盘位置，和key对应
-                    // 如果是非叶子节点，这里uid实际是kth - 1位置key值对应的节点标识，且这个节点中的所有数据都小于等于tarKey
-                    result.nodeUid = getNodeKthSonUid(this.nodeData, index);
-                    result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
-                    return result;
-                }
+            // 二分找到第一个大于tarKey的key
+            int kth = searchFirstKeyGreater(this.nodeData, nodeKeysCount, tarKey);
+            if(kth < nodeKeysCount){
+                // 非叶子节点中 kth 位置的 key 是该位置子节点的上界，第一个大于 tarKey 的上界对应的子节点就是目标
+                result.nodeUid = getNodeKthSonUid(this.nodeData, kth);
+                result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+                return result;
             }
             // 没有找到，返回兄弟节点的uid
             result.nodeUid = IMSetting.NODE_UID_DEFAULT;
@@ -139,32 +174,34 @@ public class BPlusTreeNode {
 
     /**
      * @Author: 711lxsky
-     * @Description: 在叶子节点中进行范围搜索
+     * @Description: 在叶子节点中扫描 [leftKey, rightKey) 范围，rightKey 为 null 表示无穷大
+     * 满足条件的 uid、key 以及版本信息依次写入 buffer，只有扫到节点末尾时才返回兄弟节点uid
      */
-    public IMSetting.LeafSearchRangeNodeResult leafSearchRange(long leftKey, long rightKey){
+    public IMSetting.LeafScanRangeNodeResult leafScanRange(byte[] leftKey, byte[] rightKey, IMSetting.LeafScanBuffer buffer){
         this.dataItem.readLock();
         try{
-            // 当前操作都是在叶子节点中进行，非叶子节点范围搜索是没有意义的
             short nodeKeysCount = getNodeKeysCount(this.nodeData);
-            int kth = 0;
-            // 先定位到 >= leftKey位置
-            while(kth < nodeKeysCount && getNodeKthKey(this.nodeData, kth) < leftKey){
-                kth ++;
-            }
-            List<Long> resultUidList = new ArrayList<>();
-            // 再将所有满足 <= rightKey 的数据定位放进返回列表
-            while(kth < nodeKeysCount && getNodeKthKey(this.nodeData, kth) <= rightKey){
-                resultUidList.add(getNodeKthSonUid(this.nodeData, kth));
+            int kth = searchFirstKeyNotLess(this.nodeData, nodeKeysCount, leftKey);
+            int scannedCount = 0;
+            int keysEnd = 0;
+            while(kth < nodeKeysCount){
+                if(Objects.nonNull(rightKey) && compareNodeKthKey(this.nodeData, kth, rightKey) >= 0){
+                    break;
+                }
+                int keyLength = getNodeKthKeyLength(this.nodeData, kth);
+                int keyBegin = this.nodeData.start + getNodeKthKeyOffset(this.nodeData, kth);
+                System.arraycopy(this.nodeData.rawData, keyBegin, buffer.keys, keysEnd, keyLength);
+                keysEnd += keyLength;
+                buffer.keysEnd[scannedCount] = keysEnd;
+                buffer.uids[scannedCount] = getNodeKthSonUid(this.nodeData, kth);
+                buffer.xmins[scannedCount] = (long) LONG_HANDLE.get(this.nodeData.rawData, keyBegin + keyLength);
+                buffer.xmaxs[scannedCount] = (long) LONG_HANDLE.get(this.nodeData.rawData, keyBegin + keyLength + IMSetting.LEAF_ENTRY_XMIN_LENGTH);
+                scannedCount ++;
                 kth ++;
             }
-            long resultSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
-            if(kth == nodeKeysCount){
-                // 没找完，兄弟节点中可能还含有符合条件的
-                resultSiblingUid = getNodeSiblingUid(this.nodeData);
-            }
-            IMSetting.LeafSearchRangeNodeResult result = new IMSetting.LeafSearchRangeNodeResult();
-            result.nodeUidList = resultUidList;
-            result.nodeSiblingUid = resultSiblingUid;
+            IMSetting.LeafScanRangeNodeResult result = new IMSetting.LeafScanRangeNodeResult();
+            result.nodeScannedCount = scannedCount;
+            result.nodeSiblingUid = kth == nodeKeysCount ? getNodeSiblingUid(this.nodeData) : IMSetting.NODE_SIBLING_UID_DEFAULT;
             return result;
         }
         finally {
@@ -176,108 +213,378 @@ public class BPlusTreeNode {
      * @Author: 711lxsky
      * @Description: 插入某个节点，并且判断是否需要分裂，如有需要完成分裂
      */
-    public IMSetting.InsertAndSplitNodeResult insertAndSplit(long insertNodeUid, long insertNodeKey) throws WarningException, ErrorException {
+    public IMSetting.InsertAndSplitNodeResult insertAndSplit(long insertNodeUid, byte[] insertNodeKey, long insertNodeXmin) throws WarningException, ErrorException {
         IMSetting.InsertAndSplitNodeResult result = new IMSetting.InsertAndSplitNodeResult();
         result.nodeNewSonUid = IMSetting.NODE_UID_DEFAULT;
         boolean insertSuccess = false;
         this.dataItem.beforeModify();
         try {
+            IMSetting.NodeEntries entries = decodeNode(this.nodeData);
             // 插入
-            insertSuccess = this.insertNode(insertNodeUid, insertNodeKey);
+            insertSuccess = insertIntoEntries(entries, insertNodeUid, insertNodeKey, insertNodeXmin);
             if(! insertSuccess){
-                result.nodeSiblingUid = getNodeSiblingUid(this.nodeData);
+                result.nodeSiblingUid = entries.siblingUid;
                 return result;
             }
-            if(judgeNeedSplit()){
-                IMSetting.SplitNodeResult splitResult = this.splitNode();
-                result.nodeNewSonUid = splitResult.nodeNewSonUid;
-                result.nodeNewKey = splitResult.nodeNewKey;
-            }
+            this.writeBackOrSplit(entries, result);
             return result;
         }
         finally {
             if(insertSuccess){
+                // 成功，写日志
+                this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+            }
+            else {
                 // 插入不成功，撤销数据更改
+                this.dataItem.unBeforeModify();
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 向叶子节点中批量插入按 key 有序的数据，整个批次只加一次写锁、只写一条日志
+     * 从 from 开始插入，直到数据不再属于当前节点，或者节点放不下需要分裂为止，分裂最多发生一次
+     * 一条都没有插入时，返回兄弟节点uid，由调用方右移后重试
+     */
+    public IMSetting.InsertAndSplitNodeResult insertSortedAndSplit(long[] insertNodeUids, byte[][] insertNodeKeys, long[] insertNodeXmins, int from, int to) throws WarningException, ErrorException {
+        IMSetting.InsertAndSplitNodeResult result = new IMSetting.InsertAndSplitNodeResult();
+        result.nodeNewSonUid = IMSetting.NODE_UID_DEFAULT;
+        int insertedCount = 0;
+        this.dataItem.beforeModify();
+        try {
+            IMSetting.NodeEntries entries = decodeNode(this.nodeData);
+            while(from + insertedCount < to && entries.bytesSize <= IMSetting.NODE_SIZE){
+                int index = from + insertedCount;
+                if(! insertIntoEntries(entries, insertNodeUids[index], insertNodeKeys[index], insertNodeXmins[index])){
+                    break;
+                }
+                insertedCount ++;
+            }
+            result.nodeInsertedCount = insertedCount;
+            if(insertedCount == 0){
+                result.nodeSiblingUid = entries.siblingUid;
+                return result;
+            }
+            result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+            this.writeBackOrSplit(entries, result);
+            return result;
+        }
+        finally {
+            if(insertedCount > 0){
                 this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
             }
             else {
-                // 成功
                 this.dataItem.unBeforeModify();
             }
         }
     }
 
-    private boolean insertNode(long insertNodeUid, long insertNodeKey){
-        short nodeKeysCount = getNodeKeysCount(this.nodeData);
-        int kth = 0;
-        // 先找到第一个 >= key 的位置
-        while(kth < nodeKeysCount && getNodeKthKey(this.nodeData, kth) < insertNodeKey){
-            kth ++;
+    /**
+     * @Author: 711lxsky
+     * @Description: 修改后的内容放得下就直接写回，放不下就分裂，并把分裂结果记入 result
+     */
+    private void writeBackOrSplit(IMSetting.NodeEntries entries, IMSetting.InsertAndSplitNodeResult result) throws WarningException, ErrorException {
+        if(entries.bytesSize <= IMSetting.NODE_SIZE){
+            encodeNode(this.nodeData, entries);
+            return;
         }
+        IMSetting.SplitNodeResult splitResult = this.splitNode(entries);
+        result.nodeNewSonUid = splitResult.nodeNewSonUid;
+        result.nodeNewKey = splitResult.nodeNewKey;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在叶子节点中删除一条 uid-key 对，相同 key 可能有多条，按 uid 精确匹配
+     * 当前节点中没有找到，且相同的 key 可能延续到兄弟节点时，返回兄弟节点uid
+     */
+    public IMSetting.DeleteNodeResult deleteEntry(long deleteNodeUid, byte[] deleteNodeKey) throws WarningException, ErrorException {
+        IMSetting.DeleteNodeResult result = new IMSetting.DeleteNodeResult();
+        result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+        this.dataItem.beforeModify();
+        try {
+            short nodeKeysCount = getNodeKeysCount(this.nodeData);
+            int kth = searchFirstKeyNotLess(this.nodeData, nodeKeysCount, deleteNodeKey);
+            while(kth < nodeKeysCount && compareNodeKthKey(this.nodeData, kth, deleteNodeKey) == 0){
+                if(getNodeKthSonUid(this.nodeData, kth) == deleteNodeUid){
+                    IMSetting.NodeEntries entries = decodeNode(this.nodeData);
+                    removeEntry(entries, kth);
+                    encodeNode(this.nodeData, entries);
+                    result.nodeDeleted = true;
+                    result.nodeUnderflow = entries.bytesSize < IMSetting.NODE_MERGE_THRESHOLD;
+                    return result;
+                }
+                kth ++;
+            }
+            if(kth == nodeKeysCount){
+                result.nodeSiblingUid = getNodeSiblingUid(this.nodeData);
+            }
+            return result;
+        }
+        finally {
+            if(result.nodeDeleted){
+                this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+            }
+            else {
+                this.dataItem.unBeforeModify();
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在叶子节点中给一条 uid-key 对记下删除它的事务XID，版本信息定长，直接原地修改
+     * 当前节点中没有找到，且相同的 key 可能延续到兄弟节点时，返回兄弟节点uid
+     */
+    public IMSetting.MarkNodeResult markDeleted(long markNodeUid, byte[] markNodeKey, long xmax) throws WarningException, ErrorException {
+        IMSetting.MarkNodeResult result = new IMSetting.MarkNodeResult();
+        result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+        this.dataItem.beforeModify();
+        try {
+            short nodeKeysCount = getNodeKeysCount(this.nodeData);
+            int kth = searchFirstKeyNotLess(this.nodeData, nodeKeysCount, markNodeKey);
+            while(kth < nodeKeysCount && compareNodeKthKey(this.nodeData, kth, markNodeKey) == 0){
+                if(getNodeKthSonUid(this.nodeData, kth) == markNodeUid){
+                    int xmaxOffset = this.nodeData.start + getNodeKthKeyOffset(this.nodeData, kth)
+                            + getNodeKthKeyLength(this.nodeData, kth) + IMSetting.LEAF_ENTRY_XMIN_LENGTH;
+                    LONG_HANDLE.set(this.nodeData.rawData, xmaxOffset, xmax);
+                    result.nodeMarked = true;
+                    return result;
+                }
+                kth ++;
+            }
+            if(kth == nodeKeysCount){
+                result.nodeSiblingUid = getNodeSiblingUid(this.nodeData);
+            }
+            return result;
+        }
+        finally {
+            if(result.nodeMarked){
+                this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+            }
+            else {
+                this.dataItem.unBeforeModify();
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 当前节点作为父节点，对 key 所在的过空子节点做合并或重新分配
+     * 为了和 B-link 的右移查找兼容，数据只会从左向右搬动：
+     * 1. 子节点并入右兄弟，子节点清空，父节点删去子节点这一项
+     * 2. 左兄弟并入子节点，左兄弟清空，父节点删去左兄弟这一项
+     * 3. 左兄弟尾部的一部分数据搬到子节点头部，更新父节点中左兄弟的上界，新的上界放不进父节点时不做处理
+     * 每层最左侧的节点不会被清空，这样旧的根节点始终是它那一层的最左节点
+     * 加锁顺序固定为父节点、左兄弟、子节点、右兄弟，从上到下、从左到右，不会死锁
+     */
+    public IMSetting.RebalanceNodeResult rebalanceChild(byte[] key) throws WarningException, ErrorException {
+        IMSetting.RebalanceNodeResult result = new IMSetting.RebalanceNodeResult();
+        result.nodeSiblingUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+        BPlusTreeNode leftNode = null, node = null, rightNode = null;
+        boolean selfModified = false, leftModified = false, nodeModified = false, rightModified = false;
+        this.dataItem.beforeModify();
+        try {
+            int keysCount = getNodeKeysCount(this.nodeData);
+            int kth = searchFirstKeyGreater(this.nodeData, keysCount, key);
+            if(kth == keysCount){
+                // 当前节点被并发分裂过，子节点在右侧
+                result.nodeSiblingUid = getNodeSiblingUid(this.nodeData);
+                return result;
+            }
+            if(kth >= 1){
+                leftNode = loadAndLatchNode(this.bPlusTree, getNodeKthSonUid(this.nodeData, kth - 1));
+            }
+            node = loadAndLatchNode(this.bPlusTree, getNodeKthSonUid(this.nodeData, kth));
+            if(kth + 1 < keysCount){
+                rightNode = loadAndLatchNode(this.bPlusTree, getNodeKthSonUid(this.nodeData, kth + 1));
+            }
+            IMSetting.NodeEntries selfEntries = decodeNode(this.nodeData);
+            IMSetting.NodeEntries nodeEntries = decodeNode(node.nodeData);
+            if(nodeEntries.bytesSize < IMSetting.NODE_MERGE_THRESHOLD){
+                // 兄弟指针不一致说明子节点刚被并发分裂，新节点还没插入父节点，这次不处理
+                boolean leftLinked = Objects.nonNull(leftNode) && getNodeSiblingUid(leftNode.nodeData) == node.nodeUid;
+                boolean rightLinked = Objects.nonNull(rightNode) && getNodeSiblingUid(node.nodeData) == rightNode.nodeUid;
+                IMSetting.NodeEntries rightEntries = rightLinked ? decodeNode(rightNode.nodeData) : null;
+                IMSetting.NodeEntries leftEntries = leftLinked ? decodeNode(leftNode.nodeData) : null;
+                if(kth >= 1 && rightLinked
+                        && nodeEntries.bytesSize + rightEntries.bytesSize - IMSetting.NODE_HEAD_SIZE <= IMSetting.NODE_MERGE_SIZE_MAX){
+                    // 子节点并入右兄弟
+                    moveTailToFront(nodeEntries, 0, rightEntries);
+                    if(leftLinked){
+                        setNodeSiblingUid(leftNode.nodeData, rightNode.nodeUid);
+                        leftModified = true;
+                    }
+                    removeEntry(selfEntries, kth);
+                    encodeNode(node.nodeData, nodeEntries);
+                    encodeNode(rightNode.nodeData, rightEntries);
+                    selfModified = nodeModified = rightModified = true;
+                }
+                else if(leftLinked){
+                    if(kth >= 2 && leftEntries.bytesSize + nodeEntries.bytesSize - IMSetting.NODE_HEAD_SIZE <= IMSetting.NODE_MERGE_SIZE_MAX){
+                        // 左兄弟并入子节点
+                        moveTailToFront(leftEntries, 0, nodeEntries);
+                        removeEntry(selfEntries, kth - 1);
+                        encodeNode(leftNode.nodeData, leftEntries);
+                        encodeNode(node.nodeData, nodeEntries);
+                        selfModified = leftModified = nodeModified = true;
+                    }
+                    else if(moveLeftTailToBalance(leftEntries, nodeEntries)){
+                        // 左兄弟尾部的数据搬到子节点
+                        byte[] leftBound = nodeEntries.isLeaf
+                                ? nodeEntries.keys[IMSetting.NODE_KEY_POS_DEFAULT]
+                                : leftEntries.keys[leftEntries.count - 1];
+                        setEntryKey(selfEntries, kth - 1, leftBound);
+                        if(selfEntries.bytesSize <= IMSetting.NODE_SIZE){
+                            encodeNode(leftNode.nodeData, leftEntries);
+                            encodeNode(node.nodeData, nodeEntries);
+                            selfModified = leftModified = nodeModified = true;
+                        }
+                    }
+                }
+            }
+            if(selfModified){
+                encodeNode(this.nodeData, selfEntries);
+            }
+            result.nodeUnderflow = getNodeBytesSize(this.nodeData) < IMSetting.NODE_MERGE_THRESHOLD;
+            return result;
+        }
+        finally {
+            finishNodeModify(leftNode, leftModified);
+            finishNodeModify(node, nodeModified);
+            finishNodeModify(rightNode, rightModified);
+            if(selfModified){
+                this.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+            }
+            else {
+                this.dataItem.unBeforeModify();
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 逐个把左兄弟尾部的数据搬到子节点头部，直到两边占用的字节数大致相等，返回是否搬动过
+     */
+    private static boolean moveLeftTailToBalance(IMSetting.NodeEntries leftEntries, IMSetting.NodeEntries nodeEntries){
+        boolean moved = false;
+        while(leftEntries.count > 1){
+            int moveSize = getEntrySize(leftEntries.isLeaf, leftEntries.keys[leftEntries.count - 1]);
+            if(leftEntries.bytesSize - moveSize < nodeEntries.bytesSize + moveSize){
+                break;
+            }
+            moveTailToFront(leftEntries, leftEntries.count - 1, nodeEntries);
+            moved = true;
+        }
+        return moved;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 加载节点并加写锁
+     */
+    private static BPlusTreeNode loadAndLatchNode(BPlusTree tree, long nodeUid) throws WarningException, ErrorException {
+        BPlusTreeNode node = loadBPlusTreeNode(tree, nodeUid);
+        if(Objects.isNull(node)){
+            Log.logErrorMessage(ErrorMessage.B_PLUS_TREE_NODE_DATA_ERROR);
+            return null;
+        }
+        node.dataItem.beforeModify();
+        return node;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 修改过的节点写日志，没修改的直接撤销，然后释放写锁和引用
+     */
+    private static void finishNodeModify(BPlusTreeNode node, boolean modified) throws WarningException, ErrorException {
+        if(Objects.isNull(node)){
+            return;
+        }
+        if(modified){
+            node.dataItem.afterModify(TMSetting.SUPER_TRANSACTION_XID);
+        }
+        else {
+            node.dataItem.unBeforeModify();
+        }
+        node.releaseOneReference();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在解码后的节点内容中插入一个 uid-key 对，key 不属于当前节点时返回 false
+     */
+    private static boolean insertIntoEntries(IMSetting.NodeEntries entries, long insertNodeUid, byte[] insertNodeKey, long insertNodeXmin){
+        // 先二分找到第一个 >= key 的位置
+        int kth = searchFirstKeyNotLess(entries, insertNodeKey);
         // 如果没有找到而且当前节点有兄弟节点，那就返回 false 用以后续操作去兄弟节点寻找
-        if(kth == nodeKeysCount && getNodeSiblingUid(this.nodeData) != IMSetting.NODE_SIBLING_UID_DEFAULT){
+        if(kth == entries.count && entries.siblingUid != IMSetting.NODE_SIBLING_UID_DEFAULT){
             return false;
         }
         // 这里可能是找到了， 也可能是没有兄弟节点只能插在当前节点
-        if(selfIsLeafNode()){
+        if(entries.isLeaf){
             // 如果是叶子节点的话，直接插入，uid和key是成套配对的
-            moveBackNodeFromKth(this.nodeData, kth);
-            setNodeKthSon(this.nodeData, insertNodeUid, kth);
-            setNodeKthKey(this.nodeData, insertNodeKey, kth);
-            setNodeKeysCount(this.nodeData, (short) (nodeKeysCount + 1));
+            insertEntry(entries, kth, insertNodeUid, insertNodeKey, insertNodeXmin);
         }
         else {
-            // 注意，如果是非叶子节点的话，kth位置的key是和 kth + 1位置的uid对应的， 为其最小记录值
-            // 所以当前 kth 位置的 uid 和 kth - 1位置的key对应，不需要移动
-            // 只需要将 kth + 1位置及以后的数据(包含kth + 1的uid)后移，原本 kth 位置的 key 放到kth + 1后段，
-            moveBackNodeFromKth(this.nodeData, kth + 1);
-            long nodeKthKey = getNodeKthKey(this.nodeData, kth);
-            setNodeKthKey(this.nodeData, nodeKthKey, kth + 1);
-            // 将插入的key放在kth位置，插入的uid放在kth + 1前段
-            setNodeKthKey(this.nodeData, insertNodeKey, kth);
-            setNodeKthSon(this.nodeData, insertNodeUid, kth + 1);
-
-            // 这样非叶子节点的对应关系依然成立
-
-            // 或者也可以直接从 kth 位置开始后移，然后插入数据将 kth 位置 key 和 kth + 1 位置的 uid 覆盖
-            /*
-            moveBackNodeFromKth(this.nodeData, kth);
-            setNodeKthKey(this.nodeData, insertNodeKey, kth);
-            setNodeKthSon(this.nodeData, insertNodeUid, kth + 1);
-            */
-
-            setNodeKeysCount(this.nodeData, (short) (nodeKeysCount + 1));
+            // 非叶子节点中 kth 位置的子节点分裂成了两半，左半的上界是插入的 key，右半即插入的 uid，上界沿用原来 kth 位置的 key
+            insertEntry(entries, kth + 1, insertNodeUid, entries.keys[kth], TMSetting.SUPER_TRANSACTION_XID);
+            setEntryKey(entries, kth, insertNodeKey);
         }
         return true;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 分裂节点
+     * @Description: 分裂节点，按占用的字节数对半分，右侧的半边放到新节点
      */
-    private IMSetting.SplitNodeResult splitNode() throws WarningException, ErrorException {
-        SubArray newNodeData = new SubArray(new byte[IMSetting.NODE_SIZE], 0, IMSetting.NODE_SIZE);
-        // 按照当前节点的性质复制一下
-        setNodeLeafFlag(newNodeData, judgeNodeIsLeaf(this.nodeData));
-        // 2个NODE_BALANCE_NUMBER,所以对半分
-        setNodeKeysCount(newNodeData, (short) IMSetting.NODE_BALANCE_NUMBER);
+    private IMSetting.SplitNodeResult splitNode(IMSetting.NodeEntries entries) throws WarningException, ErrorException {
+        int halfSize = (entries.bytesSize - IMSetting.NODE_HEAD_SIZE) / 2;
+        int leftCount = 0, leftSize = 0;
+        while(leftCount < entries.count - 1){
+            int entrySize = getEntrySize(entries.isLeaf, entries.keys[leftCount]);
+            if(leftCount > 0 && leftSize + entrySize > halfSize){
+                break;
+            }
+            leftSize += entrySize;
+            leftCount ++;
+        }
         // 因为分裂出的节点放在当前节点的右侧，所以当前节点的兄弟节点uid赋给分裂节点
-        setNodeSiblingUid(newNodeData, getNodeSiblingUid(this.nodeData));
-        // 右侧的大的半边给分裂节点
-        copyNodeDataFromKth(this.nodeData, newNodeData, IMSetting.NODE_BALANCE_NUMBER);
+        IMSetting.NodeEntries newEntries = newNodeEntries(entries.isLeaf, entries.siblingUid, entries.count - leftCount);
+        moveTailToFront(entries, leftCount, newEntries);
         // 分裂节点的数据保存，同时获取uid
-        long newNodeUid = this.bPlusTree.getDm().insertData(TMSetting.SUPER_TRANSACTION_XID, newNodeData.rawData);
-        // 当前节点也只剩一半数据
-        setNodeKeysCount(this.nodeData, (short) IMSetting.NODE_BALANCE_NUMBER);
+        long newNodeUid = this.bPlusTree.getDm().insertData(TMSetting.SUPER_TRANSACTION_XID, encodeNodeBytes(newEntries));
         // 设置当前节点的兄弟节点为分裂节点
-        setNodeSiblingUid(this.nodeData, newNodeUid);
+        entries.siblingUid = newNodeUid;
+        encodeNode(this.nodeData, entries);
         IMSetting.SplitNodeResult result = new IMSetting.SplitNodeResult();
         result.nodeNewSonUid = newNodeUid;
-        // 每个节点的对应的key值都是最小数据
-        result.nodeNewKey = getNodeKthKey(this.nodeData, IMSetting.NODE_KEY_POS_DEFAULT);
+        if(entries.isLeaf){
+            // 叶子节点的key是真实数据，父节点中用分裂出的新节点的最小数据做分隔
+            result.nodeNewKey = newEntries.keys[IMSetting.NODE_KEY_POS_DEFAULT];
+        }
+        else {
+            // 非叶子节点的key是其son的上界，当前节点剩下的最后一个key就是它整体的上界
+            result.nodeNewKey = entries.keys[leftCount - 1];
+        }
         return result;
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取最左侧的子节点uid，节点分裂不会改变它
+     */
+    public long getFirstSonUid(){
+        this.dataItem.readLock();
+        try {
+            return getNodeKthSonUid(this.nodeData, IMSetting.NODE_KEY_POS_DEFAULT);
+        }
+        finally {
+            this.dataItem.readUnlock();
+        }
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 实例使用的判断是否是叶子节点方法
@@ -318,80 +625,275 @@ public class BPlusTreeNode {
     }
 
     private static void setNodeKeysCount(SubArray nodeData, short keysCount){
-        System.arraycopy(ByteParser.shortToBytes(keysCount), 0, nodeData.rawData,
-                nodeData.start + IMSetting.NODE_KEYS_COUNT_OFFSET, IMSetting.NODE_KEY_COUNT_LENGTH);
+        SHORT_HANDLE.set(nodeData.rawData, nodeData.start + IMSetting.NODE_KEYS_COUNT_OFFSET, keysCount);
     }
 
     private static short getNodeKeysCount(SubArray nodeData){
-        byte[] nodeKeysCountBytes = Arrays.copyOfRange(nodeData.rawData, nodeData.start + IMSetting.NODE_KEYS_COUNT_OFFSET,
-                nodeData.start + IMSetting.NODE_KEYS_COUNT_OFFSET + IMSetting.NODE_KEY_COUNT_LENGTH);
-        return ByteParser.parseBytesToShort(nodeKeysCountBytes);
+        return (short) SHORT_HANDLE.get(nodeData.rawData, nodeData.start + IMSetting.NODE_KEYS_COUNT_OFFSET);
     }
 
     private static void setNodeSiblingUid(SubArray nodeData, long siblingUid){
-        System.arraycopy(ByteParser.longToBytes(siblingUid), 0, nodeData.rawData,
-                nodeData.start + IMSetting.NODE_SIBLING_UID_OFFSET, IMSetting.NODE_SIBLING_UID_LENGTH);
+        LONG_HANDLE.set(nodeData.rawData, nodeData.start + IMSetting.NODE_SIBLING_UID_OFFSET, siblingUid);
     }
 
     private static long getNodeSiblingUid(SubArray nodeData){
-        byte[] nodeSiblingUidBytes = Arrays.copyOfRange(nodeData.rawData, nodeData.start + IMSetting.NODE_SIBLING_UID_OFFSET,
-                nodeData.start + IMSetting.NODE_SIBLING_UID_OFFSET + IMSetting.NODE_SIBLING_UID_LENGTH);
-        return ByteParser.parseBytesToLong(nodeSiblingUidBytes);
+        return (long) LONG_HANDLE.get(nodeData.rawData, nodeData.start + IMSetting.NODE_SIBLING_UID_OFFSET);
     }
 
-    private static void setNodeKthSon(SubArray nodeData,long sonUid, int kth){
-        int sonUidOffset = nodeData.start + IMSetting.NODE_HEAD_SIZE + kth * IMSetting.NODE_SON_COUPLE_SIZE;
-        System.arraycopy(ByteParser.longToBytes(sonUid), 0, nodeData.rawData,
-                sonUidOffset, IMSetting.NODE_UID_LENGTH);
+    private static int getNodeKthSlotOffset(SubArray nodeData, int kth){
+        return nodeData.start + IMSetting.NODE_HEAD_SIZE + kth * IMSetting.NODE_SLOT_SIZE;
     }
 
     private static long getNodeKthSonUid(SubArray nodeData, int kth){
-        int sonUidOffset = nodeData.start + IMSetting.NODE_HEAD_SIZE + kth * IMSetting.NODE_SON_COUPLE_SIZE;
-        byte[] sonUidBytes = Arrays.copyOfRange(nodeData.rawData, sonUidOffset, sonUidOffset + IMSetting.NODE_UID_LENGTH);
-        return ByteParser.parseBytesToLong(sonUidBytes);
+        return (long) LONG_HANDLE.get(nodeData.rawData, getNodeKthSlotOffset(nodeData, kth));
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: kth 位置的 key 相对节点起始位置的偏移量
+     */
+    private static int getNodeKthKeyOffset(SubArray nodeData, int kth){
+        return (short) SHORT_HANDLE.get(nodeData.rawData, getNodeKthSlotOffset(nodeData, kth) + IMSetting.NODE_UID_LENGTH);
+    }
+
+    private static short getNodeKthKeyLength(SubArray nodeData, int kth){
+        return (short) SHORT_HANDLE.get(nodeData.rawData,
+                getNodeKthSlotOffset(nodeData, kth) + IMSetting.NODE_UID_LENGTH + IMSetting.NODE_KEY_OFFSET_LENGTH);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 直接在节点字节数组上比较 kth 位置的 key 和 tarKey，无穷大的 key 比任何 key 都大
+     */
+    private static int compareNodeKthKey(SubArray nodeData, int kth, byte[] tarKey){
+        short keyLength = getNodeKthKeyLength(nodeData, kth);
+        if(keyLength == IMSetting.NODE_KEY_LENGTH_INFINITE){
+            return 1;
+        }
+        int keyBegin = nodeData.start + getNodeKthKeyOffset(nodeData, kth);
+        return Arrays.compareUnsigned(nodeData.rawData, keyBegin, keyBegin + keyLength, tarKey, 0, tarKey.length);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 节点编码后占用的字节数
+     */
+    private static int getNodeBytesSize(SubArray nodeData){
+        int keysCount = getNodeKeysCount(nodeData);
+        int bytesSize = IMSetting.NODE_HEAD_SIZE + keysCount * IMSetting.NODE_SLOT_SIZE;
+        for(int kth = 0; kth < keysCount; kth ++){
+            bytesSize += Math.max(getNodeKthKeyLength(nodeData, kth), 0);
+        }
+        return judgeNodeIsLeaf(nodeData) ? bytesSize + keysCount * IMSetting.LEAF_ENTRY_VERSION_SIZE : bytesSize;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 二分查找第一个 >= tarKey 的位置，没有时返回 keysCount
+     */
+    private static int searchFirstKeyNotLess(SubArray nodeData, int keysCount, byte[] tarKey){
+        int low = 0, high = keysCount;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(compareNodeKthKey(nodeData, mid, tarKey) < 0){
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 二分查找第一个 > tarKey 的位置，没有时返回 keysCount
+     */
+    private static int searchFirstKeyGreater(SubArray nodeData, int keysCount, byte[] tarKey){
+        int low = 0, high = keysCount;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(compareNodeKthKey(nodeData, mid, tarKey) <= 0){
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在解码后的节点内容中二分查找第一个 >= tarKey 的位置，没有时返回 count
+     */
+    private static int searchFirstKeyNotLess(IMSetting.NodeEntries entries, byte[] tarKey){
+        int low = 0, high = entries.count;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(IndexKey.compare(entries.keys[mid], tarKey) < 0){
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static IMSetting.NodeEntries newNodeEntries(boolean isLeaf, long siblingUid, int capacity){
+        IMSetting.NodeEntries entries = new IMSetting.NodeEntries();
+        entries.isLeaf = isLeaf;
+        entries.siblingUid = siblingUid;
+        entries.uids = new long[Math.max(capacity, 1)];
+        entries.keys = new byte[Math.max(capacity, 1)][];
+        entries.xmins = new long[Math.max(capacity, 1)];
+        entries.xmaxs = new long[Math.max(capacity, 1)];
+        entries.count = 0;
+        entries.bytesSize = IMSetting.NODE_HEAD_SIZE;
+        return entries;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把节点解码成 NodeEntries，key 会被复制出来，之后可以直接覆盖节点数据
+     */
+    private static IMSetting.NodeEntries decodeNode(SubArray nodeData){
+        int keysCount = getNodeKeysCount(nodeData);
+        // 多留一个位置给插入
+        IMSetting.NodeEntries entries = newNodeEntries(judgeNodeIsLeaf(nodeData), getNodeSiblingUid(nodeData), keysCount + 1);
+        for(int kth = 0; kth < keysCount; kth ++){
+            short keyLength = getNodeKthKeyLength(nodeData, kth);
+            int keyBegin = nodeData.start + getNodeKthKeyOffset(nodeData, kth);
+            byte[] key = null;
+            if(keyLength != IMSetting.NODE_KEY_LENGTH_INFINITE){
+                key = Arrays.copyOfRange(nodeData.rawData, keyBegin, keyBegin + keyLength);
+            }
+            if(entries.isLeaf){
+                insertEntry(entries, kth, getNodeKthSonUid(nodeData, kth), key, (long) LONG_HANDLE.get(nodeData.rawData, keyBegin + keyLength));
+                entries.xmaxs[kth] = (long) LONG_HANDLE.get(nodeData.rawData, keyBegin + keyLength + IMSetting.LEAF_ENTRY_XMIN_LENGTH);
+            }
+            else {
+                insertEntry(entries, kth, getNodeKthSonUid(nodeData, kth), key, TMSetting.SUPER_TRANSACTION_XID);
+            }
+        }
+        return entries;
     }
 
-    private static void setNodeKthKey(SubArray nodeData, long key, int kth){
-        int keyOffset = nodeData.start + IMSetting.NODE_HEAD_SIZE + kth * IMSetting.NODE_SON_COUPLE_SIZE + IMSetting.NODE_UID_LENGTH;
-        System.arraycopy(ByteParser.longToBytes(key), 0, nodeData.rawData,
-                keyOffset, IMSetting.INDEX_KEY_LENGTH);
+    /**
+     * @Author: 711lxsky
+     * @Description: 把 NodeEntries 编码写入节点，调用方需保证占用的字节数不超过节点大小
+     */
+    private static void encodeNode(SubArray nodeData, IMSetting.NodeEntries entries){
+        setNodeLeafFlag(nodeData, entries.isLeaf);
+        setNodeKeysCount(nodeData, (short) entries.count);
+        setNodeSiblingUid(nodeData, entries.siblingUid);
+        int keyOffset = IMSetting.NODE_HEAD_SIZE + entries.count * IMSetting.NODE_SLOT_SIZE;
+        for(int kth = 0; kth < entries.count; kth ++){
+            int slotOffset = getNodeKthSlotOffset(nodeData, kth);
+            byte[] key = entries.keys[kth];
+            LONG_HANDLE.set(nodeData.rawData, slotOffset, entries.uids[kth]);
+            SHORT_HANDLE.set(nodeData.rawData, slotOffset + IMSetting.NODE_UID_LENGTH, (short) keyOffset);
+            if(Objects.isNull(key)){
+                SHORT_HANDLE.set(nodeData.rawData, slotOffset + IMSetting.NODE_UID_LENGTH + IMSetting.NODE_KEY_OFFSET_LENGTH,
+                        IMSetting.NODE_KEY_LENGTH_INFINITE);
+                continue;
+            }
+            SHORT_HANDLE.set(nodeData.rawData, slotOffset + IMSetting.NODE_UID_LENGTH + IMSetting.NODE_KEY_OFFSET_LENGTH, (short) key.length);
+            System.arraycopy(key, 0, nodeData.rawData, nodeData.start + keyOffset, key.length);
+            keyOffset += key.length;
+            if(entries.isLeaf){
+                LONG_HANDLE.set(nodeData.rawData, nodeData.start + keyOffset, entries.xmins[kth]);
+                LONG_HANDLE.set(nodeData.rawData, nodeData.start + keyOffset + IMSetting.LEAF_ENTRY_XMIN_LENGTH, entries.xmaxs[kth]);
+                keyOffset += IMSetting.LEAF_ENTRY_VERSION_SIZE;
+            }
+        }
     }
 
-    private static long getNodeKthKey(SubArray nodeData, int kth){
-        int keyOffset = nodeData.start + IMSetting.NODE_HEAD_SIZE + kth * IMSetting.NODE_SON_COUPLE_SIZE + IMSetting.NODE_UID_LENGTH;
-        byte[] keyBytes = Arrays.copyOfRange(nodeData.rawData, keyOffset, keyOffset + IMSetting.INDEX_KEY_LENGTH);
-        return ByteParser.parseBytesToLong(keyBytes);
+    private static byte[] encodeNodeBytes(IMSetting.NodeEntries entries){
+        SubArray nodeData = new SubArray(new byte[IMSetting.NODE_SIZE], 0, IMSetting.NODE_SIZE);
+        encodeNode(nodeData, entries);
+        return nodeData.rawData;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 后移节点数据方法
+     * @Description: 在 kth 位置插入一个 uid-key 对，后面的数据整体后移，新插入的数据还没有被删除
      */
-    private static void moveBackNodeFromKth(SubArray nodeData, int kth){
-        // 注意这里是逆序移动，用以防止数据丢失
-        // 因为从后往前，偏移量的是 NODE_SON_COUPLE_SIZE， 所以 begin 算的时候是 kth + 1
-        int begin = nodeData.start + IMSetting.NODE_HEAD_SIZE + (kth + 1) * IMSetting.NODE_SON_COUPLE_SIZE;
-        int end = nodeData.start + IMSetting.NODE_SIZE - 1;
-        for(int i = end; i >= begin; i --){
-            nodeData.rawData[i] = nodeData.rawData[i - IMSetting.NODE_SON_COUPLE_SIZE];
+    private static void insertEntry(IMSetting.NodeEntries entries, int kth, long uid, byte[] key, long xmin){
+        if(entries.count == entries.uids.length){
+            growEntries(entries, entries.count * 2);
         }
+        int moveCount = entries.count - kth;
+        if(moveCount > 0){
+            System.arraycopy(entries.uids, kth, entries.uids, kth + 1, moveCount);
+            System.arraycopy(entries.keys, kth, entries.keys, kth + 1, moveCount);
+            System.arraycopy(entries.xmins, kth, entries.xmins, kth + 1, moveCount);
+            System.arraycopy(entries.xmaxs, kth, entries.xmaxs, kth + 1, moveCount);
+        }
+        entries.uids[kth] = uid;
+        entries.keys[kth] = key;
+        entries.xmins[kth] = xmin;
+        entries.xmaxs[kth] = IMSetting.LEAF_ENTRY_XMAX_DEFAULT;
+        entries.count ++;
+        entries.bytesSize += getEntrySize(entries.isLeaf, key);
+    }
+
+    private static void growEntries(IMSetting.NodeEntries entries, int capacity){
+        entries.uids = Arrays.copyOf(entries.uids, capacity);
+        entries.keys = Arrays.copyOf(entries.keys, capacity);
+        entries.xmins = Arrays.copyOf(entries.xmins, capacity);
+        entries.xmaxs = Arrays.copyOf(entries.xmaxs, capacity);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 从 kth 位置开始，复制节点数据
+     * @Description: 删除 kth 位置的 uid-key 对，后面的数据整体前移
      */
-    private static void copyNodeDataFromKth(SubArray srcNodeData,SubArray destNodeData, int kth){
-        int dataOffset = srcNodeData.start + IMSetting.NODE_SON_COUPLE_SIZE * kth;
-        System.arraycopy(srcNodeData.rawData, dataOffset, destNodeData.rawData,
-                destNodeData.start + IMSetting.NODE_HEAD_SIZE, srcNodeData.end - dataOffset);
+    private static void removeEntry(IMSetting.NodeEntries entries, int kth){
+        entries.bytesSize -= getEntrySize(entries.isLeaf, entries.keys[kth]);
+        int moveCount = entries.count - kth - 1;
+        if(moveCount > 0){
+            System.arraycopy(entries.uids, kth + 1, entries.uids, kth, moveCount);
+            System.arraycopy(entries.keys, kth + 1, entries.keys, kth, moveCount);
+            System.arraycopy(entries.xmins, kth + 1, entries.xmins, kth, moveCount);
+            System.arraycopy(entries.xmaxs, kth + 1, entries.xmaxs, kth, moveCount);
+        }
+        entries.count --;
+        entries.keys[entries.count] = null;
+    }
+
+    private static void setEntryKey(IMSetting.NodeEntries entries, int kth, byte[] key){
+        entries.bytesSize += getEntrySize(entries.isLeaf, key) - getEntrySize(entries.isLeaf, entries.keys[kth]);
+        entries.keys[kth] = key;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 判断当前节点是否需要分裂， 条件是达到 平衡因子 的两倍
+     * @Description: 把源节点从 kth 开始直到末尾的 uid-key 对放到目标节点头部，目标节点原有数据后移
      */
-    private boolean judgeNeedSplit(){
-        return getNodeKeysCount(this.nodeData) == IMSetting.NODE_BALANCE_NUMBER * 2;
+    private static void moveTailToFront(IMSetting.NodeEntries srcEntries, int kth, IMSetting.NodeEntries destEntries){
+        int moveCount = srcEntries.count - kth;
+        int destCount = destEntries.count + moveCount;
+        if(destCount > destEntries.uids.length){
+            growEntries(destEntries, destCount);
+        }
+        System.arraycopy(destEntries.uids, 0, destEntries.uids, moveCount, destEntries.count);
+        System.arraycopy(destEntries.keys, 0, destEntries.keys, moveCount, destEntries.count);
+        System.arraycopy(destEntries.xmins, 0, destEntries.xmins, moveCount, destEntries.count);
+        System.arraycopy(destEntries.xmaxs, 0, destEntries.xmaxs, moveCount, destEntries.count);
+        System.arraycopy(srcEntries.uids, kth, destEntries.uids, 0, moveCount);
+        System.arraycopy(srcEntries.keys, kth, destEntries.keys, 0, moveCount);
+        System.arraycopy(srcEntries.xmins, kth, destEntries.xmins, 0, moveCount);
+        System.arraycopy(srcEntries.xmaxs, kth, destEntries.xmaxs, 0, moveCount);
+        int moveSize = 0;
+        for(int i = kth; i < srcEntries.count; i ++){
+            moveSize += getEntrySize(srcEntries.isLeaf, srcEntries.keys[i]);
+            srcEntries.keys[i] = null;
+        }
+        srcEntries.count = kth;
+        srcEntries.bytesSize -= moveSize;
+        destEntries.count = destCount;
+        destEntries.bytesSize += moveSize;
     }
 }
@@ -1,8 +1,7 @@
 package top.lxsky711.easydb.core.im;
 
 import top.lxsky711.easydb.common.data.DataSetting;
-
-import java.util.List;
+import top.lxsky711.easydb.core.tm.TMSetting;
 
 /**
  * @Author: 711lxsky
@@ -72,9 +71,11 @@ public class IMSetting {
     public static final int NODE_HEAD_SIZE = NODE_SIBLING_UID_OFFSET + NODE_SIBLING_UID_LENGTH;
 
     /**
-     * 节点平衡因子
+     * 节点槽位中 key 偏移量、长度的长度
      */
-    public static final int NODE_BALANCE_NUMBER = 32;
+    public static final int NODE_KEY_OFFSET_LENGTH = DataSetting.SHORT_BYTE_SIZE;
+
+    public static final int NODE_KEY_LENGTH_LENGTH = DataSetting.SHORT_BYTE_SIZE;
 
     /**
      * 根节点左子节点默认的kth定位值
@@ -107,24 +108,77 @@ public class IMSetting {
     public static final int NODE_KEY_POS_DEFAULT = 0;
 
     /**
-     * 节点最后一个键值默认值
+     * 节点槽位大小： [SonUid][KeyOffset][KeyLength]
+     */
+    public static final int NODE_SLOT_SIZE = NODE_UID_LENGTH + NODE_KEY_OFFSET_LENGTH + NODE_KEY_LENGTH_LENGTH;
+
+    /**
+     * 槽位中 key 长度为该值时，表示非叶子节点最后一个 key，即无穷大
+     */
+    public static final short NODE_KEY_LENGTH_INFINITE = -1;
+
+    /**
+     * 叶子节点中每个 key 后面紧跟的版本信息 [XMIN][XMAX]，即插入和删除这条数据的事务XID，用于只读索引时判断可见性
+     */
+    public static final int LEAF_ENTRY_XMIN_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    public static final int LEAF_ENTRY_XMAX_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    public static final int LEAF_ENTRY_VERSION_SIZE = LEAF_ENTRY_XMIN_LENGTH + LEAF_ENTRY_XMAX_LENGTH;
+
+    /**
+     * 叶子节点中数据还没有被删除时的 XMAX
+     */
+    public static final long LEAF_ENTRY_XMAX_DEFAULT = TMSetting.SUPER_TRANSACTION_XID;
+
+    /**
+     * 节点大小，一页可以放下 4 个节点
+     */
+    public static final int NODE_SIZE = 2040;
+
+    /**
+     * 节点中至少能放下的 uid-key 对数量，用来限制单个 key 的长度，保证分裂后两边都不为空
+     */
+    public static final int NODE_ENTRIES_MIN = 4;
+
+    /**
+     * 单个索引 key 的最大长度
+     */
+    public static final int INDEX_KEY_LENGTH_MAX = (NODE_SIZE - NODE_HEAD_SIZE) / NODE_ENTRIES_MIN - NODE_SLOT_SIZE - LEAF_ENTRY_VERSION_SIZE;
+
+    /**
+     * 节点中最多可以容纳的 uid-key 对数量，即 key 全为空时的数量
      */
-    public static final long NODE_LAST_KEY_DEFAULT = Long.MAX_VALUE;
+    public static final int NODE_ENTRIES_CAPACITY = (NODE_SIZE - NODE_HEAD_SIZE) / NODE_SLOT_SIZE;
 
     /**
-     * 索引键值长度
+     * 字符串 key 中需要转义的字节、转义后跟随的字节以及结束标记
      */
-    public static final int INDEX_KEY_LENGTH = DataSetting.LONG_BYTE_SIZE;
+    public static final byte INDEX_KEY_STRING_ESCAPE = 0x00;
+
+    public static final byte INDEX_KEY_STRING_ESCAPED = (byte) 0xFF;
+
+    public static final byte[] INDEX_KEY_STRING_TERMINATOR = {0x00, 0x00};
 
     /**
-     * 节点 uid 与 key 对大小
+     * 批量构建时节点的默认填充因子，留出部分空位给之后的插入，避免马上分裂
      */
-    public static final int NODE_SON_COUPLE_SIZE = NODE_UID_LENGTH + INDEX_KEY_LENGTH;
+    public static final double BULK_LOAD_FILL_FACTOR_DEFAULT = 0.9;
 
     /**
-     * 节点大小
+     * 批量构建时每个节点至少放入的 uid-key 对数量，保证非叶子层能够逐层收敛
      */
-    public static final int NODE_SIZE = NODE_HEAD_SIZE + NODE_SON_COUPLE_SIZE * (NODE_BALANCE_NUMBER + 1) * 2;
+    public static final int BULK_LOAD_NODE_ENTRIES_MIN = 2;
+
+    /**
+     * 节点占用的字节数少于该值时视为过空，删除后尝试与相邻节点合并或重新分配
+     */
+    public static final int NODE_MERGE_THRESHOLD = NODE_SIZE / 4;
+
+    /**
+     * 合并后节点最多占用的字节数，留出余量，避免合并后很快又分裂
+     */
+    public static final int NODE_MERGE_SIZE_MAX = NODE_SIZE * 3 / 4;
 
     /**
      * 搜索下一层节点的返回结果
@@ -135,10 +189,35 @@ public class IMSetting {
     }
 
     /**
-     * 叶子节点搜索范围节点的返回结果
+     * 叶子节点扫描范围时，调用方给出的缓冲区，大小不小于节点容量
+     * key 依次紧挨着写入 keys，第 i 个 key 的结束位置为 keysEnd[i]
+     */
+    public static class LeafScanBuffer {
+        public final long[] uids = new long[NODE_ENTRIES_CAPACITY];
+
+        public final byte[] keys = new byte[NODE_SIZE];
+
+        public final int[] keysEnd = new int[NODE_ENTRIES_CAPACITY];
+
+        public final long[] xmins = new long[NODE_ENTRIES_CAPACITY];
+
+        public final long[] xmaxs = new long[NODE_ENTRIES_CAPACITY];
+    }
+
+    /**
+     * 从 key 中解码出一列字符串的结果，shiftFoots 为这一列编码占用的字节数
+     */
+    public static class IndexKeyStringDecodeResult {
+        public String value;
+
+        public int shiftFoots;
+    }
+
+    /**
+     * 叶子节点扫描范围的返回结果，满足条件的数据直接写进 LeafScanBuffer
      */
-    public static class LeafSearchRangeNodeResult {
-        public List<Long> nodeUidList;
+    public static class LeafScanRangeNodeResult {
+        public int nodeScannedCount;
 
         public long nodeSiblingUid;
     }
@@ -151,7 +230,12 @@ public class IMSetting {
 
         public long nodeNewSonUid;
 
-        public long nodeNewKey;
+        public byte[] nodeNewKey;
+
+        /**
+         * 批量插入时，当前节点实际插入的数据条数
+         */
+        public int nodeInsertedCount;
     }
 
     /**
@@ -160,7 +244,103 @@ public class IMSetting {
     public static class SplitNodeResult {
         public long nodeNewSonUid;
 
-        public long nodeNewKey;
+        public byte[] nodeNewKey;
+    }
+
+    /**
+     * 叶子节点删除数据的返回结果
+     */
+    public static class DeleteNodeResult {
+        public boolean nodeDeleted;
+
+        /**
+         * 删除后当前节点是否过空
+         */
+        public boolean nodeUnderflow;
+
+        /**
+         * 没有找到且相同 key 可能延续到兄弟节点时，兄弟节点的uid
+         */
+        public long nodeSiblingUid;
+    }
+
+    /**
+     * 叶子节点中给数据标记删除事务的返回结果
+     */
+    public static class MarkNodeResult {
+        public boolean nodeMarked;
+
+        /**
+         * 没有找到且相同 key 可能延续到兄弟节点时，兄弟节点的uid
+         */
+        public long nodeSiblingUid;
+    }
+
+    /**
+     * 对某个子节点做合并或重新分配的返回结果
+     */
+    public static class RebalanceNodeResult {
+        /**
+         * 处理后当前(父)节点是否过空
+         */
+        public boolean nodeUnderflow;
+
+        /**
+         * 子节点已经不归当前节点管理时，兄弟节点的uid
+         */
+        public long nodeSiblingUid;
+    }
+
+    /**
+     * 批量构建、批量插入使用的索引项
+     */
+    public static class IndexEntry {
+        public byte[] key;
+
+        public long uid;
+
+        /**
+         * 插入这条数据的事务XID
+         */
+        public long xmin;
+
+        public IndexEntry(byte[] key, long uid) {
+            this(key, uid, TMSetting.SUPER_TRANSACTION_XID);
+        }
+
+        public IndexEntry(byte[] key, long uid, long xmin) {
+            this.key = key;
+            this.uid = uid;
+            this.xmin = xmin;
+        }
+    }
+
+    /**
+     * 解码后的节点内容，修改节点时先解码、修改，再整体编码写回
+     * 非叶子节点最后一个 key 为无穷大，用 null 表示
+     */
+    public static class NodeEntries {
+        public boolean isLeaf;
+
+        public long siblingUid;
+
+        public long[] uids;
+
+        public byte[][] keys;
+
+        /**
+         * 只有叶子节点使用
+         */
+        public long[] xmins;
+
+        public long[] xmaxs;
+
+        public int count;
+
+        /**
+         * 编码后占用的字节数
+         */
+        public int bytesSize;
     }
 
     /**
@@ -169,7 +349,7 @@ public class IMSetting {
     public static class InsertNodeResult {
         public long nodeNewSonUid;
 
-        public long nodeNewKey;
+        public byte[] nodeNewKey;
     }
 
 }
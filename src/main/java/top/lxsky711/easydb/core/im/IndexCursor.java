@@ -0,0 +1,205 @@
+package top.lxsky711.easydb.core.im;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.common.log.ErrorMessage;
+import top.lxsky711.easydb.common.log.Log;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 索引游标，沿叶子节点的兄弟指针按 key 升序逐个拉取 [leftKey, rightKey) 范围内的 uid，rightKey 为 null 表示无穷大
+ * 每次只把一个叶子节点中满足条件的数据拷贝到定长的缓冲区，读完即释放节点，不持有任何锁，内存占用和结果集大小无关
+ * 叶子节点之间可能有并发的分裂、合并，合并和重新分配会把已经读过的数据搬到右侧节点，
+ * 这里记住已经返回的最大 key 以及该 key 下已经返回的 uid，跳过重复的数据
+ * 每条数据还带有叶子节点中记录的插入、删除事务XID，调用方可以不读底层记录就判断可见性
+ */
+
+public class IndexCursor {
+
+    private final BPlusTree tree;
+
+    private final byte[] leftKey;
+
+    private final byte[] rightKey;
+
+    /**
+     * 当前叶子节点中满足条件的数据
+     */
+    private final IMSetting.LeafScanBuffer buffer;
+
+    private int bufferSize;
+
+    private int bufferPosition;
+
+    /**
+     * 下一个要读取的叶子节点uid，没有时为 NODE_SIBLING_UID_DEFAULT
+     */
+    private long nextLeafUid;
+
+    /**
+     * 已经返回的最大 key，以及该 key 下已经返回的 uid
+     */
+    private final byte[] lastKey;
+
+    private int lastKeyLength;
+
+    private long[] lastKeyUids;
+
+    private int lastKeyUidsCount;
+
+    /**
+     * hasNext 已经确认 bufferPosition 处的数据可以返回
+     */
+    private boolean nextReady;
+
+    private boolean closed;
+
+    /**
+     * 最近一次 next 返回的数据的版本信息
+     */
+    private long currentXmin;
+
+    private long currentXmax;
+
+    IndexCursor(BPlusTree tree, long firstLeafUid, byte[] leftKey, byte[] rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.buffer = new IMSetting.LeafScanBuffer();
+        this.nextLeafUid = firstLeafUid;
+        this.lastKey = new byte[IMSetting.INDEX_KEY_LENGTH_MAX];
+        this.lastKeyLength = 0;
+        this.lastKeyUids = new long[IMSetting.NODE_ENTRIES_CAPACITY];
+        this.lastKeyUidsCount = 0;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 是否还有下一个 uid，需要时会读取下一个叶子节点
+     */
+    public boolean hasNext() throws WarningException, ErrorException {
+        if(this.closed){
+            return false;
+        }
+        while(true){
+            if(this.nextReady){
+                return true;
+            }
+            while(this.bufferPosition < this.bufferSize){
+                if(this.judgeNotReturned(this.bufferPosition)){
+                    this.nextReady = true;
+                    return true;
+                }
+                this.bufferPosition ++;
+            }
+            if(this.nextLeafUid == IMSetting.NODE_SIBLING_UID_DEFAULT){
+                this.close();
+                return false;
+            }
+            this.loadLeaf(this.nextLeafUid);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 返回下一个 uid
+     */
+    public long next() throws WarningException, ErrorException {
+        if(! this.hasNext()){
+            throw new NoSuchElementException();
+        }
+        int position = this.bufferPosition;
+        long uid = this.buffer.uids[position];
+        this.currentXmin = this.buffer.xmins[position];
+        this.currentXmax = this.buffer.xmaxs[position];
+        this.bufferPosition ++;
+        this.nextReady = false;
+        if(this.compareWithLastKey(position) != 0){
+            int keyBegin = this.getKeyBegin(position);
+            this.lastKeyLength = this.buffer.keysEnd[position] - keyBegin;
+            System.arraycopy(this.buffer.keys, keyBegin, this.lastKey, 0, this.lastKeyLength);
+            this.lastKeyUidsCount = 0;
+        }
+        if(this.lastKeyUidsCount == this.lastKeyUids.length){
+            this.lastKeyUids = Arrays.copyOf(this.lastKeyUids, this.lastKeyUids.length * 2);
+        }
+        this.lastKeyUids[this.lastKeyUidsCount ++] = uid;
+        return uid;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 最近一次 next 返回的 uid 对应的 key
+     */
+    public byte[] getKey() {
+        return Arrays.copyOf(this.lastKey, this.lastKeyLength);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 最近一次 next 返回的数据的插入事务XID
+     */
+    public long getXmin() {
+        return this.currentXmin;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 最近一次 next 返回的数据的删除事务XID，未删除时为 LEAF_ENTRY_XMAX_DEFAULT
+     */
+    public long getXmax() {
+        return this.currentXmax;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 提前结束遍历
+     */
+    public void close() {
+        this.closed = true;
+        this.bufferSize = 0;
+        this.bufferPosition = 0;
+        this.nextReady = false;
+        this.nextLeafUid = IMSetting.NODE_SIBLING_UID_DEFAULT;
+    }
+
+    private void loadLeaf(long leafUid) throws WarningException, ErrorException {
+        BPlusTreeNode leafNode = BPlusTreeNode.loadBPlusTreeNode(this.tree, leafUid);
+        if(Objects.isNull(leafNode)){
+            Log.logErrorMessage(ErrorMessage.IMPORTANT_DATA_ERROR);
+            return;
+        }
+        IMSetting.LeafScanRangeNodeResult result = leafNode.leafScanRange(this.leftKey, this.rightKey, this.buffer);
+        leafNode.releaseOneReference();
+        this.bufferSize = result.nodeScannedCount;
+        this.bufferPosition = 0;
+        this.nextLeafUid = result.nodeSiblingUid;
+    }
+
+    private int getKeyBegin(int position){
+        return position == 0 ? 0 : this.buffer.keysEnd[position - 1];
+    }
+
+    private int compareWithLastKey(int position){
+        return Arrays.compareUnsigned(this.buffer.keys, this.getKeyBegin(position), this.buffer.keysEnd[position],
+                this.lastKey, 0, this.lastKeyLength);
+    }
+
+    private boolean judgeNotReturned(int position){
+        int compareResult = this.compareWithLastKey(position);
+        if(compareResult != 0){
+            return compareResult > 0 || this.lastKeyUidsCount == 0;
+        }
+        long uid = this.buffer.uids[position];
+        for(int i = 0; i < this.lastKeyUidsCount; i ++){
+            if(this.lastKeyUids[i] == uid){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package top.lxsky711.easydb.core.im;
+
+import com.google.common.primitives.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 索引键值编码
+ * 索引的 key 是变长字节数组，按无符号字节逐个比较，较短的前缀排在前面
+ * 各类型的编码都保持原有顺序，并且任何一个值的编码都不是另一个值编码的前缀，所以多列的编码直接拼接就是联合索引的 key，
+ * 只给出前几列时，前缀范围 [prefix, prefixSuccessor(prefix)) 正好覆盖这几列取该值的所有 key
+ * int32/int64: 大端序，符号位取反，负数排在正数前面
+ * string: UTF-8 编码，其中的 0x00 转义为 0x00 0xFF，最后以 0x00 0x00 结尾
+ */
+
+public class IndexKey {
+
+    /**
+     * 最小的 key，作为默认左边界
+     */
+    public static final byte[] KEY_MIN = new byte[0];
+
+    public static byte[] encodeInt(int value){
+        int flipped = value ^ Integer.MIN_VALUE;
+        return new byte[]{
+                (byte) (flipped >>> 24), (byte) (flipped >>> 16), (byte) (flipped >>> 8), (byte) flipped
+        };
+    }
+
+    public static byte[] encodeLong(long value){
+        long flipped = value ^ Long.MIN_VALUE;
+        byte[] bytes = new byte[IMSetting.NODE_UID_LENGTH];
+        for(int i = bytes.length - 1; i >= 0; i --){
+            bytes[i] = (byte) flipped;
+            flipped >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static byte[] encodeString(String value){
+        byte[] utf8Bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(utf8Bytes.length + IMSetting.INDEX_KEY_STRING_TERMINATOR.length);
+        for(byte oneByte : utf8Bytes){
+            baos.write(oneByte);
+            if(oneByte == IMSetting.INDEX_KEY_STRING_ESCAPE){
+                baos.write(IMSetting.INDEX_KEY_STRING_ESCAPED);
+            }
+        }
+        baos.write(IMSetting.INDEX_KEY_STRING_TERMINATOR, 0, IMSetting.INDEX_KEY_STRING_TERMINATOR.length);
+        return baos.toByteArray();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 从 key 的 offset 处解码出一个 int32，编码定长，与 encodeInt 互逆
+     */
+    public static int decodeInt(byte[] key, int offset){
+        int flipped = ((key[offset] & 0xFF) << 24) | ((key[offset + 1] & 0xFF) << 16)
+                | ((key[offset + 2] & 0xFF) << 8) | (key[offset + 3] & 0xFF);
+        return flipped ^ Integer.MIN_VALUE;
+    }
+
+    public static long decodeLong(byte[] key, int offset){
+        long flipped = 0;
+        for(int i = 0; i < IMSetting.NODE_UID_LENGTH; i ++){
+            flipped = (flipped << 8) | (key[offset + i] & 0xFF);
+        }
+        return flipped ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 从 key 的 offset 处解码出一个字符串，去掉转义，读到结束标记为止
+     */
+    public static IMSetting.IndexKeyStringDecodeResult decodeString(byte[] key, int offset){
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int position = offset;
+        while(true){
+            byte oneByte = key[position ++];
+            if(oneByte == IMSetting.INDEX_KEY_STRING_ESCAPE){
+                byte nextByte = key[position ++];
+                if(nextByte != IMSetting.INDEX_KEY_STRING_ESCAPED){
+                    break;
+                }
+            }
+            baos.write(oneByte);
+        }
+        IMSetting.IndexKeyStringDecodeResult result = new IMSetting.IndexKeyStringDecodeResult();
+        result.value = new String(baos.toByteArray(), StandardCharsets.UTF_8);
+        result.shiftFoots = position - offset;
+        return result;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按列的顺序拼接联合索引的 key
+     */
+    public static byte[] concat(byte[]... columnKeys){
+        return Bytes.concat(columnKeys);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 比较两个 key，null 视为无穷大
+     */
+    public static int compare(byte[] key1, byte[] key2){
+        if(Objects.isNull(key1) || Objects.isNull(key2)){
+            return Objects.isNull(key1) ? (Objects.isNull(key2) ? 0 : 1) : -1;
+        }
+        return Arrays.compareUnsigned(key1, key2);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 比所有以 prefix 开头的 key 都大的最小 key，即最后一个不是 0xFF 的字节加一并截断
+     * prefix 全是 0xFF 时不存在这样的 key，返回 null 表示无穷大
+     */
+    public static byte[] prefixSuccessor(byte[] prefix){
+        for(int i = prefix.length - 1; i >= 0; i --){
+            if(prefix[i] != (byte) 0xFF){
+                byte[] successor = Arrays.copyOf(prefix, i + 1);
+                successor[i] ++;
+                return successor;
+            }
+        }
+        return null;
+    }
+}
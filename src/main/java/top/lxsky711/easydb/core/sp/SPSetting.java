@@ -119,6 +119,12 @@ public class SPSetting {
         public List<String> values;
     }
 
+    // 多行Insert语句，同一张表的多行一起插入
+    public static class InsertBatch{
+
+        public List<Insert> inserts;
+    }
+
     public static final String TOKEN_INSERT_DEFAULT = "insert";
 
     public static final String TOKEN_INTO_DEFAULT = "into";
@@ -309,37 +309,82 @@ public class StatementParser {
     /**
      * @Author: 711lxsky
      * @Description: 解析insert语句
-     * 结构: insert into [tableName] values [value1], [value2], ...
-     * 例子: insert into test values 1, 'test'
+     * 每一行的值用括号括起来时可以一次插入多行，多行插入解析为批量插入
+     * 结构: insert into [tableName] values [value1] [value2] ...
+     *      insert into [tableName] values ([value1] [value2] ...), ([value1] [value2] ...), ...
+     * 例子: insert into test values 1 'test'
+     *      insert into test values (1 'test'), (2 'test')
      */
-    private static SPSetting.Insert parseInsert(Tokenizer tokenizer) throws WarningException {
-        SPSetting.Insert insert = new SPSetting.Insert();
+    private static Object parseInsert(Tokenizer tokenizer) throws WarningException {
         String into = StringUtil.parseStringToLowerCase(tokenizer.peek());
         if(! StringUtil.stringEqual(SPSetting.TOKEN_INTO_DEFAULT, into)){
-            return (SPSetting.Insert) parseStatementWrong(tokenizer);
+            return parseStatementWrong(tokenizer);
         }
         tokenizer.pop();
         String tableName = tokenizer.peek();
         if(! StringUtil.nameIsLegal(tableName)){
-            return (SPSetting.Insert) parseStatementWrong(tokenizer);
+            return parseStatementWrong(tokenizer);
         }
-        insert.tableName = tableName;
         tokenizer.pop();
         String values = StringUtil.parseStringToLowerCase(tokenizer.peek());
         if(! StringUtil.stringEqual(SPSetting.TOKEN_VALUES_DEFAULT, values)){
-            return (SPSetting.Insert) parseStatementWrong(tokenizer);
+            return parseStatementWrong(tokenizer);
+        }
+        tokenizer.pop();
+        if(! StringUtil.isLegalLeftParenthesis(tokenizer.peek())){
+            // 单行插入
+            List<String> valueList = new ArrayList<>();
+            while(! isStatementAnalyseEnd(tokenizer)){
+                // 这里不做过多校验，交给表管理层
+                valueList.add(tokenizer.peek());
+                tokenizer.pop();
+            }
+            return buildInsert(tableName, valueList);
         }
-        List<String> valueList = new ArrayList<>();
+        List<SPSetting.Insert> inserts = new ArrayList<>();
         while(true){
+            if(! StringUtil.isLegalLeftParenthesis(tokenizer.peek())){
+                return parseStatementWrong(tokenizer);
+            }
+            List<String> valueList = new ArrayList<>();
+            while(true){
+                tokenizer.pop();
+                if(isStatementAnalyseEnd(tokenizer)){
+                    // 括号没有闭合
+                    return parseStatementWrong(tokenizer);
+                }
+                String value = tokenizer.peek();
+                if(StringUtil.isLegalRightParenthesis(value)){
+                    break;
+                }
+                // 行内的值可以用逗号隔开
+                if(! StringUtil.isLegalComma(value)){
+                    valueList.add(value);
+                }
+            }
+            inserts.add(buildInsert(tableName, valueList));
             tokenizer.pop();
             if(isStatementAnalyseEnd(tokenizer)){
                 break;
             }
-            // 这里不做过多校验，交给表管理层
-            String value = tokenizer.peek();
-            valueList.add(value);
+            // 行与行之间用逗号隔开
+            if(! StringUtil.isLegalComma(tokenizer.peek())){
+                return parseStatementWrong(tokenizer);
+            }
+            tokenizer.pop();
         }
-        insert.values = valueList;
+        if(inserts.size() == 1){
+            return inserts.get(0);
+        }
+        SPSetting.InsertBatch insertBatch = new SPSetting.InsertBatch();
+        insertBatch.inserts = inserts;
+        return insertBatch;
+    }
+
+    private static SPSetting.Insert buildInsert(String tableName, List<String> values){
+        SPSetting.Insert insert = new SPSetting.Insert();
+        insert.tableName = tableName;
+        insert.values = values;
         return insert;
     }
 
@@ -80,7 +80,7 @@ public class Tokenizer {
         // 符号
         if(StringUtil.byteIsLegalSymbol(curByte)){
             this.popByte();
-            return String.valueOf(curByte);
+            return String.valueOf((char) curByte.byteValue());
         }
         // 引号
         else if(StringUtil.byteIsLegalQuote(curByte)){
@@ -112,7 +112,7 @@ public class Tokenizer {
                 this.popByte();
                 break;
             }
-            sb.append(curByte);
+            sb.append((char) curByte.byteValue());
             this.popByte();
         }
         return sb.toString();
@@ -132,7 +132,7 @@ public class Tokenizer {
                 }
                 return sb.toString();
             }
-            sb.append(curByte);
+            sb.append((char) curByte.byteValue());
             this.popByte();
         }
     }
@@ -11,19 +11,27 @@ import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.dm.DataManager;
 import top.lxsky711.easydb.core.im.BPlusTree;
+import top.lxsky711.easydb.core.im.IMSetting;
+import top.lxsky711.easydb.core.im.IndexCursor;
+import top.lxsky711.easydb.core.im.IndexKey;
 import top.lxsky711.easydb.core.sp.SPSetting;
 import top.lxsky711.easydb.core.tm.TMSetting;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * @Author: 711lxsky
  * @Description: 表字段实现类
  * 将字符串转化为byte数组持久化的时候，需要以 [size][data]的格式存储
- * 字段结构： [FieldName][FieldType][IndexUid]
- *          存储形式： [nameSize][nameSata][typeSize][typeData][indexUid]
+ * 字段结构： [FieldName][FieldType][IndexUid][IndexColumn2]...[IndexColumnN]
+ *          存储形式： [nameSize][nameSata][typeSize][typeData][indexUid][column2Size][column2Data]...
  * 如果当前字段没有索引，那么 IndexUid = 0
+ * 索引的 key 是按列顺序拼接的保序字节编码，第一列是当前字段本身；联合索引的后续列名依次存放在 IndexUid 之后，单列索引没有这一部分
  */
 
 public class Field {
@@ -46,12 +54,16 @@ public class Field {
     // 字段索引对应的B+树
     private BPlusTree bPlusTree;
 
+    // 索引包含的列，第一列是当前字段本身
+    private final List<String> indexColumnNames;
+
     private Field(Table tableAttributed, String fieldName, String fieldType) {
         this.tableAttributed = tableAttributed;
         this.fieldName = fieldName;
         this.fieldType = fieldType;
         this.indexUid = TBMSetting.FIELD_INDEX_DEFAULT;
         this.bPlusTree = null;
+        this.indexColumnNames = new ArrayList<>();
     }
 
     private Field(long uid, Table tableAttributed){
@@ -59,15 +71,17 @@ public class Field {
         this.tableAttributed = tableAttributed;
         this.indexUid = TBMSetting.FIELD_INDEX_DEFAULT;
         this.bPlusTree = null;
+        this.indexColumnNames = new ArrayList<>();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 创建字段
+     * @Description: 创建字段，indexColumnNames 为空表示没有索引，否则是索引包含的列，第一列需要是当前字段
      */
-    public static Field createField(long TransactionXid, Table tableAttributed, String fieldName, String fieldType, boolean isIndex) throws WarningException, ErrorException {
+    public static Field createField(long TransactionXid, Table tableAttributed, String fieldName, String fieldType, List<String> indexColumnNames) throws WarningException, ErrorException {
         Field field = new Field(tableAttributed, fieldName, fieldType);
-        if(isIndex) {
+        if(Objects.nonNull(indexColumnNames) && ! indexColumnNames.isEmpty()) {
+            field.indexColumnNames.addAll(indexColumnNames);
             DataManager dmForAttributedTable = tableAttributed.getDM();
             field.indexUid = BPlusTree.createBPlusTree(tableAttributed.getDM());
             field.bPlusTree = BPlusTree.loadBPlusTree(dmForAttributedTable, field.indexUid);
@@ -85,7 +99,10 @@ public class Field {
         byte[] fieldTypeBytes = StringUtil.stringToBytes(this.fieldType);
         byte[] indexUidBytes = ByteParser.longToBytes(this.indexUid);
         byte[] fieldInfoBytes = Bytes.concat(fieldNameBytes, fieldTypeBytes, indexUidBytes);
-        this.uid = this.tableAttributed.getDM().insertData(transactionXid, fieldInfoBytes);
+        for(int i = 1; i < this.indexColumnNames.size(); i ++){
+            fieldInfoBytes = Bytes.concat(fieldInfoBytes, StringUtil.stringToBytes(this.indexColumnNames.get(i)));
+        }
+        this.uid = this.tableAttributed.getVM().insert(transactionXid, fieldInfoBytes);
     }
 
     /**
@@ -111,8 +128,15 @@ public class Field {
         this.fieldType = fieldTypeInfo.str;
         readPosition += fieldTypeInfo.strLength + fieldTypeInfo.strLengthSize;
         this.indexUid = ByteParser.parseBytesToLong(Arrays.copyOfRange(fieldInfoBytes, readPosition, readPosition + DataSetting.LONG_BYTE_SIZE));
+        readPosition += DataSetting.LONG_BYTE_SIZE;
         if(this.indexUid != TBMSetting.FIELD_INDEX_DEFAULT){
             this.bPlusTree = BPlusTree.loadBPlusTree(this.tableAttributed.getDM(), this.indexUid);
+            this.indexColumnNames.add(this.fieldName);
+            while(readPosition < fieldInfoBytes.length){
+                DataSetting.StringBytes columnNameInfo = StringUtil.parseBytesToString(Arrays.copyOfRange(fieldInfoBytes, readPosition, fieldInfoBytes.length));
+                this.indexColumnNames.add(columnNameInfo.str);
+                readPosition += columnNameInfo.strLength + columnNameInfo.strLengthSize;
+            }
         }
     }
 
@@ -136,11 +160,23 @@ public class Field {
         return this.fieldType;
     }
 
+    Table getTableAttributed(){
+        return this.tableAttributed;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 索引包含的列，第一列是当前字段本身，没有索引时为空
+     */
+    public List<String> getIndexColumnNames(){
+        return this.indexColumnNames;
+    }
+
     // 获取默认的搜索范围
     public TBMSetting.Frontiers getSearchFrontiersDefault(){
         TBMSetting.Frontiers frontiers = new TBMSetting.Frontiers();
-        frontiers.leftFrontier = TBMSetting.LEFT_FRONTIER_DEFAULT;
-        frontiers.rightFrontier = TBMSetting.RIGHT_FRONTIER_DEFAULT;
+        frontiers.leftFrontier = IndexKey.KEY_MIN;
+        frontiers.rightFrontier = null;
         return frontiers;
     }
 
@@ -149,24 +185,35 @@ public class Field {
      * @Description: 根据不同逻辑运算符，获取搜索范围
      */
     public TBMSetting.Frontiers getSearchFrontiers(SPSetting.Expression expression) throws WarningException {
+        return this.getSearchFrontiers(IndexKey.KEY_MIN, expression);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 联合索引前面的列已经用等值确定为 prefix 时，根据下一列的表达式获取搜索范围，范围是左闭右开的
+     * 单列的编码互不为前缀，所以同样的范围也适用于只有一列的 key，以及后面还有其他列的 key
+     */
+    public TBMSetting.Frontiers getSearchFrontiers(byte[] prefix, SPSetting.Expression expression) throws WarningException {
         TBMSetting.Frontiers frontiers = new TBMSetting.Frontiers();
         Object value = DataParser.parseStringToData(expression.value, this.fieldType);
-        long frontier = DataParser.parseDataToLong(value, this.fieldType);
+        byte[] frontier = IndexKey.concat(prefix, parseDataToIndexKey(value, this.fieldType));
         switch (expression.compare){
             case DataSetting.COMPARE_SMALLER:
-                frontiers.leftFrontier = TBMSetting.LEFT_FRONTIER_DEFAULT;
+                frontiers.leftFrontier = prefix;
                 frontiers.rightFrontier = frontier;
-                if(frontiers.rightFrontier > 0){
-                    frontiers.rightFrontier --;
-                }
                 return frontiers;
             case DataSetting.COMPARE_EQUAL:
                 frontiers.leftFrontier = frontier;
-                frontiers.rightFrontier = frontier;
+                frontiers.rightFrontier = IndexKey.prefixSuccessor(frontier);
                 return frontiers;
             case DataSetting.COMPARE_LARGER:
-                frontiers.leftFrontier = frontier + 1;
-                frontiers.rightFrontier = TBMSetting.RIGHT_FRONTIER_DEFAULT;
+                frontiers.leftFrontier = IndexKey.prefixSuccessor(frontier);
+                frontiers.rightFrontier = IndexKey.prefixSuccessor(prefix);
+                if(Objects.isNull(frontiers.leftFrontier)){
+                    // 已经是最大值，范围为空
+                    frontiers.leftFrontier = frontier;
+                    frontiers.rightFrontier = frontier;
+                }
                 return frontiers;
             default:
                 Log.logWarningMessage(WarningMessage.COMPARE_OPERATOR_IS_INVALID);
@@ -176,18 +223,143 @@ public class Field {
 
     /**
      * @Author: 711lxsky
-     * @Description: 范围搜索
+     * @Description: 把表达式中的值编码成当前字段的 key，作为联合索引后续列查找时的前缀
+     */
+    public byte[] parseExpressionToIndexKey(SPSetting.Expression expression) throws WarningException {
+        Object value = DataParser.parseStringToData(expression.value, this.fieldType);
+        return parseDataToIndexKey(value, this.fieldType);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 范围搜索，返回按 key 升序惰性拉取 uid 的索引游标
+     */
+    public IndexCursor openCursor(byte[] left, byte[] right) throws WarningException, ErrorException {
+        return this.bPlusTree.openCursor(left, right);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断一行数据中当前字段的值是否落在搜索范围内，与索引搜索的判断方式一致
+     */
+    public boolean judgeInFrontiers(Map<String, Object> entry, TBMSetting.Frontiers frontiers) throws WarningException {
+        byte[] key = parseDataToIndexKey(entry.get(this.fieldName), this.fieldType);
+        return IndexKey.compare(frontiers.leftFrontier, key) <= 0 && IndexKey.compare(key, frontiers.rightFrontier) < 0;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按索引包含的列拼出一行数据在当前索引中的 key
+     */
+    public byte[] buildIndexKey(Map<String, Object> entry) throws WarningException {
+        byte[][] columnKeys = new byte[this.indexColumnNames.size()][];
+        for(int i = 0; i < columnKeys.length; i ++){
+            Field columnField = i == 0 ? this : this.tableAttributed.seekFieldWithName(this.indexColumnNames.get(i));
+            if(Objects.isNull(columnField)){
+                Log.logWarningMessage(WarningMessage.INDEX_IS_NOT_EXIST);
+                return null;
+            }
+            columnKeys[i] = parseDataToIndexKey(entry.get(columnField.fieldName), columnField.fieldType);
+        }
+        return IndexKey.concat(columnKeys);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 构造一行要插入索引的 key，并检查长度，需要在写入记录之前调用，key 过长时记录和索引项都不会写入
+     */
+    public byte[] buildInsertIndexKey(Map<String, Object> entry) throws WarningException {
+        byte[] key = this.buildIndexKey(entry);
+        BPlusTree.checkKeyLength(key);
+        return key;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把当前索引中的 key 还原成索引包含的各列的值，编码是可逆的，所以索引包含的列不需要再读取记录
+     */
+    public Map<String, Object> decodeIndexKey(byte[] key) throws WarningException {
+        Map<String, Object> columnValues = new HashMap<>();
+        int readPosition = 0;
+        for(int i = 0; i < this.indexColumnNames.size(); i ++){
+            Field columnField = i == 0 ? this : this.tableAttributed.seekFieldWithName(this.indexColumnNames.get(i));
+            if(Objects.isNull(columnField)){
+                Log.logWarningMessage(WarningMessage.INDEX_IS_NOT_EXIST);
+                return null;
+            }
+            TBMSetting.BytesDataParseResult result = parseIndexKeyToData(key, readPosition, columnField.fieldType);
+            columnValues.put(columnField.fieldName, result.value);
+            readPosition += result.shiftFoots;
+        }
+        return columnValues;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按字段类型从 key 的 offset 处解码出一列的值
      */
-    public List<Long> rangeSearch(long left, long right) throws WarningException, ErrorException {
-        return this.bPlusTree.searchRangeNodes(left, right);
+    private static TBMSetting.BytesDataParseResult parseIndexKeyToData(byte[] key, int offset, String dataType) throws WarningException {
+        TBMSetting.BytesDataParseResult result = new TBMSetting.BytesDataParseResult();
+        switch (dataType){
+            case DataSetting.DATA_INT32:
+                result.value = IndexKey.decodeInt(key, offset);
+                result.shiftFoots = DataSetting.INT_BYTE_SIZE;
+                return result;
+            case DataSetting.DATA_INT64:
+                result.value = IndexKey.decodeLong(key, offset);
+                result.shiftFoots = DataSetting.LONG_BYTE_SIZE;
+                return result;
+            case DataSetting.DATA_STRING:
+                IMSetting.IndexKeyStringDecodeResult stringResult = IndexKey.decodeString(key, offset);
+                result.value = stringResult.value;
+                result.shiftFoots = stringResult.shiftFoots;
+                return result;
+            default:
+                Log.logWarningMessage(WarningMessage.DATA_TYPE_IS_INVALID);
+                return null;
+        }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 插入数据
+     * @Description: 按字段类型把数据编码成保序的索引 key
      */
-    public void insert(long uid, long key) throws WarningException, ErrorException {
-        this.bPlusTree.insertNode(uid, key);
+    private static byte[] parseDataToIndexKey(Object data, String dataType) throws WarningException {
+        switch (dataType){
+            case DataSetting.DATA_INT32:
+                return IndexKey.encodeInt((int) data);
+            case DataSetting.DATA_INT64:
+                return IndexKey.encodeLong((long) data);
+            case DataSetting.DATA_STRING:
+                return IndexKey.encodeString((String) data);
+            default:
+                Log.logWarningMessage(WarningMessage.DATA_TYPE_IS_INVALID);
+                return null;
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 插入数据，xmin 是插入这行数据的事务XID
+     */
+    public void insert(long uid, byte[] key, long xmin) throws WarningException, ErrorException {
+        this.bPlusTree.insertNode(uid, key, xmin);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在索引中记下删除这行数据的事务XID，索引项等清理时再删除
+     */
+    public boolean markDeleted(long uid, byte[] key, long xmax) throws WarningException, ErrorException {
+        return this.bPlusTree.markDeleted(uid, key, xmax);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 删除索引数据
+     */
+    public boolean delete(long uid, byte[] key) throws WarningException, ErrorException {
+        return this.bPlusTree.deleteNode(uid, key);
     }
 
     /**
@@ -206,6 +378,12 @@ public class Field {
                 result.shiftFoots = DataSetting.LONG_BYTE_SIZE;
                 return result;
             case DataSetting.DATA_STRING:
+                // 行外存储的值只解析出指针，用到时再读出
+                if(Toaster.isToastPointer(bytesData)){
+                    result.value = Toaster.parseToastPointer(bytesData);
+                    result.shiftFoots = TBMSetting.TOAST_POINTER_LENGTH;
+                    return result;
+                }
                 DataSetting.StringBytes stringBytes = StringUtil.parseBytesToString(bytesData);
                 result.value = stringBytes.str;
                 result.shiftFoots = stringBytes.strLengthSize + stringBytes.strLength;
@@ -0,0 +1,149 @@
+package top.lxsky711.easydb.core.tbm;
+
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.vm.VersionManager;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 索引清理器
+ * 删除(包括更新时删除旧版本)只是设置记录的XMAX，索引项还留在B+树中
+ * 这里先按事务暂存被删除行的索引项，事务撤销则直接丢弃；事务提交后记下当时最新的活跃事务XID作为界限
+ * 等所有不大于界限的事务都结束，已经没有事务能看到被删除的版本，再交给清理器，整条版本链置为无效之后从B+树中删除
+ * 事务插入的行(包括更新时插入的新版本)的索引项也按事务暂存，事务提交则丢弃；事务撤销时这些行对任何事务都不可见，可以立即清理
+ * 暂存的索引项只记在内存中，重启后由清理器的启动清理根据B+树中的XMIN、XMAX重新找出来
+ */
+
+public class IndexPurger {
+
+    private final VersionManager vm;
+
+    /**
+     * 还未结束的事务删除的索引项
+     */
+    private final Map<Long, List<TBMSetting.IndexPurgeEntry>> pendingEntries;
+
+    /**
+     * 还未结束的事务插入的索引项
+     */
+    private final Map<Long, List<TBMSetting.IndexPurgeEntry>> pendingInsertedEntries;
+
+    /**
+     * 已提交、等待清理的索引项
+     */
+    private final List<TBMSetting.IndexPurgeBatch> committedBatches;
+
+    private final Lock selfLock;
+
+    public IndexPurger(VersionManager vm) {
+        this.vm = vm;
+        this.pendingEntries = new HashMap<>();
+        this.pendingInsertedEntries = new HashMap<>();
+        this.committedBatches = new ArrayList<>();
+        this.selfLock = new ReentrantLock();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 记录事务删除的一条索引项
+     */
+    public void addDeletedEntry(long xid, Field field, byte[] key, long uid) {
+        this.addEntry(this.pendingEntries, xid, field, key, uid);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 记录事务插入的一条索引项
+     */
+    public void addInsertedEntry(long xid, Field field, byte[] key, long uid) {
+        this.addEntry(this.pendingInsertedEntries, xid, field, key, uid);
+    }
+
+    private void addEntry(Map<Long, List<TBMSetting.IndexPurgeEntry>> entries, long xid, Field field, byte[] key, long uid) {
+        TBMSetting.IndexPurgeEntry entry = new TBMSetting.IndexPurgeEntry();
+        entry.field = field;
+        entry.key = key;
+        entry.uid = uid;
+        this.selfLock.lock();
+        try {
+            entries.computeIfAbsent(xid, k -> new ArrayList<>()).add(entry);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务提交，需要在版本管理器提交之后调用，这时该事务已不在活跃事务中
+     */
+    public void commit(long xid) {
+        this.selfLock.lock();
+        try {
+            this.pendingInsertedEntries.remove(xid);
+            List<TBMSetting.IndexPurgeEntry> entries = this.pendingEntries.remove(xid);
+            if(Objects.isNull(entries)){
+                return;
+            }
+            TBMSetting.IndexPurgeBatch batch = new TBMSetting.IndexPurgeBatch();
+            batch.horizon = this.vm.getNewestActiveXid();
+            batch.entries = entries;
+            this.committedBatches.add(batch);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务撤销，删除没有生效，直接丢弃；插入的行对任何事务都不可见，下次清理时就可以删除索引项
+     */
+    public void abort(long xid) {
+        this.selfLock.lock();
+        try {
+            this.pendingEntries.remove(xid);
+            List<TBMSetting.IndexPurgeEntry> insertedEntries = this.pendingInsertedEntries.remove(xid);
+            if(Objects.nonNull(insertedEntries)){
+                TBMSetting.IndexPurgeBatch batch = new TBMSetting.IndexPurgeBatch();
+                batch.horizon = TMSetting.SUPER_TRANSACTION_XID;
+                batch.entries = insertedEntries;
+                this.committedBatches.add(batch);
+            }
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 取出所有已经没有事务能看到的索引项，交给清理器在整条版本链置为无效之后删除
+     * 一行的所有索引项总是在同一批中
+     */
+    public List<TBMSetting.IndexPurgeEntry> purge() {
+        List<TBMSetting.IndexPurgeEntry> purgeEntries = new ArrayList<>();
+        this.selfLock.lock();
+        try {
+            if(this.committedBatches.isEmpty()){
+                return Collections.emptyList();
+            }
+            long oldestActiveXid = this.vm.getOldestActiveXid();
+            Iterator<TBMSetting.IndexPurgeBatch> iterator = this.committedBatches.iterator();
+            while(iterator.hasNext()){
+                TBMSetting.IndexPurgeBatch batch = iterator.next();
+                if(batch.horizon < oldestActiveXid){
+                    purgeEntries.addAll(batch.entries);
+                    iterator.remove();
+                }
+            }
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        return purgeEntries;
+    }
+}
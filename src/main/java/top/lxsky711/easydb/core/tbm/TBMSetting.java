@@ -1,5 +1,11 @@
 package top.lxsky711.easydb.core.tbm;
 
+import top.lxsky711.easydb.common.data.DataSetting;
+import top.lxsky711.easydb.core.dm.DataItemSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+
+import java.util.List;
+
 /**
  * @Author: 711lxsky
  * @Description: TBM表管理器配置类
@@ -19,18 +25,29 @@ public class TBMSetting {
     // 字段索引默认值
     public static long FIELD_INDEX_DEFAULT = 0L;
 
-    // 搜索的边界值
+    // 搜索的边界值，索引 key 的左闭右开范围，rightFrontier 为 null 表示无穷大
     public static class Frontiers {
-        long leftFrontier;
+        byte[] leftFrontier;
 
-        long rightFrontier;
+        byte[] rightFrontier;
     }
 
-    // 默认左边界值
-    public static final long LEFT_FRONTIER_DEFAULT = Long.MIN_VALUE;
+    // where 语句的一段扫描：在 indexField 的索引上按 frontiers 范围遍历，
+    // filterField 不为空时，再要求读出的行在 filterField 上是否落在 filterFrontiers 内与 filterExpected 一致
+    public static class WhereScanStage {
+        Field indexField;
+
+        Frontiers frontiers;
 
-    // 默认右边界值
-    public static final long RIGHT_FRONTIER_DEFAULT = Long.MAX_VALUE;
+        Field filterField;
+
+        Frontiers filterFrontiers;
+
+        boolean filterExpected;
+
+        // 需要的列都在索引中，只读索引，不读取记录
+        boolean covering;
+    }
 
     // 字节数组形式的数据库数据解析结果
     public static class BytesDataParseResult{
@@ -40,6 +57,84 @@ public class TBMSetting {
         public int shiftFoots;
     }
 
+    // 事务删除的行需要从索引中清理的一项
+    public static class IndexPurgeEntry {
+
+        public Field field;
+
+        public byte[] key;
+
+        public long uid;
+    }
+
+    // 已提交事务待清理的索引项，horizon 为提交时最新的活跃事务XID，所有不大于它的事务结束后才能清理
+    // 撤销事务插入的索引项 horizon 为超级事务XID，下次清理时就会删除
+    public static class IndexPurgeBatch {
+
+        public long horizon;
+
+        public List<IndexPurgeEntry> entries;
+    }
+
+    // 已经置为无效、等待回收空间的记录，mark 为置为无效时最新的活跃事务XID，所有不大于它的事务结束后才能回收
+    public static class ReclaimBatch {
+
+        public long mark;
+
+        public List<Long> uids;
+    }
+
+    // 行外存储的值在行中留下的指针，序列化为 [标记 4][是否压缩 1][原始长度 4][第一块uid 8]
+    public static class ToastPointer {
+
+        public boolean compressed;
+
+        public int rawLength;
+
+        public long firstChunkUid;
+    }
+
+    // 有原地更新的行，xid 是最近一次更新的事务XID，清理旧版本时由 table 释放它们引用的行外存储的值
+    public static class UpdatedRow {
+
+        public Table table;
+
+        public long uid;
+
+        public long xid;
+    }
+
+    // 行外存储指针的标记，占据字符串长度的位置，正常的字符串长度不会是负数
+    public static final int TOAST_POINTER_MARKER = -1;
+
+    public static final int TOAST_POINTER_LENGTH = DataSetting.INT_BYTE_SIZE + DataSetting.BYTE_BYTE_SIZE + DataSetting.INT_BYTE_SIZE + DataSetting.LONG_BYTE_SIZE;
+
+    public static final byte TOAST_COMPRESSED = 1;
+
+    public static final byte TOAST_UNCOMPRESSED = 0;
+
+    // 一行的字节数超过这个值时，把可以行外存储的字段移出行
+    public static final int TOAST_ROW_THRESHOLD = PageSetting.PAGE_SIZE / 4;
+
+    // 块: [下一块uid 8][块数据]，最后一块的下一块uid为 TOAST_CHUNK_UID_NONE
+    public static final int TOAST_CHUNK_NEXT_UID_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    public static final long TOAST_CHUNK_UID_NONE = 0L;
+
+    // 每块的数据大小，包上数据记录的头、加上槽位后正好占满一个空页面
+    public static final int TOAST_CHUNK_SIZE = PageSetting.PAGE_X_MAX_FREE_SPACE - PageSetting.PAGE_X_SLOT_LENGTH
+            - DataItemSetting.DATA_DATA_OFFSET - TOAST_CHUNK_NEXT_UID_LENGTH;
+
+    // 后台清理的间隔(毫秒)
+    public static final long VACUUM_INTERVAL_MILLIS = 1000;
+
+    public static final String VACUUM_THREAD_NAME = "easydb-vacuum";
+
+    public static final long VACUUM_SHUTDOWN_WAIT_SECONDS = 10;
+
+    // 更新时暂存新版本索引项的缓冲区初始大小
+    public static final int UPDATE_INDEX_BUFFER_INIT_SIZE = 16;
+
     public static final String DELIMITER = ", ";
 
     public static final String PREFIX_DELIMITER = "[";
@@ -7,21 +7,25 @@ import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.im.IndexCursor;
 import top.lxsky711.easydb.core.sp.SPSetting;
 import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.vm.VMSetting;
 import top.lxsky711.easydb.core.vm.VersionManager;
+import top.lxsky711.easydb.core.vm.VersionReleaser;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.*;
 
 /**
  * @Author: 711lxsky
  * @Description: 数据表实现类
  * 表结构: [TableName][NextTable][Field1Uid][Field2Uid]...[FieldNUid]
+ * 建表时 (index a b ...) 中的第一列建立包含所有列的联合索引，其余各列仍各自建立单列索引，这样单独对后面的列查找时依然可以走索引
+ * 一行过大时，不在任何索引中的字符串字段可以存到行外(见 Toaster)，读出行时这些字段只是指针，输出或重写这一行时才读出
+ * 行版本被清理时，由表释放它们引用的行外存储的值
  */
 
-public class Table {
+public class Table implements VersionReleaser {
 
     private final TableManager tbm;
 
@@ -55,12 +59,23 @@ public class Table {
      */
     public static Table createTable(long transactionXid, TableManager tbm, long nextTableUid, SPSetting.Create create) throws WarningException, ErrorException {
         Table table = new Table(tbm, create.tableName, nextTableUid);
+        for(String indexName : create.indexs){
+            if(! CollectionUtil.judgeElementInList(create.fieldsName, indexName)){
+                Log.logWarningMessage(WarningMessage.INDEX_IS_NOT_EXIST);
+                return null;
+            }
+        }
         int fieldNum = create.fieldsName.size();
         for (int i = 0; i < fieldNum; i++) {
             String fieldName = create.fieldsName.get(i);
             String fieldType = create.fieldsType.get(i);
-            boolean isIndex = CollectionUtil.judgeElementInList(create.indexs, fieldName);
-            table.fields.add(Field.createField(transactionXid, table, fieldName, fieldType, isIndex));
+            List<String> indexColumnNames = null;
+            if(CollectionUtil.judgeElementInList(create.indexs, fieldName)){
+                indexColumnNames = StringUtil.stringEqual(create.indexs.get(0), fieldName)
+                        ? create.indexs
+                        : Collections.singletonList(fieldName);
+            }
+            table.fields.add(Field.createField(transactionXid, table, fieldName, fieldType, indexColumnNames));
         }
         table.persistSelf(transactionXid);
         return table;
@@ -81,7 +96,7 @@ public class Table {
             offset += DataSetting.LONG_BYTE_SIZE;
         }
         byte[] tableInfoBytes = Bytes.concat(tableNameBytes, nextTableUidBytes, fieldsUidBytes);
-        this.uid = this.tbm.getDM().insertData(transactionXid, tableInfoBytes);
+        this.uid = this.tbm.getVM().insert(transactionXid, tableInfoBytes);
     }
 
     /**
@@ -135,33 +150,92 @@ public class Table {
 
     /**
      * @Author: 711lxsky
-     * @Description: 查询数据实现
+     * @Description: 查询数据实现，只输出查询的列
      */
     public String select(long transactionXid, SPSetting.Select select) throws WarningException, ErrorException {
-        List<Long> targetUidList = this.analyzeWhere(select.where);
-        StringBuilder sb = new StringBuilder();
-        if(Objects.isNull(targetUidList)){
+        List<Field> selectFields = this.seekSelectFields(select.fieldsName);
+        if(Objects.isNull(selectFields)){
             return null;
         }
-        for (Long uid : targetUidList) {
-            byte[] raw = this.tbm.getVM().read(transactionXid, uid);
-            if(raw == null) continue;
-            // 字段信息提取
-            Map<String, Object> entry = this.parseBytesToEntry(raw);
-            sb.append(this.parseEntryToString(entry)).append(TBMSetting.LINE_FEED);
+        WhereScanner scanner = this.openWhereScanner(transactionXid, select.where, selectFields);
+        if(Objects.isNull(scanner)){
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        while(scanner.next()){
+            sb.append(this.parseEntryToString(scanner.entry, selectFields)).append(TBMSetting.LINE_FEED);
         }
         return sb.toString();
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 找到查询的列，通配符表示所有列
+     */
+    private List<Field> seekSelectFields(List<String> fieldsName) throws WarningException {
+        if(fieldsName.size() == 1 && StringUtil.isLegalWildcard(fieldsName.get(0))){
+            return this.fields;
+        }
+        List<Field> selectFields = new ArrayList<>();
+        for(String fieldName : fieldsName){
+            Field field = this.seekFieldWithName(fieldName);
+            if(Objects.isNull(field)){
+                Log.logWarningMessage(WarningMessage.FIELD_NOT_FOUND);
+                return null;
+            }
+            selectFields.add(field);
+        }
+        return selectFields;
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 插入数据实现
+     * 先构造并检查所有索引 key，任何 key 过长时整条语句在写入记录之前失败，不会留下没有索引项的记录
      */
     public void insert(long transactionXid, SPSetting.Insert insert) throws WarningException, ErrorException {
         Map<String, Object> entry = this.parseValuesToEntry(insert.values);
-        byte[] entryBytes = this.parseEntryToBytes(entry);
+        List<Field> indexFields = this.getIndexFields();
+        byte[][] keys = this.buildInsertIndexKeys(indexFields, entry);
+        byte[] entryBytes = this.parseEntryToBytes(transactionXid, entry, false);
         long uid = this.tbm.getVM().insert(transactionXid, entryBytes);
-        this.internInsert(uid, entry);
+        this.internInsert(transactionXid, uid, indexFields, keys);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 批量插入数据实现，所有行的记录一起交给版本管理器，连续的行放进同一个页面、共用一条插入日志
+     * 所有行的索引 key 都检查通过之后才写入任何记录，不会只有前面一部分行有索引项
+     */
+    public void insertBatch(long transactionXid, List<SPSetting.Insert> inserts) throws WarningException, ErrorException {
+        List<Field> indexFields = this.getIndexFields();
+        List<Map<String, Object>> entries = new ArrayList<>(inserts.size());
+        List<byte[][]> keysList = new ArrayList<>(inserts.size());
+        for(SPSetting.Insert insert : inserts){
+            Map<String, Object> entry = this.parseValuesToEntry(insert.values);
+            entries.add(entry);
+            keysList.add(this.buildInsertIndexKeys(indexFields, entry));
+        }
+        List<byte[]> entryBytesList = new ArrayList<>(inserts.size());
+        for(Map<String, Object> entry : entries){
+            entryBytesList.add(this.parseEntryToBytes(transactionXid, entry, false));
+        }
+        long[] uids = this.tbm.getVM().insertBatch(transactionXid, entryBytesList);
+        for(int i = 0; i < uids.length; i ++){
+            this.internInsert(transactionXid, uids[i], indexFields, keysList.get(i));
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 构造一行在每个索引中的 key 并检查长度
+     */
+    private byte[][] buildInsertIndexKeys(List<Field> indexFields, Map<String, Object> entry) throws WarningException {
+        byte[][] keys = new byte[indexFields.size()][];
+        for(int i = 0; i < keys.length; i ++){
+            keys[i] = indexFields.get(i).buildInsertIndexKey(entry);
+        }
+        return keys;
     }
 
     /**
@@ -169,14 +243,15 @@ public class Table {
      * @Description: 删除数据实现
      */
     public int delete(long transactionXid, SPSetting.Delete delete) throws WarningException, ErrorException {
-        List<Long> tarUidList = this.analyzeWhere(delete.where);
+        WhereScanner scanner = this.openWhereScanner(transactionXid, delete.where, this.fields);
         int count = 0;
-        if(Objects.isNull(tarUidList)){
+        if(Objects.isNull(scanner)){
             return count;
         }
-        for(Long uid : tarUidList){
-            if(this.tbm.getVM().delete(transactionXid, uid)){
+        while(scanner.next()){
+            if(this.tbm.getVM().delete(transactionXid, scanner.uid)){
                 count ++;
+                this.internDeleteIndex(transactionXid, scanner.uid, scanner.entry);
             }
         }
         return count;
@@ -185,49 +260,152 @@ public class Table {
     /**
      * @Author: 711lxsky
      * @Description: 更新数据实现
+     * 索引 key 都没有变化时原地更新，新版本挂在旧版本的版本链上，不动任何索引
+     * 否则删除旧版本再插入新版本，新版本的索引项先暂存在数组中，扫描结束后再插入索引，避免游标再次扫到本次更新产生的新版本
+     * 新版本的索引 key 在删除旧版本之前检查，中途失败时已经写入的新版本的索引项也照常插入，不会留下没有索引项的记录
      */
     public int update(long transactionXid, SPSetting.Update update) throws WarningException, ErrorException {
-        List<Long> tarUidList = this.analyzeWhere(update.where);
         int count = 0;
-        if(Objects.isNull(tarUidList)){
-            return count;
-        }
         Field tarField = this.seekFieldWithName(update.fieldName);
         if (Objects.isNull(tarField)) {
             Log.logWarningMessage(WarningMessage.INDEX_IS_NOT_EXIST);
             return count;
         }
+        WhereScanner scanner = this.openWhereScanner(transactionXid, update.where, this.fields);
+        if(Objects.isNull(scanner)){
+            return count;
+        }
         Object value = DataParser.parseStringToData(update.value, tarField.getFieldType());
-        for(Long uid : tarUidList){
-            byte[] entryBytes = this.tbm.getVM().read(transactionXid, uid);
-            // 先删
-            if(Objects.isNull(entryBytes) || entryBytes.length == 0){
-                continue;
+        List<Field> indexFields = this.getIndexFields();
+        long[] newUids = new long[TBMSetting.UPDATE_INDEX_BUFFER_INIT_SIZE];
+        byte[][] newKeys = new byte[TBMSetting.UPDATE_INDEX_BUFFER_INIT_SIZE * indexFields.size()][];
+        int updatedCount = 0;
+        try {
+            while(scanner.next()){
+                Map<String, Object> entry = scanner.entry;
+                Map<String, Object> newEntry = new HashMap<>(entry);
+                newEntry.put(tarField.fieldName, value);
+                if(! this.judgeIndexKeysChanged(indexFields, entry, newEntry)){
+                    // 索引 key 都没有变，原地更新，新版本挂在版本链上，索引项不动，没有变化的行外存储的值沿用旧版本的指针
+                    // 写新版本失败时事务已经被撤销，刚存到行外的值随撤销一起释放
+                    byte[] entryBytes = this.parseEntryToBytes(transactionXid, newEntry, true);
+                    if(this.tbm.getVM().update(transactionXid, scanner.uid, entryBytes) != VMSetting.TRANSACTION_XID_ERROR_DEFAULT){
+                        updatedCount ++;
+                        this.tbm.getVacuum().addUpdatedRow(transactionXid, this, scanner.uid);
+                    }
+                    continue;
+                }
+                byte[][] keys = this.buildInsertIndexKeys(indexFields, newEntry);
+                // 先删
+                if(! this.tbm.getVM().delete(transactionXid, scanner.uid)){
+                    continue;
+                }
+                this.internDeleteIndex(transactionXid, scanner.uid, entry);
+                // 后增，新行不与旧行共用行外存储的块
+                byte[] entryBytes = this.parseEntryToBytes(transactionXid, newEntry, false);
+                long newUid = this.tbm.getVM().insert(transactionXid, entryBytes);
+                if(count == newUids.length){
+                    newUids = Arrays.copyOf(newUids, count * 2);
+                    newKeys = Arrays.copyOf(newKeys, count * 2 * indexFields.size());
+                }
+                newUids[count] = newUid;
+                System.arraycopy(keys, 0, newKeys, count * indexFields.size(), indexFields.size());
+                count ++;
             }
-            this.tbm.getVM().delete(transactionXid, uid);
-            Map<String, Object> entry = this.parseBytesToEntry(entryBytes);
-            entry.put(tarField.fieldName, value);
-            entryBytes = this.parseEntryToBytes(entry);
-            // 后增
-            long newUid = this.tbm.getVM().insert(transactionXid, entryBytes);
-            count ++;
-            this.internInsert(newUid, entry);
         }
-        return count;
+        finally {
+            for(int row = 0; row < count; row ++){
+                for(int i = 0; i < indexFields.size(); i ++){
+                    Field field = indexFields.get(i);
+                    byte[] key = newKeys[row * indexFields.size() + i];
+                    field.insert(newUids[row], key, transactionXid);
+                    this.tbm.getIndexPurger().addInsertedEntry(transactionXid, field, key, newUids[row]);
+                }
+            }
+        }
+        return count + updatedCount;
     }
 
-    private void internInsert(long uid,  Map<String, Object> entry) throws WarningException, ErrorException {
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断更新前后一行数据在任一索引中的 key 是否变化
+     */
+    private boolean judgeIndexKeysChanged(List<Field> indexFields, Map<String, Object> entry, Map<String, Object> newEntry) throws WarningException {
+        for(Field field : indexFields){
+            if(! Arrays.equals(field.buildIndexKey(entry), field.buildIndexKey(newEntry))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    List<Field> getIndexFields(){
+        List<Field> indexFields = new ArrayList<>();
         for(Field field : this.fields){
             if(field.isIndex()){
-                long key = TBMSetting.RIGHT_FRONTIER_DEFAULT;
-                if (entry != null) {
-                    key = DataParser.parseDataToLong(entry.get(field.fieldName), field.getFieldType());
+                indexFields.add(field);
+            }
+        }
+        return indexFields;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 插入新行的索引项，并记录下来，事务撤销时这些索引项会被清理
+     */
+    private void internInsert(long transactionXid, long uid, List<Field> indexFields, byte[][] keys) throws WarningException, ErrorException {
+        for(int i = 0; i < indexFields.size(); i ++){
+            Field field = indexFields.get(i);
+            field.insert(uid, keys[i], transactionXid);
+            this.tbm.getIndexPurger().addInsertedEntry(transactionXid, field, keys[i], uid);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 在索引中记下删除事务XID，并记录被删除行的索引项，事务提交且不再有事务能看到这一版本后才真正从索引中删除
+     */
+    private void internDeleteIndex(long transactionXid, long uid, Map<String, Object> entry) throws WarningException, ErrorException {
+        for(Field field : this.fields){
+            if(field.isIndex()){
+                byte[] key = field.buildIndexKey(entry);
+                field.markDeleted(uid, key, transactionXid);
+                this.tbm.getIndexPurger().addDeletedEntry(transactionXid, field, key, uid);
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 释放被清理的版本引用、留下的版本都没有引用的行外存储的值，同一个值在多个版本中只释放一次
+     */
+    @Override
+    public void release(long xid, List<byte[]> deadVersions, List<byte[]> keptVersions, List<Long> invalidatedUids) throws WarningException, ErrorException {
+        Set<Long> releasedChunkUids = new HashSet<>();
+        for(byte[] keptVersion : keptVersions){
+            for(TBMSetting.ToastPointer pointer : this.parseToastPointers(keptVersion)){
+                releasedChunkUids.add(pointer.firstChunkUid);
+            }
+        }
+        for(byte[] deadVersion : deadVersions){
+            for(TBMSetting.ToastPointer pointer : this.parseToastPointers(deadVersion)){
+                if(releasedChunkUids.add(pointer.firstChunkUid)){
+                    this.tbm.getToaster().free(xid, pointer, invalidatedUids);
                 }
-                field.insert(uid, key);
             }
         }
     }
 
+    private List<TBMSetting.ToastPointer> parseToastPointers(byte[] version) throws WarningException {
+        List<TBMSetting.ToastPointer> pointers = new ArrayList<>();
+        for(Object value : this.parseBytesToEntry(version).values()){
+            if(value instanceof TBMSetting.ToastPointer){
+                pointers.add((TBMSetting.ToastPointer) value);
+            }
+        }
+        return pointers;
+    }
+
     private Map<String, Object> parseValuesToEntry(List<String> values) throws WarningException {
         // 将数据转换为字段数据
         if(values.size() != this.fields.size()){
@@ -254,21 +432,74 @@ public class Table {
     /**
      * @Author: 711lxsky
      * @Description: 转换字段数据为字节数组形式
+     * 行的字节数超过阈值时，从最长的开始把可以行外存储的字段存到行外，直到不超过阈值
+     * 已经存在行外的值(更新时从旧版本带来)：keepToasted 为 true 时(原地更新，同一行的版本)直接沿用指针，
+     * 否则先读出，再按新的一行重新决定是否存到行外，不同的行不共用块
      */
-    private byte[] parseEntryToBytes(Map<String, Object> entry) throws WarningException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (Field field : fields) {
-            try {
-                byte[] data = DataParser.parseDataToBytes(entry.get(field.fieldName), field.getFieldType());
-                if(Objects.isNull(data)){
-                    return null;
+    private byte[] parseEntryToBytes(long transactionXid, Map<String, Object> entry, boolean keepToasted) throws WarningException, ErrorException {
+        Object[] values = new Object[this.fields.size()];
+        byte[][] fieldsData = new byte[this.fields.size()][];
+        int entryLength = 0;
+        for(int i = 0; i < this.fields.size(); i ++){
+            Field field = this.fields.get(i);
+            Object value = entry.get(field.fieldName);
+            if(keepToasted && value instanceof TBMSetting.ToastPointer){
+                values[i] = value;
+                fieldsData[i] = Toaster.buildToastPointerBytes((TBMSetting.ToastPointer) value);
+                entryLength += fieldsData[i].length;
+                continue;
+            }
+            values[i] = this.detoastValue(value);
+            fieldsData[i] = DataParser.parseDataToBytes(values[i], field.getFieldType());
+            if(Objects.isNull(fieldsData[i])){
+                return null;
+            }
+            entryLength += fieldsData[i].length;
+        }
+        if(entryLength > TBMSetting.TOAST_ROW_THRESHOLD){
+            List<Integer> toastableFields = this.getToastableFieldIndexes();
+            toastableFields.sort((a, b) -> fieldsData[b].length - fieldsData[a].length);
+            for(int i : toastableFields){
+                if(entryLength <= TBMSetting.TOAST_ROW_THRESHOLD || fieldsData[i].length <= TBMSetting.TOAST_POINTER_LENGTH){
+                    break;
                 }
-                baos.write(data);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                TBMSetting.ToastPointer pointer = this.tbm.getToaster().toast(transactionXid, ((String) values[i]).getBytes());
+                entryLength -= fieldsData[i].length;
+                fieldsData[i] = Toaster.buildToastPointerBytes(pointer);
+                entryLength += fieldsData[i].length;
             }
         }
-        return baos.toByteArray();
+        return Bytes.concat(fieldsData);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 可以存到行外的字段：不在任何索引中的字符串字段，索引 key 和 where 过滤都需要直接拿到值
+     */
+    private List<Integer> getToastableFieldIndexes(){
+        Set<String> indexColumnNames = new HashSet<>();
+        for(Field field : this.fields){
+            indexColumnNames.addAll(field.getIndexColumnNames());
+        }
+        List<Integer> toastableFields = new ArrayList<>();
+        for(int i = 0; i < this.fields.size(); i ++){
+            Field field = this.fields.get(i);
+            if(StringUtil.stringEqual(field.getFieldType(), DataSetting.DATA_STRING) && ! indexColumnNames.contains(field.getFieldName())){
+                toastableFields.add(i);
+            }
+        }
+        return toastableFields;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 行外存储的值读出为字符串，其他值原样返回
+     */
+    private Object detoastValue(Object value) throws WarningException, ErrorException {
+        if(value instanceof TBMSetting.ToastPointer){
+            return new String(this.tbm.getToaster().detoast((TBMSetting.ToastPointer) value));
+        }
+        return value;
     }
 
     /**
@@ -290,10 +521,10 @@ public class Table {
      * @Author: 711lxsky
      * @Description: 解析字段数据为字符串形式
      */
-    private String parseEntryToString(Map<String, Object> record) throws WarningException {
+    private String parseEntryToString(Map<String, Object> record, List<Field> selectFields) throws WarningException, ErrorException {
         StringJoiner sj = new StringJoiner(TBMSetting.DELIMITER, TBMSetting.PREFIX_DELIMITER, TBMSetting.SUFFIX_DELIMITER);
-        for (Field field : fields) {
-            sj.add(DataParser.parseDataToString(record.get(field.fieldName), field.getFieldType()));
+        for (Field field : selectFields) {
+            sj.add(DataParser.parseDataToString(this.detoastValue(record.get(field.fieldName)), field.getFieldType()));
         }
         return sj.toString();
     }
@@ -313,21 +544,7 @@ public class Table {
         return tarField;
     }
 
-    /**
-     * @Author: 711lxsky
-     * @Description: 内部默认搜索方法
-     */
-    private List<Long> internSearchDefault() throws WarningException, ErrorException {
-        Field firstIndexField = this.getFirstIndexField();
-        if (Objects.isNull(firstIndexField)) {
-            Log.logWarningMessage(WarningMessage.NO_INDEX);
-            return null;
-        }
-        TBMSetting.Frontiers frontiers = firstIndexField.getSearchFrontiersDefault();
-        return firstIndexField.rangeSearch(frontiers.leftFrontier, frontiers.rightFrontier);
-    }
-
-    private Field seekFieldWithName(String tarFieldName){
+    Field seekFieldWithName(String tarFieldName){
         Field tarField = null;
         for (Field field : this.fields) {
             if (StringUtil.stringEqual(field.getFieldName(), tarFieldName)) {
@@ -338,41 +555,204 @@ public class Table {
         return tarField;
     }
 
-    private List<Long> internSearch(SPSetting.Expression expression) throws WarningException, ErrorException {
+    /**
+     * @Author: 711lxsky
+     * @Description: 找到表达式对应的索引字段
+     */
+    private Field seekIndexFieldForExpression(SPSetting.Expression expression) throws WarningException {
         Field tarField = this.seekFieldWithName(expression.fieldName);
-        if (Objects.isNull(tarField)) {
+        if (Objects.isNull(tarField) || ! tarField.isIndex()) {
             Log.logWarningMessage(WarningMessage.INDEX_IS_NOT_EXIST);
             return null;
         }
-        TBMSetting.Frontiers frontiers0 = tarField.getSearchFrontiers(expression);
-        return tarField.rangeSearch(frontiers0.leftFrontier, frontiers0.rightFrontier);
+        return tarField;
+    }
+
+    private TBMSetting.WhereScanStage buildWhereScanStage(Field indexField, TBMSetting.Frontiers frontiers){
+        TBMSetting.WhereScanStage stage = new TBMSetting.WhereScanStage();
+        stage.indexField = indexField;
+        stage.frontiers = frontiers;
+        return stage;
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 解析where语句
+     * @Description: 解析where语句，转换成若干段索引扫描
+     * 两个表达式时不再分别求出 uid 列表再求交集、并集，而是只扫描索引，对读出的行直接判断另一个表达式：
+     * AND: 扫描表达式1，保留满足表达式2的行；如果一个表达式是联合索引第一列的等值条件，另一个表达式在第二列上，就直接在联合索引上扫描两者共同确定的范围
+     * OR: 先扫描表达式1，再扫描表达式2，跳过满足表达式1(已经返回过)的行
      */
-    private List<Long> analyzeWhere(SPSetting.Where where) throws WarningException, ErrorException {
+    private List<TBMSetting.WhereScanStage> analyzeWhere(SPSetting.Where where) throws WarningException {
+        List<TBMSetting.WhereScanStage> stages = new ArrayList<>();
         // where空，默认搜索
         if (Objects.isNull(where)) {
-            return this.internSearchDefault();
-        } else {
-            if(Objects.isNull(where.expression1)){
-                Log.logWarningMessage(WarningMessage.EXPRESSION_IS_INVALID);
+            Field firstIndexField = this.getFirstIndexField();
+            if (Objects.isNull(firstIndexField)) {
+                Log.logWarningMessage(WarningMessage.NO_INDEX);
                 return null;
             }
-            List<Long> result0 = this.internSearch(where.expression1);
-            if(Objects.isNull(where.expression2)){
-                // 只有表达式1
-                return result0;
-            }
-            if(StringUtil.stringIsBlank(where.logic)){
+            stages.add(this.buildWhereScanStage(firstIndexField, firstIndexField.getSearchFrontiersDefault()));
+            return stages;
+        }
+        if(Objects.isNull(where.expression1)){
+            Log.logWarningMessage(WarningMessage.EXPRESSION_IS_INVALID);
+            return null;
+        }
+        Field field0 = this.seekIndexFieldForExpression(where.expression1);
+        if(Objects.isNull(field0)){
+            return null;
+        }
+        TBMSetting.Frontiers frontiers0 = field0.getSearchFrontiers(where.expression1);
+        TBMSetting.WhereScanStage stage0 = this.buildWhereScanStage(field0, frontiers0);
+        stages.add(stage0);
+        if(Objects.isNull(where.expression2)){
+            // 只有表达式1
+            return stages;
+        }
+        if(StringUtil.stringIsBlank(where.logic)){
+            Log.logWarningMessage(WarningMessage.LOGIC_OPERATOR_IS_INVALID);
+            return null;
+        }
+        Field field1 = this.seekIndexFieldForExpression(where.expression2);
+        if(Objects.isNull(field1)){
+            return null;
+        }
+        TBMSetting.Frontiers frontiers1 = field1.getSearchFrontiers(where.expression2);
+        switch (where.logic){
+            case DataSetting.LOGIC_AND:
+                TBMSetting.Frontiers compositeFrontiers = this.getCompositeFrontiers(field0, where.expression1, field1, where.expression2);
+                if(Objects.isNull(compositeFrontiers)){
+                    compositeFrontiers = this.getCompositeFrontiers(field1, where.expression2, field0, where.expression1);
+                    if(Objects.nonNull(compositeFrontiers)){
+                        stage0.indexField = field1;
+                    }
+                }
+                if(Objects.nonNull(compositeFrontiers)){
+                    stage0.frontiers = compositeFrontiers;
+                    return stages;
+                }
+                stage0.filterField = field1;
+                stage0.filterFrontiers = frontiers1;
+                stage0.filterExpected = true;
+                return stages;
+            case DataSetting.LOGIC_OR:
+                TBMSetting.WhereScanStage stage1 = this.buildWhereScanStage(field1, frontiers1);
+                stage1.filterField = field0;
+                stage1.filterFrontiers = frontiers0;
+                stage1.filterExpected = false;
+                stages.add(stage1);
+                return stages;
+            default:
                 Log.logWarningMessage(WarningMessage.LOGIC_OPERATOR_IS_INVALID);
                 return null;
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: leadingExpression 是 leadingField 上的等值条件，且 leadingField 联合索引的第二列正是 nextExpression 的字段时，
+     * 返回两者在联合索引上共同确定的范围，否则返回 null
+     */
+    private TBMSetting.Frontiers getCompositeFrontiers(Field leadingField, SPSetting.Expression leadingExpression,
+                                                       Field nextField, SPSetting.Expression nextExpression) throws WarningException {
+        List<String> indexColumnNames = leadingField.getIndexColumnNames();
+        if(indexColumnNames.size() < 2
+                || ! StringUtil.stringEqual(leadingExpression.compare, DataSetting.COMPARE_EQUAL)
+                || ! StringUtil.stringEqual(indexColumnNames.get(1), nextField.getFieldName())){
+            return null;
+        }
+        byte[] prefix = leadingField.parseExpressionToIndexKey(leadingExpression);
+        return nextField.getSearchFrontiers(prefix, nextExpression);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 打开 where 语句的扫描器，neededFields 是调用方需要读出的列
+     * 某段扫描需要的列和过滤的列都在其索引包含的列中时，这段扫描只读索引，直接用索引中的版本信息判断可见性，从 key 中还原各列的值
+     */
+    private WhereScanner openWhereScanner(long transactionXid, SPSetting.Where where, List<Field> neededFields) throws WarningException {
+        List<TBMSetting.WhereScanStage> stages = this.analyzeWhere(where);
+        if(Objects.isNull(stages)){
+            return null;
+        }
+        for(TBMSetting.WhereScanStage stage : stages){
+            List<String> indexColumnNames = stage.indexField.getIndexColumnNames();
+            boolean covering = Objects.isNull(stage.filterField)
+                    || CollectionUtil.judgeElementInList(indexColumnNames, stage.filterField.getFieldName());
+            for(Field field : neededFields){
+                covering = covering && CollectionUtil.judgeElementInList(indexColumnNames, field.getFieldName());
+            }
+            stage.covering = covering;
+        }
+        return new WhereScanner(transactionXid, stages);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按 where 语句逐行拉取当前事务可见的数据，每次只持有一行
+     */
+    private class WhereScanner {
+
+        private final long transactionXid;
+
+        private final List<TBMSetting.WhereScanStage> stages;
+
+        private int stageIndex;
+
+        private TBMSetting.WhereScanStage stage;
+
+        private IndexCursor cursor;
+
+        // 当前行
+        private long uid;
+
+        private Map<String, Object> entry;
+
+        private WhereScanner(long transactionXid, List<TBMSetting.WhereScanStage> stages) {
+            this.transactionXid = transactionXid;
+            this.stages = stages;
+        }
+
+        /**
+         * @Author: 711lxsky
+         * @Description: 移动到下一行，没有更多数据时返回 false
+         */
+        private boolean next() throws WarningException, ErrorException {
+            while(true){
+                if(Objects.isNull(this.cursor)){
+                    if(this.stageIndex == this.stages.size()){
+                        return false;
+                    }
+                    this.stage = this.stages.get(this.stageIndex ++);
+                    this.cursor = this.stage.indexField.openCursor(this.stage.frontiers.leftFrontier, this.stage.frontiers.rightFrontier);
+                }
+                if(! this.cursor.hasNext()){
+                    this.cursor = null;
+                    continue;
+                }
+                long nextUid = this.cursor.next();
+                Map<String, Object> nextEntry;
+                if(this.stage.covering){
+                    if(! Table.this.tbm.getVM().isVisible(this.transactionXid, this.cursor.getXmin(), this.cursor.getXmax())){
+                        continue;
+                    }
+                    nextEntry = this.stage.indexField.decodeIndexKey(this.cursor.getKey());
+                }
+                else {
+                    byte[] raw = Table.this.tbm.getVM().read(this.transactionXid, nextUid);
+                    if(Objects.isNull(raw)){
+                        continue;
+                    }
+                    nextEntry = Table.this.parseBytesToEntry(raw);
+                }
+                if(Objects.nonNull(this.stage.filterField)
+                        && this.stage.filterField.judgeInFrontiers(nextEntry, this.stage.filterFrontiers) != this.stage.filterExpected){
+                    continue;
+                }
+                this.uid = nextUid;
+                this.entry = nextEntry;
+                return true;
             }
-            List<Long> result1 = this.internSearch(where.expression2);
-            // 再分别求交集和并集
-            return DataParser.analyzeTwoListWithLogic(where.logic, result0, result1);
         }
     }
 
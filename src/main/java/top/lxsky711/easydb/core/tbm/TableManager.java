@@ -7,6 +7,8 @@ import top.lxsky711.easydb.core.dm.DataManager;
 import top.lxsky711.easydb.core.sp.SPSetting;
 import top.lxsky711.easydb.core.vm.VersionManager;
 
+import java.util.List;
+
 /**
  * @Author: 711lxsky
  * @Description: 表管理器接口
@@ -44,6 +46,12 @@ public interface TableManager {
      */
     byte[] insert(long xid, SPSetting.Insert insert) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 批量插入数据，同一张表的行一起插入
+     */
+    byte[] insertBatch(long xid, List<SPSetting.Insert> inserts) throws WarningException, ErrorException;
+
     byte[] drop(long xid, SPSetting.Drop drop) throws WarningException;
 
     /**
@@ -74,6 +82,18 @@ public interface TableManager {
 
     VersionManager getVM();
 
+    IndexPurger getIndexPurger();
+
+    Toaster getToaster();
+
+    Vacuum getVacuum();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 关闭表管理器，停止后台清理，需要在关闭数据管理器之前调用
+     */
+    void close();
+
     /**
      * @Author: 711lxsky
      * @Description: 以创建的形式拿到表管理器
@@ -32,16 +32,30 @@ public class TableManagerImpl implements TableManager{
 
     private final Map<Long, List<Table>> transactionTableCache;
 
+    private final IndexPurger indexPurger;
+
+    private final Toaster toaster;
+
+    private final Vacuum vacuum;
+
     private final Lock selfLock;
 
     public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) throws WarningException, ErrorException {
         this.vm = vm;
         this.dm = dm;
         this.booter = booter;
+        this.indexPurger = new IndexPurger(vm);
+        this.toaster = new Toaster(dm);
+        // 撤销事务时由版本管理器在撤销状态写下之前释放它写下的行外存储的值
+        vm.setAbortedDataReleaser(this.toaster);
+        this.vacuum = new Vacuum(vm, dm, this.indexPurger, this.toaster);
         this.tableCache = new HashMap<>();
         this.transactionTableCache = new HashMap<>();
         this.selfLock = new ReentrantLock();
         this.loadTables();
+        // 上次运行中没有清理完的数据只能从索引重新找出来，需要在任何事务开始之前完成
+        this.vacuum.sweep(this.tableCache.values());
+        this.vacuum.start();
     }
 
     private void loadTables() throws WarningException, ErrorException {
@@ -69,12 +83,14 @@ public class TableManagerImpl implements TableManager{
     @Override
     public byte[] commit(long transactionXid) throws WarningException, ErrorException {
         this.vm.commit(transactionXid);
+        this.vacuum.commit(transactionXid);
         return ByteParser.parseStringToNormalBytes(SPSetting.TOKEN_COMMIT_DEFAULT);
     }
 
     @Override
     public byte[] abort(long transactionXid) throws WarningException, ErrorException {
         this.vm.abort(transactionXid);
+        this.vacuum.abort(transactionXid);
         return ByteParser.parseStringToNormalBytes(SPSetting.TOKEN_ABORT_DEFAULT);
     }
 
@@ -139,6 +155,24 @@ public class TableManagerImpl implements TableManager{
         return ByteParser.parseStringToNormalBytes(SPSetting.TOKEN_INSERT_DEFAULT);
     }
 
+    @Override
+    public byte[] insertBatch(long transactionXid, List<SPSetting.Insert> inserts) throws WarningException, ErrorException {
+        // 按表分组，保持每张表内行的顺序
+        Map<String, List<SPSetting.Insert>> tableInserts = new LinkedHashMap<>();
+        for(SPSetting.Insert insert : inserts){
+            tableInserts.computeIfAbsent(insert.tableName, k -> new ArrayList<>()).add(insert);
+        }
+        for(Map.Entry<String, List<SPSetting.Insert>> entry : tableInserts.entrySet()){
+            Table tableFromCache = this.getTableFromCache(entry.getKey());
+            if(Objects.isNull(tableFromCache)){
+                Log.logWarningMessage(WarningMessage.TABLE_NOT_FOUND);
+                return null;
+            }
+            tableFromCache.insertBatch(transactionXid, entry.getValue());
+        }
+        return ByteParser.parseStringToNormalBytes(SPSetting.TOKEN_INSERT_DEFAULT);
+    }
+
     @Override
     public byte[] select(long transactionXid, SPSetting.Select select) throws WarningException, ErrorException {
         Table tableFromCache = this.getTableFromCache(select.tableName);
@@ -199,4 +233,24 @@ public class TableManagerImpl implements TableManager{
     public VersionManager getVM() {
         return this.vm;
     }
+
+    @Override
+    public IndexPurger getIndexPurger() {
+        return this.indexPurger;
+    }
+
+    @Override
+    public Toaster getToaster() {
+        return this.toaster;
+    }
+
+    @Override
+    public Vacuum getVacuum() {
+        return this.vacuum;
+    }
+
+    @Override
+    public void close() {
+        this.vacuum.close();
+    }
 }
@@ -0,0 +1,279 @@
+package top.lxsky711.easydb.core.tbm;
+
+import com.google.common.primitives.Bytes;
+import top.lxsky711.easydb.common.data.ByteParser;
+import top.lxsky711.easydb.common.data.DataSetting;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.common.log.Log;
+import top.lxsky711.easydb.common.log.WarningMessage;
+import top.lxsky711.easydb.core.common.SubArray;
+import top.lxsky711.easydb.core.dm.DataItem;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.vm.AbortedDataReleaser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 行外存储器
+ * 一行数据过大时，把其中较长的字符串字段移到行外，行中只留下一个指针
+ * 值能压缩变小时先压缩，再切成块链式存放：每块是一条数据记录 [下一块uid][块数据]，一块基本占满一个页面
+ * 从最后一块开始倒序插入，这样每块插入时已经知道下一块的uid；读取时沿着块链逐块读出，压缩的值边读边解压
+ * 块不分版本，不单独记录清理状态，随引用它的行版本一起释放：
+ * 原地更新时没有变化的值沿用旧版本的指针，同一行的版本之间可以共用块，不同行之间从不共用；
+ * 清理器把行版本置为无效之前，由表找出不再被留下的版本引用的值，以清理事务把块置为无效；
+ * 事务撤销时，它写下的值只被它自己产生的版本引用，在撤销状态写下之前以该事务把块置为无效；
+ * 事务还没结束就崩溃时，恢复会撤销它写下的块，启动时整体回收，所以还未结束的事务写下的值只需要记在内存中
+ */
+
+public class Toaster implements AbortedDataReleaser {
+
+    private final DataManager dm;
+
+    /**
+     * 还未结束的事务写下的值
+     */
+    private final Map<Long, List<TBMSetting.ToastPointer>> pendingInsertedValues;
+
+    /**
+     * 撤销的事务写下、已经置为无效，等待回收空间的块
+     */
+    private final Queue<Long> abortedChunks;
+
+    private final Lock selfLock;
+
+    public Toaster(DataManager dm) {
+        this.dm = dm;
+        this.pendingInsertedValues = new HashMap<>();
+        this.abortedChunks = new ConcurrentLinkedQueue<>();
+        this.selfLock = new ReentrantLock();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断字段的字节数据是否是行外存储的指针
+     */
+    public static boolean isToastPointer(byte[] bytesData){
+        return bytesData.length >= DataSetting.INT_BYTE_SIZE
+                && ByteParser.parseBytesToInt(Arrays.copyOf(bytesData, DataSetting.INT_BYTE_SIZE)) == TBMSetting.TOAST_POINTER_MARKER;
+    }
+
+    public static byte[] buildToastPointerBytes(TBMSetting.ToastPointer pointer){
+        byte[] compressed = new byte[]{pointer.compressed ? TBMSetting.TOAST_COMPRESSED : TBMSetting.TOAST_UNCOMPRESSED};
+        return Bytes.concat(ByteParser.intToBytes(TBMSetting.TOAST_POINTER_MARKER), compressed,
+                ByteParser.intToBytes(pointer.rawLength), ByteParser.longToBytes(pointer.firstChunkUid));
+    }
+
+    public static TBMSetting.ToastPointer parseToastPointer(byte[] bytesData){
+        TBMSetting.ToastPointer pointer = new TBMSetting.ToastPointer();
+        int position = DataSetting.INT_BYTE_SIZE;
+        pointer.compressed = bytesData[position] == TBMSetting.TOAST_COMPRESSED;
+        position += DataSetting.BYTE_BYTE_SIZE;
+        pointer.rawLength = ByteParser.parseBytesToInt(Arrays.copyOfRange(bytesData, position, position + DataSetting.INT_BYTE_SIZE));
+        position += DataSetting.INT_BYTE_SIZE;
+        pointer.firstChunkUid = ByteParser.parseBytesToLong(Arrays.copyOfRange(bytesData, position, position + DataSetting.LONG_BYTE_SIZE));
+        return pointer;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把值存到行外，返回行中需要留下的指针
+     * 指针在写第一块之前就记到事务下，中途失败时已经写下的块也会在事务撤销后被清理
+     */
+    public TBMSetting.ToastPointer toast(long xid, byte[] value) throws WarningException, ErrorException {
+        byte[] compressedValue = compress(value);
+        TBMSetting.ToastPointer pointer = new TBMSetting.ToastPointer();
+        pointer.compressed = Objects.nonNull(compressedValue);
+        pointer.rawLength = value.length;
+        pointer.firstChunkUid = TBMSetting.TOAST_CHUNK_UID_NONE;
+        this.selfLock.lock();
+        try {
+            this.pendingInsertedValues.computeIfAbsent(xid, k -> new ArrayList<>()).add(pointer);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        byte[] storedValue = pointer.compressed ? compressedValue : value;
+        int chunkCount = (storedValue.length + TBMSetting.TOAST_CHUNK_SIZE - 1) / TBMSetting.TOAST_CHUNK_SIZE;
+        for(int i = chunkCount - 1; i >= 0; i --){
+            byte[] chunk = Arrays.copyOfRange(storedValue, i * TBMSetting.TOAST_CHUNK_SIZE, Math.min(storedValue.length, (i + 1) * TBMSetting.TOAST_CHUNK_SIZE));
+            pointer.firstChunkUid = this.dm.insertData(xid, Bytes.concat(ByteParser.longToBytes(pointer.firstChunkUid), chunk));
+        }
+        return pointer;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 压缩值，压缩后没有变小时返回 null
+     */
+    private static byte[] compress(byte[] value){
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(value.length);
+            byte[] buffer = new byte[TBMSetting.TOAST_CHUNK_SIZE];
+            while(! deflater.finished()){
+                baos.write(buffer, 0, deflater.deflate(buffer));
+                if(baos.size() >= value.length){
+                    return null;
+                }
+            }
+            return baos.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 沿着块链读出行外存储的值，压缩的值每读一块就解压一块
+     */
+    public byte[] detoast(TBMSetting.ToastPointer pointer) throws WarningException, ErrorException {
+        byte[] value = new byte[pointer.rawLength];
+        int valueLength = 0;
+        Inflater inflater = pointer.compressed ? new Inflater() : null;
+        try {
+            long chunkUid = pointer.firstChunkUid;
+            while(chunkUid != TBMSetting.TOAST_CHUNK_UID_NONE){
+                byte[] chunk = this.readChunk(chunkUid);
+                if(Objects.isNull(chunk)){
+                    Log.logWarningMessage(WarningMessage.TOAST_VALUE_BROKEN);
+                    return null;
+                }
+                chunkUid = ByteParser.parseBytesToLong(Arrays.copyOf(chunk, TBMSetting.TOAST_CHUNK_NEXT_UID_LENGTH));
+                int chunkDataLength = chunk.length - TBMSetting.TOAST_CHUNK_NEXT_UID_LENGTH;
+                if(Objects.isNull(inflater)){
+                    if(valueLength + chunkDataLength > value.length){
+                        Log.logWarningMessage(WarningMessage.TOAST_VALUE_BROKEN);
+                        return null;
+                    }
+                    System.arraycopy(chunk, TBMSetting.TOAST_CHUNK_NEXT_UID_LENGTH, value, valueLength, chunkDataLength);
+                    valueLength += chunkDataLength;
+                    continue;
+                }
+                inflater.setInput(chunk, TBMSetting.TOAST_CHUNK_NEXT_UID_LENGTH, chunkDataLength);
+                while(! inflater.needsInput() && ! inflater.finished() && valueLength < value.length){
+                    valueLength += inflater.inflate(value, valueLength, value.length - valueLength);
+                }
+            }
+        } catch (DataFormatException e) {
+            Log.logWarningMessage(WarningMessage.TOAST_VALUE_BROKEN);
+            return null;
+        }
+        finally {
+            if(Objects.nonNull(inflater)){
+                inflater.end();
+            }
+        }
+        if(valueLength != value.length){
+            Log.logWarningMessage(WarningMessage.TOAST_VALUE_BROKEN);
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 读出一块的数据，块已经无效时返回 null
+     */
+    private byte[] readChunk(long chunkUid) throws WarningException, ErrorException {
+        DataItem chunkItem = this.dm.readDataItem(chunkUid);
+        if(Objects.isNull(chunkItem)){
+            return null;
+        }
+        chunkItem.readLock();
+        try {
+            SubArray chunkData = chunkItem.getDataRecord();
+            return Arrays.copyOfRange(chunkData.rawData, chunkData.start, chunkData.end);
+        }
+        finally {
+            chunkItem.readUnlock();
+            chunkItem.releaseOneReference();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 以 xid 把值的所有块置为无效，置为无效的块加入 invalidatedUids
+     * 先找出整条块链，再从最后一块往前置为无效，中途失败时剩下的仍能从指针找到；已经置为无效的块不再处理
+     */
+    public void free(long xid, TBMSetting.ToastPointer pointer, List<Long> invalidatedUids) throws WarningException, ErrorException {
+        List<Long> chunkUids = new ArrayList<>();
+        long chunkUid = pointer.firstChunkUid;
+        while(chunkUid != TBMSetting.TOAST_CHUNK_UID_NONE){
+            byte[] chunk = this.readChunk(chunkUid);
+            if(Objects.isNull(chunk)){
+                break;
+            }
+            chunkUids.add(chunkUid);
+            chunkUid = ByteParser.parseBytesToLong(Arrays.copyOf(chunk, TBMSetting.TOAST_CHUNK_NEXT_UID_LENGTH));
+        }
+        for(int i = chunkUids.size() - 1; i >= 0; i --){
+            if(this.dm.invalidateData(xid, chunkUids.get(i))){
+                invalidatedUids.add(chunkUids.get(i));
+            }
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务提交，写下的值已经被它产生的版本引用，之后随版本一起释放
+     */
+    public void commit(long xid) {
+        this.selfLock.lock();
+        try {
+            this.pendingInsertedValues.remove(xid);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务撤销，由版本管理器在撤销状态写下之前调用，写下的值对任何事务都不可见，直接置为无效
+     * 包括没有写进任何版本的值(例如写新版本失败)，清理器不会再释放插入事务撤销的版本引用的值
+     */
+    @Override
+    public void releaseAbortedData(long xid) throws WarningException, ErrorException {
+        List<TBMSetting.ToastPointer> insertedValues;
+        this.selfLock.lock();
+        try {
+            insertedValues = this.pendingInsertedValues.remove(xid);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        if(Objects.isNull(insertedValues)){
+            return;
+        }
+        List<Long> invalidatedUids = new ArrayList<>();
+        for(TBMSetting.ToastPointer pointer : insertedValues){
+            this.free(xid, pointer, invalidatedUids);
+        }
+        this.abortedChunks.addAll(invalidatedUids);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 取出撤销的事务写下、已经置为无效的块，等待回收空间
+     */
+    public List<Long> takeAbortedChunks() {
+        List<Long> abortedUids = new ArrayList<>();
+        Long abortedUid;
+        while(Objects.nonNull(abortedUid = this.abortedChunks.poll())){
+            abortedUids.add(abortedUid);
+        }
+        return abortedUids;
+    }
+}
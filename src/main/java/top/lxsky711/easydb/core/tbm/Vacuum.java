@@ -0,0 +1,327 @@
+package top.lxsky711.easydb.core.tbm;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.common.log.Log;
+import top.lxsky711.easydb.common.log.WarningMessage;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.im.IndexCursor;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.vm.VersionManager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 清理器，后台定期清理已经没有事务能看到的数据
+ * 索引清理器交出已经没有事务能看到的索引项，这些行的整条版本链先置为无效，之后才把索引项从B+树中删除；
+ * 原地更新过的行，删除事务早于所有快照的旧版本从版本链上摘下并置为无效；版本置为无效之前，由所属的表释放它们引用的行外存储的值
+ * 一次清理对版本链的修改都记在一个清理事务下，清理事务提交之前崩溃，恢复时整体撤销
+ * 置为无效时，正在进行的事务可能还持有这些 uid(例如已经从索引中读出)，所以记下当时最新的活跃事务XID，
+ * 等所有不大于它的事务都结束后，再交给数据管理器回收空间，还给页面索引
+ * 等待清理的行、版本链和等待回收的记录(包括撤销的事务写下的行外存储的块)都只记在内存中，重启后由启动清理从索引重新找出来：
+ * 索引项总是最后删除，没有清理完的行一定还能通过索引项找到
+ */
+
+public class Vacuum {
+
+    private final VersionManager vm;
+
+    private final DataManager dm;
+
+    private final IndexPurger indexPurger;
+
+    private final Toaster toaster;
+
+    /**
+     * 索引项已经没有事务能看到、等待整条版本链置为无效的行，uid -> 这一行的所有索引项
+     */
+    private final Map<Long, List<TBMSetting.IndexPurgeEntry>> deadRows;
+
+    /**
+     * 还未结束的事务原地更新过的行
+     */
+    private final Map<Long, List<TBMSetting.UpdatedRow>> pendingUpdatedRows;
+
+    /**
+     * 有已提交的原地更新的行，版本链第一个版本的uid -> 这一行以及最近一次更新的事务XID
+     */
+    private final Map<Long, TBMSetting.UpdatedRow> prunableRows;
+
+    /**
+     * 已经置为无效、等待回收空间的记录
+     */
+    private final List<TBMSetting.ReclaimBatch> reclaimBatches;
+
+    private final Lock selfLock;
+
+    /**
+     * 同一时间只做一次清理
+     */
+    private final Lock vacuumLock;
+
+    private ScheduledExecutorService vacuumer;
+
+    public Vacuum(VersionManager vm, DataManager dm, IndexPurger indexPurger, Toaster toaster) {
+        this.vm = vm;
+        this.dm = dm;
+        this.indexPurger = indexPurger;
+        this.toaster = toaster;
+        this.deadRows = new LinkedHashMap<>();
+        this.pendingUpdatedRows = new HashMap<>();
+        this.prunableRows = new ConcurrentHashMap<>();
+        this.reclaimBatches = new ArrayList<>();
+        this.selfLock = new ReentrantLock();
+        this.vacuumLock = new ReentrantLock();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 启动后台定期清理
+     */
+    public void start(){
+        this.vacuumer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread vacuumThread = new Thread(runnable, TBMSetting.VACUUM_THREAD_NAME);
+            vacuumThread.setDaemon(true);
+            return vacuumThread;
+        });
+        this.vacuumer.scheduleWithFixedDelay(() -> {
+            try {
+                this.vacuum();
+            } catch (Exception e) {
+                // 不能让异常终止定时任务，记录下来等下一次清理再尝试
+                Log.logWarningWithoutThrow(Log.concatMessage(WarningMessage.VACUUM_BACKGROUND_FAILED, String.valueOf(e)));
+            }
+        }, TBMSetting.VACUUM_INTERVAL_MILLIS, TBMSetting.VACUUM_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 启动清理，需要在启动后台清理、开始任何事务之前调用
+     * 上次运行中还没清理完的行和版本链只记在内存中，这里扫描每张表的所有索引项重新找出来：
+     * 对所有事务都不可见的索引项对应的行整体清理，其余的行都可能有可以摘下的旧版本；
+     * 清理完成后，页面中所有无效数据都已经没有引用(包括崩溃恢复撤销的插入)，交给数据管理器整体回收
+     */
+    public void sweep(Collection<Table> tables) throws WarningException, ErrorException {
+        List<TBMSetting.IndexPurgeEntry> deadEntries = new ArrayList<>();
+        for(Table table : tables){
+            for(Field field : table.getIndexFields()){
+                TBMSetting.Frontiers frontiers = field.getSearchFrontiersDefault();
+                IndexCursor cursor = field.openCursor(frontiers.leftFrontier, frontiers.rightFrontier);
+                while(cursor.hasNext()){
+                    long uid = cursor.next();
+                    if(this.vm.isVisible(TMSetting.SUPER_TRANSACTION_XID, cursor.getXmin(), cursor.getXmax())){
+                        this.prunableRows.putIfAbsent(uid, buildUpdatedRow(table, uid, TMSetting.SUPER_TRANSACTION_XID));
+                        continue;
+                    }
+                    TBMSetting.IndexPurgeEntry entry = new TBMSetting.IndexPurgeEntry();
+                    entry.field = field;
+                    entry.key = cursor.getKey();
+                    entry.uid = uid;
+                    deadEntries.add(entry);
+                }
+            }
+        }
+        this.addDeadRows(deadEntries);
+        this.vacuum();
+        this.dm.reclaimInvalidData();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 记录事务原地更新过的行，事务提交后清理它的旧版本
+     */
+    public void addUpdatedRow(long xid, Table table, long uid) {
+        this.selfLock.lock();
+        try {
+            this.pendingUpdatedRows.computeIfAbsent(xid, k -> new ArrayList<>()).add(buildUpdatedRow(table, uid, xid));
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    private static TBMSetting.UpdatedRow buildUpdatedRow(Table table, long uid, long xid){
+        TBMSetting.UpdatedRow updatedRow = new TBMSetting.UpdatedRow();
+        updatedRow.table = table;
+        updatedRow.uid = uid;
+        updatedRow.xid = xid;
+        return updatedRow;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务提交，需要在版本管理器提交之后调用，顺带取出已经可以清理的索引项
+     */
+    public void commit(long xid) throws WarningException, ErrorException {
+        this.indexPurger.commit(xid);
+        this.toaster.commit(xid);
+        List<TBMSetting.UpdatedRow> updatedRows;
+        this.selfLock.lock();
+        try {
+            updatedRows = this.pendingUpdatedRows.remove(xid);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        if(Objects.nonNull(updatedRows)){
+            for(TBMSetting.UpdatedRow updatedRow : updatedRows){
+                this.prunableRows.merge(updatedRow.uid, updatedRow, (oldRow, newRow) -> oldRow.xid >= newRow.xid ? oldRow : newRow);
+            }
+        }
+        this.addDeadRows(this.indexPurger.purge());
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 事务撤销，原地更新产生的版本、写下的行外存储的值已经在版本管理器撤销时释放
+     */
+    public void abort(long xid) {
+        this.indexPurger.abort(xid);
+        this.selfLock.lock();
+        try {
+            this.pendingUpdatedRows.remove(xid);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 按行归并索引项，一行的所有索引项总是一起交出
+     */
+    private void addDeadRows(List<TBMSetting.IndexPurgeEntry> entries){
+        if(entries.isEmpty()){
+            return;
+        }
+        this.selfLock.lock();
+        try {
+            for(TBMSetting.IndexPurgeEntry entry : entries){
+                this.deadRows.computeIfAbsent(entry.uid, k -> new ArrayList<>()).add(entry);
+            }
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 做一次清理，返回本次置为无效的记录数
+     */
+    public int vacuum() throws WarningException, ErrorException {
+        this.vacuumLock.lock();
+        try {
+            return this.internVacuum();
+        }
+        finally {
+            this.vacuumLock.unlock();
+        }
+    }
+
+    private int internVacuum() throws WarningException, ErrorException {
+        this.addDeadRows(this.indexPurger.purge());
+        Map<Long, List<TBMSetting.IndexPurgeEntry>> rows;
+        this.selfLock.lock();
+        try {
+            rows = new LinkedHashMap<>(this.deadRows);
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        long vacuumHorizon = this.vm.getVacuumHorizon();
+        List<TBMSetting.UpdatedRow> chains = new ArrayList<>();
+        for(TBMSetting.UpdatedRow prunableRow : this.prunableRows.values()){
+            if(prunableRow.xid < vacuumHorizon){
+                chains.add(prunableRow);
+            }
+        }
+        List<Long> invalidatedUids = new ArrayList<>(this.vm.takeAbortedVersions());
+        invalidatedUids.addAll(this.toaster.takeAbortedChunks());
+        List<Long> clearedRows = new ArrayList<>();
+        if(! rows.isEmpty() || ! chains.isEmpty()){
+            long vacuumXid = this.vm.beginVacuum();
+            try {
+                for(Map.Entry<Long, List<TBMSetting.IndexPurgeEntry>> row : rows.entrySet()){
+                    Table table = row.getValue().get(0).field.getTableAttributed();
+                    if(this.vm.invalidateVersionChain(vacuumXid, row.getKey(), table, invalidatedUids)){
+                        clearedRows.add(row.getKey());
+                    }
+                }
+                for(TBMSetting.UpdatedRow chain : chains){
+                    if(this.vm.pruneVersionChain(vacuumXid, chain.uid, vacuumHorizon, chain.table, invalidatedUids)){
+                        // 期间又有新的更新提交时保留，下次再清理
+                        this.prunableRows.remove(chain.uid, chain);
+                    }
+                }
+            }
+            finally {
+                this.vm.commitVacuum(vacuumXid);
+            }
+        }
+        // 版本链置为无效已经提交，这时才删除索引项，B+树的删除不需要持有清理器的锁
+        for(long uid : clearedRows){
+            for(TBMSetting.IndexPurgeEntry entry : rows.get(uid)){
+                entry.field.delete(entry.uid, entry.key);
+            }
+            this.prunableRows.remove(uid);
+            this.selfLock.lock();
+            try {
+                this.deadRows.remove(uid);
+            }
+            finally {
+                this.selfLock.unlock();
+            }
+        }
+        List<Long> reclaimUids = new ArrayList<>();
+        this.selfLock.lock();
+        try {
+            if(! invalidatedUids.isEmpty()){
+                TBMSetting.ReclaimBatch batch = new TBMSetting.ReclaimBatch();
+                batch.mark = this.vm.getNewestActiveXid();
+                batch.uids = invalidatedUids;
+                this.reclaimBatches.add(batch);
+            }
+            long oldestActiveXid = this.vm.getOldestActiveXid();
+            Iterator<TBMSetting.ReclaimBatch> iterator = this.reclaimBatches.iterator();
+            while(iterator.hasNext()){
+                TBMSetting.ReclaimBatch batch = iterator.next();
+                if(batch.mark < oldestActiveXid){
+                    reclaimUids.addAll(batch.uids);
+                    iterator.remove();
+                }
+            }
+        }
+        finally {
+            this.selfLock.unlock();
+        }
+        // 数据管理器回收空间不需要持有清理器的锁
+        if(! reclaimUids.isEmpty()){
+            this.dm.reclaimData(reclaimUids);
+        }
+        return invalidatedUids.size();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 停止后台清理，等待正在进行的清理结束
+     */
+    public void close(){
+        if(Objects.isNull(this.vacuumer)){
+            return;
+        }
+        this.vacuumer.shutdown();
+        try {
+            this.vacuumer.awaitTermination(TBMSetting.VACUUM_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -35,6 +35,29 @@ public class TMSetting {
      */
     public static final long SUPER_TRANSACTION_XID = 0L;
 
+    /**
+     * 内存事务状态表每段保存的事务数量，为 2 的幂，SHIFT 是它的以 2 为底的对数
+     */
+    public static final int XID_STATUS_SEGMENT_SHIFT = 16;
+    public static final int XID_STATUS_SEGMENT_SIZE = 1 << XID_STATUS_SEGMENT_SHIFT;
+
+    /**
+     * XID 按块预留，每块只持久化一次文件头的计数器
+     */
+    public static final long XID_RESERVE_BLOCK_SIZE = 1024;
+
+    /**
+     * 提交持久化模式
+     * SYNC: 事务状态写入 XID 文件后立刻刷盘
+     * GROUP: 事务状态随组提交的重做日志落盘后返回，XID 文件不单独刷盘
+     * ASYNC: 事务状态追加到重做日志后立刻返回，由后台定期刷盘，落盘后才写XID文件，崩溃时可能丢失最近提交的事务(整体撤销)
+     */
+    public static final byte COMMIT_DURABILITY_SYNC = 0;
+    public static final byte COMMIT_DURABILITY_GROUP = 1;
+    public static final byte COMMIT_DURABILITY_ASYNC = 2;
+
+    public static final byte COMMIT_DURABILITY_DEFAULT = COMMIT_DURABILITY_GROUP;
+
     /**
      * XID文件后缀
      */
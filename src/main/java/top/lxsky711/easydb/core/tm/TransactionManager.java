@@ -23,6 +23,7 @@ import java.util.Objects;
  * 文件结构： [t_cnt 事务个数(8字节)][t_status 事务状态(1字节)]...
  * 比如： [t_cnt=3][t_status1=1][t_status2=0][t_status3=2] 表示有3个事务，其中XID=1事务已经提交，XID=2事务正在执行，XID=3事务已经回滚
  * 所以，某个XID = x_id 的事务状态存储在 (x_id - 1) + 8 字节位置(XID=0的超级事务不需记录)
+ * XID 按块预留，t_cnt 记录的是已经预留到的 XID，重新打开后从 t_cnt + 1 开始分配，没用完的 XID 就跳过了
  */
 
 
@@ -72,6 +73,25 @@ public interface TransactionManager {
      */
     boolean isAborted(long xid) throws ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置写事务状态日志的组件，设置之后 GROUP、ASYNC 模式才会生效，否则都按 SYNC 处理
+     */
+    void setStatusLogger(TransactionStatusLogger statusLogger);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置提交持久化模式，见 TMSetting.COMMIT_DURABILITY_*
+     */
+    void setCommitDurability(byte commitDurability) throws WarningException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 重做日志已经落盘到 durableLogPosition，把状态日志不晚于这个位置的 ASYNC 事务状态写进XID文件
+     * 状态日志落盘之前XID文件中一直是正在执行，崩溃后恢复会撤销这个事务，不会只重做一部分
+     */
+    void persistLoggedStatus(long durableLogPosition) throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 关闭事务管理器
@@ -6,15 +6,27 @@ import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.common.file.FileManager;
 import top.lxsky711.easydb.common.log.ErrorMessage;
 import top.lxsky711.easydb.common.log.Log;
+import top.lxsky711.easydb.common.log.WarningMessage;
 
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: 711lxsky
+ * @Description: 事务状态在内存中按 XID 分段保存一份，打开时从 XID 文件加载，提交和撤销时先写文件刷盘再更新内存
+ * 查询事务状态只读内存，XID 文件仍然是持久化的那一份
+ * XID 按块预留，开始事务时通常不需要写文件；提交和撤销按持久化模式决定是自己刷盘还是随重做日志落盘
+ * ASYNC 模式下状态日志落盘之前不写XID文件，否则XID文件先于日志落盘时，恢复会把只落盘了一部分的事务当成已经结束
  */
 
 public class TransactionManagerImpl implements TransactionManager{
@@ -28,17 +40,59 @@ public class TransactionManagerImpl implements TransactionManager{
     @SuppressWarnings("FieldMayBeFinal")
     private FileChannel xidFileChannel;
 
-    // 事务数量统计，位于XID文件头部，占8字节
+    // 已经分配出去的最大 XID
     private long transactionCounter;
 
+    // 已经预留到的最大 XID，持久化在XID文件头部，占8字节
+    private long reservedXidEnd;
+
+    // 写事务状态日志的组件，没有设置时按 SYNC 处理
+    private volatile TransactionStatusLogger statusLogger;
+
+    private volatile byte commitDurability;
+
     // 事务计数器锁，防止其他线程同时修改计数器造成数据不一致
     @SuppressWarnings("FieldMayBeFinal")
     private Lock counterLock;
 
+    // 按字节读写状态数组元素，写用 release 读用 acquire，保证别的线程看到的状态是刷盘之后的
+    private static final VarHandle XID_STATUS_HANDLE = MethodHandles.arrayElementVarHandle(byte[].class);
+
+    // 内存中的事务状态表，每段保存 XID_STATUS_SEGMENT_SIZE 个事务的状态，只在持有计数器锁时扩容
+    private volatile byte[][] xidStatusSegments;
+
+    // ASYNC 模式下状态日志还没确认落盘、还没写进XID文件的事务状态
+    private final List<LoggedStatus> loggedStatuses;
+
+    private final Lock loggedStatusLock;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 状态日志已经追加、等待写进XID文件的一个事务状态
+     */
+    private static class LoggedStatus {
+
+        final long xid;
+
+        final byte status;
+
+        final long logPosition;
+
+        LoggedStatus(long xid, byte status, long logPosition) {
+            this.xid = xid;
+            this.status = status;
+            this.logPosition = logPosition;
+        }
+    }
+
     public TransactionManagerImpl(RandomAccessFile raf) {
         this.xidFile = raf;
         this.xidFileChannel = raf.getChannel();
         this.counterLock = new ReentrantLock();
+        this.xidStatusSegments = new byte[0][];
+        this.commitDurability = TMSetting.COMMIT_DURABILITY_DEFAULT;
+        this.loggedStatuses = new ArrayList<>();
+        this.loggedStatusLock = new ReentrantLock();
     }
 
     public void initCreate() throws WarningException, ErrorException {
@@ -49,15 +103,19 @@ public class TransactionManagerImpl implements TransactionManager{
 
     /**
      * @Author: 711lxsky
-     * @Description: 开始事务，文件头计数器增1，返回事务XID
+     * @Description: 开始事务，返回事务XID
+     * 预留块中的状态在文件中已经是 0(正在执行)，只有用完一块时才需要写文件
      */
     @Override
     public long begin() throws WarningException, ErrorException {
         this.counterLock.lock();
         try {
             long newXid = this.transactionCounter + 1;
-            this.updateXIDStatus(newXid, TMSetting.TRANSACTION_ACTIVE);
-            this.addOneForXIDCounter();
+            if(newXid > this.reservedXidEnd){
+                this.reserveXIDBlock();
+            }
+            this.ensureXIDStatusSegment(newXid);
+            this.transactionCounter = newXid;
             return newXid;
         }
         finally {
@@ -67,12 +125,50 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void commit(long xid) throws WarningException, ErrorException {
-        this.updateXIDStatus(xid, TMSetting.TRANSACTION_COMMITTED);
+        this.finishTransaction(xid, TMSetting.TRANSACTION_COMMITTED);
     }
 
     @Override
     public void abort(long xid) throws WarningException, ErrorException {
-        this.updateXIDStatus(xid, TMSetting.TRANSACTION_ABORTED);
+        this.finishTransaction(xid, TMSetting.TRANSACTION_ABORTED);
+    }
+
+    @Override
+    public void setStatusLogger(TransactionStatusLogger statusLogger) {
+        this.statusLogger = statusLogger;
+    }
+
+    @Override
+    public void setCommitDurability(byte commitDurability) throws WarningException {
+        if(commitDurability != TMSetting.COMMIT_DURABILITY_SYNC
+                && commitDurability != TMSetting.COMMIT_DURABILITY_GROUP
+                && commitDurability != TMSetting.COMMIT_DURABILITY_ASYNC){
+            Log.logWarningMessage(WarningMessage.COMMIT_DURABILITY_INVALID);
+        }
+        this.commitDurability = commitDurability;
+    }
+
+    @Override
+    public void persistLoggedStatus(long durableLogPosition) throws WarningException, ErrorException {
+        List<LoggedStatus> durableStatuses = new ArrayList<>();
+        this.loggedStatusLock.lock();
+        try {
+            Iterator<LoggedStatus> iterator = this.loggedStatuses.iterator();
+            while(iterator.hasNext()){
+                LoggedStatus loggedStatus = iterator.next();
+                if(loggedStatus.logPosition <= durableLogPosition){
+                    durableStatuses.add(loggedStatus);
+                    iterator.remove();
+                }
+            }
+        }
+        finally {
+            this.loggedStatusLock.unlock();
+        }
+        // 不需要刷盘，XID文件中的状态没有落盘时，恢复按已经落盘的状态日志补上
+        for(LoggedStatus loggedStatus : durableStatuses){
+            this.writeXIDStatus(loggedStatus.xid, loggedStatus.status, false);
+        }
     }
 
     @Override
@@ -101,18 +197,63 @@ public class TransactionManagerImpl implements TransactionManager{
 
     @Override
     public void close() throws ErrorException {
+        // 状态日志还没确认落盘的 ASYNC 事务不写进XID文件，重新打开时由恢复按日志决定
+        this.loggedStatusLock.lock();
+        try {
+            this.loggedStatuses.clear();
+        }
+        finally {
+            this.loggedStatusLock.unlock();
+        }
+        // GROUP、ASYNC 模式下状态没有单独刷盘，关闭时补一次
+        try {
+            FileManager.forceRefreshFileChannel(this.xidFileChannel, false);
+        } catch (WarningException ignored) {
+            // 已经记录，状态也都在重做日志里
+        }
         FileManager.closeFileAndChannel(this.xidFileChannel, this.xidFile);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 更新计数器并写入文件刷盘
+     * @Description: 预留下一块 XID: 先把文件扩展到块末尾(新扩展部分全为 0，即正在执行)，再写文件头计数器，只刷盘一次
      */
-    private void addOneForXIDCounter() throws WarningException, ErrorException {
-        this.transactionCounter ++;
-        ByteBuffer counterBuffer = ByteBuffer.wrap(ByteParser.longToBytes(this.transactionCounter));
+    private void reserveXIDBlock() throws WarningException, ErrorException {
+        long newReservedXidEnd = this.reservedXidEnd + TMSetting.XID_RESERVE_BLOCK_SIZE;
+        FileManager.setFileNewLength(this.xidFile, this.getXIDStatusPos(newReservedXidEnd + 1));
+        ByteBuffer counterBuffer = ByteBuffer.wrap(ByteParser.longToBytes(newReservedXidEnd));
         FileManager.writeByteDataIntoFileChannel(this.xidFileChannel, TMSetting.XID_FILE_HEADER_OFFSET, counterBuffer);
         FileManager.forceRefreshFileChannel(this.xidFileChannel,false);
+        this.reservedXidEnd = newReservedXidEnd;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 结束事务，按持久化模式决定状态怎样落盘
+     */
+    private void finishTransaction(long xid, byte status) throws WarningException, ErrorException {
+        TransactionStatusLogger curStatusLogger = this.statusLogger;
+        byte curCommitDurability = this.commitDurability;
+        if(Objects.isNull(curStatusLogger) || curCommitDurability == TMSetting.COMMIT_DURABILITY_SYNC){
+            this.updateXIDStatus(xid, status, true);
+            return;
+        }
+        if(curCommitDurability == TMSetting.COMMIT_DURABILITY_GROUP){
+            // 状态日志已经落盘，XID 文件只写不刷盘，崩溃后由恢复过程按日志补上
+            curStatusLogger.logTransactionStatus(xid, status, true);
+            this.updateXIDStatus(xid, status, false);
+            return;
+        }
+        // 状态日志只进了缓冲区，先只更新内存，日志落盘后再写XID文件
+        long logPosition = curStatusLogger.logTransactionStatus(xid, status, false);
+        this.loggedStatusLock.lock();
+        try {
+            this.loggedStatuses.add(new LoggedStatus(xid, status, logPosition));
+        }
+        finally {
+            this.loggedStatusLock.unlock();
+        }
+        this.publishXIDStatus(xid, status);
     }
 
     /**
@@ -129,12 +270,70 @@ public class TransactionManagerImpl implements TransactionManager{
         // 创建一个ByteBuffer用以处理字节数据
         ByteBuffer bf = ByteBuffer.allocate(TMSetting.XID_FILE_HEADER_LENGTH);
         FileManager.readByteDataIntoFileChannel(this.xidFileChannel, TMSetting.XID_FILE_HEADER_OFFSET, bf);
-        this.transactionCounter = ByteParser.parseBytesToLong(bf.array());
+        this.reservedXidEnd = ByteParser.parseBytesToLong(bf.array());
+        // 上次预留的 XID 不论是否用完都不再分配
+        this.transactionCounter = this.reservedXidEnd;
         // 这里加上1是因为XID从1开始
-        long fileEndPos = this.getXIDStatusPos(this.transactionCounter + 1);
-        if(fileEndPos != xidFileLength){
+        long fileEndPos = this.getXIDStatusPos(this.reservedXidEnd + 1);
+        if(fileEndPos > xidFileLength){
             Log.logErrorMessage(ErrorMessage.BAD_XID_FILE);
         }
+        if(fileEndPos < xidFileLength){
+            // 预留新块时文件已经扩展但计数器没来得及写入，多出来的部分没有分配过
+            try {
+                FileManager.setFileNewLength(this.xidFile, fileEndPos);
+            } catch (WarningException e) {
+                Log.logErrorMessage(ErrorMessage.BAD_XID_FILE);
+            }
+        }
+        this.loadXIDStatus();
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把 XID 文件中所有事务的状态按段读入内存
+     */
+    private void loadXIDStatus() throws ErrorException {
+        if(this.transactionCounter == 0){
+            return;
+        }
+        this.ensureXIDStatusSegment(this.transactionCounter);
+        byte[][] segments = this.xidStatusSegments;
+        for(int segmentIndex = 0; segmentIndex < segments.length; segmentIndex ++){
+            long firstXid = ((long) segmentIndex << TMSetting.XID_STATUS_SEGMENT_SHIFT) + 1;
+            if(firstXid > this.transactionCounter){
+                break;
+            }
+            long statusNumber = Math.min(TMSetting.XID_STATUS_SEGMENT_SIZE, this.transactionCounter - firstXid + 1);
+            ByteBuffer segmentBuffer = ByteBuffer.wrap(segments[segmentIndex], 0, (int) statusNumber * TMSetting.TRANSACTION_STATUS_SIZE);
+            FileManager.readByteDataIntoFileChannel(this.xidFileChannel, this.getXIDStatusPos(firstXid), segmentBuffer);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 保证 xid 所在的状态段已经分配，新分配的段全为 0，即正在执行状态
+     * 只在持有计数器锁或者初始化时调用，扩容时复制段数组，已有的段对象不变
+     */
+    private void ensureXIDStatusSegment(long xid){
+        int segmentIndex = this.getXIDStatusSegmentIndex(xid);
+        byte[][] segments = this.xidStatusSegments;
+        if(segmentIndex < segments.length){
+            return;
+        }
+        byte[][] newSegments = Arrays.copyOf(segments, Math.max(segmentIndex + 1, segments.length * 2));
+        for(int i = segments.length; i < newSegments.length; i ++){
+            newSegments[i] = new byte[TMSetting.XID_STATUS_SEGMENT_SIZE * TMSetting.TRANSACTION_STATUS_SIZE];
+        }
+        this.xidStatusSegments = newSegments;
+    }
+
+    private int getXIDStatusSegmentIndex(long xid){
+        return (int) ((xid - 1) >>> TMSetting.XID_STATUS_SEGMENT_SHIFT);
+    }
+
+    private int getXIDStatusIndexInSegment(long xid){
+        return (int) ((xid - 1) & (TMSetting.XID_STATUS_SEGMENT_SIZE - 1)) * TMSetting.TRANSACTION_STATUS_SIZE;
     }
 
     /**
@@ -147,26 +346,53 @@ public class TransactionManagerImpl implements TransactionManager{
 
     /**
      * @Author: 711lxsky
-     * @Description: 检查某个XID状态是否是目标状态
+     * @Description: 检查某个XID状态是否是目标状态，只读内存中的状态表
+     * 还没有分配的 XID 和原来读文件末尾之后一样，视为正在执行
      */
-    private boolean checkXIDStatus(long xid, byte status) throws ErrorException {
-        long xidOffset = this.getXIDStatusPos(xid);
-        ByteBuffer xidStatus = ByteBuffer.wrap(new byte[TMSetting.TRANSACTION_STATUS_SIZE]);
-        FileManager.readByteDataIntoFileChannel(this.xidFileChannel, xidOffset, xidStatus);
-        return xidStatus.get(0) == status;
+    private boolean checkXIDStatus(long xid, byte status) {
+        byte[][] segments = this.xidStatusSegments;
+        int segmentIndex = this.getXIDStatusSegmentIndex(xid);
+        if(xid < 1 || segmentIndex >= segments.length){
+            return status == TMSetting.TRANSACTION_ACTIVE;
+        }
+        return (byte) XID_STATUS_HANDLE.getAcquire(segments[segmentIndex], this.getXIDStatusIndexInSegment(xid)) == status;
     }
 
 
     /**
      * @Author: 711lxsky
-     * @Description: 更新某个XID为指定状态，并刷盘
+     * @Description: 更新某个XID为指定状态，force 为 true 时刷盘
+     */
+    private void updateXIDStatus(long xid, byte status, boolean force) throws WarningException, ErrorException {
+        this.writeXIDStatus(xid, status, force);
+        // 落盘(或者对应的状态日志落盘)之后才让其他线程看到新状态
+        this.publishXIDStatus(xid, status);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把某个XID的状态写进XID文件，force 为 true 时刷盘
      */
-    private void updateXIDStatus(long xid, byte status) throws WarningException, ErrorException {
+    private void writeXIDStatus(long xid, byte status, boolean force) throws WarningException, ErrorException {
         long xidOffset = this.getXIDStatusPos(xid);
         byte[] xidStatus = this.getBytesWithXIDStatus(status);
         ByteBuffer newStatus = ByteBuffer.wrap(xidStatus);
         FileManager.writeByteDataIntoFileChannel(this.xidFileChannel, xidOffset, newStatus);
-        FileManager.forceRefreshFileChannel(this.xidFileChannel, false);
+        if(force){
+            FileManager.forceRefreshFileChannel(this.xidFileChannel, false);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 更新内存中某个XID的状态，之后其他线程就能看到
+     */
+    private void publishXIDStatus(long xid, byte status){
+        byte[][] segments = this.xidStatusSegments;
+        int segmentIndex = this.getXIDStatusSegmentIndex(xid);
+        if(segmentIndex < segments.length){
+            XID_STATUS_HANDLE.setRelease(segments[segmentIndex], this.getXIDStatusIndexInSegment(xid), status);
+        }
     }
 
     /**
@@ -0,0 +1,20 @@
+package top.lxsky711.easydb.core.tm;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 把事务提交、撤销状态写进重做日志，由数据管理器实现
+ * 事务管理器在 GROUP、ASYNC 模式下借助它让状态随组提交的日志落盘，XID 文件本身就不用每次都刷盘
+ */
+
+public interface TransactionStatusLogger {
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 记录事务状态日志，返回这条日志的位置，waitFlush 为 true 时等日志落盘后再返回
+     * waitFlush 为 false 时日志只进了缓冲区，落盘之后由状态日志组件调用 TransactionManager.persistLoggedStatus
+     */
+    long logTransactionStatus(long xid, byte status, boolean waitFlush) throws WarningException, ErrorException;
+}
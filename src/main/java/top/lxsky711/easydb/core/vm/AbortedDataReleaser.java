@@ -0,0 +1,19 @@
+package top.lxsky711.easydb.core.vm;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 释放撤销的事务在版本之外写下的记录(例如行外存储的值)，由表管理器交给版本管理器
+ * 撤销状态写下之前调用，包括意外终止时版本管理器内部的撤销；撤销状态没有落盘就崩溃时，恢复会把事务的插入整体撤销
+ */
+
+public interface AbortedDataReleaser {
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 以撤销的事务写日志，把它写下的记录置为无效
+     */
+    void releaseAbortedData(long xid) throws WarningException, ErrorException;
+}
@@ -13,10 +13,11 @@ import java.util.Objects;
 /**
  * @Author: 711lxsky
  * @Description: 记录实现类
- * 一个记录只有一个版本
- * 结构： [XMIN][XMAX][Data]
+ * 一个记录是一行数据的一个版本
+ * 结构： [XMIN][XMAX][NEXT][Data]
  * XMIN表示的是创建这个记录的事务XID,也就是在此事务之后的事务才有可能拿到这个记录
  * XMAX表示的是删除这个记录的事务XID,也就是在此事务之前的事务才有可能拿到这个记录,前两者都是8字节long
+ * NEXT表示的是原地更新时产生的下一个版本的uid，没有时为 RECORD_NEXT_DEFAULT，索引只指向版本链的第一个版本
  * Data是这个事务持有的数据
  */
 
@@ -55,7 +56,8 @@ public class Record {
     public static byte[] wrapDataToRecordBytes(long xid, byte[] data){
         byte[] xmin = ByteParser.longToBytes(xid);
         byte[] xmax = new byte[VMSetting.RECORD_XMAX_LENGTH];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = ByteParser.longToBytes(VMSetting.RECORD_NEXT_DEFAULT);
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     public long getUid() {
@@ -87,6 +89,22 @@ public class Record {
         try {
             SubArray dataRecord = this.dataItem.getDataRecord();
             return ByteParser.parseBytesToLong(Arrays.copyOfRange(dataRecord.rawData, dataRecord.start + VMSetting.RECORD_XMAX_OFFSET,
+                    dataRecord.start + VMSetting.RECORD_NEXT_OFFSET));
+        }
+        finally {
+            this.dataItem.readUnlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取下一个版本的uid
+     */
+    public long getNext(){
+        this.dataItem.readLock();
+        try {
+            SubArray dataRecord = this.dataItem.getDataRecord();
+            return ByteParser.parseBytesToLong(Arrays.copyOfRange(dataRecord.rawData, dataRecord.start + VMSetting.RECORD_NEXT_OFFSET,
                     dataRecord.start + VMSetting.RECORD_DATA_OFFSET));
         }
         finally {
@@ -128,6 +146,40 @@ public class Record {
         }
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 原地更新时设置记录XMAX，同时指向新版本，两者在同一条日志中修改
+     */
+    public void setXMAXAndNext(long xid, long nextUid) throws WarningException, ErrorException {
+        this.dataItem.beforeModify();
+        try {
+            SubArray dataRecord = this.dataItem.getDataRecord();
+            System.arraycopy(ByteParser.longToBytes(xid), 0,
+                    dataRecord.rawData, dataRecord.start + VMSetting.RECORD_XMAX_OFFSET, VMSetting.RECORD_XMAX_LENGTH);
+            System.arraycopy(ByteParser.longToBytes(nextUid), 0,
+                    dataRecord.rawData, dataRecord.start + VMSetting.RECORD_NEXT_OFFSET, VMSetting.RECORD_NEXT_LENGTH);
+        }
+        finally {
+            this.dataItem.afterModify(xid);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把撤销的版本或者清理掉的版本从链上摘下时修改NEXT，以事务 xid 写日志
+     */
+    public void setNext(long xid, long nextUid) throws WarningException, ErrorException {
+        this.dataItem.beforeModify();
+        try {
+            SubArray dataRecord = this.dataItem.getDataRecord();
+            System.arraycopy(ByteParser.longToBytes(nextUid), 0,
+                    dataRecord.rawData, dataRecord.start + VMSetting.RECORD_NEXT_OFFSET, VMSetting.RECORD_NEXT_LENGTH);
+        }
+        finally {
+            this.dataItem.afterModify(xid);
+        }
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 释放记录引用，实际上就是释放一个DataItem引用
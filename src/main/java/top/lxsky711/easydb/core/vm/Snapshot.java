@@ -0,0 +1,70 @@
+package top.lxsky711.easydb.core.vm;
+
+import top.lxsky711.easydb.core.tm.TMSetting;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 事务开始时活跃事务的不可变快照
+ * xmin 是快照中最老的活跃事务XID，比它小的事务在快照创建时都已经结束
+ * xmax 是拥有快照的事务自身的XID，不小于它的事务都在快照创建之后开始
+ * activeXids 是 [xmin, xmax) 之间仍在进行中的事务XID，有序存放，判断时二分查找
+ * 快照创建后不再变化，判断时不需要任何锁
+ */
+
+public class Snapshot {
+
+    private final long xmin;
+
+    private final long xmax;
+
+    private final long[] activeXids;
+
+    private Snapshot(long xmin, long xmax, long[] activeXids) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.activeXids = activeXids;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 根据当前活跃事务的XID构建快照，超级事务不计入快照
+     */
+    public static Snapshot buildSnapshot(long xid, Collection<Long> activeXids){
+        long[] xids = new long[activeXids.size()];
+        int count = 0;
+        for(long activeXid : activeXids){
+            if(activeXid != TMSetting.SUPER_TRANSACTION_XID && activeXid < xid){
+                xids[count ++] = activeXid;
+            }
+        }
+        xids = Arrays.copyOf(xids, count);
+        Arrays.sort(xids);
+        long xmin = count == 0 ? xid : xids[0];
+        return new Snapshot(xmin, xid, xids);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断某个事务在快照创建时是否还在进行中，快照创建之后开始的事务也视为进行中
+     */
+    public boolean isActive(long xid){
+        if(xid == TMSetting.SUPER_TRANSACTION_XID || xid < this.xmin){
+            return false;
+        }
+        if(xid >= this.xmax){
+            return true;
+        }
+        return Arrays.binarySearch(this.activeXids, xid) >= 0;
+    }
+
+    public long getXmin() {
+        return this.xmin;
+    }
+
+    public long getXmax() {
+        return this.xmax;
+    }
+}
@@ -2,8 +2,10 @@ package top.lxsky711.easydb.core.vm;
 
 import top.lxsky711.easydb.core.tm.TMSetting;
 
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
 
 /**
  * @Author: 711lxsky
@@ -23,29 +25,36 @@ public class Transaction {
     private final int transactionIsolationLevel;
 
     /**
-     * 当前事务执行(开始)时的活跃事务XID快照集合
+     * 当前事务执行(开始)时的活跃事务快照，读已提交级别不需要
      */
-    private Set<Long> snapshotXIDsForActiveTransaction;
+    private Snapshot snapshot;
 
     /**
      * 意外终止标志，后续出现问题，这个成员变量会被设置为true，表示事务选择中止
+     * 可能由其他事务的线程设置，需要对本事务的线程立即可见
      */
-    private boolean accidentalTermination;
+    private volatile boolean accidentalTermination;
+
+    /**
+     * 本事务原地更新产生的新版本，按更新顺序
+     */
+    private final List<VMSetting.UpdatedVersion> updatedVersions;
 
     public Transaction(long xid, int transactionIsolationLevel) {
         this.xid = xid;
         this.transactionIsolationLevel = transactionIsolationLevel;
         this.accidentalTermination = false;
+        this.updatedVersions = new ArrayList<>();
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 构建一个抽象事务
+     * @Description: 构建一个抽象事务，activeXids 是当前活跃事务的XID，会被拷贝成不可变的快照
      */
-    public static Transaction buildTransaction(long xid, int transactionIsolationLevel, Map<Long, Transaction> activeTransactions){
+    public static Transaction buildTransaction(long xid, int transactionIsolationLevel, Collection<Long> activeXids){
         Transaction transaction = new Transaction(xid, transactionIsolationLevel);
         if(transactionIsolationLevel != VMSetting.TRANSACTION_ISOLATION_LEVEL_READ_COMMITTED){
-            transaction.snapshotXIDsForActiveTransaction = activeTransactions.keySet();
+            transaction.snapshot = Snapshot.buildSnapshot(xid, activeXids);
         }
         return transaction;
     }
@@ -56,13 +65,27 @@ public class Transaction {
 
     /**
      * @Author: 711lxsky
-     * @Description: 判断某个事务是否在当前快照中
+     * @Description: 判断某个事务是否在当前快照中，即当前事务开始时它还没有结束
      */
     public boolean isInSnapshot(long xid){
-        if(xid == TMSetting.SUPER_TRANSACTION_XID){
-            return false;
-        }
-        return snapshotXIDsForActiveTransaction.contains(xid);
+        return this.snapshot.isActive(xid);
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取快照的 xmin，比它小的已提交事务删除的版本对本事务一定不可见
+     * 读已提交级别没有快照，总是读取最新提交的版本，取自身XID
+     */
+    public long getSnapshotXmin(){
+        return Objects.isNull(this.snapshot) ? this.xid : this.snapshot.getXmin();
+    }
+
+    public void addUpdatedVersion(VMSetting.UpdatedVersion updatedVersion){
+        this.updatedVersions.add(updatedVersion);
+    }
+
+    public List<VMSetting.UpdatedVersion> getUpdatedVersions() {
+        return this.updatedVersions;
     }
 
     public long getXid() {
@@ -19,7 +19,14 @@ public class VMSetting {
 
     public static final int RECORD_XMAX_LENGTH = DataSetting.LONG_BYTE_SIZE;
 
-    public static final int RECORD_DATA_OFFSET = RECORD_XMAX_OFFSET + RECORD_XMAX_LENGTH;
+    public static final int RECORD_NEXT_OFFSET = RECORD_XMAX_OFFSET + RECORD_XMAX_LENGTH;
+
+    public static final int RECORD_NEXT_LENGTH = DataSetting.LONG_BYTE_SIZE;
+
+    // 没有更新的版本
+    public static final long RECORD_NEXT_DEFAULT = 0;
+
+    public static final int RECORD_DATA_OFFSET = RECORD_NEXT_OFFSET + RECORD_NEXT_LENGTH;
 
 
     // 事务隔离级别--读已提交
@@ -30,7 +37,29 @@ public class VMSetting {
 
     public static final int TRANSACTION_ISOLATION_LEVEL_DEFAULT = TRANSACTION_ISOLATION_LEVEL_READ_COMMITTED;
 
-    public static final int VERSION_LOCK_DEADLOCK_DETECT_RING_STAMP_DEFAULT = 1;
+    // 记录锁表的分片数，需要是 2 的幂
+    public static final int VERSION_LOCK_SHARD_COUNT = 64;
+
+    // 等待记录锁时，每等待这么久做一次死锁检测
+    public static final long VERSION_LOCK_DEADLOCK_DETECT_INTERVAL_MILLIS = 50;
+
+    // 等待记录锁的最长时间，超时则放弃
+    public static final long VERSION_LOCK_WAIT_TIMEOUT_MILLIS = 10000;
 
     public static final int TRANSACTION_XID_ERROR_DEFAULT = -1;
+
+    /**
+     * 事务原地更新产生的一个新版本：prevUid 是被设置XMAX、指向新版本的旧版本
+     * 事务撤销时把 prevUid 的 NEXT 清空，newUid 就不再被引用，可以清理
+     */
+    public static class UpdatedVersion {
+        public final long prevUid;
+
+        public final long newUid;
+
+        public UpdatedVersion(long prevUid, long newUid) {
+            this.prevUid = prevUid;
+            this.newUid = newUid;
+        }
+    }
 }
@@ -1,216 +1,267 @@
 package top.lxsky711.easydb.core.vm;
 
-import top.lxsky711.easydb.common.data.CollectionUtil;
-import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
-import top.lxsky711.easydb.common.log.ErrorMessage;
 import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 
-import java.util.HashMap;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: 711lxsky
  * @Description: 版本控制锁/事务并发管理器
+ * 记录锁表按 uid 分片，不同分片上的加锁、释放互不影响；每条记录上的等待者先来先得，用条件变量等待
+ * 死锁检测不在加锁的路径上：等待者每等待一段时间才沿等待图检测一次，
+ * 每个事务同时只等待一条记录，等待图沿 "等待的记录 -> 记录的持有者" 走下去就是一条链，回到自己即为死锁
+ * 环上XID最大(最年轻)的事务作为牺牲者放弃等待，其余事务继续等待；等待超过上限同样放弃
  */
 
 public class VersionLockManager {
 
     /**
-     * 某个XID事务已经控制的Record记录列表， 一个XID事务可以控制多个Record记录
+     * 记录锁表的一个分片，分片内的记录锁由同一把锁保护
+     * recordLocks 可以不加锁读取，供死锁检测沿等待图查找持有者
      */
-    private final Map<Long, List<Long>> transactionControlledRecords;
+    private static class LockShard {
 
-    /**
-     * 某个Record记录被哪个XID事务持有，一个Record记录只能被一个XID事务持有
-     */
-    private final Map<Long, Long> recordControlledByTransaction;
+        private final Lock lock = new ReentrantLock();
+
+        private final Map<Long, RecordLock> recordLocks = new ConcurrentHashMap<>();
+    }
 
     /**
-     * 等待获取某个Record记录的XID事务列表，一个Record记录可以被多个XID事务等待
+     * 一条记录上的锁，ownerXid 是持有者，waiters 是按先来后到排队的等待者
      */
-    private final Map<Long, List<Long>> recordWaitByTransactions;
+    private static class RecordLock {
+
+        private volatile long ownerXid;
+
+        private final Deque<LockWaiter> waiters = new ArrayDeque<>();
+    }
 
     /**
-     * 某个XID事务，在等待获取目标Record记录， 一个XID事务只能等待一个Record记录
+     * 等待记录锁的事务，被选为下一个持有者时 granted 置为 true 并唤醒
      */
-    private final Map<Long, Long> transactionWaitForRecord;
+    private static class LockWaiter {
+
+        private final long xid;
+
+        private final Condition condition;
+
+        private boolean granted;
+
+        private LockWaiter(long xid, Condition condition) {
+            this.xid = xid;
+            this.condition = condition;
+        }
+    }
+
+    private final LockShard[] shards;
 
     /**
-     * 正在等待资源的XID事务，携带锁
+     * 某个XID事务已经持有的Record记录，一个XID事务可以持有多个Record记录
      */
-    private final Map<Long, Lock> transactionWaitWithLock;
+    private final Map<Long, Set<Long>> transactionControlledRecords;
 
     /**
-     * 内部进程资源锁
+     * 某个XID事务正在等待的Record记录，一个XID事务只能等待一个Record记录
      */
-    private final Lock selfLock;
+    private final Map<Long, Long> transactionWaitForRecord;
 
     public VersionLockManager() {
-        this.transactionControlledRecords = new HashMap<>();
-        this.recordControlledByTransaction = new HashMap<>();
-        this.recordWaitByTransactions = new HashMap<>();
-        this.transactionWaitForRecord = new HashMap<>();
-        this.transactionWaitWithLock = new HashMap<>();
-        this.selfLock = new ReentrantLock();
+        this.shards = new LockShard[VMSetting.VERSION_LOCK_SHARD_COUNT];
+        for(int i = 0; i < this.shards.length; i ++){
+            this.shards[i] = new LockShard();
+        }
+        this.transactionControlledRecords = new ConcurrentHashMap<>();
+        this.transactionWaitForRecord = new ConcurrentHashMap<>();
+    }
+
+    private LockShard seekShard(long uid){
+        long hash = uid ^ (uid >>> 32);
+        hash ^= hash >>> 16;
+        return this.shards[(int) hash & (this.shards.length - 1)];
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 事务尝试获取记录资源
-     * 如果可以直接成功拿到，就返回null
-     * 否则需要等待，返回锁
+     * @Description: 事务获取记录锁，记录被其他事务持有时排队等待，直到拿到锁
+     * 被选为死锁的牺牲者或等待超时时放弃等待并抛出警告，调用方需要撤销事务
      */
-    public Lock tryToAcquireResourseLock(long xid, long uid) throws WarningException, ErrorException {
-        this.selfLock.lock();
-        try{
-            // 先看XID事务是否已经持有了目标Record记录
-            if(CollectionUtil.judgeElementInListMap(this.transactionControlledRecords, xid, uid)){
-                return null;
+    public void acquireRecordLock(long xid, long uid) throws WarningException {
+        LockShard shard = this.seekShard(uid);
+        shard.lock.lock();
+        try {
+            RecordLock recordLock = shard.recordLocks.get(uid);
+            if(Objects.isNull(recordLock)){
+                // 没有被任何事务持有，直接拿到
+                recordLock = new RecordLock();
+                recordLock.ownerXid = xid;
+                shard.recordLocks.put(uid, recordLock);
+                this.addControlledRecord(xid, uid);
+                return;
             }
-            // 如果目标Record记录没有被任何XID事务持有
-            if(! this.recordControlledByTransaction.containsKey(uid)){
-                this.recordControlledByTransaction.put(uid, xid);
-                CollectionUtil.putElementIntoListMap(this.transactionControlledRecords, xid, uid);
-                return null;
+            if(recordLock.ownerXid == xid){
+                return;
             }
-            // 已经被其他XID事务持有
+            // 已经被其他事务持有，排队等待
+            LockWaiter waiter = new LockWaiter(xid, shard.lock.newCondition());
+            recordLock.waiters.addLast(waiter);
             this.transactionWaitForRecord.put(xid, uid);
-            CollectionUtil.putElementIntoListMap(this.recordWaitByTransactions, uid, xid);
-            if(detectDeadlock()){
-                // 这里先注释掉，因为死锁检测到之后，会尝试撤销某个事务，所以就先不删掉记录
+            try {
+                this.awaitGranted(xid, waiter);
+            }
+            finally {
                 this.transactionWaitForRecord.remove(xid);
-                CollectionUtil.removeElementFromListMap(this.recordWaitByTransactions, uid, xid);
-                Log.logWarningMessage(WarningMessage.VERSION_CONTROL_DEAD_LOCK_OCCUR);
+                if(! waiter.granted){
+                    recordLock.waiters.remove(waiter);
+                }
             }
-            // 放入等待队列
-            Lock waitLock = new ReentrantLock();
-            waitLock.lock();
-            this.transactionWaitWithLock.put(xid, waitLock);
-            return waitLock;
         }
         finally {
-            this.selfLock.unlock();
+            shard.lock.unlock();
         }
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 尝试获取记录锁，记录被其他事务持有时不等待，直接返回 false
+     */
+    public boolean tryAcquireRecordLock(long xid, long uid){
+        LockShard shard = this.seekShard(uid);
+        shard.lock.lock();
+        try {
+            RecordLock recordLock = shard.recordLocks.get(uid);
+            if(Objects.isNull(recordLock)){
+                recordLock = new RecordLock();
+                recordLock.ownerXid = xid;
+                shard.recordLocks.put(uid, recordLock);
+                this.addControlledRecord(xid, uid);
+                return true;
+            }
+            return recordLock.ownerXid == xid;
+        }
+        finally {
+            shard.lock.unlock();
+        }
+    }
 
-    // 死锁检测事务戳
-    private Map<Long, Integer> transactionStamp;
-
-    // 事务戳标记
-    private int stampMark;
+    /**
+     * @Author: 711lxsky
+     * @Description: 持有分片锁等待被唤醒，每次等待超时后做一次死锁检测
+     */
+    private void awaitGranted(long xid, LockWaiter waiter) throws WarningException {
+        long waitDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(VMSetting.VERSION_LOCK_WAIT_TIMEOUT_MILLIS);
+        long detectIntervalNanos = TimeUnit.MILLISECONDS.toNanos(VMSetting.VERSION_LOCK_DEADLOCK_DETECT_INTERVAL_MILLIS);
+        while(! waiter.granted){
+            long remainingNanos = waitDeadline - System.nanoTime();
+            if(remainingNanos <= 0){
+                Log.logWarningMessage(WarningMessage.VERSION_LOCK_WAIT_TIMEOUT);
+            }
+            try {
+                waiter.condition.awaitNanos(Math.min(remainingNanos, detectIntervalNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.logWarningMessage(e.getMessage());
+            }
+            if(! waiter.granted && this.judgeDeadlockVictim(xid)){
+                Log.logWarningMessage(WarningMessage.VERSION_CONTROL_DEAD_LOCK_OCCUR);
+            }
+        }
+    }
 
     /**
      * @Author: 711lxsky
-     * @Description: 死锁检测
+     * @Description: 沿等待图检测 xid 是否处在死锁环上，并且是环上XID最大的事务
+     * 只读取并发容器，不获取其他分片的锁，读到的等待图可能正在变化，这时按没有死锁处理，下次再检测
      */
-    private boolean detectDeadlock() throws ErrorException {
-        this.transactionStamp = new HashMap<>();
-        this.stampMark = VMSetting.VERSION_LOCK_DEADLOCK_DETECT_RING_STAMP_DEFAULT;
-        // 从已经获取资源的事务中寻找
-        for(long transactionXid : this.transactionControlledRecords.keySet()){
-            // 当前事务戳
-            Integer xidStamp = this.transactionStamp.get(transactionXid);
-            // 该事务已经被标记过，跳过检测
-            if(Objects.nonNull(xidStamp) && xidStamp > VMSetting.VERSION_LOCK_DEADLOCK_DETECT_RING_STAMP_DEFAULT){
-                continue;
+    private boolean judgeDeadlockVictim(long xid){
+        long victimXid = xid;
+        long searchXid = xid;
+        int maxSteps = this.transactionWaitForRecord.size();
+        for(int step = 0; step <= maxSteps; step ++){
+            Long waitingRecordUid = this.transactionWaitForRecord.get(searchXid);
+            if(Objects.isNull(waitingRecordUid)){
+                return false;
             }
-            // 自增，dfs测环
-            this.stampMark ++;
-            if(this.deepFirstSearchForDeadLock(transactionXid)){
-                return true;
+            RecordLock recordLock = this.seekShard(waitingRecordUid).recordLocks.get(waitingRecordUid);
+            if(Objects.isNull(recordLock)){
+                return false;
             }
+            long ownerXid = recordLock.ownerXid;
+            if(ownerXid == xid){
+                return victimXid == xid;
+            }
+            victimXid = Math.max(victimXid, ownerXid);
+            searchXid = ownerXid;
         }
+        // 链上存在不包含 xid 的环，由环上的事务自己检测
         return false;
     }
 
+    private void addControlledRecord(long xid, long uid){
+        this.transactionControlledRecords.computeIfAbsent(xid, k -> ConcurrentHashMap.newKeySet()).add(uid);
+    }
+
     /**
      * @Author: 711lxsky
-     * @Description: 深度优先搜索检测死锁
+     * @Description: 移除某个事务，释放其持有的所有记录锁
      */
-    private boolean deepFirstSearchForDeadLock(long searchXid) throws ErrorException {
-        Integer searchXidStamp = this.transactionStamp.get(searchXid);
-        // 存在环，有死锁
-        if(Objects.nonNull(searchXidStamp) && searchXidStamp == this.stampMark){
-            return true;
-        }
-        // 已经被检查，且不在当前检查路径中
-        if(Objects.nonNull(searchXidStamp) && searchXidStamp < this.stampMark){
-            return false;
-        }
-        // 标记事务戳
-        this.transactionStamp.put(searchXid, this.stampMark);
-        Long waitingRecordUid = this.transactionWaitForRecord.get(searchXid);
-        // 看当前事务有没有正在等待的Record记录
-        if(Objects.isNull(waitingRecordUid)){
-            return false;
+    public void removeOneTransaction(long xid){
+        this.transactionWaitForRecord.remove(xid);
+        Set<Long> controlledRecords = this.transactionControlledRecords.remove(xid);
+        if(Objects.isNull(controlledRecords)){
+            return;
         }
-        // 向上定位资源(相当于有向图的一条边指向后继节点)
-        Long tarRecordControlledTransactionXid = recordControlledByTransaction.get(waitingRecordUid);
-        if(Objects.isNull(tarRecordControlledTransactionXid)){
-            Log.logErrorMessage(ErrorMessage.VERSION_CONTROL_RESOURCE_ERROR);
+        for(long uid : controlledRecords){
+            this.selectOneWaitingTransactionToControlRecord(xid, uid);
         }
-        // 看获取目标记录的事务是否会造成死锁
-        return this.deepFirstSearchForDeadLock(tarRecordControlledTransactionXid);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 移除某个事务
+     * @Description: 释放事务持有的一条记录锁，交给下一个等待者
      */
-    public void removeOneTransaction(long xid){
-        this.selfLock.lock();
-        try{
-            // 拿到需要清除的事务持有的Record记录列表
-            List<Long> controlledRecords = this.transactionControlledRecords.get(xid);
-            if(Objects.nonNull(controlledRecords)){
-                while (! controlledRecords.isEmpty()){
-                    // 对每个Record记录，选择一个等待的事务来控制
-                    Long uid = controlledRecords.remove(0);
-                    this.selectOneWaitingTransactionToControlRecord(uid);
-                }
-            }
-            this.transactionControlledRecords.remove(xid);
-            this.transactionWaitForRecord.remove(xid);
-            this.transactionWaitWithLock.remove(xid);
-        }
-        finally {
-            this.selfLock.unlock();
+    public void releaseRecordLock(long xid, long uid){
+        Set<Long> controlledRecords = this.transactionControlledRecords.get(xid);
+        if(Objects.isNull(controlledRecords) || ! controlledRecords.remove(uid)){
+            return;
         }
+        this.selectOneWaitingTransactionToControlRecord(xid, uid);
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 选择某个等待的事务来持有记录
+     * @Description: 按等待顺序选择一个等待的事务来持有记录，没有等待者时删除记录锁
      */
-    public void selectOneWaitingTransactionToControlRecord(long uid){
-        // 将原本被事务持有的记录删除
-        this.recordControlledByTransaction.remove(uid);
-        // 拿到正在等待这个记录的事务
-        List<Long> waitingTransactions = this.recordWaitByTransactions.get(uid);
-        if(Objects.nonNull(waitingTransactions)){
-            while(! waitingTransactions.isEmpty()){
-                // 按等待顺序选择事务来控制记录
-                long waitingTransactionXid = waitingTransactions.remove(0);
-                // 同时这个等待事务曾经申请持有记录成功
-                if(this.transactionWaitWithLock.containsKey(waitingTransactionXid)){
-                    this.recordControlledByTransaction.put(uid, waitingTransactionXid);
-                    // 释放等待锁
-                    Lock waitingLock = this.transactionWaitWithLock.get(waitingTransactionXid);
-                    waitingLock.unlock();
-                    this.transactionWaitWithLock.remove(waitingTransactionXid);
-                    break;
-                }
+    private void selectOneWaitingTransactionToControlRecord(long xid, long uid){
+        LockShard shard = this.seekShard(uid);
+        shard.lock.lock();
+        try {
+            RecordLock recordLock = shard.recordLocks.get(uid);
+            if(Objects.isNull(recordLock) || recordLock.ownerXid != xid){
+                return;
             }
-            if(waitingTransactions.isEmpty()){
-                this.recordWaitByTransactions.remove(uid);
+            LockWaiter waiter = recordLock.waiters.pollFirst();
+            if(Objects.isNull(waiter)){
+                shard.recordLocks.remove(uid);
+                return;
             }
+            recordLock.ownerXid = waiter.xid;
+            this.addControlledRecord(waiter.xid, uid);
+            waiter.granted = true;
+            waiter.condition.signal();
+        }
+        finally {
+            shard.lock.unlock();
         }
     }
 }
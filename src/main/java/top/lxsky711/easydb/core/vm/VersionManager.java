@@ -5,6 +5,8 @@ import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.core.dm.DataManager;
 import top.lxsky711.easydb.core.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * @Author: 711lxsky
  * @Description: 版本管理器
@@ -24,12 +26,24 @@ public interface VersionManager {
      */
     byte[] read(long xid, long uid) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 判断插入事务为 xmin、删除事务为 xmax 的版本对事务是否可见，不需要读取记录
+     */
+    boolean isVisible(long xid, long xmin, long xmax) throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 插入记录数据
      */
     long insert(long xid, byte[] data) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 批量插入记录数据，按顺序返回uid，事务已经被撤销时返回 null
+     */
+    long[] insertBatch(long xid, List<byte[]> dataList) throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 删除记录
@@ -37,6 +51,13 @@ public interface VersionManager {
      */
     boolean delete(long xid, long uid) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 原地更新记录，返回新版本的uid，失败时返回 TRANSACTION_XID_ERROR_DEFAULT
+     * 找到对事务可见的版本，设置其XMAX并指向新写入的版本，uid 需要是版本链的第一个版本，索引项不需要改动
+     */
+    long update(long xid, long uid, byte[] data) throws WarningException, ErrorException;
+
     /**
      * @Author: 711lxsky
      * @Description: 事务提交
@@ -49,6 +70,66 @@ public interface VersionManager {
      */
     void abort(long xid) throws WarningException, ErrorException;
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 设置撤销事务时释放版本之外数据的释放器
+     */
+    void setAbortedDataReleaser(AbortedDataReleaser abortedDataReleaser);
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取当前最老的活跃事务XID，没有活跃事务时返回 Long.MAX_VALUE
+     */
+    long getOldestActiveXid();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取当前最新的活跃事务XID，没有活跃事务时返回超级事务XID
+     */
+    long getNewestActiveXid();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 清理事务开始，一次清理对版本链的修改、置为无效的记录都以清理事务写日志
+     * 清理事务提交之前崩溃，恢复时整体撤销，重启后的启动清理会重新找到这些版本；
+     * 清理事务不登记为活跃事务，也不产生新版本，不影响任何快照
+     */
+    long beginVacuum() throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 清理事务提交，之后置为无效的记录才能回收空间
+     */
+    void commitVacuum(long vacuumXid) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取清理界限：删除事务已提交且小于界限的版本，对所有活跃事务以及之后开始的事务都不可见
+     */
+    long getVacuumHorizon();
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把一行(版本链第一个版本的uid)的整条版本链置为无效，置为无效的记录加入 invalidatedUids，版本链正在被加锁时返回 false
+     * 这一行需要已经对所有事务都不可见；索引项是找到这一行的唯一入口，要在这里返回 true 之后才能删除
+     * 版本置为无效之前，先由 releaser 释放这些版本引用的记录
+     */
+    boolean invalidateVersionChain(long vacuumXid, long headUid, VersionReleaser releaser, List<Long> invalidatedUids) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 清理原地更新的版本链，删除事务早于界限的旧版本从链上摘下并置为无效，第一个版本被索引引用，只保留不清理
+     * 摘下的版本置为无效之前，先由 releaser 释放它们引用、留在链上的版本没有引用的记录
+     * 置为无效的记录加入 invalidatedUids，版本链正在被加锁时返回 false
+     */
+    boolean pruneVersionChain(long vacuumXid, long headUid, long vacuumHorizon, VersionReleaser releaser, List<Long> invalidatedUids) throws WarningException, ErrorException;
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 取出撤销的事务原地更新产生的版本，它们在撤销时已经从链上摘下并置为无效，等待回收空间
+     */
+    List<Long> takeAbortedVersions();
+
     static VersionManagerImpl buildVersionManager(TransactionManager tm, DataManager dm) throws ErrorException {
         return new VersionManagerImpl(tm, dm);
     }
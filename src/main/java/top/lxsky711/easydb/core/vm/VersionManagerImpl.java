@@ -9,11 +9,13 @@ import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.common.AbstractCache;
 import top.lxsky711.easydb.core.dm.DataItem;
 import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.tm.TMSetting;
 import top.lxsky711.easydb.core.tm.TransactionManager;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -29,23 +31,35 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
     private final DataManager dm;
 
     /**
-     * 当前活跃的事务快照
+     * 当前活跃的事务，按XID有序，读取时不需要加锁
      */
-    private final Map<Long, Transaction> activeTransactions;
+    private final ConcurrentNavigableMap<Long, Transaction> activeTransactions;
 
     private final VersionLockManager vlm;
 
-    private final Lock selfLock;
+    /**
+     * 只用于串行化事务开始：分配XID、拍快照、登记为活跃事务需要一起完成，
+     * 否则一个XID更小的事务可能在快照之后才登记，被误认为已经结束
+     */
+    private final Lock beginLock;
+
+    /**
+     * 撤销的事务原地更新产生、已经从版本链上摘下并置为无效，等待回收空间的版本
+     */
+    private final Queue<Long> abortedVersions;
+
+    private volatile AbortedDataReleaser abortedDataReleaser;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) throws ErrorException {
         super(DataSetting.DATA_CACHE_DEFAULT_SIZE);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransactions = new HashMap<>();
+        this.activeTransactions = new ConcurrentSkipListMap<>();
         Transaction superTransaction = Transaction.buildSuperTransaction();
         this.activeTransactions.put(superTransaction.getXid(), superTransaction);
         this.vlm = new VersionLockManager();
-        this.selfLock = new ReentrantLock();
+        this.beginLock = new ReentrantLock();
+        this.abortedVersions = new ConcurrentLinkedQueue<>();
     }
 
     @Override
@@ -61,27 +75,25 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
 
     @Override
     public long begin(int transactionIsolationLevel) throws WarningException, ErrorException {
-        this.selfLock.lock();
+        this.beginLock.lock();
         try {
             long xid = this.tm.begin();
-            Transaction newTransaction = Transaction.buildTransaction(xid, transactionIsolationLevel, this.activeTransactions);
+            Transaction newTransaction = Transaction.buildTransaction(xid, transactionIsolationLevel, this.activeTransactions.keySet());
             this.activeTransactions.put(xid, newTransaction);
             return xid;
         }
         finally {
-            this.selfLock.unlock();
+            this.beginLock.unlock();
         }
     }
 
     /**
      * @Author: 711lxsky
-     * @Description: 检查事务是否已经意外终止
+     * @Description: 检查事务是否已经意外终止，意外终止的事务已经被撤销，不在活跃事务中
      */
     private Transaction checkTransactionAborted(long xid) throws WarningException {
-        this.selfLock.lock();
         Transaction tarTransaction = this.activeTransactions.get(xid);
-        this.selfLock.unlock();
-        if(tarTransaction.isAccidentalTermination()){
+        if(Objects.isNull(tarTransaction) || tarTransaction.isAccidentalTermination()){
             Log.logWarningMessage(WarningMessage.TRANSACTION_IS_ABORTED);
             return null;
         }
@@ -94,18 +106,61 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
         if(Objects.isNull(tarTransaction)){
             return null;
         }
-        Record tarRecord = super.getResource(uid);
+        Record tarRecord = this.seekVisibleVersion(tarTransaction, uid);
+        if(Objects.isNull(tarRecord)){
+            return null;
+        }
         try {
-            if(VisibilityJudge.judgeVisibility(this.tm, tarTransaction, tarRecord)){
-                return tarRecord.getData();
+            return tarRecord.getData();
+        }
+        finally {
+            super.releaseOneReference(tarRecord.getUid());
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 从版本链的第一个版本开始，沿 NEXT 找到对事务可见的版本，返回时持有该记录的一个引用，没有可见版本时返回 null
+     * 一个事务最多只能看到版本链中的一个版本
+     * 链中间的版本读不到，说明它已经被清理、从链上摘下，它对任何事务都不可见，从第一个版本重新查找
+     */
+    private Record seekVisibleVersion(Transaction transaction, long uid) throws WarningException, ErrorException {
+        long versionUid = uid;
+        while(true){
+            Record record = super.getResource(versionUid);
+            if(Objects.isNull(record)){
+                if(versionUid == uid){
+                    return null;
+                }
+                versionUid = uid;
+                continue;
+            }
+            long nextUid;
+            try {
+                if(VisibilityJudge.judgeVisibility(this.tm, transaction, record)){
+                    return record;
+                }
+                nextUid = record.getNext();
+            }
+            catch (WarningException | ErrorException | RuntimeException e){
+                super.releaseOneReference(versionUid);
+                throw e;
             }
-            else {
+            super.releaseOneReference(versionUid);
+            if(nextUid == VMSetting.RECORD_NEXT_DEFAULT){
                 return null;
             }
+            versionUid = nextUid;
         }
-        finally {
-            super.releaseOneReference(tarRecord.getUid());
+    }
+
+    @Override
+    public boolean isVisible(long xid, long xmin, long xmax) throws WarningException, ErrorException {
+        Transaction tarTransaction = this.checkTransactionAborted(xid);
+        if(Objects.isNull(tarTransaction)){
+            return false;
         }
+        return VisibilityJudge.judgeVisibility(this.tm, tarTransaction, xmin, xmax);
     }
 
     @Override
@@ -118,32 +173,30 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
         return this.dm.insertData(xid, recordBytes);
     }
 
+    @Override
+    public long[] insertBatch(long xid, List<byte[]> dataList) throws WarningException, ErrorException {
+        Transaction tarTransaction = this.checkTransactionAborted(xid);
+        if(Objects.isNull(tarTransaction)){
+            return null;
+        }
+        List<byte[]> recordBytesList = new ArrayList<>(dataList.size());
+        for(byte[] data : dataList){
+            recordBytesList.add(Record.wrapDataToRecordBytes(xid, data));
+        }
+        return this.dm.insertDataBatch(xid, recordBytesList);
+    }
+
     @Override
     public boolean delete(long xid, long uid) throws WarningException, ErrorException {
         Transaction tarTransaction = this.checkTransactionAborted(xid);
         if(Objects.isNull(tarTransaction)){
             return false;
         }
-        Record tarRecord = super.getResource(uid);
+        Record tarRecord = this.lockVisibleVersion(tarTransaction, uid);
+        if(Objects.isNull(tarRecord)){
+            return false;
+        }
         try {
-            if(! VisibilityJudge.judgeVisibility(this.tm, tarTransaction, tarRecord)){
-                return false;
-            }
-            Lock transactionGetRecordLock = this.vlm.tryToAcquireResourseLock(xid, uid);
-            if(Objects.nonNull(transactionGetRecordLock)){
-                transactionGetRecordLock.lock();
-                transactionGetRecordLock.unlock();
-            }
-            // 无法重复删除
-            if(tarRecord.getXMAX() == xid){
-                return false;
-            }
-            if(VisibilityJudge.judgeVersionHopping(this.tm, tarTransaction, tarRecord)){
-                Log.logWarningMessage(WarningMessage.VERSION_HOPPING_OCCUR);
-                tarTransaction.setAccidentalTermination(true);
-                this.internAbortTransaction(xid);
-                return false;
-            }
             tarRecord.setXMAX(xid);
             return true;
         }
@@ -157,15 +210,84 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
         }
     }
 
+    @Override
+    public long update(long xid, long uid, byte[] data) throws WarningException, ErrorException {
+        Transaction tarTransaction = this.checkTransactionAborted(xid);
+        if(Objects.isNull(tarTransaction)){
+            return VMSetting.TRANSACTION_XID_ERROR_DEFAULT;
+        }
+        Record tarRecord = this.lockVisibleVersion(tarTransaction, uid);
+        if(Objects.isNull(tarRecord)){
+            return VMSetting.TRANSACTION_XID_ERROR_DEFAULT;
+        }
+        try {
+            // 先写新版本，再把旧版本指向它，新版本尽量和旧版本放在同一页
+            byte[] recordBytes = Record.wrapDataToRecordBytes(xid, data);
+            long newUid = this.dm.insertDataNearby(xid, recordBytes, tarRecord.getUid());
+            tarRecord.setXMAXAndNext(xid, newUid);
+            tarTransaction.addUpdatedVersion(new VMSetting.UpdatedVersion(tarRecord.getUid(), newUid));
+            return newUid;
+        }
+        catch (Exception e){
+            tarTransaction.setAccidentalTermination(true);
+            this.internAbortTransaction(xid);
+            return VMSetting.TRANSACTION_XID_ERROR_DEFAULT;
+        }
+        finally {
+            super.releaseOneReference(tarRecord.getUid());
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 删除、更新前以版本链的第一个版本 uid 为资源加锁，再找到对事务可见、可以修改的版本，返回时持有该记录的一个引用
+     * 没有可见版本或者已经被当前事务删除时返回 null；等待锁时可能已经有其他事务提交了新版本，所以加锁后重新查找
+     * 死锁、等待超时或者出现版本跳跃时撤销当前事务，返回 null
+     */
+    private Record lockVisibleVersion(Transaction transaction, long uid) throws WarningException, ErrorException {
+        long xid = transaction.getXid();
+        Record tarRecord = null;
+        try {
+            tarRecord = this.seekVisibleVersion(transaction, uid);
+            if(Objects.isNull(tarRecord)){
+                return null;
+            }
+            super.releaseOneReference(tarRecord.getUid());
+            tarRecord = null;
+            // 可能需要等待其他事务释放记录，死锁或等待超时会抛出警告，在下面撤销当前事务
+            this.vlm.acquireRecordLock(xid, uid);
+            tarRecord = this.seekVisibleVersion(transaction, uid);
+            if(Objects.isNull(tarRecord)){
+                return null;
+            }
+            // 无法重复删除
+            if(tarRecord.getXMAX() == xid){
+                super.releaseOneReference(tarRecord.getUid());
+                return null;
+            }
+            if(VisibilityJudge.judgeVersionHopping(this.tm, transaction, tarRecord)){
+                Log.logWarningMessage(WarningMessage.VERSION_HOPPING_OCCUR);
+            }
+            return tarRecord;
+        }
+        catch (Exception e){
+            if(Objects.nonNull(tarRecord)){
+                super.releaseOneReference(tarRecord.getUid());
+            }
+            transaction.setAccidentalTermination(true);
+            this.internAbortTransaction(xid);
+            return null;
+        }
+    }
+
     @Override
     public void commit(long xid) throws WarningException, ErrorException {
         Transaction tarTransaction = this.checkTransactionAborted(xid);
         if(Objects.nonNull(tarTransaction)){
-            this.selfLock.lock();
+            // 先提交再移出活跃事务，任何快照要么看到它还在进行中，要么看到它已经提交
+            this.tm.commit(xid);
             this.activeTransactions.remove(xid);
-            this.selfLock.unlock();
             this.vlm.removeOneTransaction(xid);
-            this.tm.commit(xid);
         }
     }
 
@@ -174,21 +296,233 @@ public class VersionManagerImpl extends AbstractCache<Record> implements Version
         this.internAbortTransaction(xid);
     }
 
+    @Override
+    public void setAbortedDataReleaser(AbortedDataReleaser abortedDataReleaser) {
+        this.abortedDataReleaser = abortedDataReleaser;
+    }
+
+    @Override
+    public long getOldestActiveXid() {
+        Long oldestXid = this.activeTransactions.higherKey(TMSetting.SUPER_TRANSACTION_XID);
+        return Objects.isNull(oldestXid) ? Long.MAX_VALUE : oldestXid;
+    }
+
+    @Override
+    public long getNewestActiveXid() {
+        Map.Entry<Long, Transaction> newestEntry = this.activeTransactions.lastEntry();
+        return Objects.isNull(newestEntry) ? TMSetting.SUPER_TRANSACTION_XID : newestEntry.getKey();
+    }
+
     /**
      * @Author: 711lxsky
      * @Description: 内部事务撤销方法
      */
     private void internAbortTransaction(long xid) throws WarningException, ErrorException {
         Log.logInfo(InfoMessage.TRYING_TO_REVOKE_TRANSACTION);
-        Transaction tarTransaction = this.checkTransactionAborted(xid);
+        // 意外终止的事务也要撤销，只有已经撤销过的事务不再处理
+        Transaction tarTransaction = this.activeTransactions.remove(xid);
         if(Objects.nonNull(tarTransaction)){
-//            if(! tarTransaction.isAccidentalTermination()){
-                this.activeTransactions.remove(xid);
-                this.vlm.removeOneTransaction(xid);
-                this.tm.abort(xid);
-//            }
+            try {
+                // 还持有版本链的记录锁，这时把撤销的版本摘下不会与其他事务冲突
+                // 撤销状态写下之前完成，撤销状态没有落盘就崩溃时，恢复会把摘下连同原地更新一起撤销
+                this.unlinkAbortedVersions(tarTransaction);
+                AbortedDataReleaser curAbortedDataReleaser = this.abortedDataReleaser;
+                if(Objects.nonNull(curAbortedDataReleaser)){
+                    curAbortedDataReleaser.releaseAbortedData(xid);
+                }
+            }
+            finally {
+                try {
+                    this.tm.abort(xid);
+                }
+                finally {
+                    this.vlm.removeOneTransaction(xid);
+                }
+            }
         }
         Log.logInfo(InfoMessage.REVOKE_TRANSACTION_DONE);
     }
 
+    /**
+     * @Author: 711lxsky
+     * @Description: 倒序把撤销的事务原地更新产生的版本从版本链上摘下并置为无效，等待回收空间
+     * 都以撤销的事务写日志，不依赖只记在内存中的清理状态
+     */
+    private void unlinkAbortedVersions(Transaction transaction) throws WarningException, ErrorException {
+        long xid = transaction.getXid();
+        List<VMSetting.UpdatedVersion> updatedVersions = transaction.getUpdatedVersions();
+        for(int i = updatedVersions.size() - 1; i >= 0; i --){
+            VMSetting.UpdatedVersion updatedVersion = updatedVersions.get(i);
+            Record prevRecord = super.getResource(updatedVersion.prevUid);
+            if(Objects.isNull(prevRecord)){
+                return;
+            }
+            try {
+                prevRecord.setNext(xid, VMSetting.RECORD_NEXT_DEFAULT);
+            }
+            finally {
+                super.releaseOneReference(updatedVersion.prevUid);
+            }
+            if(this.dm.invalidateData(xid, updatedVersion.newUid)){
+                this.abortedVersions.add(updatedVersion.newUid);
+            }
+        }
+    }
+
+    @Override
+    public long beginVacuum() throws WarningException, ErrorException {
+        return this.tm.begin();
+    }
+
+    @Override
+    public void commitVacuum(long vacuumXid) throws WarningException, ErrorException {
+        this.tm.commit(vacuumXid);
+    }
+
+    @Override
+    public List<Long> takeAbortedVersions() {
+        List<Long> abortedUids = new ArrayList<>();
+        Long abortedUid;
+        while(Objects.nonNull(abortedUid = this.abortedVersions.poll())){
+            abortedUids.add(abortedUid);
+        }
+        return abortedUids;
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 获取清理界限，取所有活跃事务快照 xmin 的最小值，没有活跃事务时为 Long.MAX_VALUE
+     * 与事务开始互斥，避免一个正在拍快照、还没登记的事务被漏掉
+     */
+    @Override
+    public long getVacuumHorizon(){
+        this.beginLock.lock();
+        try {
+            long vacuumHorizon = Long.MAX_VALUE;
+            for(Transaction transaction : this.activeTransactions.values()){
+                if(transaction.getXid() != TMSetting.SUPER_TRANSACTION_XID){
+                    vacuumHorizon = Math.min(vacuumHorizon, transaction.getSnapshotXmin());
+                }
+            }
+            return vacuumHorizon;
+        }
+        finally {
+            this.beginLock.unlock();
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 先找出整条版本链，释放版本引用的记录，再从链尾往前置为无效
+     * 中途失败时，剩下的仍是从第一个版本开始、还连在一起的一段，下次还能从第一个版本找到
+     */
+    @Override
+    public boolean invalidateVersionChain(long vacuumXid, long headUid, VersionReleaser releaser, List<Long> invalidatedUids) throws WarningException, ErrorException {
+        if(! this.vlm.tryAcquireRecordLock(TMSetting.SUPER_TRANSACTION_XID, headUid)){
+            return false;
+        }
+        try {
+            List<Long> versionUids = new ArrayList<>();
+            List<byte[]> committedVersions = new ArrayList<>();
+            long versionUid = headUid;
+            while(versionUid != VMSetting.RECORD_NEXT_DEFAULT){
+                Record record = super.getResource(versionUid);
+                if(Objects.isNull(record)){
+                    break;
+                }
+                try {
+                    versionUids.add(versionUid);
+                    if(this.tm.isCommitted(record.getXMIN())){
+                        committedVersions.add(record.getData());
+                    }
+                    versionUid = record.getNext();
+                }
+                finally {
+                    super.releaseOneReference(record.getUid());
+                }
+            }
+            releaser.release(vacuumXid, committedVersions, Collections.emptyList(), invalidatedUids);
+            for(int i = versionUids.size() - 1; i >= 0; i --){
+                if(this.dm.invalidateData(vacuumXid, versionUids.get(i))){
+                    invalidatedUids.add(versionUids.get(i));
+                }
+            }
+            return true;
+        }
+        finally {
+            this.vlm.releaseRecordLock(TMSetting.SUPER_TRANSACTION_XID, headUid);
+        }
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 从第一个版本开始，删除事务已提交且小于界限的版本是链的一段前缀，第一个版本指向前缀之后的版本，中间的版本置为无效
+     * 整条链都已经删除时不处理，等索引项可以清理之后整体置为无效
+     * 更新时没有变化的行外存储的值在前后版本间共用，只释放留下的版本(第一个版本以及可见版本之后的版本)都没有引用的
+     */
+    @Override
+    public boolean pruneVersionChain(long vacuumXid, long headUid, long vacuumHorizon, VersionReleaser releaser, List<Long> invalidatedUids) throws WarningException, ErrorException {
+        if(! this.vlm.tryAcquireRecordLock(TMSetting.SUPER_TRANSACTION_XID, headUid)){
+            return false;
+        }
+        try {
+            List<Long> deadVersionUids = new ArrayList<>();
+            List<byte[]> deadVersions = new ArrayList<>();
+            List<byte[]> keptVersions = new ArrayList<>();
+            long liveVersionUid = VMSetting.RECORD_NEXT_DEFAULT;
+            long versionUid = headUid;
+            while(versionUid != VMSetting.RECORD_NEXT_DEFAULT){
+                Record record = super.getResource(versionUid);
+                if(Objects.isNull(record)){
+                    break;
+                }
+                long recordXmax, nextUid;
+                byte[] versionData;
+                try {
+                    recordXmax = record.getXMAX();
+                    nextUid = record.getNext();
+                    versionData = record.getData();
+                }
+                finally {
+                    super.releaseOneReference(versionUid);
+                }
+                if(liveVersionUid == VMSetting.RECORD_NEXT_DEFAULT
+                        && (recordXmax == TMSetting.SUPER_TRANSACTION_XID || recordXmax >= vacuumHorizon || ! this.tm.isCommitted(recordXmax))){
+                    liveVersionUid = versionUid;
+                }
+                if(versionUid == headUid || liveVersionUid != VMSetting.RECORD_NEXT_DEFAULT){
+                    keptVersions.add(versionData);
+                }
+                else {
+                    deadVersionUids.add(versionUid);
+                    deadVersions.add(versionData);
+                }
+                versionUid = nextUid;
+            }
+            if(liveVersionUid == VMSetting.RECORD_NEXT_DEFAULT || deadVersionUids.isEmpty()){
+                return true;
+            }
+            Record headRecord = super.getResource(headUid);
+            if(Objects.isNull(headRecord)){
+                return true;
+            }
+            try {
+                headRecord.setNext(vacuumXid, liveVersionUid);
+            }
+            finally {
+                super.releaseOneReference(headUid);
+            }
+            releaser.release(vacuumXid, deadVersions, keptVersions, invalidatedUids);
+            for(long deadVersionUid : deadVersionUids){
+                if(this.dm.invalidateData(vacuumXid, deadVersionUid)){
+                    invalidatedUids.add(deadVersionUid);
+                }
+            }
+            return true;
+        }
+        finally {
+            this.vlm.releaseRecordLock(TMSetting.SUPER_TRANSACTION_XID, headUid);
+        }
+    }
+
 }
@@ -0,0 +1,22 @@
+package top.lxsky711.easydb.core.vm;
+
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+import java.util.List;
+
+/**
+ * @Author: 711lxsky
+ * @Description: 释放版本数据引用的其他记录(例如行外存储的值)，由表实现，清理版本链时交给版本管理器
+ * 版本置为无效之前调用，释放都以同一个清理事务写日志，与版本链的修改一起提交，或在恢复时一起撤销
+ */
+
+public interface VersionReleaser {
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 把 deadVersions 引用、而 keptVersions 都没有引用的记录置为无效，置为无效的记录加入 invalidatedUids
+     * 版本都是记录中的数据部分；插入事务撤销的版本不会传入，它们引用的记录在撤销时已经释放
+     */
+    void release(long xid, List<byte[]> deadVersions, List<byte[]> keptVersions, List<Long> invalidatedUids) throws WarningException, ErrorException;
+}
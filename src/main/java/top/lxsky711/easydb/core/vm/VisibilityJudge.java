@@ -30,16 +30,22 @@ public class VisibilityJudge {
      * @Description: 针对特定事务隔离级别，判断记录对事务是否可见
      */
     public static boolean judgeVisibility(TransactionManager tm, Transaction transaction, Record record) throws WarningException, ErrorException {
+        return judgeVisibility(tm, transaction, record.getXMIN(), record.getXMAX());
+    }
+
+    /**
+     * @Author: 711lxsky
+     * @Description: 只根据插入、删除事务XID判断版本是否对事务可见，索引中记录了版本信息时可以不读取记录
+     */
+    public static boolean judgeVisibility(TransactionManager tm, Transaction transaction, long recordXmin, long recordXmax) throws WarningException, ErrorException {
         long transactionXid = transaction.getXid();
-        long recordXmin = record.getXMIN();
-        long recordXmax = record.getXMAX();
         // 记录由当前事务创建且未被删除，可见
         if(transactionXid == recordXmin && recordXmax == VMSetting.RECORD_XMAX_DEFAULT) {
             return true;
         }
         switch (transaction.getTransactionIsolationLevel()){
             case VMSetting.TRANSACTION_ISOLATION_LEVEL_READ_COMMITTED:
-                return judgeForReadCommitted(tm, recordXmin, recordXmax);
+                return judgeForReadCommitted(tm, transactionXid, recordXmin, recordXmax);
             case VMSetting.TRANSACTION_ISOLATION_LEVEL_REPEATABLE_READ:
                 return judgeForRepeatableRead(tm, transaction, recordXmin, recordXmax);
             default:
@@ -52,16 +58,16 @@ public class VisibilityJudge {
      * @Author: 711lxsky
      * @Description: 读已提交级别判断
      */
-    private static boolean judgeForReadCommitted(TransactionManager tm, long recordXmin, long recordXmax) throws ErrorException {
+    private static boolean judgeForReadCommitted(TransactionManager tm, long transactionXid, long recordXmin, long recordXmax) throws ErrorException {
         // 如果记录由某个已经提交的事务创建
-        if(tm.isCommitted(recordXmax)){
+        if(tm.isCommitted(recordXmin)){
             // 如果还未被删除，则可见
             if(recordXmax == VMSetting.RECORD_XMAX_DEFAULT){
                 return true;
             }
             // 如果记录已被删除，则判断删除事务是否已经提交
-            // 未提交则可见， 已提交则不可见
-            if(recordXmax != recordXmin){
+            // 未提交则可见， 已提交则不可见，被当前事务自己删除的也不可见
+            if(recordXmax != recordXmin && recordXmax != transactionXid){
                 return ! tm.isCommitted(recordXmax);
             }
         }
@@ -96,6 +96,10 @@ public class Executor {
             else if(parseSQLResult instanceof SPSetting.Insert){
                 // 执行 insert
                 return this.tbm.insert(this.transactionXid, (SPSetting.Insert) parseSQLResult);
+            }
+            else if(parseSQLResult instanceof SPSetting.InsertBatch){
+                // 执行多行 insert
+                return this.tbm.insertBatch(this.transactionXid, ((SPSetting.InsertBatch) parseSQLResult).inserts);
             }else if(parseSQLResult instanceof SPSetting.Delete){
                 // 执行 delete
                 return this.tbm.delete(this.transactionXid, (SPSetting.Delete) parseSQLResult);
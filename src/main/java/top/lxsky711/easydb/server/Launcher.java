@@ -8,6 +8,7 @@ import top.lxsky711.easydb.common.log.Log;
 import top.lxsky711.easydb.common.log.WarningMessage;
 import top.lxsky711.easydb.core.dm.DataManager;
 import top.lxsky711.easydb.core.tbm.TableManager;
+import top.lxsky711.easydb.core.tm.TMSetting;
 import top.lxsky711.easydb.core.tm.TransactionManager;
 import top.lxsky711.easydb.core.vm.VersionManager;
 
@@ -23,6 +24,7 @@ public class Launcher {
         options.addOption(ServerSetting.OPTION_OPEN, true, ServerSetting.OPTION_OPEN_DESCRIPTION);
         options.addOption(ServerSetting.OPTION_CREATE, true, ServerSetting.OPTION_CREATE_DESCRIPTION);
         options.addOption(ServerSetting.OPTION_MEMORY, true, ServerSetting.OPTION_MEMORY_DESCRIPTION);
+        options.addOption(ServerSetting.OPTION_DURABILITY, true, ServerSetting.OPTION_DURABILITY_DESCRIPTION);
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
         if(cmd.hasOption(ServerSetting.OPTION_CREATE)){
@@ -30,7 +32,8 @@ public class Launcher {
             return;
         }
         else if(cmd.hasOption(ServerSetting.OPTION_OPEN)){
-            openDB(cmd.getOptionValue(ServerSetting.OPTION_OPEN), parseMemory(cmd.getOptionValue(ServerSetting.OPTION_MEMORY)));
+            openDB(cmd.getOptionValue(ServerSetting.OPTION_OPEN), parseMemory(cmd.getOptionValue(ServerSetting.OPTION_MEMORY)),
+                    parseDurability(cmd.getOptionValue(ServerSetting.OPTION_DURABILITY)));
             return;
         }
         System.out.println(ServerSetting.OPTION_USAGE);
@@ -40,17 +43,43 @@ public class Launcher {
         TransactionManager tm = TransactionManager.create(dbPath);
         DataManager dm = DataManager.create(dbPath, ServerSetting.MEMORY_SIZE_DEFAULT, tm);
         VersionManager vm = VersionManager.buildVersionManager(tm, dm);
-        TableManager.create(dbPath, vm, dm);
-        tm.close();
+        TableManager tbm = TableManager.create(dbPath, vm, dm);
+        tbm.close();
         dm.close();
+        tm.close();
     }
 
-    private static void openDB(String dbPath, long memorySize) throws WarningException, ErrorException {
+    private static void openDB(String dbPath, long memorySize, byte commitDurability) throws WarningException, ErrorException {
         TransactionManager tm = TransactionManager.open(dbPath);
+        tm.setCommitDurability(commitDurability);
         DataManager dm = DataManager.open(dbPath, memorySize, tm);
         VersionManager vm = VersionManager.buildVersionManager(tm, dm);
         TableManager tbm = TableManager.open(dbPath, vm, dm);
-        new Server(ServerSetting.SERVER_SOCKET_PORT, tbm).start();
+        try {
+            new Server(ServerSetting.SERVER_SOCKET_PORT, tbm).start();
+        }
+        finally {
+            tbm.close();
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private static byte parseDurability(String durability) throws WarningException {
+        if(StringUtil.stringIsBlank(durability)){
+            return TMSetting.COMMIT_DURABILITY_DEFAULT;
+        }
+        switch (durability.toLowerCase()) {
+            case ServerSetting.DURABILITY_SYNC:
+                return TMSetting.COMMIT_DURABILITY_SYNC;
+            case ServerSetting.DURABILITY_GROUP:
+                return TMSetting.COMMIT_DURABILITY_GROUP;
+            case ServerSetting.DURABILITY_ASYNC:
+                return TMSetting.COMMIT_DURABILITY_ASYNC;
+            default:
+                Log.logWarningMessage(WarningMessage.COMMIT_DURABILITY_INVALID);
+        }
+        return TMSetting.COMMIT_DURABILITY_DEFAULT;
     }
 
     private static long parseMemory(String memorySize) throws WarningException {
@@ -39,5 +39,15 @@ public class ServerSetting {
 
     public static final int OPTION_MEMORY_LENGTH_MIN = 2;
 
+    public static final String OPTION_DURABILITY = "durability";
+
+    public static final String OPTION_DURABILITY_DESCRIPTION = "-durability sync|group|async";
+
+    public static final String DURABILITY_SYNC = "sync";
+
+    public static final String DURABILITY_GROUP = "group";
+
+    public static final String DURABILITY_ASYNC = "async";
+
     public static final String OPTION_USAGE = "Usage: launcher (open|create) DataBasePath";
 }
@@ -7,6 +7,8 @@ import top.lxsky711.easydb.common.log.Log;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CacheTest {
 
@@ -36,6 +38,114 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testConcurrentGetResource() throws ErrorException, InterruptedException {
+        cache = new MockCache();
+        cdl = new CountDownLatch(8);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for(int i = 0; i < 8; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < 1000; j ++) {
+                        long uid = random.nextInt(20);
+                        Long h = cache.getResource(uid);
+                        assert h != null && h == uid;
+                        cache.releaseOneReference(uid);
+                    }
+                } catch (Throwable e) {
+                    // 断言失败抛出的是 AssertionError，同样要记下来交给主线程
+                    failed.set(true);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert ! failed.get();
+    }
+
+    @Test
+    public void testRetainAndEvict() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AtomicInteger writeBacks = new AtomicInteger(0);
+        AbstractCache<Long> retainCache = new AbstractCache<Long>(4, new ClockPolicy()) {
+            @Override
+            protected Long getCacheFromDataSourceByKey(long key) {
+                loads.incrementAndGet();
+                return key;
+            }
+
+            @Override
+            protected void releaseCacheForObject(Long obj) {
+                writeBacks.incrementAndGet();
+            }
+        };
+        // 无引用的资源继续驻留，再次访问不会重新加载
+        for(long key = 0; key < 4; key ++) {
+            retainCache.getResource(key);
+            retainCache.releaseOneReference(key);
+        }
+        for(long key = 0; key < 4; key ++) {
+            retainCache.getResource(key);
+            retainCache.releaseOneReference(key);
+        }
+        assert loads.get() == 4;
+        assert writeBacks.get() == 0;
+        // 缓存满时驱逐一个无引用的资源，而不是返回 null
+        retainCache.getResource(0);
+        Long value = retainCache.getResource(100);
+        assert value != null && value == 100;
+        assert writeBacks.get() == 1;
+        // 被引用的资源不会被驱逐
+        Long pinned = retainCache.getResource(0);
+        assert pinned != null && loads.get() == 5;
+        retainCache.releaseOneReference(0);
+        retainCache.releaseOneReference(0);
+        retainCache.releaseOneReference(100);
+    }
+
+    @Test
+    public void testLRUKPolicy() {
+        ReplacementPolicy policy = new LRUKPolicy(2);
+        policy.recordAccess(1);
+        policy.recordAccess(1);
+        policy.recordAccess(2);
+        policy.recordAccess(3);
+        policy.recordAccess(3);
+        policy.setEvictable(1, true);
+        policy.setEvictable(2, true);
+        policy.setEvictable(3, true);
+        // 只访问过一次的 2 距离无穷大，最先驱逐，然后是倒数第二次访问更早的 1
+        assert policy.selectVictim() == 2;
+        assert policy.selectVictim() == 1;
+        policy.setEvictable(3, false);
+        assert policy.selectVictim() == null;
+    }
+
+    @Test
+    public void testClockPolicy() {
+        ReplacementPolicy policy = new ClockPolicy();
+        for(long key = 1; key <= 4; key ++) {
+            policy.recordAccess(key);
+            policy.setEvictable(key, true);
+        }
+        // 第一圈清除所有访问位，第二圈按环上的顺序驱逐
+        assert policy.selectVictim() == 1;
+        // 指针正指着 2，移除之后指针移到下一个
+        policy.remove(2);
+        policy.recordAccess(3);
+        assert policy.selectVictim() == 4;
+        assert policy.selectVictim() == 3;
+        assert policy.selectVictim() == null;
+        // 移除的资源不会再被选中
+        policy.recordAccess(5);
+        policy.setEvictable(5, true);
+        policy.remove(5);
+        assert policy.selectVictim() == null;
+        policy.setEvictable(6, true);
+        assert policy.selectVictim() == 6;
+    }
+
     private void work() throws ErrorException {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
@@ -0,0 +1,277 @@
+package top.lxsky711.easydb.core.dm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.logger.Logger;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.Page;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.dm.page.PageX;
+import top.lxsky711.easydb.core.dm.pageCache.PageCache;
+import top.lxsky711.easydb.core.tm.MockTManager;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DataManagerTest {
+
+    @Test
+    public void testInsertDataBatch() throws WarningException, ErrorException {
+        String path = "/tmp/data_manager_batch_test";
+        new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        long xid = 5;
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, new MockTManager());
+        List<byte[]> dataList = new ArrayList<>();
+        for(int i = 0; i < 100; i ++){
+            byte[] data = new byte[150 + i];
+            Arrays.fill(data, (byte) i);
+            dataList.add(data);
+        }
+        long[] uids = dm.insertDataBatch(xid, dataList);
+        Set<Integer> pageNumbers = new HashSet<>();
+        for(int i = 0; i < uids.length; i ++){
+            DataItem dataItem = dm.readDataItem(uids[i]);
+            assert dataItem.getDataRecord().end - dataItem.getDataRecord().start == 150 + i;
+            assert dataItem.getDataRecord().rawData[dataItem.getDataRecord().start] == (byte) i;
+            // 插入时记下了页面的日志位置，写回页面之前会先刷日志
+            assert dataItem.getPage().getLsn() != PageSetting.PAGE_LSN_NONE;
+            dataItem.releaseOneReference();
+            pageNumbers.add(Logger.getPageNumberFromUid(uids[i]));
+        }
+        dm.close();
+
+        // 一个页面中的数据只写一条插入日志
+        Logger logger = Logger.open(path);
+        logger.rewind();
+        int logCount = 0;
+        while(logger.readNextLogData() != null){
+            logCount ++;
+        }
+        logger.close();
+        assert logCount == pageNumbers.size();
+
+        // 事务没有提交，恢复时一条日志中的所有数据都被撤销
+        PageCache pc = PageCache.open(path, PageSetting.PAGE_SIZE * 64);
+        logger = Logger.open(path);
+        Recover.recover(new MockTManager() {
+            @Override
+            public boolean isActive(long activeXid) {
+                return activeXid == xid;
+            }
+        }, logger, pc);
+        for(long uid : uids){
+            Page page = pc.getPageByPageNumber(Logger.getPageNumberFromUid(uid));
+            assert page.getPageData()[PageX.getSlotOffset(page, Logger.getSlotFromUid(uid))] == DataItemSetting.DATA_INVALID;
+            page.releaseOneReference();
+        }
+        pc.close();
+        logger.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testCompactionKeepsUid() throws WarningException, ErrorException {
+        String path = "/tmp/data_manager_compaction_test";
+        new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, new MockTManager());
+        List<byte[]> dataList = new ArrayList<>();
+        for(int i = 0; i < 30; i ++){
+            byte[] data = new byte[200];
+            Arrays.fill(data, (byte) i);
+            dataList.add(data);
+        }
+        long[] uids = dm.insertDataBatch(TMSetting.SUPER_TRANSACTION_XID, dataList);
+        // 被引用的数据在整理时原地不动
+        DataItem pinnedItem = dm.readDataItem(uids[5]);
+        int pinnedStart = pinnedItem.getDataRecord().start;
+        List<Long> deadUids = new ArrayList<>();
+        for(int i = 0; i < uids.length; i += 2){
+            assert dm.invalidateData(TMSetting.SUPER_TRANSACTION_XID, uids[i]);
+            deadUids.add(uids[i]);
+        }
+        // 被引用数据之前的空隙暂时无法合并，之后的 12 条无效数据都能回收
+        assert dm.reclaimData(deadUids) >= 12 * 200;
+        assert pinnedItem.getDataRecord().start == pinnedStart;
+        pinnedItem.releaseOneReference();
+        // 移动过的数据仍然通过原来的 uid 读到
+        for(int i = 0; i < uids.length; i ++){
+            DataItem dataItem = dm.readDataItem(uids[i]);
+            if(i % 2 == 0){
+                assert dataItem == null;
+                continue;
+            }
+            assert dataItem.getDataRecord().rawData[dataItem.getDataRecord().start] == (byte) i;
+            assert dataItem.getDataRecord().rawData[dataItem.getDataRecord().end - 1] == (byte) i;
+            dataItem.releaseOneReference();
+        }
+        // 空出的槽位和空间被新的插入复用
+        long newUid = dm.insertData(TMSetting.SUPER_TRANSACTION_XID, new byte[]{(byte) 100});
+        assert Logger.getPageNumberFromUid(newUid) == Logger.getPageNumberFromUid(uids[0]);
+        assert Logger.getSlotFromUid(newUid) < uids.length;
+        dm.close();
+
+        // 重做插入、更新和页面整理日志之后，页面和崩溃前一致
+        PageCache pc = PageCache.open(path, PageSetting.PAGE_SIZE * 64);
+        Logger logger = Logger.open(path);
+        Recover.recover(new MockTManager(), logger, pc);
+        for(int i = 1; i < uids.length; i += 2){
+            Page page = pc.getPageByPageNumber(Logger.getPageNumberFromUid(uids[i]));
+            short offset = PageX.getSlotOffset(page, Logger.getSlotFromUid(uids[i]));
+            assert page.getPageData()[offset + DataItemSetting.DATA_VALID_OFFSET] == DataItemSetting.DATA_VALID;
+            assert page.getPageData()[offset + DataItemSetting.DATA_DATA_OFFSET] == (byte) i;
+            page.releaseOneReference();
+        }
+        pc.close();
+        logger.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    private static void deleteDataFiles(String path){
+        new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        new File(path + TMSetting.XID_FILE_SUFFIX).delete();
+    }
+
+    private static List<byte[]> buildDataList(int count, int base){
+        List<byte[]> dataList = new ArrayList<>();
+        for(int i = 0; i < count; i ++){
+            byte[] data = new byte[100];
+            Arrays.fill(data, (byte) (base + i));
+            dataList.add(data);
+        }
+        return dataList;
+    }
+
+    private static void assertData(DataManager dm, long uid, byte value) throws WarningException, ErrorException {
+        DataItem dataItem = dm.readDataItem(uid);
+        assert dataItem != null;
+        assert dataItem.getDataRecord().rawData[dataItem.getDataRecord().start] == value;
+        assert dataItem.getDataRecord().rawData[dataItem.getDataRecord().end - 1] == value;
+        dataItem.releaseOneReference();
+    }
+
+    @Test
+    public void testCrashRecoveryRoundTrip() throws WarningException, ErrorException, IOException {
+        String path = "/tmp/data_manager_crash_test";
+        String crashPath = "/tmp/data_manager_crash_image";
+        deleteDataFiles(path);
+        deleteDataFiles(crashPath);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+
+        // 检查点之前提交的数据
+        long xid1 = tm.begin();
+        long[] beforeCheckpointUids = dm.insertDataBatch(xid1, buildDataList(50, 0));
+        tm.commit(xid1);
+        // 崩溃时还没有提交的事务，它的插入随检查点写进了页面文件
+        long xid3 = tm.begin();
+        long[] uncommittedUids = dm.insertDataBatch(xid3, buildDataList(10, 100));
+        dm.checkpoint();
+
+        // 检查点之后提交的插入和更新
+        long xid2 = tm.begin();
+        long[] afterCheckpointUids = dm.insertDataBatch(xid2, buildDataList(50, 50));
+        DataItem updatedItem = dm.readDataItem(beforeCheckpointUids[0]);
+        updatedItem.beforeModify();
+        Arrays.fill(updatedItem.getDataRecord().rawData, updatedItem.getDataRecord().start, updatedItem.getDataRecord().end, (byte) 127);
+        updatedItem.afterModify(xid2);
+        updatedItem.releaseOneReference();
+        tm.commit(xid2);
+
+        // 崩溃: 只留下此刻文件中的内容，页面文件先于日志拷贝，后台写回的页面对应的日志一定也在拷贝中
+        for(String suffix : new String[]{PageSetting.PAGE_FILE_SUFFIX, LoggerSetting.LOGGER_FILE_SUFFIX, TMSetting.XID_FILE_SUFFIX}){
+            Files.copy(new File(path + suffix).toPath(), new File(crashPath + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dm.close();
+        tm.close();
+
+        // 重新打开时第一页校验不通过，重做已提交的修改，撤销未提交的插入
+        TransactionManager recoveredTm = TransactionManager.open(crashPath);
+        DataManager recoveredDm = DataManager.open(crashPath, PageSetting.PAGE_SIZE * 64, recoveredTm);
+        assertData(recoveredDm, beforeCheckpointUids[0], (byte) 127);
+        for(int i = 1; i < beforeCheckpointUids.length; i ++){
+            assertData(recoveredDm, beforeCheckpointUids[i], (byte) i);
+        }
+        for(int i = 0; i < afterCheckpointUids.length; i ++){
+            assertData(recoveredDm, afterCheckpointUids[i], (byte) (50 + i));
+        }
+        for(long uid : uncommittedUids){
+            assert recoveredDm.readDataItem(uid) == null;
+        }
+        assert recoveredTm.isAborted(xid3);
+
+        // 撤销的插入留下的无效数据，重启后扫描页面全部回收
+        assert recoveredDm.reclaimInvalidData() >= uncommittedUids.length * 100;
+        assert recoveredDm.reclaimInvalidData() == 0;
+        recoveredDm.close();
+        recoveredTm.close();
+        deleteDataFiles(path);
+        deleteDataFiles(crashPath);
+    }
+
+    @Test
+    public void testAsyncCommitLostOnCrash() throws WarningException, ErrorException, IOException {
+        String path = "/tmp/data_manager_async_test";
+        String crashPath = "/tmp/data_manager_async_image";
+        deleteDataFiles(path);
+        deleteDataFiles(crashPath);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        tm.setCommitDurability(TMSetting.COMMIT_DURABILITY_ASYNC);
+
+        // 插入的日志已经落盘，检查点把插入写进页面文件
+        long xid = tm.begin();
+        long[] uids = dm.insertDataBatch(xid, buildDataList(20, 0));
+        dm.checkpoint();
+        // 提交的状态日志还在缓冲区中，崩溃时没有落盘
+        tm.setStatusLogger((logXid, status, waitFlush) -> Long.MAX_VALUE);
+        tm.commit(xid);
+        assert tm.isCommitted(xid);
+
+        for(String suffix : new String[]{PageSetting.PAGE_FILE_SUFFIX, LoggerSetting.LOGGER_FILE_SUFFIX, TMSetting.XID_FILE_SUFFIX}){
+            Files.copy(new File(path + suffix).toPath(), new File(crashPath + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        dm.close();
+        tm.close();
+
+        // 丢失的只是这次提交，事务整体撤销，一行都不留下
+        TransactionManager recoveredTm = TransactionManager.open(crashPath);
+        DataManager recoveredDm = DataManager.open(crashPath, PageSetting.PAGE_SIZE * 64, recoveredTm);
+        assert recoveredTm.isAborted(xid);
+        for(long uid : uids){
+            assert recoveredDm.readDataItem(uid) == null;
+        }
+        recoveredDm.close();
+        recoveredTm.close();
+
+        // 状态日志落盘之后，提交的状态才写进XID文件
+        deleteDataFiles(path);
+        TransactionManager asyncTm = TransactionManager.create(path);
+        DataManager asyncDm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, asyncTm);
+        asyncTm.setCommitDurability(TMSetting.COMMIT_DURABILITY_ASYNC);
+        long committedXid = asyncTm.begin();
+        asyncDm.insertDataBatch(committedXid, buildDataList(5, 0));
+        asyncTm.commit(committedXid);
+        asyncDm.close();
+        asyncTm.close();
+        TransactionManager reopenedTm = TransactionManager.open(path);
+        assert reopenedTm.isCommitted(committedXid);
+        reopenedTm.close();
+        deleteDataFiles(path);
+        deleteDataFiles(crashPath);
+    }
+}
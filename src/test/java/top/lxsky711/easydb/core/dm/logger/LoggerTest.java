@@ -5,6 +5,13 @@ import top.lxsky711.easydb.common.exception.ErrorException;
 import top.lxsky711.easydb.common.exception.WarningException;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LoggerTest {
     @Test
@@ -47,4 +54,101 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test1.log").delete();
     }
+
+    @Test
+    public void testConcurrentWriteLog() throws WarningException, ErrorException, InterruptedException {
+        Logger writer = Logger.create("/tmp/logger_test2");
+        int threadNum = 8, logNumPerThread = 200;
+        CountDownLatch latch = new CountDownLatch(threadNum);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for(int i = 0; i < threadNum; i ++){
+            final int threadId = i;
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < logNumPerThread; j ++){
+                        writer.writeLog((threadId + "-" + j).getBytes());
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assert !failed.get();
+        writer.close();
+
+        Logger lg = Logger.open("/tmp/logger_test2");
+        lg.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while((log = lg.readNextLogData()) != null){
+            logs.add(new String(log));
+        }
+        lg.close();
+        assert logs.size() == threadNum * logNumPerThread;
+        assert logs.contains("0-0") && logs.contains((threadNum - 1) + "-" + (logNumPerThread - 1));
+
+        assert new File("/tmp/logger_test2.log").delete();
+    }
+
+    @Test
+    public void testLogView() throws WarningException, ErrorException {
+        Logger lg = Logger.create("/tmp/logger_test4");
+        long aaaLsn = lg.writeLog("aaa".getBytes());
+        long bbbLsn = lg.writeLog("bbbb".getBytes());
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_test4");
+        lg.rewind();
+        assert lg.getLogPosition() == aaaLsn;
+        ByteBuffer view = lg.readNextLogView();
+        assert view != null && view.isReadOnly();
+        assert "aaa".equals(new String(Logger.getLogBytes(view)));
+        assert lg.getLogPosition() == bbbLsn;
+        // 随机读取不影响顺序读取的位置
+        assert "aaa".equals(new String(Logger.getLogBytes(lg.readLogViewAt(aaaLsn))));
+        view = lg.readNextLogView();
+        assert view != null && "bbbb".equals(new String(Logger.getLogBytes(view)));
+        assert lg.readNextLogView() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_test4.log").delete();
+    }
+
+    @Test
+    public void testTornTail() throws WarningException, ErrorException, IOException {
+        Logger lg = Logger.create("/tmp/logger_test3");
+        lg.writeLog("aaa".getBytes());
+        long lastLsn = lg.writeLog("bbb".getBytes());
+        lg.close();
+
+        // 模拟崩溃时最后一条日志只写了一半
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_test3.log", "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        lg = Logger.open("/tmp/logger_test3");
+        lg.rewind();
+        byte[] log = lg.readNextLogData();
+        assert log != null && "aaa".equals(new String(log));
+        assert lg.readNextLogData() == null;
+        // 新日志接在被截断的位置
+        assert lg.writeLog("ccc".getBytes()) == lastLsn;
+        lg.close();
+
+        // 数据被改坏，校验和对不上
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_test3.log", "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write('x');
+        }
+        lg = Logger.open("/tmp/logger_test3");
+        lg.rewind();
+        log = lg.readNextLogData();
+        assert log != null && "aaa".equals(new String(log));
+        assert lg.readNextLogData() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_test3.log").delete();
+    }
 }
@@ -0,0 +1,151 @@
+package top.lxsky711.easydb.core.dm.pageCache;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.page.Page;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PageCacheTest {
+
+    private static final String PAGE_FILE_NAME = "/tmp/page_cache_test";
+
+    private static byte[] readPageFromFile(int pageNumber) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(PAGE_FILE_NAME + PageSetting.PAGE_FILE_SUFFIX, "r")) {
+            byte[] pageData = new byte[PageSetting.PAGE_SIZE];
+            long pageOffset = (long) (pageNumber - 1) * PageSetting.PAGE_SIZE;
+            // 还没有写进文件的页面
+            if(pageOffset + PageSetting.PAGE_SIZE > raf.length()){
+                return pageData;
+            }
+            raf.seek(pageOffset);
+            raf.readFully(pageData);
+            return pageData;
+        }
+    }
+
+    private static PageCache createPageCache(AtomicLong flushedLsn) throws WarningException, ErrorException {
+        new File(PAGE_FILE_NAME + PageSetting.PAGE_FILE_SUFFIX).delete();
+        PageCache pc = PageCache.create(PAGE_FILE_NAME, (long) PageSetting.PAGE_SIZE * PageSetting.PAGE_CACHE_MIN_SIZE);
+        pc.setLogFlusher(lsn -> flushedLsn.accumulateAndGet(lsn, Math::max));
+        return pc;
+    }
+
+    private static void modifyPage(Page page, byte value, long lsn){
+        page.lock();
+        try {
+            Arrays.fill(page.getPageData(), value);
+            page.updateLsn(lsn);
+            page.setDirtyStatus(true);
+        }
+        finally {
+            page.unlock();
+        }
+    }
+
+    @Test
+    public void testEvictionAndFlushWaitForLog() throws WarningException, ErrorException, IOException {
+        AtomicLong flushedLsn = new AtomicLong(PageSetting.PAGE_LSN_NONE);
+        PageCache pc = createPageCache(flushedLsn);
+        int pagesCount = PageSetting.PAGE_CACHE_MIN_SIZE * 3;
+        for(int i = 1; i <= pagesCount; i ++){
+            pc.buildNewPageWithData(new byte[PageSetting.PAGE_SIZE]);
+        }
+        // 页面数超过缓存容量，前面的页面会被驱逐写回
+        for(int i = 1; i <= pagesCount; i ++){
+            Page page = pc.getPageByPageNumber(i);
+            modifyPage(page, (byte) i, i * 100L);
+            page.releaseOneReference();
+        }
+        for(int i = 1; i <= pagesCount; i ++){
+            byte[] pageData = readPageFromFile(i);
+            // 已经写进文件的页面，它的日志一定已经落盘
+            if(pageData[0] == (byte) i){
+                assert flushedLsn.get() >= i * 100L;
+            }
+        }
+        pc.flushPages(pc.getDirtyPageNumbers());
+        assert flushedLsn.get() == pagesCount * 100L;
+        for(int i = 1; i <= pagesCount; i ++){
+            assert readPageFromFile(i)[PageSetting.PAGE_SIZE - 1] == (byte) i;
+        }
+        pc.close();
+    }
+
+    @Test
+    public void testUnloggedModificationNotWritten() throws WarningException, ErrorException, IOException {
+        AtomicLong flushedLsn = new AtomicLong(PageSetting.PAGE_LSN_NONE);
+        PageCache pc = createPageCache(flushedLsn);
+        pc.buildNewPageWithData(new byte[PageSetting.PAGE_SIZE]);
+        Page page = pc.getPageByPageNumber(1);
+        int offset = 16, length = 16;
+        // 数据正在修改，还没有写日志
+        page.lock();
+        try {
+            page.addModifyingData(offset, Arrays.copyOfRange(page.getPageData(), offset, offset + length));
+        }
+        finally {
+            page.unlock();
+        }
+        Arrays.fill(page.getPageData(), offset, offset + length, (byte) 7);
+        page.setDirtyStatus(true);
+        pc.flushPages(pc.getDirtyPageNumbers());
+        assert readPageFromFile(1)[offset] == 0;
+
+        // 修改完成，追加日志后取消登记，写回时先等日志落盘
+        page.lock();
+        try {
+            page.setDirtyStatus(true);
+            page.updateLsn(500);
+            page.removeModifyingData(offset);
+        }
+        finally {
+            page.unlock();
+        }
+        pc.flushPages(pc.getDirtyPageNumbers());
+        assert flushedLsn.get() == 500;
+        assert readPageFromFile(1)[offset] == 7;
+        page.releaseOneReference();
+        pc.close();
+    }
+
+    @Test
+    public void testFlushWaitsForLockedPage() throws WarningException, ErrorException, IOException, InterruptedException {
+        AtomicLong flushedLsn = new AtomicLong(PageSetting.PAGE_LSN_NONE);
+        PageCache pc = createPageCache(flushedLsn);
+        pc.buildNewPageWithData(new byte[PageSetting.PAGE_SIZE]);
+        Page page = pc.getPageByPageNumber(1);
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread modifier = new Thread(() -> {
+            page.lock();
+            try {
+                page.setDirtyStatus(true);
+                locked.countDown();
+                Thread.sleep(100);
+                // 持有页面锁期间修改完成并记下日志位置
+                Arrays.fill(page.getPageData(), (byte) 9);
+                page.updateLsn(700);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                page.unlock();
+            }
+        });
+        modifier.start();
+        locked.await();
+        // 成批写回时跳过被锁住的页面，之后等到页面锁再单独写回，不会写出修改了一半的页面
+        pc.flushPages(pc.getDirtyPageNumbers());
+        modifier.join();
+        assert readPageFromFile(1)[0] == 9;
+        assert flushedLsn.get() == 700;
+        page.releaseOneReference();
+        pc.close();
+    }
+}
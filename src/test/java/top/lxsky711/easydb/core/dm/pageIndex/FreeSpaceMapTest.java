@@ -0,0 +1,68 @@
+package top.lxsky711.easydb.core.dm.pageIndex;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.dm.page.PageX;
+import top.lxsky711.easydb.core.dm.pageCache.PageCache;
+
+import java.io.File;
+import java.util.List;
+
+public class FreeSpaceMapTest {
+
+    private static final String PAGE_FILE_NAME = "/tmp/free_space_map_test";
+
+    @Test
+    public void testFreeSpaceMapPageLayout() {
+        assert !FreeSpaceMap.isFreeSpaceMapPage(1);
+        assert FreeSpaceMap.isFreeSpaceMapPage(2);
+        assert !FreeSpaceMap.isFreeSpaceMapPage(3);
+        int nextMapPage = 2 + PageIndexSetting.FREE_SPACE_MAP_PAGE_SLOTS + 1;
+        assert !FreeSpaceMap.isFreeSpaceMapPage(nextMapPage - 1);
+        assert FreeSpaceMap.isFreeSpaceMapPage(nextMapPage);
+        assert FreeSpaceMap.getGroup(nextMapPage - 1) == 0;
+        assert FreeSpaceMap.getGroup(nextMapPage + 1) == 1;
+    }
+
+    @Test
+    public void testFreeSpaceSurvivesReopen() throws WarningException, ErrorException {
+        new File(PAGE_FILE_NAME + PageSetting.PAGE_FILE_SUFFIX).delete();
+        PageCache pc = PageCache.create(PAGE_FILE_NAME, PageSetting.PAGE_SIZE * 16L);
+        pc.buildNewPageWithData(new byte[PageSetting.PAGE_SIZE]);
+        pc.buildNewPageWithData(FreeSpaceMap.init());
+        for(int i = 0; i < 3; i ++){
+            pc.buildNewPageWithData(PageX.init());
+        }
+        FreeSpaceMap fsm = new FreeSpaceMap(pc);
+        fsm.updateFreeSpace(3, PageSetting.PAGE_X_MAX_FREE_SPACE);
+        fsm.updateFreeSpace(4, PageSetting.PAGE_SIZE / 2);
+        fsm.updateFreeSpace(5, 0);
+        pc.close();
+
+        pc = PageCache.open(PAGE_FILE_NAME, PageSetting.PAGE_SIZE * 16L);
+        fsm = new FreeSpaceMap(pc);
+        assert fsm.getGroupNumber() == 1;
+        List<PageInfo> pageInfos = fsm.loadGroup(0);
+        assert pageInfos.size() == 3;
+        // 记录的空闲空间不会比实际的大
+        for(PageInfo pageInfo : pageInfos){
+            assert pageInfo.freeSpace <= (pageInfo.pageNumber == 3 ? PageSetting.PAGE_X_MAX_FREE_SPACE
+                    : pageInfo.pageNumber == 4 ? PageSetting.PAGE_SIZE / 2 : 0);
+        }
+        // 页面索引第一次选择页面时才加载空闲空间表
+        PageIndex pIndex = new PageIndex(fsm);
+        PageInfo pi = pIndex.selectOnePage(PageSetting.PAGE_SIZE / 4);
+        assert pi != null && pi.pageNumber == 4;
+        pi = pIndex.selectOnePage(PageSetting.PAGE_SIZE / 2);
+        assert pi != null && pi.pageNumber == 3;
+        assert pIndex.selectOnePage(PageSetting.PAGE_SIZE / 2) == null;
+        assert pIndex.selectThePage(5, 1) == null;
+        // 截断之后新建的页面在空闲空间表中的记录是 0
+        fsm.clearFreeSpaceAfter(3);
+        assert fsm.loadGroup(0).get(1).freeSpace == 0;
+        assert fsm.loadGroup(0).get(0).freeSpace > 0;
+        pc.close();
+    }
+}
@@ -1,25 +1,108 @@
 package top.lxsky711.easydb.core.dm.pageIndex;
 
 import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
 import top.lxsky711.easydb.core.dm.page.PageSetting;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 public class PageIndexTest {
     @Test
-    public void testPageIndex() {
+    public void testPageIndex() throws WarningException, ErrorException {
         PageIndex pIndex = new PageIndex();
         int threshold = PageSetting.PAGE_SIZE / 20;
         for(int i = 0; i < 20; i ++) {
             pIndex.addFreeSpaceForPage(i, i*threshold);
-            pIndex.addFreeSpaceForPage(i, i*threshold);
+        }
+
+        // 优先选空闲空间更小的页面，预留之后每个页面都只剩 threshold
+        for(int i = 0; i < 19; i ++) {
+            PageInfo pi = pIndex.selectOnePage(i * threshold);
+            assert pi != null;
+            assert pi.pageNumber == i+1;
+            assert pi.freeSpace == i * threshold;
+        }
+        assert pIndex.selectOnePage(threshold) == null;
+        // 剩下的空间仍然可以被预留，每个页面一次
+        Set<Integer> pageNumbers = new HashSet<>();
+        for(int i = 0; i < 19; i ++) {
+            PageInfo pi = pIndex.selectOnePage(threshold / 2);
+            assert pi != null;
+            assert pageNumbers.add(pi.pageNumber);
+        }
+        assert pIndex.selectOnePage(threshold / 2) == null;
+    }
+
+    @Test
+    public void testSelectThePage() throws WarningException, ErrorException {
+        PageIndex pIndex = new PageIndex();
+        int threshold = PageSetting.PAGE_SIZE / 20;
+        for(int i = 0; i < 20; i ++) {
             pIndex.addFreeSpaceForPage(i, i*threshold);
         }
+        // 空间不够时不预留
+        assert pIndex.selectThePage(5, 10 * threshold) == null;
+        PageInfo pi = pIndex.selectThePage(15, 10 * threshold);
+        assert pi != null && pi.pageNumber == 15;
+        // 已经预留的空间不能再次预留，剩下的空间可以
+        assert pIndex.selectThePage(15, 10 * threshold) == null;
+        assert pIndex.selectThePage(15, 5 * threshold).pageNumber == 15;
+        assert pIndex.selectThePage(15, 1) == null;
+        // 归还预留的空间
+        pIndex.addFreeSpaceForPage(15, pi.freeSpace);
+        assert pIndex.selectThePage(15, 10 * threshold).pageNumber == 15;
+        assert pIndex.selectThePage(25, 0) == null;
+    }
+
+    @Test
+    public void testClearFreeSpaceForPage() throws WarningException, ErrorException {
+        PageIndex pIndex = new PageIndex();
+        int threshold = PageSetting.PAGE_SIZE / 20;
+        pIndex.addFreeSpaceForPage(1, 10 * threshold);
+        pIndex.clearFreeSpaceForPage(1);
+        assert pIndex.selectOnePage(0) == null;
+        assert pIndex.selectThePage(1, 1) == null;
+        // 回收到空间后重新可用
+        pIndex.addFreeSpaceForPage(1, 15 * threshold);
+        assert pIndex.selectOnePage(12 * threshold).pageNumber == 1;
+    }
 
-        for(int k = 0; k < 3; k ++) {
-            for(int i = 0; i < 19; i ++) {
-                PageInfo pi = pIndex.selectOnePage(i * threshold);
-                assert pi != null;
-                assert pi.pageNumber == i+1;
-            }
+    @Test
+    public void testConcurrentSelect() throws InterruptedException, WarningException, ErrorException {
+        PageIndex pIndex = new PageIndex();
+        int pagesCount = 10;
+        int recordSize = 100;
+        for(int i = 1; i <= pagesCount; i ++) {
+            pIndex.addFreeSpaceForPage(i, PageSetting.PAGE_X_MAX_FREE_SPACE);
+        }
+        AtomicIntegerArray reservedSpaces = new AtomicIntegerArray(pagesCount + 1);
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t ++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    PageInfo pi;
+                    while((pi = pIndex.selectOnePage(recordSize)) != null) {
+                        reservedSpaces.addAndGet(pi.pageNumber, pi.freeSpace);
+                    }
+                } catch (WarningException | ErrorException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        // 预留的空间不会超过页面的空闲空间，并且页面几乎被用满
+        for(int i = 1; i <= pagesCount; i ++) {
+            assert reservedSpaces.get(i) <= PageSetting.PAGE_X_MAX_FREE_SPACE;
+            assert reservedSpaces.get(i) > PageSetting.PAGE_X_MAX_FREE_SPACE - 2 * PageIndexSetting.PAGE_INTERVAL_SIZE;
         }
     }
 }
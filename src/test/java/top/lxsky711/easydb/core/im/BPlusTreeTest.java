@@ -0,0 +1,367 @@
+package top.lxsky711.easydb.core.im;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.tm.MockTManager;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: 711lxsky
+ * @Description: B+树测试
+ */
+
+public class BPlusTreeTest {
+
+    private static byte[] key(long value){
+        return IndexKey.encodeLong(value);
+    }
+
+    /**
+     * 按 long 的闭区间 [left, right] 搜索
+     */
+    private static List<Long> searchRange(BPlusTree tree, long left, long right) throws WarningException, ErrorException {
+        return tree.searchRangeNodes(key(left), IndexKey.prefixSuccessor(key(right)));
+    }
+
+    @Test
+    public void testInsertAndSearch() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        int keysCount = 2000;
+        // 倒序插入，让每次插入都落在节点头部，覆盖后移和分裂
+        for(int i = keysCount - 1; i >= 0; i --){
+            tree.insertNode(i + 1, key(i * 2L));
+        }
+        for(int i = 0; i < keysCount; i ++){
+            List<Long> uids = searchRange(tree, i * 2L, i * 2L);
+            assert uids.size() == 1;
+            assert uids.get(0) == i + 1;
+            // 不存在的 key
+            assert searchRange(tree, i * 2L + 1, i * 2L + 1).isEmpty();
+        }
+        List<Long> rangeUids = searchRange(tree, 100, 1099);
+        assert rangeUids.size() == 500;
+        for(int i = 0; i < rangeUids.size(); i ++){
+            assert rangeUids.get(i) == 50 + i + 1;
+        }
+        assert searchRange(tree, 0, Long.MAX_VALUE).size() == keysCount;
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws WarningException, ErrorException, InterruptedException {
+        String path = "/tmp/b_plus_tree_concurrent_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        int workers = 8;
+        int keysPerWorker = 1000;
+        CountDownLatch cdl = new CountDownLatch(workers);
+        AtomicInteger failures = new AtomicInteger();
+        for(int w = 0; w < workers; w ++){
+            int worker = w;
+            new Thread(() -> {
+                try {
+                    // 各线程的 key 交错分布，让插入集中在同一批叶子节点上
+                    for(int i = 0; i < keysPerWorker; i ++){
+                        long key = (long) i * workers + worker;
+                        tree.insertNode(key + 1, key(key));
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert failures.get() == 0;
+        int keysCount = workers * keysPerWorker;
+        for(long key = 0; key < keysCount; key ++){
+            List<Long> uids = searchRange(tree, key, key);
+            assert uids.size() == 1;
+            assert uids.get(0) == key + 1;
+        }
+        List<Long> allUids = searchRange(tree, 0, Long.MAX_VALUE);
+        assert allUids.size() == keysCount;
+        for(int i = 0; i < keysCount; i ++){
+            assert allUids.get(i) == i + 1;
+        }
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testBulkLoadAndSortedInsert() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_bulk_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        int keysCount = 5000;
+        // 先批量构建偶数 key
+        List<IMSetting.IndexEntry> entries = new ArrayList<>();
+        for(int i = 0; i < keysCount; i ++){
+            entries.add(new IMSetting.IndexEntry(key(i * 2L), i * 2L + 1));
+        }
+        long rootUidPosUid = BPlusTree.bulkLoadBPlusTree(dm, entries.iterator(), IMSetting.BULK_LOAD_FILL_FACTOR_DEFAULT);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        List<Long> bulkUids = searchRange(tree, 0, Long.MAX_VALUE);
+        assert bulkUids.size() == keysCount;
+        for(int i = 0; i < keysCount; i ++){
+            assert bulkUids.get(i) == i * 2L + 1;
+        }
+        // 再有序批量插入奇数 key，会落在已构建好的每个叶子节点中并触发分裂
+        byte[][] keys = new byte[keysCount][];
+        long[] uids = new long[keysCount];
+        for(int i = 0; i < keysCount; i ++){
+            keys[i] = key(i * 2L + 1);
+            uids[i] = i * 2L + 2;
+        }
+        tree.insertSortedNodes(uids, keys);
+        tree.insertNode(keysCount * 2L + 1, key(keysCount * 2L));
+        for(long key = 0; key <= keysCount * 2L; key ++){
+            List<Long> found = searchRange(tree, key, key);
+            assert found.size() == 1;
+            assert found.get(0) == key + 1;
+        }
+        assert searchRange(tree, 0, Long.MAX_VALUE).size() == keysCount * 2 + 1;
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testDeleteAndMerge() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_delete_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        int keysCount = 5000;
+        for(int i = 0; i < keysCount; i ++){
+            tree.insertNode(i + 1, key(i));
+        }
+        // 相同 key 的另一条数据，删除时按 uid 精确匹配
+        tree.insertNode(keysCount + 1, key(100));
+        assert ! tree.deleteNode(keysCount + 2, key(100));
+        assert tree.deleteNode(keysCount + 1, key(100));
+        // 删掉除 10 的倍数以外的所有 key，大量节点会过空并被合并
+        for(int i = 0; i < keysCount; i ++){
+            if(i % 10 != 0){
+                assert tree.deleteNode(i + 1, key(i));
+            }
+        }
+        assert ! tree.deleteNode(2, key(1));
+        for(int i = 0; i < keysCount; i ++){
+            List<Long> found = searchRange(tree, i, i);
+            if(i % 10 == 0){
+                assert found.size() == 1 && found.get(0) == i + 1;
+            }
+            else {
+                assert found.isEmpty();
+            }
+        }
+        List<Long> remainUids = searchRange(tree, 0, Long.MAX_VALUE);
+        assert remainUids.size() == keysCount / 10;
+        // 合并后的树依然可以正常插入
+        for(int i = 0; i < keysCount; i ++){
+            if(i % 10 != 0){
+                tree.insertNode(i + 1, key(i));
+            }
+        }
+        List<Long> allUids = searchRange(tree, 0, Long.MAX_VALUE);
+        assert allUids.size() == keysCount;
+        for(int i = 0; i < keysCount; i ++){
+            assert allUids.get(i) == i + 1;
+        }
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testIndexCursor() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_cursor_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        int keysCount = 3000;
+        for(int i = 0; i < keysCount; i ++){
+            tree.insertNode(i + 1, key(i / 3));
+        }
+        // 相同 key 的数据跨越多个叶子节点，游标按 key 升序逐个返回
+        IndexCursor cursor = tree.openCursor(key(100), key(900));
+        long count = 0;
+        long lastKey = 100;
+        while(cursor.hasNext()){
+            long key = (cursor.next() - 1) / 3;
+            assert lastKey <= key && key <= 899;
+            lastKey = key;
+            count ++;
+        }
+        assert count == 2400;
+        assert ! cursor.hasNext();
+        // 提前结束
+        cursor = tree.openCursor(IndexKey.KEY_MIN, null);
+        for(int i = 0; i < 9; i ++){
+            assert cursor.hasNext();
+            assert (cursor.next() - 1) / 3 == i / 3;
+        }
+        cursor.close();
+        assert ! cursor.hasNext();
+        assert ! tree.openCursor(key(keysCount), null).hasNext();
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testVariableLengthKeys() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_var_key_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        // 编码保持原有顺序
+        assert IndexKey.compare(IndexKey.encodeInt(-1), IndexKey.encodeInt(0)) < 0;
+        assert IndexKey.compare(IndexKey.encodeLong(Long.MIN_VALUE), IndexKey.encodeLong(Long.MAX_VALUE)) < 0;
+        assert IndexKey.compare(IndexKey.encodeString("a"), IndexKey.encodeString("a\0")) < 0;
+        assert IndexKey.compare(IndexKey.encodeString("a\0"), IndexKey.encodeString("ab")) < 0;
+        // 联合索引 (int, string)，字符串长度各不相同，覆盖按字节数分裂
+        int groups = 40, perGroup = 50;
+        for(int i = perGroup - 1; i >= 0; i --){
+            for(int g = 0; g < groups; g ++){
+                String name = "name-" + "x".repeat(i % 17) + "-" + i;
+                byte[] key = IndexKey.concat(IndexKey.encodeInt(g), IndexKey.encodeString(name));
+                tree.insertNode((long) g * perGroup + i + 1, key);
+            }
+        }
+        List<Long> allUids = tree.searchRangeNodes(IndexKey.KEY_MIN, null);
+        assert allUids.size() == groups * perGroup;
+        // 只给出第一列，按前缀查找整组
+        for(int g = 0; g < groups; g ++){
+            byte[] prefix = IndexKey.encodeInt(g);
+            List<Long> groupUids = tree.searchRangeNodes(prefix, IndexKey.prefixSuccessor(prefix));
+            assert groupUids.size() == perGroup;
+            for(long uid : groupUids){
+                assert (uid - 1) / perGroup == g;
+            }
+        }
+        // 两列都给出，精确查找
+        byte[] exact = IndexKey.concat(IndexKey.encodeInt(7), IndexKey.encodeString("name-" + "x".repeat(3) + "-3"));
+        List<Long> exactUids = tree.searchRangeNodes(exact, IndexKey.prefixSuccessor(exact));
+        assert exactUids.size() == 1 && exactUids.get(0) == 7L * perGroup + 3 + 1;
+        // 第一列取值范围内，第二列按字符串有序
+        byte[] left = IndexKey.concat(IndexKey.encodeInt(3), IndexKey.encodeString("name-x"));
+        byte[] right = IndexKey.encodeInt(4);
+        IndexCursor cursor = tree.openCursor(left, right);
+        int count = 0;
+        while(cursor.hasNext()){
+            long uid = cursor.next();
+            assert (uid - 1) / perGroup == 3;
+            assert (uid - 1) % perGroup % 17 != 0;
+            count ++;
+        }
+        assert count == perGroup - (perGroup + 16) / 17;
+        // 删除一半，剩下的依然有序可查
+        for(int g = 0; g < groups; g += 2){
+            for(int i = 0; i < perGroup; i ++){
+                String name = "name-" + "x".repeat(i % 17) + "-" + i;
+                assert tree.deleteNode((long) g * perGroup + i + 1, IndexKey.concat(IndexKey.encodeInt(g), IndexKey.encodeString(name)));
+            }
+        }
+        assert tree.searchRangeNodes(IndexKey.KEY_MIN, null).size() == groups * perGroup / 2;
+        // 过长的 key
+        boolean tooLong = false;
+        try {
+            tree.insertNode(1, new byte[IMSetting.INDEX_KEY_LENGTH_MAX + 1]);
+        } catch (WarningException e) {
+            tooLong = true;
+        }
+        assert tooLong;
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void testLeafVersionInfo() throws WarningException, ErrorException {
+        String path = "/tmp/b_plus_tree_version_test";
+        TransactionManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        long rootUidPosUid = BPlusTree.createBPlusTree(dm);
+        BPlusTree tree = BPlusTree.loadBPlusTree(dm, rootUidPosUid);
+        assert tree != null;
+        // 版本信息随分裂、批量插入一起搬动
+        int keysCount = 1000;
+        for(int i = keysCount - 1; i >= 0; i -= 2){
+            tree.insertNode(i + 1, IndexKey.concat(key(i), IndexKey.encodeString("v" + i)), 100 + i);
+        }
+        long[] uids = new long[keysCount / 2];
+        byte[][] keys = new byte[keysCount / 2][];
+        long[] xmins = new long[keysCount / 2];
+        for(int i = 0; i < keysCount / 2; i ++){
+            uids[i] = i * 2 + 1;
+            keys[i] = IndexKey.concat(key(i * 2), IndexKey.encodeString("v" + i * 2));
+            xmins[i] = 100 + i * 2;
+        }
+        tree.insertSortedNodes(uids, keys, xmins);
+        for(int i = 0; i < keysCount; i += 3){
+            assert tree.markDeleted(i + 1, IndexKey.concat(key(i), IndexKey.encodeString("v" + i)), 5000 + i);
+        }
+        assert ! tree.markDeleted(1, IndexKey.concat(key(1), IndexKey.encodeString("v1")), 1);
+        IndexCursor cursor = tree.openCursor(IndexKey.KEY_MIN, null);
+        int count = 0;
+        while(cursor.hasNext()){
+            long uid = cursor.next();
+            int i = (int) uid - 1;
+            assert i == count;
+            assert cursor.getXmin() == 100 + i;
+            assert cursor.getXmax() == (i % 3 == 0 ? 5000 + i : IMSetting.LEAF_ENTRY_XMAX_DEFAULT);
+            // key 可以还原出各列
+            byte[] entryKey = cursor.getKey();
+            assert IndexKey.decodeLong(entryKey, 0) == i;
+            IMSetting.IndexKeyStringDecodeResult decoded = IndexKey.decodeString(entryKey, IMSetting.NODE_UID_LENGTH);
+            assert decoded.value.equals("v" + i);
+            assert IMSetting.NODE_UID_LENGTH + decoded.shiftFoots == entryKey.length;
+            count ++;
+        }
+        assert count == keysCount;
+        IMSetting.IndexKeyStringDecodeResult escaped = IndexKey.decodeString(IndexKey.encodeString("a\0b"), 0);
+        assert escaped.value.equals("a\0b");
+        assert IndexKey.decodeInt(IndexKey.encodeInt(Integer.MIN_VALUE), 0) == Integer.MIN_VALUE;
+        tree.close();
+        dm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+    }
+}
@@ -0,0 +1,34 @@
+package top.lxsky711.easydb.core.sp;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.WarningException;
+
+import java.util.Arrays;
+
+public class StatementParserTest {
+
+    @Test
+    public void testParseInsert() throws WarningException {
+        // 单行插入
+        Object single = StatementParser.Parse("insert into test values 1 abc".getBytes());
+        assert single instanceof SPSetting.Insert;
+        assert ((SPSetting.Insert) single).values.equals(Arrays.asList("1", "abc"));
+
+        // 多行插入解析为批量插入，行内的值可以用逗号隔开
+        Object batch = StatementParser.Parse("insert into test values (1 abc), (2, def), (3 ghi)".getBytes());
+        assert batch instanceof SPSetting.InsertBatch;
+        SPSetting.InsertBatch insertBatch = (SPSetting.InsertBatch) batch;
+        assert insertBatch.inserts.size() == 3;
+        assert insertBatch.inserts.get(0).tableName.equals("test");
+        assert insertBatch.inserts.get(1).values.equals(Arrays.asList("2", "def"));
+        assert insertBatch.inserts.get(2).values.equals(Arrays.asList("3", "ghi"));
+
+        // 只有一行时还是普通插入
+        Object oneRow = StatementParser.Parse("insert into test values (1 abc)".getBytes());
+        assert oneRow instanceof SPSetting.Insert;
+
+        // 括号没有闭合、行之间缺少逗号都是语法错误
+        assert StatementParser.Parse("insert into test values (1 abc".getBytes()) == null;
+        assert StatementParser.Parse("insert into test values (1 abc) (2 def)".getBytes()) == null;
+    }
+}
@@ -0,0 +1,182 @@
+package top.lxsky711.easydb.core.tbm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.data.ByteParser;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.im.IMSetting;
+import top.lxsky711.easydb.core.im.IndexCursor;
+import top.lxsky711.easydb.core.sp.SPSetting;
+import top.lxsky711.easydb.core.sp.StatementParser;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+import top.lxsky711.easydb.core.vm.VersionManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TableTest {
+
+    private static final String[] FILE_SUFFIXES = new String[]{
+            TBMSetting.BOOTER_SUFFIX, PageSetting.PAGE_FILE_SUFFIX, LoggerSetting.LOGGER_FILE_SUFFIX, TMSetting.XID_FILE_SUFFIX
+    };
+
+    private static void deleteFiles(String path){
+        for(String suffix : FILE_SUFFIXES){
+            new File(path + suffix).delete();
+        }
+    }
+
+    private static long begin(TableManager tbm) throws WarningException, ErrorException {
+        return begin(tbm, "begin");
+    }
+
+    private static long begin(TableManager tbm, String statement) throws WarningException, ErrorException {
+        return tbm.begin((SPSetting.Begin) StatementParser.Parse(statement.getBytes())).transactionXid;
+    }
+
+    private static Object execute(TableManager tbm, long xid, String statement) throws WarningException, ErrorException {
+        Object parsed = StatementParser.Parse(statement.getBytes());
+        if(parsed instanceof SPSetting.Create){
+            return tbm.create(xid, (SPSetting.Create) parsed);
+        }
+        if(parsed instanceof SPSetting.Insert){
+            return tbm.insert(xid, (SPSetting.Insert) parsed);
+        }
+        if(parsed instanceof SPSetting.InsertBatch){
+            return tbm.insertBatch(xid, ((SPSetting.InsertBatch) parsed).inserts);
+        }
+        if(parsed instanceof SPSetting.Select){
+            return tbm.select(xid, (SPSetting.Select) parsed);
+        }
+        return tbm.update(xid, (SPSetting.Update) parsed);
+    }
+
+    /**
+     * 语句因为警告失败时返回 true
+     */
+    private static boolean executeRejected(TableManager tbm, long xid, String statement) throws ErrorException {
+        try {
+            execute(tbm, xid, statement);
+            return false;
+        } catch (WarningException e) {
+            return true;
+        }
+    }
+
+    private static int countLines(byte[] result){
+        int lines = 0;
+        for(byte b : result){
+            if(b == '\n'){
+                lines ++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 按 key 的顺序列出表的第一个索引中索引项的 uid
+     */
+    private static List<Long> scanIndexUids(TableManager tbm, String path) throws WarningException, ErrorException {
+        long tableUid = ByteParser.parseBytesToLong(Booter.openBooter(path).readAllBytesDataInBooterFile());
+        Field field = Table.loadTable(tbm, tableUid).getIndexFields().get(0);
+        TBMSetting.Frontiers frontiers = field.getSearchFrontiersDefault();
+        IndexCursor cursor = field.openCursor(frontiers.leftFrontier, frontiers.rightFrontier);
+        List<Long> uids = new ArrayList<>();
+        while(cursor.hasNext()){
+            uids.add(cursor.next());
+        }
+        return uids;
+    }
+
+    private static String repeat(char c, int count){
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testIndexKeyTooLongRejectedBeforeWrite() throws WarningException, ErrorException {
+        String path = "/tmp/table_key_length_test";
+        deleteFiles(path);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        VersionManager vm = VersionManager.buildVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        String longName = repeat('x', IMSetting.INDEX_KEY_LENGTH_MAX + 1);
+        long xid = begin(tbm);
+        execute(tbm, xid, "create table test id int32, name string (index id name)");
+        execute(tbm, xid, "insert into test values 1 short");
+
+        // key 过长的插入、批量插入、改变 key 的更新都在写入记录之前失败
+        assert executeRejected(tbm, xid, "insert into test values 2 " + longName);
+        assert executeRejected(tbm, xid, "insert into test values (3 ok), (4 " + longName + ")");
+        assert executeRejected(tbm, xid, "update test set name = " + longName + " where id = 1");
+        // 事务仍然可以提交，被拒绝的语句没有写入任何记录，之后插入的行紧跟在第一行之后
+        execute(tbm, xid, "insert into test values 5 probe");
+        tbm.commit(xid);
+        xid = begin(tbm);
+        byte[] rows = (byte[]) execute(tbm, xid, "select * from test where id > 0");
+        assert countLines(rows) == 2;
+        assert new String(rows).contains("short");
+        List<Long> uids = scanIndexUids(tbm, path);
+        assert uids.size() == 2;
+        assert uids.get(1) == uids.get(0) + 1;
+        tbm.commit(xid);
+        tbm.close();
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testNonKeyUpdateThroughVersionChain() throws WarningException, ErrorException {
+        String path = "/tmp/table_version_chain_test";
+        deleteFiles(path);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        VersionManager vm = VersionManager.buildVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+
+        long xid = begin(tbm);
+        execute(tbm, xid, "create table test id int32, name string (index id)");
+        execute(tbm, xid, "insert into test values 1 first");
+        execute(tbm, xid, "insert into test values 2 old");
+        execute(tbm, xid, "insert into test values 3 third");
+        tbm.commit(xid);
+        List<Long> uidsBefore = scanIndexUids(tbm, path);
+        assert uidsBefore.size() == 3;
+
+        long snapshotXid = begin(tbm, "begin isolation level repeatable read");
+        // 默认隔离级别是读已提交
+        long statementXid = begin(tbm);
+        long updateXid = begin(tbm);
+        execute(tbm, updateXid, "update test set name = new where id = 2");
+        tbm.commit(updateXid);
+
+        // 可重复读沿版本链读到快照中的旧版本，读已提交读到最新提交的版本
+        String snapshotRow = new String((byte[]) execute(tbm, snapshotXid, "select * from test where id = 2"));
+        String statementRow = new String((byte[]) execute(tbm, statementXid, "select * from test where id = 2"));
+        assert snapshotRow.contains("old") && ! snapshotRow.contains("new");
+        assert statementRow.contains("new") && ! statementRow.contains("old");
+        tbm.commit(snapshotXid);
+        tbm.commit(statementXid);
+
+        // 不改变索引列的更新在原记录上挂新版本，索引项不变
+        List<Long> uidsAfter = scanIndexUids(tbm, path);
+        assert uidsAfter.equals(uidsBefore);
+        xid = begin(tbm);
+        assert countLines((byte[]) execute(tbm, xid, "select * from test where id > 0")) == 3;
+        tbm.commit(xid);
+
+        tbm.close();
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+}
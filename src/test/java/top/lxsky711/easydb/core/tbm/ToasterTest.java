@@ -0,0 +1,72 @@
+package top.lxsky711.easydb.core.tbm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.tm.MockTManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class ToasterTest {
+
+    @Test
+    public void testToastAndFree() throws WarningException, ErrorException {
+        String path = "/tmp/toaster_test";
+        new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        MockTManager tm = new MockTManager();
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        Toaster toaster = new Toaster(dm);
+        long xid = 5;
+
+        // 能压缩的值压缩后存放，不能压缩的值原样切成多块
+        byte[] text = new byte[PageSetting.PAGE_SIZE * 3];
+        for(int i = 0; i < text.length; i ++){
+            text[i] = (byte) ('a' + i % 26);
+        }
+        byte[] random = new byte[PageSetting.PAGE_SIZE * 3];
+        new Random(711).nextBytes(random);
+        TBMSetting.ToastPointer textPointer = toaster.toast(xid, text);
+        TBMSetting.ToastPointer randomPointer = toaster.toast(xid, random);
+        assert textPointer.compressed;
+        assert ! randomPointer.compressed;
+        assert Arrays.equals(toaster.detoast(textPointer), text);
+        assert Arrays.equals(toaster.detoast(randomPointer), random);
+
+        // 指针写进行里再解析出来
+        TBMSetting.ToastPointer parsed = Toaster.parseToastPointer(Toaster.buildToastPointerBytes(randomPointer));
+        assert Toaster.isToastPointer(Toaster.buildToastPointerBytes(randomPointer));
+        assert parsed.firstChunkUid == randomPointer.firstChunkUid && parsed.rawLength == random.length;
+
+        // 释放时值的所有块都置为无效，已经置为无效的值再次释放不做处理
+        List<Long> freedUids = new ArrayList<>();
+        toaster.free(xid, randomPointer, freedUids);
+        assert freedUids.size() == 4;
+        assert freedUids.get(3) == randomPointer.firstChunkUid;
+        for(long uid : freedUids){
+            assert dm.readDataItem(uid) == null;
+        }
+        toaster.free(xid, randomPointer, freedUids);
+        assert freedUids.size() == 4;
+
+        // 事务提交后写下的值留下，随引用它的版本一起释放
+        toaster.commit(xid);
+        toaster.releaseAbortedData(xid);
+        assert Arrays.equals(toaster.detoast(textPointer), text);
+        assert toaster.takeAbortedChunks().isEmpty();
+
+        // 事务撤销时写下的值直接置为无效，等待回收
+        TBMSetting.ToastPointer abortedPointer = toaster.toast(xid + 1, random);
+        toaster.releaseAbortedData(xid + 1);
+        assert toaster.takeAbortedChunks().size() == 4;
+        assert dm.readDataItem(abortedPointer.firstChunkUid) == null;
+        dm.close();
+    }
+}
@@ -0,0 +1,252 @@
+package top.lxsky711.easydb.core.tbm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.data.ByteParser;
+import top.lxsky711.easydb.common.data.DataSetting;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.common.SubArray;
+import top.lxsky711.easydb.core.dm.DataItem;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.im.IndexCursor;
+import top.lxsky711.easydb.core.sp.SPSetting;
+import top.lxsky711.easydb.core.sp.StatementParser;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+import top.lxsky711.easydb.core.vm.VMSetting;
+import top.lxsky711.easydb.core.vm.VersionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+public class VacuumTest {
+
+    private static final String[] FILE_SUFFIXES = new String[]{
+            TBMSetting.BOOTER_SUFFIX, PageSetting.PAGE_FILE_SUFFIX, LoggerSetting.LOGGER_FILE_SUFFIX, TMSetting.XID_FILE_SUFFIX
+    };
+
+    private static void deleteFiles(String path){
+        for(String suffix : FILE_SUFFIXES){
+            new File(path + suffix).delete();
+        }
+    }
+
+    private static long begin(TableManager tbm) throws WarningException, ErrorException {
+        return tbm.begin((SPSetting.Begin) StatementParser.Parse("begin".getBytes())).transactionXid;
+    }
+
+    private static void execute(TableManager tbm, long xid, String statement) throws WarningException, ErrorException {
+        Object parsed = StatementParser.Parse(statement.getBytes());
+        if(parsed instanceof SPSetting.Create){
+            tbm.create(xid, (SPSetting.Create) parsed);
+        }
+        else if(parsed instanceof SPSetting.Insert){
+            tbm.insert(xid, (SPSetting.Insert) parsed);
+        }
+        else if(parsed instanceof SPSetting.Delete){
+            tbm.delete(xid, (SPSetting.Delete) parsed);
+        }
+        else {
+            tbm.update(xid, (SPSetting.Update) parsed);
+        }
+    }
+
+    /**
+     * 扫描表的第一个索引，返回 uid -> 索引项的XMAX
+     */
+    private static Map<Long, Long> scanIndex(TableManager tbm, String path) throws WarningException, ErrorException {
+        long tableUid = ByteParser.parseBytesToLong(Booter.openBooter(path).readAllBytesDataInBooterFile());
+        Field field = Table.loadTable(tbm, tableUid).getIndexFields().get(0);
+        TBMSetting.Frontiers frontiers = field.getSearchFrontiersDefault();
+        IndexCursor cursor = field.openCursor(frontiers.leftFrontier, frontiers.rightFrontier);
+        Map<Long, Long> entries = new HashMap<>();
+        while(cursor.hasNext()){
+            long uid = cursor.next();
+            entries.put(uid, cursor.getXmax());
+        }
+        return entries;
+    }
+
+    private static long readNext(DataManager dm, long uid) throws WarningException, ErrorException {
+        DataItem dataItem = dm.readDataItem(uid);
+        try {
+            SubArray record = dataItem.getDataRecord();
+            int nextStart = record.start + VMSetting.RECORD_NEXT_OFFSET;
+            return ByteParser.parseBytesToLong(Arrays.copyOfRange(record.rawData, nextStart, nextStart + VMSetting.RECORD_NEXT_LENGTH));
+        }
+        finally {
+            dataItem.releaseOneReference();
+        }
+    }
+
+    /**
+     * 读出版本中第二个字段(行外存储)的指针
+     */
+    private static TBMSetting.ToastPointer readToastPointer(DataManager dm, long uid) throws WarningException, ErrorException {
+        DataItem dataItem = dm.readDataItem(uid);
+        try {
+            SubArray record = dataItem.getDataRecord();
+            int pointerStart = record.start + VMSetting.RECORD_DATA_OFFSET + DataSetting.INT_BYTE_SIZE;
+            byte[] pointerBytes = Arrays.copyOfRange(record.rawData, pointerStart, pointerStart + TBMSetting.TOAST_POINTER_LENGTH);
+            assert Toaster.isToastPointer(pointerBytes);
+            return Toaster.parseToastPointer(pointerBytes);
+        }
+        finally {
+            dataItem.releaseOneReference();
+        }
+    }
+
+    private static String repeat(char c, int count){
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testToastReleasedWithVersions() throws WarningException, ErrorException {
+        String path = "/tmp/vacuum_toast_test";
+        deleteFiles(path);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        VersionManager vm = VersionManager.buildVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        // 停掉后台清理，由测试控制每次清理的时机
+        tbm.getVacuum().close();
+        int bodyLength = TBMSetting.TOAST_ROW_THRESHOLD + 1000;
+        long xid = begin(tbm);
+        execute(tbm, xid, "create table test id int32, body string, note string (index id)");
+        execute(tbm, xid, "insert into test values 1 " + repeat('a', bodyLength) + " note0");
+        tbm.commit(xid);
+        long headUid = scanIndex(tbm, path).keySet().iterator().next();
+        TBMSetting.ToastPointer headPointer = readToastPointer(dm, headUid);
+
+        // 更新行外存储的字段写下新的值，只更新其他字段时沿用旧版本的指针
+        xid = begin(tbm);
+        execute(tbm, xid, "update test set body = " + repeat('b', bodyLength) + " where id = 1");
+        tbm.commit(xid);
+        xid = begin(tbm);
+        execute(tbm, xid, "update test set note = note1 where id = 1");
+        tbm.commit(xid);
+        xid = begin(tbm);
+        execute(tbm, xid, "update test set body = " + repeat('c', bodyLength) + " where id = 1");
+        tbm.commit(xid);
+        long firstUid = readNext(dm, headUid);
+        long secondUid = readNext(dm, firstUid);
+        long thirdUid = readNext(dm, secondUid);
+        TBMSetting.ToastPointer middlePointer = readToastPointer(dm, firstUid);
+        assert readToastPointer(dm, secondUid).firstChunkUid == middlePointer.firstChunkUid;
+        TBMSetting.ToastPointer newestPointer = readToastPointer(dm, thirdUid);
+        assert newestPointer.firstChunkUid != middlePointer.firstChunkUid && newestPointer.firstChunkUid != headPointer.firstChunkUid;
+
+        // 撤销的更新写下的值在撤销时释放
+        xid = begin(tbm);
+        execute(tbm, xid, "update test set body = " + repeat('d', bodyLength) + " where id = 1");
+        TBMSetting.ToastPointer abortedPointer = readToastPointer(dm, readNext(dm, thirdUid));
+        tbm.abort(xid);
+        assert dm.readDataItem(abortedPointer.firstChunkUid) == null;
+
+        // 摘下中间的版本时只释放留下的版本都没有引用的值，共用的值只释放一次
+        tbm.getVacuum().vacuum();
+        assert readNext(dm, headUid) == thirdUid;
+        assert dm.readDataItem(middlePointer.firstChunkUid) == null;
+        assert Objects.nonNull(tbm.getToaster().detoast(headPointer));
+        assert new String(tbm.getToaster().detoast(newestPointer)).equals(repeat('c', bodyLength));
+
+        // 整行清理时释放整条版本链引用的值
+        xid = begin(tbm);
+        execute(tbm, xid, "delete from test where id = 1");
+        tbm.commit(xid);
+        tbm.getVacuum().vacuum();
+        assert dm.readDataItem(headUid) == null;
+        assert dm.readDataItem(headPointer.firstChunkUid) == null;
+        assert dm.readDataItem(newestPointer.firstChunkUid) == null;
+        tbm.close();
+        dm.close();
+        tm.close();
+        deleteFiles(path);
+    }
+
+    @Test
+    public void testSweepAfterCrash() throws WarningException, ErrorException, IOException {
+        String path = "/tmp/vacuum_sweep_test";
+        String crashPath = "/tmp/vacuum_sweep_image";
+        deleteFiles(path);
+        deleteFiles(crashPath);
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        VersionManager vm = VersionManager.buildVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        // 停掉后台清理，崩溃前留下的都是还没清理的数据
+        tbm.getVacuum().close();
+        long xid = begin(tbm);
+        execute(tbm, xid, "create table test id int32, name string (index id)");
+        for(int i = 0; i < 20; i ++){
+            execute(tbm, xid, "insert into test values " + i + " name" + i);
+        }
+        tbm.commit(xid);
+
+        // 删除一半的行，另一半原地更新两次
+        xid = begin(tbm);
+        execute(tbm, xid, "delete from test where id < 10");
+        tbm.commit(xid);
+        for(int round = 0; round < 2; round ++){
+            xid = begin(tbm);
+            execute(tbm, xid, "update test set name = round" + round + " where id >= 10");
+            tbm.commit(xid);
+        }
+        Map<Long, Long> entries = scanIndex(tbm, path);
+        assert entries.size() == 20;
+        Map<Long, Long> middleVersions = new HashMap<>();
+        for(Map.Entry<Long, Long> entry : entries.entrySet()){
+            if(entry.getValue() == TMSetting.SUPER_TRANSACTION_XID){
+                middleVersions.put(entry.getKey(), readNext(dm, entry.getKey()));
+            }
+        }
+        assert middleVersions.size() == 10;
+
+        // 崩溃时还没有提交的插入
+        xid = begin(tbm);
+        execute(tbm, xid, "insert into test values 100 uncommitted");
+
+        for(String suffix : FILE_SUFFIXES){
+            Files.copy(new File(path + suffix).toPath(), new File(crashPath + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        // 重新打开时启动清理从索引找回被删除的行和可以摘下的旧版本
+        TransactionManager recoveredTm = TransactionManager.open(crashPath);
+        DataManager recoveredDm = DataManager.open(crashPath, PageSetting.PAGE_SIZE * 64, recoveredTm);
+        VersionManager recoveredVm = VersionManager.buildVersionManager(recoveredTm, recoveredDm);
+        TableManager recoveredTbm = TableManager.open(crashPath, recoveredVm, recoveredDm);
+        Map<Long, Long> sweptEntries = scanIndex(recoveredTbm, crashPath);
+        assert sweptEntries.keySet().equals(middleVersions.keySet());
+        for(long uid : entries.keySet()){
+            if(! middleVersions.containsKey(uid)){
+                assert recoveredDm.readDataItem(uid) == null;
+            }
+        }
+        for(Map.Entry<Long, Long> middleVersion : middleVersions.entrySet()){
+            long newestUid = readNext(recoveredDm, middleVersion.getKey());
+            assert newestUid != middleVersion.getValue();
+            assert recoveredDm.readDataItem(middleVersion.getValue()) == null;
+            assert readNext(recoveredDm, newestUid) == VMSetting.RECORD_NEXT_DEFAULT;
+        }
+        // 无效数据在启动清理时都已经回收
+        assert recoveredDm.reclaimInvalidData() == 0;
+        recoveredTbm.close();
+        recoveredDm.close();
+        recoveredTm.close();
+        deleteFiles(path);
+        deleteFiles(crashPath);
+    }
+}
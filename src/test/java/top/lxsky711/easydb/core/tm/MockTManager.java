@@ -40,4 +40,19 @@ public class MockTManager implements TransactionManager{
     public void close() {
 
     }
+
+    @Override
+    public void setStatusLogger(TransactionStatusLogger statusLogger) {
+
+    }
+
+    @Override
+    public void setCommitDurability(byte commitDurability) {
+
+    }
+
+    @Override
+    public void persistLoggedStatus(long durableLogPosition) {
+
+    }
 }
@@ -55,6 +55,27 @@ public class TMTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testReopenLoadsStatus() throws WarningException, ErrorException {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reopen_test");
+        long committed = tm.begin(), aborted = tm.begin(), active = tm.begin();
+        tm.commit(committed);
+        tm.abort(aborted);
+        assert tm.isCommitted(committed) && tm.isAborted(aborted) && tm.isActive(active);
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_reopen_test");
+        assert tm.isCommitted(committed) && !tm.isActive(committed);
+        assert tm.isAborted(aborted) && !tm.isCommitted(aborted);
+        assert tm.isActive(active);
+        assert tm.isCommitted(TMSetting.SUPER_TRANSACTION_XID);
+        long next = tm.begin();
+        // 上次预留块中没用完的 XID 被跳过
+        assert next == TMSetting.XID_RESERVE_BLOCK_SIZE + 1 && tm.isActive(next);
+        tm.close();
+        assert new File("/tmp/tranmger_reopen_test.xid").delete();
+    }
+
     private void worker() throws WarningException, ErrorException {
         boolean inTrans = false;
         long transXID = 0;
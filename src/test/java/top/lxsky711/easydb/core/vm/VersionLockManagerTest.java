@@ -0,0 +1,125 @@
+package top.lxsky711.easydb.core.vm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.common.log.WarningMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VersionLockManagerTest {
+
+    /**
+     * 等到线程阻塞在记录锁的条件变量上，说明它已经排进了等待队列
+     */
+    private static void waitUntilQueued(Thread thread) throws InterruptedException {
+        while(thread.getState() != Thread.State.TIMED_WAITING){
+            assert thread.isAlive();
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testDeadlockAbortsLargerXid() throws Exception {
+        VersionLockManager vlm = new VersionLockManager();
+        long uidA = 1, uidB = 2;
+        vlm.acquireRecordLock(1, uidA);
+        vlm.acquireRecordLock(2, uidB);
+        AtomicReference<Exception> smallerFailure = new AtomicReference<>();
+        AtomicReference<Exception> largerFailure = new AtomicReference<>();
+        Thread smaller = new Thread(() -> {
+            try {
+                vlm.acquireRecordLock(1, uidB);
+            } catch (Exception e) {
+                smallerFailure.set(e);
+            }
+        });
+        Thread larger = new Thread(() -> {
+            try {
+                vlm.acquireRecordLock(2, uidA);
+            } catch (Exception e) {
+                largerFailure.set(e);
+            }
+        });
+        smaller.start();
+        waitUntilQueued(smaller);
+        larger.start();
+        // 只有XID较大的一方被选为牺牲者，另一方继续等待
+        larger.join(VMSetting.VERSION_LOCK_WAIT_TIMEOUT_MILLIS);
+        assert ! larger.isAlive();
+        assert largerFailure.get() instanceof WarningException;
+        assert largerFailure.get().getMessage().contains(WarningMessage.VERSION_CONTROL_DEAD_LOCK_OCCUR);
+        assert smaller.isAlive();
+        // 牺牲者撤销后释放持有的锁，另一方拿到锁继续执行
+        vlm.removeOneTransaction(2);
+        smaller.join(VMSetting.VERSION_LOCK_WAIT_TIMEOUT_MILLIS);
+        assert ! smaller.isAlive();
+        assert smallerFailure.get() == null;
+        assert ! vlm.tryAcquireRecordLock(3, uidA);
+        assert ! vlm.tryAcquireRecordLock(3, uidB);
+    }
+
+    @Test
+    public void testWaitersGrantedInArrivalOrder() throws Exception {
+        VersionLockManager vlm = new VersionLockManager();
+        long uid = 1;
+        vlm.acquireRecordLock(1, uid);
+        List<Long> grantOrder = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> waiters = new ArrayList<>();
+        for(long xid = 2; xid <= 4; xid ++){
+            long waiterXid = xid;
+            Thread waiter = new Thread(() -> {
+                try {
+                    vlm.acquireRecordLock(waiterXid, uid);
+                    grantOrder.add(waiterXid);
+                    vlm.releaseRecordLock(waiterXid, uid);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            });
+            waiter.start();
+            waitUntilQueued(waiter);
+            waiters.add(waiter);
+        }
+        vlm.releaseRecordLock(1, uid);
+        for(Thread waiter : waiters){
+            waiter.join(VMSetting.VERSION_LOCK_WAIT_TIMEOUT_MILLIS);
+            assert ! waiter.isAlive();
+        }
+        assert failure.get() == null;
+        assert grantOrder.equals(List.of(2L, 3L, 4L));
+        // 最后一个持有者释放后记录锁被删除，任何事务都能直接拿到
+        assert vlm.tryAcquireRecordLock(5, uid);
+    }
+
+    @Test
+    public void testRemoveTransactionReleasesLocks() throws Exception {
+        VersionLockManager vlm = new VersionLockManager();
+        long uidA = 1, uidB = 2;
+        vlm.acquireRecordLock(1, uidA);
+        vlm.acquireRecordLock(1, uidB);
+        assert ! vlm.tryAcquireRecordLock(2, uidA);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                vlm.acquireRecordLock(3, uidA);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        waitUntilQueued(waiter);
+        vlm.removeOneTransaction(1);
+        // 有等待者的记录交给等待者，没有等待者的记录直接释放
+        waiter.join(VMSetting.VERSION_LOCK_WAIT_TIMEOUT_MILLIS);
+        assert ! waiter.isAlive();
+        assert failure.get() == null;
+        assert ! vlm.tryAcquireRecordLock(2, uidA);
+        assert vlm.tryAcquireRecordLock(2, uidB);
+        vlm.removeOneTransaction(3);
+        assert vlm.tryAcquireRecordLock(2, uidA);
+    }
+}
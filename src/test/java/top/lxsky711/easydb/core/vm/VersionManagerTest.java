@@ -0,0 +1,86 @@
+package top.lxsky711.easydb.core.vm;
+
+import org.junit.Test;
+import top.lxsky711.easydb.common.exception.ErrorException;
+import top.lxsky711.easydb.common.exception.WarningException;
+import top.lxsky711.easydb.core.dm.DataManager;
+import top.lxsky711.easydb.core.dm.logger.LoggerSetting;
+import top.lxsky711.easydb.core.dm.page.PageSetting;
+import top.lxsky711.easydb.core.tm.TMSetting;
+import top.lxsky711.easydb.core.tm.TransactionManager;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class VersionManagerTest {
+
+    private static boolean readEquals(VersionManager vm, long xid, long uid, String expected) throws WarningException, ErrorException {
+        byte[] data = vm.read(xid, uid);
+        if(expected == null){
+            return data == null;
+        }
+        return Arrays.equals(data, expected.getBytes());
+    }
+
+    @Test
+    public void testSnapshotVisibility() throws WarningException, ErrorException {
+        String path = "/tmp/version_manager_test";
+        new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        new File(path + TMSetting.XID_FILE_SUFFIX).delete();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageSetting.PAGE_SIZE * 64, tm);
+        VersionManager vm = VersionManager.buildVersionManager(tm, dm);
+        int readCommitted = VMSetting.TRANSACTION_ISOLATION_LEVEL_READ_COMMITTED;
+        int repeatableRead = VMSetting.TRANSACTION_ISOLATION_LEVEL_REPEATABLE_READ;
+
+        long insertXid = vm.begin(readCommitted);
+        long uid = vm.insert(insertXid, "v1".getBytes());
+        // 没有提交的插入只对自己可见
+        long earlyXid = vm.begin(readCommitted);
+        assert readEquals(vm, insertXid, uid, "v1");
+        assert readEquals(vm, earlyXid, uid, null);
+        vm.commit(insertXid);
+        vm.commit(earlyXid);
+
+        long snapshotXid = vm.begin(repeatableRead);
+        long statementXid = vm.begin(readCommitted);
+        assert readEquals(vm, snapshotXid, uid, "v1");
+        assert readEquals(vm, statementXid, uid, "v1");
+
+        // 没有提交的更新只对自己可见
+        long updateXid = vm.begin(readCommitted);
+        assert vm.update(updateXid, uid, "v2".getBytes()) != VMSetting.TRANSACTION_XID_ERROR_DEFAULT;
+        assert readEquals(vm, updateXid, uid, "v2");
+        assert readEquals(vm, snapshotXid, uid, "v1");
+        assert readEquals(vm, statementXid, uid, "v1");
+        vm.commit(updateXid);
+        // 读已提交每次读都看到最新提交的版本，可重复读仍然看到快照中的版本
+        assert readEquals(vm, statementXid, uid, "v2");
+        assert readEquals(vm, snapshotXid, uid, "v1");
+
+        // 撤销的更新对所有事务都不可见
+        long abortXid = vm.begin(readCommitted);
+        assert vm.update(abortXid, uid, "v3".getBytes()) != VMSetting.TRANSACTION_XID_ERROR_DEFAULT;
+        vm.abort(abortXid);
+        assert readEquals(vm, statementXid, uid, "v2");
+
+        // 提交的删除之后，新事务看不到这一行，快照开始更早的事务仍然看到旧版本
+        long deleteXid = vm.begin(readCommitted);
+        assert vm.delete(deleteXid, uid);
+        vm.commit(deleteXid);
+        long lateXid = vm.begin(repeatableRead);
+        assert readEquals(vm, lateXid, uid, null);
+        assert readEquals(vm, statementXid, uid, null);
+        assert readEquals(vm, snapshotXid, uid, "v1");
+        vm.commit(lateXid);
+        vm.commit(statementXid);
+        vm.commit(snapshotXid);
+
+        dm.close();
+        tm.close();
+        assert new File(path + PageSetting.PAGE_FILE_SUFFIX).delete();
+        assert new File(path + LoggerSetting.LOGGER_FILE_SUFFIX).delete();
+        assert new File(path + TMSetting.XID_FILE_SUFFIX).delete();
+    }
+}